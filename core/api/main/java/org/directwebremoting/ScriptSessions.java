@@ -18,6 +18,7 @@ package org.directwebremoting;
 import java.util.Collection;
 
 import org.directwebremoting.event.ScriptSessionBindingListener;
+import org.directwebremoting.extend.SharedScriptBuffer;
 
 /**
  * A class to act on the current {@link ScriptSession}(s).
@@ -76,6 +77,13 @@ public class ScriptSessions
     public static void addScript(ScriptBuffer script)
     {
         Collection<ScriptSession> sessions = Browser.getTargetSessions();
+
+        // Convert the data once rather than once for each session
+        if (sessions.size() > 1)
+        {
+            script = SharedScriptBuffer.share(script);
+        }
+
         for (ScriptSession scriptSession : sessions)
         {
             scriptSession.addScript(script);
@@ -23,7 +23,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
-import java.util.regex.Pattern;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,7 +37,8 @@ import org.directwebremoting.io.MatchedItems;
 import org.directwebremoting.io.QueryOptions;
 import org.directwebremoting.io.RawData;
 import org.directwebremoting.io.StoreChangeListener;
-import org.directwebremoting.util.LocalUtil;
+import org.directwebremoting.io.StoreRegion;
+import org.directwebremoting.io.StoreRegionListener;
 import org.directwebremoting.util.Pair;
 
 /**
@@ -82,67 +84,23 @@ public abstract class AbstractStoreProvider<T> implements StoreProvider<T>
      * by the name of each and every key in the <code>query</code>, and where
      * the string value (using {@link #toString()}) of the property is equal to
      * the value from the <code>filter</code> map.
+     * <p>Stores that test many objects against the same query should hold on
+     * to the result of {@link QueryPlan#compile(Map, QueryOptions)} instead.
      * @param pojo The object to be tested to see if it matches
      * @param query The set of property/matches to test the value against
      * @return True if the value contains properties that match the filter
      */
     protected static boolean passesFilter(Object pojo, Map<String, String> query, QueryOptions options)
     {
-        if (query == null || query.isEmpty())
-        {
-            return true;
-        }
-
-        try
-        {
-            for (Map.Entry<String, String> entry : query.entrySet())
-            {
-                String testProperty = entry.getKey();
-                String testValue = entry.getValue();
-
-                String realValue = LocalUtil.getProperty(pojo, testProperty, String.class);
-                return testPattern(testValue, realValue, options.isIgnoreCase());
-            }
-        }
-        catch (Exception ex)
-        {
-            log.warn("Failed to introspect: " + pojo.getClass() + ". Filters will fail.");
-            return false;
-        }
-
-        return true;
+        return QueryPlan.compile(query, options).matches(pojo);
     }
 
+    /**
+     * @see QueryPlan#testPattern(String, String, boolean)
+     */
     protected static boolean testPattern(String pattern, String value, boolean caseInsensitive)
     {
-        boolean result = pattern.equals(value);
-        if (!result && LocalUtil.hasText(value))
-        {
-            String javaPattern = pattern;
-
-            if (pattern.indexOf('?') > 0)
-            {
-                javaPattern = javaPattern.replace("?", ".{1}");
-            }
-
-            if (pattern.indexOf('*') > 0)
-            {
-                javaPattern = javaPattern.replace("*", ".*");
-            }
-
-            if (LocalUtil.hasText(pattern))
-            {
-                Pattern p = caseInsensitive
-                ? Pattern.compile(javaPattern, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)
-                : Pattern.compile(javaPattern);
-                result = p.matcher(value).matches();
-            }
-            else
-            {
-                result = true;
-            }
-        }
-        return result;
+        return QueryPlan.testPattern(pattern, value, caseInsensitive);
     }
 
     /**
@@ -289,6 +247,11 @@ public abstract class AbstractStoreProvider<T> implements StoreProvider<T>
      */
     protected synchronized void clearWatchedSet(StoreChangeListener<T> listener)
     {
+        if (coalescer != null)
+        {
+            coalescer.unsubscribe(listener);
+        }
+
         Collection<String> itemIds = watched.get(listener);
         if (itemIds != null)
         {
@@ -309,6 +272,71 @@ public abstract class AbstractStoreProvider<T> implements StoreProvider<T>
         }
     }
 
+    /**
+     * Subscribe a listener to a region, so that it is sent the changes to the
+     * region in batches rather than one item at a time. This only happens
+     * if a {@link #setCoalesceWindow coalescing window} has been set and the
+     * listener is a {@link StoreRegionListener}.
+     * @param region The region that the listener is viewing
+     * @param listener The listener to be told about changes
+     * @param viewed The items that the listener has been sent already
+     * @return true if the listener has been subscribed, false if the caller
+     * should fall back to {@link #setWatchedSet} for per item notifications
+     */
+    protected synchronized boolean subscribeRegion(StoreRegion region, StoreChangeListener<T> listener, MatchedItems viewed)
+    {
+        if (coalesceWindow <= 0 || !(listener instanceof StoreRegionListener<?>))
+        {
+            return false;
+        }
+
+        clearWatchedSet(listener);
+
+        if (coalescer == null)
+        {
+            if (executor == null)
+            {
+                executor = ServerContextFactory.get().getContainer().getBean(ScheduledThreadPoolExecutor.class);
+            }
+            coalescer = new StoreChangeCoalescer<T>(this, coalesceWindow, executor);
+        }
+
+        coalescer.subscribe((StoreRegionListener<T>) listener, region, viewed);
+        return true;
+    }
+
+    /**
+     * How long (in milliseconds) should we collect changes for before telling
+     * {@link StoreRegionListener}s about them? The default of 0 means that
+     * listeners are told about each item as it changes.
+     * <p>Listeners that are already viewing a region keep their subscriptions
+     * and use the new window from the end of the current one. Setting the
+     * window to 0 only affects new subscriptions.
+     * @param coalesceWindow The new window in milliseconds
+     */
+    public synchronized void setCoalesceWindow(long coalesceWindow)
+    {
+        this.coalesceWindow = coalesceWindow;
+        if (coalescer != null)
+        {
+            coalescer.setWindow(coalesceWindow);
+        }
+    }
+
+    /**
+     * Override the scheduler that we use to end coalescing windows. By
+     * default we use the one from the DWR container.
+     * @param executor The new scheduler
+     */
+    public synchronized void setScheduledExecutorService(ScheduledExecutorService executor)
+    {
+        this.executor = executor;
+        if (coalescer != null)
+        {
+            coalescer.setExecutor(executor);
+        }
+    }
+
     /**
      * If called all listeners (clients) are informed when a new item
      * is added to the store.
@@ -338,6 +366,11 @@ public abstract class AbstractStoreProvider<T> implements StoreProvider<T>
                 listener.itemChanged(this, item, attributes);
             }
         }
+
+        if (coalescer != null)
+        {
+            coalescer.itemChanged(item.getItemId(), attributes);
+        }
     }
 
     /**
@@ -356,6 +389,11 @@ public abstract class AbstractStoreProvider<T> implements StoreProvider<T>
                 listener.itemAdded(this, item);
             }
         }
+
+        if (coalescer != null)
+        {
+            coalescer.itemAdded(item.getItemId());
+        }
     }
 
     /**
@@ -373,11 +411,16 @@ public abstract class AbstractStoreProvider<T> implements StoreProvider<T>
                 listener.itemRemoved(this, itemId);
             }
         }
+
+        if (coalescer != null)
+        {
+            coalescer.itemRemoved(itemId);
+        }
     }
 
     /**
      * A PairComparator is a way to proxy comparisons to the 'value' of a
-     * String, Object paring.
+     * String, Object paring. Pairs with equal values are ordered by key.
      * @author Joe Walker [joe at getahead dot ltd dot uk]
      */
     protected static class PairComparator<T> implements Comparator<Pair<String, T>>
@@ -395,7 +438,15 @@ public abstract class AbstractStoreProvider<T> implements StoreProvider<T>
          */
         public int compare(Pair<String, T> p1, Pair<String, T> p2)
         {
-            return proxy.compare(p1.right, p2.right);
+            int comparison = proxy.compare(p1.right, p2.right);
+            if (comparison != 0)
+            {
+                return comparison;
+            }
+
+            // Items with different ids are never the same entry, even if
+            // their values are equal
+            return p1.left.compareTo(p2.left);
         }
 
         /**
@@ -416,6 +467,25 @@ public abstract class AbstractStoreProvider<T> implements StoreProvider<T>
      */
     private final Map<StoreChangeListener<T>, Collection<String>> watched = new HashMap<StoreChangeListener<T>, Collection<String>>();
 
+    /**
+     * How long do we collect changes for before telling region listeners?
+     * @protectedBy(this)
+     */
+    private long coalesceWindow = 0;
+
+    /**
+     * How we schedule the end of a coalescing window
+     * @protectedBy(this)
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Batches changes for region listeners, null until the first one
+     * subscribes
+     * @protectedBy(this)
+     */
+    private StoreChangeCoalescer<T> coalescer;
+
     /**
      * The type that this StoreProvider uses
      */
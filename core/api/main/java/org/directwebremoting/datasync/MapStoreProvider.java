@@ -27,8 +27,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -44,6 +43,11 @@ import org.directwebremoting.util.Pair;
 
 /**
  * A simple implementation of StoreProvider that uses a Map<String, ?>.
+ * <p>Viewing the data does not take any locks, except to subscribe to changes
+ * to the viewed data. Each sort order and query has
+ * an {@link Index} that is a snapshot of the matching data, and changes are
+ * made (one writer at a time) by replacing the affected snapshots. Paging
+ * through an index takes O(log n) time to find the start of a page.
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
 public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements StoreProvider<T>
@@ -90,10 +94,10 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
     /* (non-Javadoc)
      * @see org.directwebremoting.datasync.StoreProvider#viewRegion(org.directwebremoting.datasync.StoreRegion)
      */
-    public synchronized MatchedItems viewRegion(StoreRegion region)
+    public MatchedItems viewRegion(StoreRegion region)
     {
         Index index = getIndex(region);
-        return selectMatchedItems(index.getSortedData(), region.getStart(), region.getCount());
+        return index.select(region.getStart(), region.getCount());
     }
 
     /* (non-Javadoc)
@@ -101,8 +105,15 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
      */
     public synchronized MatchedItems viewRegion(StoreRegion region, StoreChangeListener<T> listener)
     {
+        // We hold the writers' lock from taking the snapshot until the
+        // listener is registered, otherwise a change in between is never seen
         MatchedItems matchedItems = viewRegion(region);
 
+        if (subscribeRegion(region, listener, matchedItems))
+        {
+            return matchedItems;
+        }
+
         Collection<String> itemIds = new HashSet<String>();
         for (Item item : matchedItems.getViewedMatches())
         {
@@ -116,7 +127,7 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
     /* (non-Javadoc)
      * @see org.directwebremoting.datasync.StoreProvider#viewItem(java.lang.String, org.directwebremoting.io.StoreChangeListener)
      */
-    public Item viewItem(String itemId, StoreChangeListener<T> listener)
+    public synchronized Item viewItem(String itemId, StoreChangeListener<T> listener)
     {
         Item item = viewItem(itemId);
 
@@ -188,29 +199,53 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
                 }
             }
 
-            for (ItemUpdate itemUpdate : entry.getValue())
+            // Changing an existing item can change its sort order, so we find
+            // it in each index before we change it, and re-sort it afterwards
+            Map<Index, RankedSet<Pair<String, T>>> detached = new HashMap<Index, RankedSet<Pair<String, T>>>();
+            if (!newItem)
             {
-                String attribute = itemUpdate.getAttribute();
-                if (attribute.equals("$delete"))
+                for (Index index : data.values())
                 {
-                    put(itemUpdate.getItemId(), (T) null);
+                    detached.put(index, index.detach(entry.getKey()));
                 }
-                else
+            }
+
+            try
+            {
+                for (ItemUpdate itemUpdate : entry.getValue())
                 {
-                    try
+                    String attribute = itemUpdate.getAttribute();
+                    if (attribute.equals("$delete"))
                     {
-                        Class<?> convertTo = LocalUtil.getPropertyType(type, attribute);
-                        Object value = convert(itemUpdate.getNewValue(), convertTo);
-                        LocalUtil.setProperty(t, attribute, value);
-                        changedAttributes.add(attribute);
+                        put(itemUpdate.getItemId(), (T) null);
                     }
-                    catch (SecurityException ex)
+                    else
                     {
-                        throw ex;
+                        try
+                        {
+                            Class<?> convertTo = LocalUtil.getPropertyType(type, attribute);
+                            Object value = convert(itemUpdate.getNewValue(), convertTo);
+                            LocalUtil.setProperty(t, attribute, value);
+                            changedAttributes.add(attribute);
+                        }
+                        catch (SecurityException ex)
+                        {
+                            throw ex;
+                        }
+                        catch (Exception ex)
+                        {
+                            throw new SecurityException(ex);
+                        }
                     }
-                    catch (Exception ex)
+                }
+            }
+            finally
+            {
+                if (getObject(entry.getKey()) != null)
+                {
+                    for (Map.Entry<Index, RankedSet<Pair<String, T>>> detachment : detached.entrySet())
                     {
-                        throw new SecurityException(ex);
+                        detachment.getKey().reattach(entry.getKey(), t, detachment.getValue());
                     }
                 }
             }
@@ -235,7 +270,7 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
      * @see org.directwebremoting.datasync.AbstractStoreProvider#getObject(java.lang.String)
      */
     @Override
-    protected synchronized T getObject(String itemId)
+    protected T getObject(String itemId)
     {
         return data.get(baseRegion).index.get(itemId);
     }
@@ -295,7 +330,7 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
                     @Override
                     public int size()
                     {
-                        return original.sortedData.size();
+                        return original.getSortedData().size();
                     }
 
                     /* (non-Javadoc)
@@ -326,13 +361,26 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
         };
     }
 
+    /**
+     * Each sort order and query that is viewed creates an {@link Index} that
+     * must be kept up to date whenever the data changes. We keep the most
+     * recently used indexes and forget the rest.
+     * @param maxIndexes The number of indexes to keep as well as the index of
+     * the unfiltered data in the default sort order
+     */
+    public void setMaxIndexes(int maxIndexes)
+    {
+        this.maxIndexes = maxIndexes;
+        evictIndexes();
+    }
+
     /**
      * Get an Index from a StoreRegion by defaulting the sort criteria if
      * needed, and by creating a new index if needed.
      * @param region The region to be viewed (we ignore start/end)
      * @return An index that we can use to get a sorted data cache
      */
-    protected synchronized Index getIndex(StoreRegion region)
+    protected Index getIndex(StoreRegion region)
     {
         if (region == null)
         {
@@ -349,25 +397,69 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
 
         if (index == null)
         {
-            // So there is no index that looks like we want
-            Index original = data.get(baseRegion);
+            // Creating an index must not miss any writes, so we hold the same
+            // lock as the writers while we copy the data
+            synchronized (this)
+            {
+                index = data.get(region);
+                if (index == null)
+                {
+                    // So there is no index that looks like we want
+                    Index original = data.get(baseRegion);
 
-            index = new Index(region, original);
-            data.put(region, index);
+                    index = new Index(region, original);
+                    data.put(region, index);
+                    evictIndexes();
 
-            log.debug("Creating new Index: " + index);
+                    log.debug("Creating new Index: " + index);
+                }
+            }
         }
         else
         {
             log.debug("Using existing Index: " + index);
         }
 
+        index.lastAccess = System.nanoTime();
         return index;
     }
 
+    /**
+     * Forget the least recently used indexes until there are no more than
+     * {@link #maxIndexes} of them (not counting the index for the base
+     * region). Every index has to be updated on every put so it is worth
+     * dropping the ones that no one is looking at.
+     */
+    private synchronized void evictIndexes()
+    {
+        while (data.size() - 1 > maxIndexes)
+        {
+            Index oldest = null;
+            for (Map.Entry<StoreRegion, Index> entry : data.entrySet())
+            {
+                if (!entry.getKey().equals(baseRegion) && (oldest == null || entry.getValue().lastAccess < oldest.lastAccess))
+                {
+                    oldest = entry.getValue();
+                }
+            }
+
+            if (oldest == null)
+            {
+                return;
+            }
+
+            data.remove(oldest.region);
+            log.debug("Evicting unused Index: " + oldest);
+        }
+    }
+
     /**
      * An Index represents the data in a {@link MapStoreProvider} sorted
-     * according to a certain {@link #sort} and {@link #query}
+     * according to a certain {@link #sort} and {@link #query}.
+     * <p>The sorted data is held in an immutable {@link RankedSet} so viewers
+     * can read a consistent snapshot without taking any locks, and can jump
+     * straight to the start of the page that they want. Changes are made
+     * (while holding the MapStoreProvider's lock) by replacing the snapshot.
      */
     protected class Index
     {
@@ -379,10 +471,12 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
          */
         public Index(StoreRegion baseRegion, Map<String, T> map)
         {
+            region = baseRegion;
             sort = baseRegion.getSort();
             query = baseRegion.getQuery();
-            sortedData = createEmptySortedData();
             options = baseRegion.getQueryOptions();
+            plan = QueryPlan.compile(query, options);
+            sortedData = createEmptySortedData();
 
             for (Map.Entry<String, T> entry : map.entrySet())
             {
@@ -397,9 +491,11 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
          */
         public Index(StoreRegion region, Index original)
         {
+            this.region = region;
             sort = region.getSort();
             query = region.getQuery();
             options = region.getQueryOptions();
+            plan = QueryPlan.compile(query, options);
             sortedData = createEmptySortedData();
 
             for (Pair<String, T> pair : original.sortedData)
@@ -411,7 +507,7 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
         /**
          * For use only by the constructor. Sets up the comparators.
          */
-        private SortedSet<Pair<String, T>> createEmptySortedData()
+        private RankedSet<Pair<String, T>> createEmptySortedData()
         {
             // This is really how we sort - according to the defaultSearchCriteria
             Comparator<T> criteriaComparator = new SortCriteriaComparator<T>(sort, comparatorFactory);
@@ -421,25 +517,47 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
             // the real comparator above.
             Comparator<Pair<String, T>> pairComparator = new PairComparator<T>(criteriaComparator);
 
-            // Copy all the data from the original map into pairs in a sorted set
-            return new TreeSet<Pair<String, T>>(pairComparator);
+            return new RankedSet<Pair<String, T>>(pairComparator);
         }
 
         /**
-         * Accessor for the sorted data
+         * Accessor for the sorted data. The returned set is a snapshot that
+         * will not change.
          */
-        public SortedSet<Pair<String, T>> getSortedData()
+        public RankedSet<Pair<String, T>> getSortedData()
         {
             return sortedData;
         }
 
+        /**
+         * Chop out the part of the sorted data that we are interested in.
+         * @param start The initial index to start from.
+         * @param count The number of data items to return (-1 means, to the end)
+         * @return Data for the web
+         */
+        public MatchedItems select(int start, int count)
+        {
+            RankedSet<Pair<String, T>> snapshot = sortedData;
+
+            List<Item> matches = new ArrayList<Item>();
+            for (Pair<String, T> pair : snapshot.subList(start, count))
+            {
+                matches.add(new Item(pair.left, pair.right));
+            }
+
+            return new MatchedItems(matches, snapshot.size());
+        }
+
         /**
          * Remove an item from this cache of data
          */
         public void remove(String itemId)
         {
             T t = index.remove(itemId);
-            sortedData.remove(new Pair<String, T>(itemId, t));
+            if (t != null)
+            {
+                sortedData = without(itemId, t);
+            }
             fireItemRemoved(itemId);
         }
 
@@ -454,15 +572,17 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
                 return;
             }
 
+            T old = index.get(pair.left);
+            RankedSet<Pair<String, T>> updated = old == null ? sortedData : without(pair.left, old);
+
             if (isRelevant(pair.right))
             {
-                boolean existing = index.containsKey(pair.left);
-                sortedData.add(pair);
+                sortedData = updated.add(pair);
                 index.put(pair.left, pair.right);
 
                 if (notify)
                 {
-                    if (existing)
+                    if (old != null)
                     {
                         fireItemChanged(new Item(pair.left, pair.right), null);
                     }
@@ -472,6 +592,12 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
                     }
                 }
             }
+            else if (old != null)
+            {
+                // The item has changed so it no longer belongs here
+                sortedData = updated;
+                index.remove(pair.left);
+            }
         }
 
         /**
@@ -479,30 +605,66 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
          */
         public void put(String itemId, T t, boolean notify)
         {
-            if (t == null)
-            {
-                remove(itemId);
-                return;
-            }
+            put(new Pair<String, T>(itemId, t), notify);
+        }
+
+        /**
+         * Find the sorted data without a given item before the item is
+         * altered in a way that could change its sort order. The index is not
+         * changed until we {@link #reattach} the item.
+         * @param itemId The item that is about to be altered
+         * @return The sorted data without the item
+         */
+        RankedSet<Pair<String, T>> detach(String itemId)
+        {
+            T old = index.get(itemId);
+            return old == null ? sortedData : without(itemId, old);
+        }
 
+        /**
+         * Put an item that has been altered back into the sorted data
+         * @param itemId The item that has been altered
+         * @param t The altered item
+         * @param detached The result of calling {@link #detach} for the item
+         */
+        void reattach(String itemId, T t, RankedSet<Pair<String, T>> detached)
+        {
             if (isRelevant(t))
             {
-                boolean existing = index.containsKey(itemId);
-                sortedData.add(new Pair<String, T>(itemId, t));
+                sortedData = detached.add(new Pair<String, T>(itemId, t));
                 index.put(itemId, t);
+            }
+            else
+            {
+                sortedData = detached;
+                index.remove(itemId);
+            }
+        }
 
-                if (notify)
+        /**
+         * Find the sorted data without the given item. We normally find the
+         * item by its sort order, but if it has been altered since it was
+         * added then we have to go looking for it.
+         */
+        private RankedSet<Pair<String, T>> without(String itemId, T t)
+        {
+            RankedSet<Pair<String, T>> reply = sortedData.remove(new Pair<String, T>(itemId, t));
+            if (reply != sortedData)
+            {
+                return reply;
+            }
+
+            int i = 0;
+            for (Pair<String, T> pair : sortedData)
+            {
+                if (pair.left.equals(itemId))
                 {
-                    if (existing)
-                    {
-                        fireItemChanged(new Item(itemId, t), null);
-                    }
-                    else
-                    {
-                        fireItemAdded(new Item(itemId, t));
-                    }
+                    return sortedData.removeAt(i);
                 }
+                i++;
             }
+
+            return sortedData;
         }
 
         /**
@@ -510,7 +672,7 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
          */
         private boolean isRelevant(T t)
         {
-            return query == null || query.isEmpty() || passesFilter(t, query, options);
+            return plan.matches(t);
         }
 
         /* (non-Javadoc)
@@ -570,14 +732,25 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
         }
 
         /**
-         * The data sorted by object according to our sort criteria
+         * The data sorted by object according to our sort criteria. Only
+         * replaced while holding the MapStoreProvider's lock
          */
-        private final SortedSet<Pair<String, T>> sortedData;
+        private volatile RankedSet<Pair<String, T>> sortedData;
 
         /**
          * The data in a standard hash so we can lookup by itemId
          */
-        private final Map<String, T> index = new HashMap<String, T>();
+        private final Map<String, T> index = new ConcurrentHashMap<String, T>();
+
+        /**
+         * The region that this index was created for
+         */
+        private final StoreRegion region;
+
+        /**
+         * When was this index last viewed? (from System.nanoTime())
+         */
+        private volatile long lastAccess = System.nanoTime();
 
         /**
          * The criteria by which we are sorting
@@ -594,13 +767,17 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
          */
         private final QueryOptions options;
 
+        /**
+         * The query and options compiled so we can test items quickly
+         */
+        private final QueryPlan plan;
     }
 
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
     @Override
-    public synchronized String toString()
+    public String toString()
     {
         Index original = data.get(baseRegion);
         return "MapStoreProvider[type=" + type.getSimpleName() + ",entries=" + original.index.size() + ",indexes=" + data.size() + "]";
@@ -619,10 +796,16 @@ public class MapStoreProvider<T> extends AbstractStoreProvider<T> implements Sto
     protected final StoreRegion baseRegion;
 
     /**
-     * We actually store a number of indexes to the real data.
-     * @protectedBy(this)
+     * We actually store a number of indexes to the real data. Readers may
+     * use this without locking, changes are made while holding this.
+     */
+    protected final Map<StoreRegion, Index> data = new ConcurrentHashMap<StoreRegion, Index>();
+
+    /**
+     * The maximum number of indexes that we keep in addition to the index
+     * for the {@link #baseRegion}
      */
-    protected final Map<StoreRegion, Index> data = new HashMap<StoreRegion, Index>();
+    private volatile int maxIndexes = 32;
 
     /**
      * The log stream
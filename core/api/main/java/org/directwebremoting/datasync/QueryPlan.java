@@ -0,0 +1,591 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.datasync;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.directwebremoting.io.QueryOptions;
+import org.directwebremoting.util.LocalUtil;
+
+/**
+ * A query from a {@link org.directwebremoting.io.StoreRegion} compiled into a
+ * form that can be tested against many objects cheaply. Each pattern is
+ * compiled once (simple exact, prefix, suffix and contains matches avoid
+ * regular expressions altogether) and the getter used to read each property
+ * is remembered for the class of the last object tested.
+ * <p>QueryPlans are immutable as far as their users are concerned, so one
+ * plan can be shared between many threads and many stores. Use
+ * {@link #compile(Map, QueryOptions)} to get one.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class QueryPlan
+{
+    /**
+     * Use {@link #compile(Map, QueryOptions)}
+     */
+    private QueryPlan(Map<String, String> query, QueryOptions options)
+    {
+        boolean caseInsensitive = options != null && options.isIgnoreCase();
+
+        terms = new Term[query == null ? 0 : query.size()];
+        if (query != null)
+        {
+            int i = 0;
+            for (Map.Entry<String, String> entry : query.entrySet())
+            {
+                terms[i++] = new Term(entry.getKey(), compilePattern(entry.getValue(), caseInsensitive));
+            }
+        }
+    }
+
+    /**
+     * Find a compiled plan for the given query, compiling it if no one has
+     * asked for an identical query recently.
+     * @param query The set of property/matches to test objects against
+     * @param options The options (e.g. case sensitivity) for the query
+     * @return A plan that tests objects against the query
+     */
+    public static QueryPlan compile(Map<String, String> query, QueryOptions options)
+    {
+        if (query == null || query.isEmpty())
+        {
+            return MATCH_ALL;
+        }
+
+        PlanKey key = new PlanKey(query, options);
+        synchronized (plans)
+        {
+            QueryPlan plan = plans.get(key);
+            if (plan == null)
+            {
+                plan = new QueryPlan(key.query, options);
+                plans.put(key, plan);
+            }
+
+            return plan;
+        }
+    }
+
+    /**
+     * Does the given object contain a property by the name of each and every
+     * key in the query, where the string value of the property matches the
+     * pattern from the query?
+     * @param pojo The object to be tested to see if it matches
+     * @return True if the object matches every part of the query
+     */
+    public boolean matches(Object pojo)
+    {
+        if (terms.length == 0)
+        {
+            return true;
+        }
+
+        if (pojo == null)
+        {
+            return false;
+        }
+
+        for (Term term : terms)
+        {
+            if (!term.matches(pojo))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Test a single value against a dojo style pattern, where '?' matches any
+     * single character, '*' matches any run of characters, and a pattern with
+     * no text matches any value with text.
+     * @param pattern The pattern to test against
+     * @param value The value to be tested
+     * @param caseInsensitive Do we ignore case when matching?
+     * @return True if the value matches the pattern
+     */
+    public static boolean testPattern(String pattern, String value, boolean caseInsensitive)
+    {
+        return compilePattern(pattern, caseInsensitive).matches(value);
+    }
+
+    /**
+     * Find a compiled version of the given pattern, compiling it if no one
+     * has asked for it recently.
+     */
+    private static CompiledPattern compilePattern(String pattern, boolean caseInsensitive)
+    {
+        String key = (caseInsensitive ? 'i' : 's') + pattern;
+        synchronized (patterns)
+        {
+            CompiledPattern compiled = patterns.get(key);
+            if (compiled == null)
+            {
+                compiled = new CompiledPattern(pattern, caseInsensitive);
+                patterns.put(key, compiled);
+            }
+
+            return compiled;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder buffer = new StringBuilder("QueryPlan[");
+        for (int i = 0; i < terms.length; i++)
+        {
+            if (i != 0)
+            {
+                buffer.append(", ");
+            }
+            buffer.append(terms[i].property).append('=').append(terms[i].pattern);
+        }
+        return buffer.append(']').toString();
+    }
+
+    /**
+     * One part of a query: a property and the pattern that it must match
+     */
+    private static class Term
+    {
+        /**
+         * @param property The name of the property to read
+         * @param pattern The pattern that the property must match
+         */
+        Term(String property, CompiledPattern pattern)
+        {
+            this.property = property;
+            this.pattern = pattern;
+        }
+
+        /**
+         * Does the property of the given object match our pattern?
+         */
+        boolean matches(Object pojo)
+        {
+            return pattern.matches(getValue(pojo));
+        }
+
+        /**
+         * Read the property from a given object in the same way as
+         * {@link LocalUtil#getProperty(Object, String, Class)} with a type of
+         * String, but without looking the getter up every time.
+         */
+        private String getValue(Object pojo)
+        {
+            Class<?> real = pojo.getClass();
+
+            Accessor current = accessor;
+            if (current == null || current.type != real)
+            {
+                current = new Accessor(real, findGetter(real));
+                accessor = current;
+            }
+
+            if (current.getter == null)
+            {
+                return null;
+            }
+
+            try
+            {
+                return (String) current.getter.invoke(pojo);
+            }
+            catch (Exception ex)
+            {
+                log.debug("Failed to get property called " + property + " from a " + real.getName() + ": " + ex);
+                return null;
+            }
+        }
+
+        /**
+         * Find a getter for our property that returns a String
+         */
+        private Method findGetter(Class<?> real)
+        {
+            if (property.length() == 0)
+            {
+                return null;
+            }
+
+            String getterName = "get" + property.substring(0, 1).toUpperCase(Locale.ENGLISH) + property.substring(1);
+
+            try
+            {
+                Method method = real.getMethod(getterName);
+                if (method.getReturnType() != String.class)
+                {
+                    log.debug("Expected that the type of " + real.getName() + "." + property + " was " + String.class.getName() + " but found " + method.getReturnType().getName() + ".");
+                    return null;
+                }
+
+                return method;
+            }
+            catch (Exception ex)
+            {
+                log.debug("Failed to get property called " + property + " from a " + real.getName() + ": " + ex);
+                return null;
+            }
+        }
+
+        /**
+         * The name of the property to read
+         */
+        private final String property;
+
+        /**
+         * The pattern that the property must match
+         */
+        private final CompiledPattern pattern;
+
+        /**
+         * The getter for the class of the last object that we tested
+         */
+        private volatile Accessor accessor;
+    }
+
+    /**
+     * A getter for a property of a given class. The getter is null if the
+     * class does not have a suitable getter.
+     */
+    private static class Accessor
+    {
+        Accessor(Class<?> type, Method getter)
+        {
+            this.type = type;
+            this.getter = getter;
+        }
+
+        final Class<?> type;
+        final Method getter;
+    }
+
+    /**
+     * A dojo style pattern in a form that can be tested quickly
+     */
+    private static class CompiledPattern
+    {
+        /**
+         * @param pattern The pattern to compile
+         * @param caseInsensitive Do we ignore case when matching?
+         */
+        CompiledPattern(String pattern, boolean caseInsensitive)
+        {
+            this.pattern = pattern;
+            this.caseInsensitive = caseInsensitive;
+
+            if (!LocalUtil.hasText(pattern))
+            {
+                kind = KIND_ANY;
+                literal = null;
+                regex = null;
+                return;
+            }
+
+            int start = 0;
+            while (start < pattern.length() && pattern.charAt(start) == '*')
+            {
+                start++;
+            }
+
+            int end = pattern.length();
+            while (end > start && pattern.charAt(end - 1) == '*')
+            {
+                end--;
+            }
+
+            String middle = pattern.substring(start, end);
+            if (!isLiteral(middle))
+            {
+                kind = KIND_REGEX;
+                literal = null;
+                regex = compileRegex(pattern, caseInsensitive);
+                return;
+            }
+
+            literal = middle;
+            regex = null;
+
+            boolean leading = start > 0;
+            boolean trailing = end < pattern.length();
+            if (literal.length() == 0)
+            {
+                kind = KIND_ANY;
+            }
+            else if (leading && trailing)
+            {
+                kind = KIND_CONTAINS;
+            }
+            else if (leading)
+            {
+                kind = KIND_SUFFIX;
+            }
+            else if (trailing)
+            {
+                kind = KIND_PREFIX;
+            }
+            else
+            {
+                kind = KIND_EXACT;
+            }
+        }
+
+        /**
+         * Does the given value match this pattern?
+         */
+        boolean matches(String value)
+        {
+            if (pattern.equals(value))
+            {
+                return true;
+            }
+
+            if (!LocalUtil.hasText(value))
+            {
+                return false;
+            }
+
+            switch (kind)
+            {
+            case KIND_ANY:
+                return true;
+
+            case KIND_EXACT:
+                return caseInsensitive && value.equalsIgnoreCase(literal);
+
+            case KIND_PREFIX:
+                return value.regionMatches(caseInsensitive, 0, literal, 0, literal.length());
+
+            case KIND_SUFFIX:
+                return value.regionMatches(caseInsensitive, value.length() - literal.length(), literal, 0, literal.length());
+
+            case KIND_CONTAINS:
+                if (!caseInsensitive)
+                {
+                    return value.indexOf(literal) != -1;
+                }
+                for (int i = 0; i <= value.length() - literal.length(); i++)
+                {
+                    if (value.regionMatches(true, i, literal, 0, literal.length()))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+
+            default:
+                return regex != null && regex.matcher(value).matches();
+            }
+        }
+
+        /**
+         * Can we match this part of a pattern without using a regex? We can
+         * if there are no wildcards and nothing that a regex would interpret.
+         */
+        private static boolean isLiteral(String part)
+        {
+            for (int i = 0; i < part.length(); i++)
+            {
+                if (REGEX_CHARS.indexOf(part.charAt(i)) != -1)
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Convert the wildcards in a pattern into a regex. Everything else in
+         * the pattern is passed to the regex as is.
+         */
+        private static Pattern compileRegex(String pattern, boolean caseInsensitive)
+        {
+            String javaPattern = pattern.replace("?", ".{1}").replace("*", ".*");
+
+            try
+            {
+                return caseInsensitive
+                    ? Pattern.compile(javaPattern, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)
+                    : Pattern.compile(javaPattern);
+            }
+            catch (PatternSyntaxException ex)
+            {
+                log.warn("Invalid query pattern: '" + pattern + "'. Nothing will match it.");
+                return null;
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString()
+        {
+            return pattern;
+        }
+
+        /**
+         * The original pattern
+         */
+        private final String pattern;
+
+        /**
+         * Do we ignore case when matching?
+         */
+        private final boolean caseInsensitive;
+
+        /**
+         * One of the KIND_* constants
+         */
+        private final int kind;
+
+        /**
+         * The pattern without leading or trailing '*' for the non regex kinds
+         */
+        private final String literal;
+
+        /**
+         * The regex for KIND_REGEX, null if the pattern would not compile
+         */
+        private final Pattern regex;
+
+        /**
+         * The characters that stop us matching without a regex
+         */
+        private static final String REGEX_CHARS = "*?\\^$.|+()[]{}";
+
+        private static final int KIND_ANY = 0;
+        private static final int KIND_EXACT = 1;
+        private static final int KIND_PREFIX = 2;
+        private static final int KIND_SUFFIX = 3;
+        private static final int KIND_CONTAINS = 4;
+        private static final int KIND_REGEX = 5;
+    }
+
+    /**
+     * The key to the cache of compiled plans. We take a copy of the query
+     * so changes to the original can't corrupt the cache.
+     */
+    private static class PlanKey
+    {
+        PlanKey(Map<String, String> query, QueryOptions options)
+        {
+            this.query = new HashMap<String, String>(query);
+            this.caseInsensitive = options != null && options.isIgnoreCase();
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode()
+        {
+            return query.hashCode() + (caseInsensitive ? 5644 : 0);
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this)
+            {
+                return true;
+            }
+
+            if (!(obj instanceof PlanKey))
+            {
+                return false;
+            }
+
+            PlanKey that = (PlanKey) obj;
+            return caseInsensitive == that.caseInsensitive && query.equals(that.query);
+        }
+
+        final Map<String, String> query;
+        final boolean caseInsensitive;
+    }
+
+    /**
+     * A Map that forgets the least recently used entry when it gets too big
+     */
+    private static class LruCache<K, V> extends LinkedHashMap<K, V>
+    {
+        LruCache(int maxSize)
+        {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+         */
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+        {
+            return size() > maxSize;
+        }
+
+        private final int maxSize;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * The compiled parts of the query
+     */
+    private final Term[] terms;
+
+    /**
+     * The plan for an empty query
+     */
+    private static final QueryPlan MATCH_ALL = new QueryPlan(null, null);
+
+    /**
+     * How many plans and patterns do we remember?
+     */
+    private static final int MAX_CACHED = 256;
+
+    /**
+     * Recently compiled plans
+     */
+    /* @GuardedBy("plans") */private static final Map<PlanKey, QueryPlan> plans = new LruCache<PlanKey, QueryPlan>(MAX_CACHED);
+
+    /**
+     * Recently compiled patterns, keyed by case sensitivity and pattern
+     */
+    /* @GuardedBy("patterns") */private static final Map<String, CompiledPattern> patterns = new LruCache<String, CompiledPattern>(MAX_CACHED);
+
+    /**
+     * The log stream
+     */
+    private static final Log log = LogFactory.getLog(QueryPlan.class);
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.datasync;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * An immutable sorted set that can find the element at a given position
+ * (its rank) in O(log n) time. Changes return a new set that shares most of
+ * its structure with the original, so a reader can hold on to a set as a
+ * consistent snapshot while writers carry on making new versions.
+ * <p>Internally this is a treap (a binary tree balanced by random priorities)
+ * in which every node knows the size of the subtree beneath it.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public final class RankedSet<E> implements Iterable<E>
+{
+    /**
+     * Create an empty set
+     * @param comparator The ordering for the set. Elements that compare as 0
+     * are considered to be the same element.
+     */
+    public RankedSet(Comparator<? super E> comparator)
+    {
+        this(comparator, null);
+    }
+
+    /**
+     * Internal constructor for new versions of the set
+     */
+    private RankedSet(Comparator<? super E> comparator, Node<E> root)
+    {
+        this.comparator = comparator;
+        this.root = root;
+    }
+
+    /**
+     * @return The number of elements in this set
+     */
+    public int size()
+    {
+        return size(root);
+    }
+
+    /**
+     * @return true if there are no elements in this set
+     */
+    public boolean isEmpty()
+    {
+        return root == null;
+    }
+
+    /**
+     * Find the element at a given position
+     * @param index The position of the element, starting at 0
+     * @return The element at that position
+     * @throws IndexOutOfBoundsException If index < 0 or index >= size()
+     */
+    public E get(int index)
+    {
+        if (index < 0 || index >= size())
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+
+        Node<E> node = root;
+        while (true)
+        {
+            int leftSize = size(node.left);
+            if (index < leftSize)
+            {
+                node = node.left;
+            }
+            else if (index == leftSize)
+            {
+                return node.value;
+            }
+            else
+            {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Find the position of an element using the comparator
+     * @param value The element to look for
+     * @return The position of the element or -1 if it is not in this set
+     */
+    public int indexOf(E value)
+    {
+        int index = 0;
+        Node<E> node = root;
+        while (node != null)
+        {
+            int comparison = comparator.compare(value, node.value);
+            if (comparison < 0)
+            {
+                node = node.left;
+            }
+            else if (comparison == 0)
+            {
+                return index + size(node.left);
+            }
+            else
+            {
+                index += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Add an element, replacing any element that compares as equal to it
+     * @param value The element to add
+     * @return A new set containing the element
+     */
+    public RankedSet<E> add(E value)
+    {
+        return new RankedSet<E>(comparator, insert(root, value, random.nextInt()));
+    }
+
+    /**
+     * Remove an element found using the comparator
+     * @param value The element to remove
+     * @return A new set without the element, or this set if the element
+     * could not be found
+     */
+    public RankedSet<E> remove(E value)
+    {
+        Node<E> removed = delete(root, value);
+        return removed == root ? this : new RankedSet<E>(comparator, removed);
+    }
+
+    /**
+     * Remove the element at a given position
+     * @param index The position of the element to remove
+     * @return A new set without the element
+     * @throws IndexOutOfBoundsException If index < 0 or index >= size()
+     */
+    public RankedSet<E> removeAt(int index)
+    {
+        if (index < 0 || index >= size())
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+
+        return new RankedSet<E>(comparator, deleteAt(root, index));
+    }
+
+    /**
+     * Copy a range of the elements into a list
+     * @param start The position of the first element to copy
+     * @param count The number of elements to copy (-1 means, to the end)
+     * @return A list of up to count elements
+     */
+    public List<E> subList(int start, int count)
+    {
+        int size = size();
+        int end = (count == -1 || start + count > size) ? size : start + count;
+
+        List<E> reply = new ArrayList<E>(Math.max(end - start, 0));
+        Iterator<E> it = iterator(start);
+        for (int i = start; i < end && it.hasNext(); i++)
+        {
+            reply.add(it.next());
+        }
+
+        return reply;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Iterable#iterator()
+     */
+    public Iterator<E> iterator()
+    {
+        return iterator(0);
+    }
+
+    /**
+     * Iterate over the elements of this set, starting part way through. The
+     * iterator does not support remove() because this set is immutable.
+     * @param start The position of the first element to return
+     * @return An iterator over the elements from start onwards
+     */
+    public Iterator<E> iterator(int start)
+    {
+        return new RankIterator<E>(root, start);
+    }
+
+    /**
+     * Insert a value into a subtree, copying the path to the value
+     */
+    private Node<E> insert(Node<E> node, E value, int priority)
+    {
+        if (node == null)
+        {
+            return new Node<E>(value, priority, null, null);
+        }
+
+        int comparison = comparator.compare(value, node.value);
+        if (comparison == 0)
+        {
+            return new Node<E>(value, node.priority, node.left, node.right);
+        }
+
+        if (comparison < 0)
+        {
+            Node<E> left = insert(node.left, value, priority);
+            if (left.priority > node.priority)
+            {
+                // Rotate right
+                return new Node<E>(left.value, left.priority, left.left, new Node<E>(node.value, node.priority, left.right, node.right));
+            }
+            return new Node<E>(node.value, node.priority, left, node.right);
+        }
+        else
+        {
+            Node<E> right = insert(node.right, value, priority);
+            if (right.priority > node.priority)
+            {
+                // Rotate left
+                return new Node<E>(right.value, right.priority, new Node<E>(node.value, node.priority, node.left, right.left), right.right);
+            }
+            return new Node<E>(node.value, node.priority, node.left, right);
+        }
+    }
+
+    /**
+     * Delete a value from a subtree. If the value is not found, the subtree
+     * itself is returned so callers can tell that nothing changed.
+     */
+    private Node<E> delete(Node<E> node, E value)
+    {
+        if (node == null)
+        {
+            return null;
+        }
+
+        int comparison = comparator.compare(value, node.value);
+        if (comparison == 0)
+        {
+            return merge(node.left, node.right);
+        }
+
+        if (comparison < 0)
+        {
+            Node<E> left = delete(node.left, value);
+            return left == node.left ? node : new Node<E>(node.value, node.priority, left, node.right);
+        }
+        else
+        {
+            Node<E> right = delete(node.right, value);
+            return right == node.right ? node : new Node<E>(node.value, node.priority, node.left, right);
+        }
+    }
+
+    /**
+     * Delete the value at a position in a subtree
+     */
+    private static <E> Node<E> deleteAt(Node<E> node, int index)
+    {
+        int leftSize = size(node.left);
+        if (index < leftSize)
+        {
+            return new Node<E>(node.value, node.priority, deleteAt(node.left, index), node.right);
+        }
+        else if (index == leftSize)
+        {
+            return merge(node.left, node.right);
+        }
+        else
+        {
+            return new Node<E>(node.value, node.priority, node.left, deleteAt(node.right, index - leftSize - 1));
+        }
+    }
+
+    /**
+     * Join 2 subtrees where everything in left sorts before everything in
+     * right.
+     */
+    private static <E> Node<E> merge(Node<E> left, Node<E> right)
+    {
+        if (left == null)
+        {
+            return right;
+        }
+
+        if (right == null)
+        {
+            return left;
+        }
+
+        if (left.priority > right.priority)
+        {
+            return new Node<E>(left.value, left.priority, left.left, merge(left.right, right));
+        }
+        else
+        {
+            return new Node<E>(right.value, right.priority, merge(left, right.left), right.right);
+        }
+    }
+
+    /**
+     * Null safe subtree size
+     */
+    private static int size(Node<?> node)
+    {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * A node in the tree. Nodes are never altered once created.
+     */
+    private static final class Node<E>
+    {
+        Node(E value, int priority, Node<E> left, Node<E> right)
+        {
+            this.value = value;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = size(left) + size(right) + 1;
+        }
+
+        final E value;
+        final int priority;
+        final Node<E> left;
+        final Node<E> right;
+        final int size;
+    }
+
+    /**
+     * An in-order walk of the tree starting at a given rank
+     */
+    private static final class RankIterator<E> implements Iterator<E>
+    {
+        RankIterator(Node<E> root, int start)
+        {
+            // Descend to the start position remembering where we turned left
+            Node<E> node = root;
+            while (node != null)
+            {
+                int leftSize = size(node.left);
+                if (start < leftSize)
+                {
+                    stack.add(node);
+                    node = node.left;
+                }
+                else if (start == leftSize)
+                {
+                    stack.add(node);
+                    break;
+                }
+                else
+                {
+                    start -= leftSize + 1;
+                    node = node.right;
+                }
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#hasNext()
+         */
+        public boolean hasNext()
+        {
+            return !stack.isEmpty();
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#next()
+         */
+        public E next()
+        {
+            if (stack.isEmpty())
+            {
+                throw new NoSuchElementException();
+            }
+
+            Node<E> node = stack.remove(stack.size() - 1);
+            for (Node<E> next = node.right; next != null; next = next.left)
+            {
+                stack.add(next);
+            }
+
+            return node.value;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#remove()
+         */
+        public void remove()
+        {
+            throw new UnsupportedOperationException("RankedSet is immutable");
+        }
+
+        /**
+         * The nodes that we have yet to visit, the next one is at the end
+         */
+        private final List<Node<E>> stack = new ArrayList<Node<E>>();
+    }
+
+    /**
+     * The ordering of the elements
+     */
+    private final Comparator<? super E> comparator;
+
+    /**
+     * The top of the tree, null when the set is empty
+     */
+    private final Node<E> root;
+
+    /**
+     * Where we get node priorities from
+     */
+    private static final Random random = new Random();
+}
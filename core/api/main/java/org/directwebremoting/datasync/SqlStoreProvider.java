@@ -21,9 +21,17 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sql.DataSource;
 
@@ -35,255 +43,871 @@ import org.directwebremoting.io.MatchedItems;
 import org.directwebremoting.io.SortCriterion;
 import org.directwebremoting.io.StoreChangeListener;
 import org.directwebremoting.io.StoreRegion;
+import org.directwebremoting.util.LocalUtil;
 
 /**
- * This file is not supported in any way, and does not function correctly.
- * It might become part of DWR proper at some later date
- * @author Joe Walker [jwalker at sitepen dot com]
+ * A read only {@link StoreProvider} that views the rows returned by a SQL
+ * query. Each row is presented as a Map of column name to value, and the
+ * first column must be a primary key which is used as the item ID.
+ * <p>The base SQL must be a simple <code>SELECT ... FROM ...</code> without
+ * WHERE or ORDER BY clauses, we add those as needed. Query and sort
+ * attributes from the browser must be the names of columns in the base query
+ * otherwise they are rejected.
+ * <p>Paging is done using <code>LIMIT ? OFFSET ?</code>, however if all the
+ * sort columns are {@link #setIndexedColumns indexed} then we remember where
+ * recent pages ended and seek to the start of the next page using the sort
+ * keys (keyset pagination) so the database does not need to skip the rows
+ * before the page.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
-class SqlStoreProvider<T> extends AbstractStoreProvider<T>
+public class SqlStoreProvider extends AbstractStoreProvider<Map<String, String>>
 {
     /**
-     *
+     * @param dataSource Where we get connections from
+     * @param baseSql The query to view, with the primary key as the first column
      */
-    private SqlStoreProvider(Class<T> type)
+    @SuppressWarnings("unchecked")
+    public SqlStoreProvider(DataSource dataSource, String baseSql)
     {
-        super(type);
+        super((Class<Map<String, String>>) (Class<?>) Map.class);
+        this.dataSource = dataSource;
+        this.baseSql = baseSql;
+
+        int fromIndex = baseSql.toUpperCase(Locale.ENGLISH).indexOf(" FROM ");
+        if (fromIndex == -1)
+        {
+            throw new IllegalArgumentException("Base SQL must be of the form SELECT ... FROM ...");
+        }
+        this.countSql = "SELECT COUNT(*)" + baseSql.substring(fromIndex);
     }
 
-    /**
-     * The primary key must be the first column
+    /* (non-Javadoc)
+     * @see org.directwebremoting.datasync.StoreProvider#viewRegion(org.directwebremoting.io.StoreRegion)
+     */
+    public MatchedItems viewRegion(StoreRegion region)
+    {
+        if (region == null)
+        {
+            region = new StoreRegion();
+        }
+
+        Connection con = null;
+        try
+        {
+            con = dataSource.getConnection();
+            Columns columns = getColumns(con);
+
+            Filter filter = createFilter(columns, region);
+            List<SortColumn> order = createOrder(columns, region.getSort());
+            if (filter == null || order == null)
+            {
+                return new MatchedItems();
+            }
+
+            int total = getCount(con, filter);
+            int start = Math.max(region.getStart(), 0);
+            int count = region.getCount() == -1 ? total - start : region.getCount();
+            if (count <= 0 || start >= total)
+            {
+                return new MatchedItems(new ArrayList<Item>(), total);
+            }
+
+            return new MatchedItems(selectPage(con, columns, filter, order, start, count), total);
+        }
+        catch (SQLException ex)
+        {
+            log.warn("SQL Failure", ex);
+            return new MatchedItems();
+        }
+        finally
+        {
+            close(con);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.datasync.StoreProvider#viewRegion(org.directwebremoting.io.StoreRegion, org.directwebremoting.io.StoreChangeListener)
      */
-    private static final String BASE_SQL = "SELECT col1, col2 FROM table";
+    public MatchedItems viewRegion(StoreRegion region, StoreChangeListener<Map<String, String>> listener)
+    {
+        // We are read only so there are no changes to tell the listener about
+        return viewRegion(region);
+    }
 
     /* (non-Javadoc)
-     * @see org.directwebremoting.datasync.StoreProvider#view(org.directwebremoting.io.StoreRegion)
+     * @see org.directwebremoting.datasync.StoreProvider#viewItem(java.lang.String, org.directwebremoting.io.StoreChangeListener)
      */
-    public MatchedItems view(StoreRegion region)
+    public Item viewItem(String itemId, StoreChangeListener<Map<String, String>> listener)
     {
+        return viewItem(itemId);
+    }
 
-        // Turn the query into a WHERE clause and an array of parameters
-        List<String> params = new ArrayList<String>();
-        StringBuilder where = new StringBuilder();
-        for (Map.Entry<String, String> entry : region.getQuery().entrySet())
+    /* (non-Javadoc)
+     * @see org.directwebremoting.datasync.AbstractStoreProvider#getObject(java.lang.String)
+     */
+    @Override
+    protected Map<String, String> getObject(String itemId)
+    {
+        Connection con = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try
+        {
+            con = dataSource.getConnection();
+            Columns columns = getColumns(con);
+
+            stmt = con.prepareStatement(baseSql + " WHERE " + columns.names[0] + " = ?");
+            stmt.setString(1, itemId);
+            rs = stmt.executeQuery();
+            return rs.next() ? readRow(rs, columns) : null;
+        }
+        catch (SQLException ex)
+        {
+            log.warn("SQL Failure", ex);
+            return null;
+        }
+        finally
+        {
+            close(rs, stmt);
+            close(con);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.datasync.StoreProvider#put(java.lang.String, java.lang.Object)
+     */
+    public void put(String itemId, Map<String, String> value)
+    {
+        throw new UnsupportedOperationException("SqlStoreProvider is read only");
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.datasync.StoreProvider#update(java.util.List)
+     */
+    public void update(List<ItemUpdate> changes)
+    {
+        throw new UnsupportedOperationException("SqlStoreProvider is read only");
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.datasync.StoreProvider#unsubscribe(org.directwebremoting.io.StoreChangeListener)
+     */
+    public void unsubscribe(StoreChangeListener<Map<String, String>> listener)
+    {
+        // We never subscribe anyone
+    }
+
+    /**
+     * Read a page of rows, seeking from a remembered position if we can
+     */
+    private List<Item> selectPage(Connection con, Columns columns, Filter filter, List<SortColumn> order, int start, int count) throws SQLException
+    {
+        List<Object> cursorKey = getCursorKey(filter, order);
+        boolean seekable = isSeekable(order);
+
+        // Find the nearest page end at or before start that we can seek to
+        int anchorPosition = 0;
+        Object[] anchor = null;
+        Cursor cursor = seekable ? cursors.get(cursorKey) : null;
+        if (cursor != null && !cursor.isExpired())
         {
-            if (where.length() == 0)
+            synchronized (cursor)
             {
-                where.append(" WHERE ");
+                SortedMap<Integer, Object[]> before = cursor.anchors.headMap(start + 1);
+                if (!before.isEmpty())
+                {
+                    anchorPosition = before.lastKey();
+                    anchor = before.get(anchorPosition);
+                }
             }
-            else
+        }
+
+        String sql = getPageSql(filter, order, anchor != null);
+
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = con.prepareStatement(sql);
+            int index = 1;
+            for (Object param : filter.params)
+            {
+                stmt.setObject(index++, param);
+            }
+            if (anchor != null)
             {
-                where.append(" AND ");
+                for (int i = 0; i < order.size(); i++)
+                {
+                    for (int j = 0; j <= i; j++)
+                    {
+                        stmt.setObject(index++, anchor[j]);
+                    }
+                }
+            }
+            stmt.setInt(index++, count);
+            stmt.setInt(index++, start - anchorPosition);
+            stmt.setFetchSize(Math.min(count, fetchSize));
+
+            List<Item> items = new ArrayList<Item>(Math.min(count, fetchSize));
+            Object[] last = null;
+            rs = stmt.executeQuery();
+            while (rs.next())
+            {
+                Map<String, String> row = readRow(rs, columns);
+                items.add(new Item(row.get(columns.names[0]), row));
+
+                if (seekable)
+                {
+                    last = new Object[order.size()];
+                    for (int i = 0; i < last.length; i++)
+                    {
+                        last[i] = rs.getObject(order.get(i).index);
+                    }
+                }
             }
 
-            String key = entry.getKey();
-            where.append(key);
-            where.append(" = :");
-            where.append(key);
+            if (last != null)
+            {
+                rememberAnchor(cursorKey, start + items.size(), last);
+            }
+
+            return items;
+        }
+        finally
+        {
+            close(rs, stmt);
+        }
+    }
+
+    /**
+     * Find the SQL to read a page, which depends only on the shape of the
+     * filter (its WHERE clause, not its parameters), the sort order and
+     * whether we are seeking, so we build it once for each combination.
+     */
+    private String getPageSql(Filter filter, List<SortColumn> order, boolean seek)
+    {
+        String shape = filter.where + order + seek;
+        String sql = pageSql.get(shape);
+        if (sql != null)
+        {
+            return sql;
+        }
+
+        StringBuilder buffer = new StringBuilder(baseSql);
+        buffer.append(filter.where);
+        if (seek)
+        {
+            buffer.append(filter.where.length() == 0 ? " WHERE " : " AND ");
+            appendSeek(buffer, order);
+        }
+        buffer.append(" ORDER BY ");
+        for (int i = 0; i < order.size(); i++)
+        {
+            if (i != 0)
+            {
+                buffer.append(", ");
+            }
+            buffer.append(order.get(i));
+        }
+        buffer.append(" LIMIT ? OFFSET ?");
+        sql = buffer.toString();
 
-            params.add(entry.getValue());
+        if (pageSql.size() >= MAX_CACHED)
+        {
+            pageSql.clear();
         }
+        pageSql.put(shape, sql);
+        return sql;
+    }
 
-        // Create an ORDER BY clause
-        StringBuilder orderBy = new StringBuilder();
-        for (SortCriterion element : region.getSort())
+    /**
+     * Add a WHERE clause that only finds rows after a given set of sort keys.
+     * For sort columns a, b this is: (a > ?) OR (a = ? AND b > ?)
+     */
+    private static void appendSeek(StringBuilder sql, List<SortColumn> order)
+    {
+        sql.append('(');
+        for (int i = 0; i < order.size(); i++)
         {
-            if (where.length() == 0)
+            if (i != 0)
             {
-                where.append(" ORDER BY ");
+                sql.append(" OR ");
             }
-            else
+            sql.append('(');
+            for (int j = 0; j < i; j++)
             {
-                where.append(", ");
+                sql.append(order.get(j).name).append(" = ? AND ");
             }
+            SortColumn column = order.get(i);
+            sql.append(column.name).append(column.ascending ? " > ?" : " < ?");
+            sql.append(')');
+        }
+        sql.append(')');
+    }
 
-            where.append(element.getAttribute());
-            where.append(element.isAscending() ? "ASC" : "DESC");
+    /**
+     * The key for the page ends of a filter in a given order. The key is a
+     * list of values rather than a String so no 2 different filters and
+     * orders can end up with the same key.
+     */
+    private static List<Object> getCursorKey(Filter filter, List<SortColumn> order)
+    {
+        List<Object> key = new ArrayList<Object>(1 + (order.size() * 2));
+        key.add(filter);
+        for (SortColumn column : order)
+        {
+            key.add(column.name);
+            key.add(column.ascending);
         }
+        return key;
+    }
 
-        // Create a LIMIT x OFFSET y clause
-        int start = region.getStart();
-        int count = region.getCount();
-        String paging;
-        if (start == 0)
+    /**
+     * Remember where a page ended so a later page can seek to it
+     */
+    private void rememberAnchor(List<Object> cursorKey, int position, Object[] sortKeys)
+    {
+        for (Object sortKey : sortKeys)
         {
-            if (count == -1)
+            if (sortKey == null)
             {
-                // No paging
-                paging = "";
+                // Comparisons with null don't work, so we can't seek from here
+                return;
             }
-            else
+        }
+
+        Cursor cursor = cursors.get(cursorKey);
+        if (cursor == null || cursor.isExpired())
+        {
+            if (cursors.size() >= MAX_CACHED)
             {
-                // only as far as 'count'
-                paging = " LIMIT " + count;
+                cursors.clear();
             }
+            cursor = new Cursor(System.currentTimeMillis() + countTimeToLive);
+            cursors.put(cursorKey, cursor);
         }
-        else
+
+        synchronized (cursor)
         {
-            if (count == -1)
+            if (cursor.anchors.size() >= MAX_ANCHORS)
             {
-                throw new UnsupportedOperationException("Can't select a start point without selecting a count");
+                cursor.anchors.remove(cursor.anchors.firstKey());
             }
-            // only as far as 'count'
-            paging = " LIMIT " + count + " OFFSET " + start;
+            cursor.anchors.put(position, sortKeys);
         }
+    }
 
-        String sql = BASE_SQL + where + orderBy + paging;
+    /**
+     * We can only seek if the database can do it quickly using an index
+     */
+    private boolean isSeekable(List<SortColumn> order)
+    {
+        for (SortColumn column : order)
+        {
+            if (column.index != 1 && !indexedColumns.contains(column.name.toUpperCase(Locale.ENGLISH)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count the rows that match a filter, using a recent count if we have one
+     */
+    private int getCount(Connection con, Filter filter) throws SQLException
+    {
+        CachedCount cached = counts.get(filter);
+        if (cached != null && !cached.isExpired())
+        {
+            return cached.count;
+        }
 
-        Connection con = null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
-        List<Item> matchedValues = new ArrayList<Item>();
-
         try
         {
-            con = dataSource.getConnection();
-            stmt = con.prepareStatement(sql);
+            stmt = con.prepareStatement(countSql + filter.where);
             int index = 1;
-            for (String element : params)
+            for (Object param : filter.params)
             {
-                stmt.setString(index++, element);
+                stmt.setObject(index++, param);
             }
 
             rs = stmt.executeQuery();
-            ResultSetMetaData metaData = rs.getMetaData();
-            int columnCount = metaData.getColumnCount();
-            // We're going to ignore the zeroth index to be like jdbc
-            String[] columnNames = new String[columnCount + 1];
-            for (int col = 1; col <= columnCount; col++)
+            int count = rs.next() ? rs.getInt(1) : 0;
+
+            if (counts.size() >= MAX_CACHED)
             {
-                columnNames[col] = metaData.getColumnName(col);
+                counts.clear();
             }
+            counts.put(filter, new CachedCount(count, System.currentTimeMillis() + countTimeToLive));
+            return count;
+        }
+        finally
+        {
+            close(rs, stmt);
+        }
+    }
 
-            Map<String, String> data = new HashMap<String, String>();
-            while (rs.next())
+    /**
+     * Convert a query into a WHERE clause with parameters.
+     * @return The filter, or null if the query refers to an unknown column
+     */
+    private Filter createFilter(Columns columns, StoreRegion region)
+    {
+        boolean ignoreCase = region.getQueryOptions().isIgnoreCase();
+
+        // Sort the query so equivalent queries generate identical SQL
+        Map<String, String> query = new TreeMap<String, String>(region.getQuery());
+
+        StringBuilder where = new StringBuilder();
+        List<Object> params = new ArrayList<Object>();
+        for (Map.Entry<String, String> entry : query.entrySet())
+        {
+            String column = columns.getName(entry.getKey());
+            if (column == null)
             {
-                String itemId = rs.getString(1);
-                for (int col = 2; col <= columnCount; col++)
-                {
-                    data.put(columnNames[col], rs.getString(col));
-                }
-                matchedValues.add(new Item(itemId, data));
+                log.warn("Query on unknown column: " + entry.getKey());
+                return null;
+            }
+
+            String pattern = entry.getValue();
+            if (!LocalUtil.hasText(pattern))
+            {
+                // Like MapStoreProvider, an empty pattern matches anything
+                continue;
+            }
+
+            if (ignoreCase)
+            {
+                pattern = pattern.toUpperCase(Locale.ENGLISH);
+            }
+
+            where.append(where.length() == 0 ? " WHERE " : " AND ");
+            where.append(ignoreCase ? "UPPER(" + column + ")" : column);
+
+            if (pattern.indexOf('*') == -1 && pattern.indexOf('?') == -1)
+            {
+                where.append(" = ?");
+                params.add(pattern);
+            }
+            else
+            {
+                where.append(" LIKE ? ESCAPE '\\'");
+                params.add(toLikePattern(pattern));
             }
         }
-        catch (SQLException ex)
+
+        return new Filter(where.toString(), params);
+    }
+
+    /**
+     * Convert dojo style wildcards (* and ?) to LIKE wildcards (% and _)
+     */
+    private static String toLikePattern(String pattern)
+    {
+        StringBuilder like = new StringBuilder(pattern.length() + 8);
+        for (int i = 0; i < pattern.length(); i++)
         {
-            log.warn("SQL Failure", ex);
+            char c = pattern.charAt(i);
+            switch (c)
+            {
+            case '*':
+                like.append('%');
+                break;
+
+            case '?':
+                like.append('_');
+                break;
+
+            case '%':
+            case '_':
+            case '\\':
+                like.append('\\').append(c);
+                break;
+
+            default:
+                like.append(c);
+                break;
+            }
         }
-        finally
+        return like.toString();
+    }
+
+    /**
+     * Convert sort criteria into a list of columns, adding the primary key to
+     * make the order (and therefore the pages) deterministic.
+     * @return The columns, or null if a sort refers to an unknown column
+     */
+    private static List<SortColumn> createOrder(Columns columns, List<SortCriterion> sort)
+    {
+        List<SortColumn> order = new ArrayList<SortColumn>();
+        boolean hasKey = false;
+        for (SortCriterion criterion : sort)
         {
-            if (con != null)
+            String column = columns.getName(criterion.getAttribute());
+            if (column == null)
             {
-                try
-                {
-                    con.close();
-                }
-                catch (SQLException ex2)
-                {
-                    log.warn("Error closing connection", ex2);
-                }
+                log.warn("Sort on unknown column: " + criterion.getAttribute());
+                return null;
             }
 
-            if (stmt != null)
+            int index = columns.getIndex(column);
+            order.add(new SortColumn(column, index, criterion.isAscending()));
+            if (index == 1)
             {
-                try
-                {
-                    stmt.close();
-                }
-                catch (SQLException ex2)
-                {
-                    log.warn("Error closing statement", ex2);
-                }
+                hasKey = true;
+                break;
             }
+        }
 
-            if (rs != null)
+        if (!hasKey)
+        {
+            order.add(new SortColumn(columns.names[0], 1, true));
+        }
+
+        return order;
+    }
+
+    /**
+     * Read the current row into a Map
+     */
+    private static Map<String, String> readRow(ResultSet rs, Columns columns) throws SQLException
+    {
+        Map<String, String> row = new HashMap<String, String>();
+        for (int col = 1; col <= columns.names.length; col++)
+        {
+            row.put(columns.names[col - 1], rs.getString(col));
+        }
+        return row;
+    }
+
+    /**
+     * Find the columns of the base query from its meta-data
+     */
+    private Columns getColumns(Connection con) throws SQLException
+    {
+        Columns reply = columns;
+        if (reply != null)
+        {
+            return reply;
+        }
+
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = con.prepareStatement(baseSql + " WHERE 1 = 0");
+            rs = stmt.executeQuery();
+            ResultSetMetaData metaData = rs.getMetaData();
+            String[] names = new String[metaData.getColumnCount()];
+            for (int col = 1; col <= names.length; col++)
             {
-                try
-                {
-                    rs.close();
-                }
-                catch (SQLException ex2)
-                {
-                    log.warn("Error closing resultset", ex2);
-                }
+                names[col - 1] = metaData.getColumnName(col);
             }
-        }
 
-        MatchedItems reply = new MatchedItems(matchedValues, -1);
-        return reply;
+            reply = new Columns(names);
+            columns = reply;
+            return reply;
+        }
+        finally
+        {
+            close(rs, stmt);
+        }
     }
 
-    protected DataSource dataSource;
+    /**
+     * Close a ResultSet and a Statement, logging any errors
+     */
+    private static void close(ResultSet rs, PreparedStatement stmt)
+    {
+        if (rs != null)
+        {
+            try
+            {
+                rs.close();
+            }
+            catch (SQLException ex)
+            {
+                log.warn("Error closing resultset", ex);
+            }
+        }
 
-    public void setDataSource(DataSource dataSource)
+        if (stmt != null)
+        {
+            try
+            {
+                stmt.close();
+            }
+            catch (SQLException ex)
+            {
+                log.warn("Error closing statement", ex);
+            }
+        }
+    }
+
+    /**
+     * Close a Connection, logging any errors
+     */
+    private static void close(Connection con)
     {
-        this.dataSource = dataSource;
+        if (con != null)
+        {
+            try
+            {
+                con.close();
+            }
+            catch (SQLException ex)
+            {
+                log.warn("Error closing connection", ex);
+            }
+        }
     }
 
+    /**
+     * The columns that have database indexes and do not contain nulls. If all
+     * the sort columns are indexed (the primary key always is) then we page
+     * using keyset pagination rather than OFFSET.
+     * @param indexedColumns The names of the indexed columns
+     */
+    public void setIndexedColumns(Collection<String> indexedColumns)
+    {
+        Set<String> names = new HashSet<String>();
+        for (String column : indexedColumns)
+        {
+            names.add(column.toUpperCase(Locale.ENGLISH));
+        }
+        this.indexedColumns = Collections.unmodifiableSet(names);
+    }
 
-    /* (non-Javadoc)
-     * @see org.directwebremoting.datasync.StoreProvider#put(java.lang.String, java.lang.Object)
+    /**
+     * How many rows should the driver fetch at a time?
+     * @param fetchSize The maximum fetch size
      */
-    public void put(String itemId, T value)
+    public void setFetchSize(int fetchSize)
     {
-        throw new UnsupportedOperationException("SqlStoreProvider is read only");
+        this.fetchSize = fetchSize;
     }
 
-    /* (non-Javadoc)
-     * @see org.directwebremoting.datasync.AbstractStoreProvider#getObject(java.lang.String)
+    /**
+     * How long do we trust the number of rows matching a query for, and how
+     * long do we remember where pages end?
+     * @param countTimeToLive The time in milliseconds
      */
-    @Override
-    protected T getObject(String itemId)
+    public void setCountTimeToLive(long countTimeToLive)
     {
-        // TODO Auto-generated method stub
-        return null;
+        this.countTimeToLive = countTimeToLive;
     }
 
-    /* (non-Javadoc)
-     * @see org.directwebremoting.datasync.StoreProvider#unsubscribe(org.directwebremoting.io.StoreChangeListener)
+    /**
+     * The columns of the base query
      */
-    public void unsubscribe(StoreChangeListener<T> listener)
+    private static class Columns
     {
-        // TODO Auto-generated method stub
+        Columns(String[] names)
+        {
+            this.names = names;
+            for (int i = 0; i < names.length; i++)
+            {
+                byUpperName.put(names[i].toUpperCase(Locale.ENGLISH), i + 1);
+            }
+        }
 
+        /**
+         * Find the real name of a column from something the browser sent us,
+         * or null if there is no such column
+         */
+        String getName(String attribute)
+        {
+            Integer index = byUpperName.get(attribute.toUpperCase(Locale.ENGLISH));
+            return index == null ? null : names[index - 1];
+        }
+
+        /**
+         * The JDBC (1 based) index of a column
+         */
+        int getIndex(String name)
+        {
+            return byUpperName.get(name.toUpperCase(Locale.ENGLISH));
+        }
+
+        final String[] names;
+        final Map<String, Integer> byUpperName = new HashMap<String, Integer>();
     }
 
-    /* (non-Javadoc)
-     * @see org.directwebremoting.datasync.StoreProvider#update(java.util.List)
+    /**
+     * A WHERE clause along with its parameters. Filters are equal if they
+     * have the same clause and equal parameters, so they can key the caches.
      */
-    public void update(List<ItemUpdate> changes)
+    private static class Filter
     {
-        // TODO Auto-generated method stub
+        Filter(String where, List<Object> params)
+        {
+            this.where = where;
+            this.params = params;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this)
+            {
+                return true;
+            }
+
+            if (!(obj instanceof Filter))
+            {
+                return false;
+            }
+
+            Filter that = (Filter) obj;
+            return this.where.equals(that.where) && this.params.equals(that.params);
+        }
 
+        /* (non-Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode()
+        {
+            return where.hashCode() * 31 + params.hashCode();
+        }
+
+        final String where;
+        final List<Object> params;
     }
 
-    /* (non-Javadoc)
-     * @see org.directwebremoting.datasync.StoreProvider#viewItem(java.lang.String, org.directwebremoting.io.StoreChangeListener)
+    /**
+     * A column to sort by
      */
-    public Item viewItem(String itemId, StoreChangeListener<T> listener)
+    private static class SortColumn
     {
-        // TODO Auto-generated method stub
-        return null;
+        SortColumn(String name, int index, boolean ascending)
+        {
+            this.name = name;
+            this.index = index;
+            this.ascending = ascending;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString()
+        {
+            return name + (ascending ? " ASC" : " DESC");
+        }
+
+        final String name;
+        final int index;
+        final boolean ascending;
     }
 
-    /* (non-Javadoc)
-     * @see org.directwebremoting.datasync.StoreProvider#viewRegion(org.directwebremoting.io.StoreRegion)
+    /**
+     * A count of the rows matching a filter that is good until a given time
      */
-    public MatchedItems viewRegion(StoreRegion region)
+    private static class CachedCount
     {
-        // TODO Auto-generated method stub
-        return null;
+        CachedCount(int count, long expires)
+        {
+            this.count = count;
+            this.expires = expires;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() > expires;
+        }
+
+        final int count;
+        final long expires;
     }
 
-    /* (non-Javadoc)
-     * @see org.directwebremoting.datasync.StoreProvider#viewRegion(org.directwebremoting.io.StoreRegion, org.directwebremoting.io.StoreChangeListener)
+    /**
+     * The sort keys of the last row of recent pages, by the position of the
+     * row after them.
      */
-    public MatchedItems viewRegion(StoreRegion region, StoreChangeListener<T> listener)
+    private static class Cursor
     {
-        // TODO Auto-generated method stub
-        return null;
+        Cursor(long expires)
+        {
+            this.expires = expires;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() > expires;
+        }
+
+        final long expires;
+        /* @GuardedBy("this") */final SortedMap<Integer, Object[]> anchors = new TreeMap<Integer, Object[]>();
     }
 
+    /**
+     * Where we get connections from
+     */
+    protected final DataSource dataSource;
+
+    /**
+     * The query that we are viewing, the primary key is the first column
+     */
+    private final String baseSql;
+
+    /**
+     * The base query converted to count the rows
+     */
+    private final String countSql;
+
+    /**
+     * The columns of the base query, read from the database on first use
+     */
+    private volatile Columns columns;
+
+    /**
+     * The upper case names of the columns that we can seek on
+     */
+    private volatile Set<String> indexedColumns = Collections.emptySet();
+
+    /**
+     * The maximum number of rows that the driver should fetch at a time
+     */
+    private int fetchSize = 100;
+
+    /**
+     * How long do we trust counts and page ends for?
+     */
+    private long countTimeToLive = 10000;
+
+    /**
+     * The SQL to read a page, by the shape of the filter and sort order
+     */
+    private final Map<String, String> pageSql = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Recent counts by filter
+     */
+    private final Map<Filter, CachedCount> counts = new ConcurrentHashMap<Filter, CachedCount>();
+
+    /**
+     * Recent page ends by filter and order
+     */
+    private final Map<List<Object>, Cursor> cursors = new ConcurrentHashMap<List<Object>, Cursor>();
+
+    /**
+     * The maximum number of SQL strings, counts and cursors that we remember
+     */
+    private static final int MAX_CACHED = 1000;
+
+    /**
+     * The maximum number of page ends that we remember for each cursor
+     */
+    private static final int MAX_ANCHORS = 64;
+
     /**
      * The log stream
      */
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.datasync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.directwebremoting.io.Item;
+import org.directwebremoting.io.MatchedItems;
+import org.directwebremoting.io.RegionChange;
+import org.directwebremoting.io.StoreChangeListener;
+import org.directwebremoting.io.StoreRegion;
+import org.directwebremoting.io.StoreRegionListener;
+
+/**
+ * Collects the changes made to a {@link StoreProvider} over a short window
+ * and then tells each subscribed {@link StoreRegionListener} what has changed
+ * in the region that it is viewing in a single {@link RegionChange}.
+ * <p>A bulk update that touches thousands of items results in at most one
+ * message per viewer per window, and changes to items that the viewer can't
+ * see (and that don't push anything into or out of its region) don't result in
+ * a message at all.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class StoreChangeCoalescer<T>
+{
+    /**
+     * @param provider The store that we report changes from
+     * @param window How long (in milliseconds) we collect changes before we
+     * tell the viewers
+     * @param executor How we schedule the end of a window
+     */
+    public StoreChangeCoalescer(StoreProvider<T> provider, long window, ScheduledExecutorService executor)
+    {
+        this.provider = provider;
+        this.window = window;
+        this.executor = executor;
+    }
+
+    /**
+     * Change the length of future windows. The current window, if any, ends
+     * when it was due to.
+     * @param window The new window in milliseconds
+     */
+    public void setWindow(long window)
+    {
+        this.window = window;
+    }
+
+    /**
+     * Change how we schedule the end of a window. Any changes collected so
+     * far are sent straight away in case the old scheduler is being shut down.
+     * @param executor The new scheduler
+     */
+    public void setExecutor(ScheduledExecutorService executor)
+    {
+        this.executor = executor;
+        flush();
+    }
+
+    /**
+     * Start sending changes to a region to a viewer
+     * @param listener The viewer to send changes to
+     * @param region The region that the viewer is looking at
+     * @param viewed The items that the viewer has been sent already
+     */
+    public void subscribe(StoreRegionListener<T> listener, StoreRegion region, MatchedItems viewed)
+    {
+        subscriptions.put(listener, new Subscription(listener, region, viewed));
+    }
+
+    /**
+     * Stop sending changes to a viewer
+     * @param listener The viewer to forget
+     */
+    public void unsubscribe(StoreChangeListener<T> listener)
+    {
+        subscriptions.remove(listener);
+    }
+
+    /**
+     * Is this listener viewing a region through this coalescer?
+     */
+    public boolean isSubscribed(StoreChangeListener<T> listener)
+    {
+        return subscriptions.containsKey(listener);
+    }
+
+    /**
+     * Note that an item has been added to the store
+     * @param itemId The ID of the new item
+     */
+    public void itemAdded(String itemId)
+    {
+        recordChange(itemId, null, false);
+    }
+
+    /**
+     * Note that an item has changed
+     * @param itemId The ID of the item
+     * @param changedAttributes The changed attributes, null for everything
+     */
+    public void itemChanged(String itemId, Collection<String> changedAttributes)
+    {
+        recordChange(itemId, changedAttributes, false);
+    }
+
+    /**
+     * Note that an item has been removed from the store
+     * @param itemId The ID of the removed item
+     */
+    public void itemRemoved(String itemId)
+    {
+        recordChange(itemId, null, true);
+    }
+
+    /**
+     * Remember a change until the end of the current window, starting a
+     * window if one is not running.
+     */
+    private void recordChange(String itemId, Collection<String> changedAttributes, boolean deleted)
+    {
+        if (subscriptions.isEmpty())
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (!pending.containsKey(itemId))
+            {
+                pending.put(itemId, changedAttributes == null ? null : new HashSet<String>(changedAttributes));
+            }
+            else
+            {
+                Set<String> attributes = pending.get(itemId);
+                if (attributes != null)
+                {
+                    if (changedAttributes == null)
+                    {
+                        pending.put(itemId, null);
+                    }
+                    else
+                    {
+                        attributes.addAll(changedAttributes);
+                    }
+                }
+            }
+
+            if (deleted)
+            {
+                pendingDeletes.add(itemId);
+            }
+            else
+            {
+                pendingDeletes.remove(itemId);
+            }
+
+            if (scheduled)
+            {
+                return;
+            }
+            scheduled = true;
+        }
+
+        try
+        {
+            executor.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    flush();
+                }
+            }, window, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // Probably shutting down. Flushing also clears scheduled so the
+            // next change can try again
+            log.debug("Failed to schedule the end of a window. Sending changes now.");
+            flush();
+        }
+    }
+
+    /**
+     * Close the current window and tell every viewer about the changes to
+     * their region.
+     */
+    public void flush()
+    {
+        Map<String, Set<String>> changes;
+        Set<String> deletes;
+        synchronized (this)
+        {
+            changes = pending;
+            deletes = pendingDeletes;
+            pending = new HashMap<String, Set<String>>();
+            pendingDeletes = new HashSet<String>();
+            scheduled = false;
+        }
+
+        if (changes.isEmpty())
+        {
+            return;
+        }
+
+        for (Subscription subscription : subscriptions.values())
+        {
+            try
+            {
+                subscription.push(changes, deletes);
+            }
+            catch (RuntimeException ex)
+            {
+                log.warn("Failed to push changes to " + subscription.listener + ". Unsubscribing.", ex);
+                subscriptions.remove(subscription.listener);
+            }
+        }
+    }
+
+    /**
+     * A viewer along with the region it is viewing and what we last told it
+     */
+    private class Subscription
+    {
+        Subscription(StoreRegionListener<T> listener, StoreRegion region, MatchedItems viewed)
+        {
+            this.listener = listener;
+            this.region = region;
+            this.viewedIds = getIds(viewed);
+            this.totalMatchCount = viewed.getTotalMatchCount();
+        }
+
+        /**
+         * Work out what has changed in our region and tell our viewer
+         */
+        synchronized void push(Map<String, Set<String>> changes, Set<String> deletes)
+        {
+            MatchedItems current = provider.viewRegion(region);
+            List<String> currentIds = getIds(current);
+
+            Set<String> before = new HashSet<String>(viewedIds);
+            Set<String> after = new HashSet<String>(currentIds);
+
+            List<Item> added = new ArrayList<Item>();
+            List<Item> changed = new ArrayList<Item>();
+            Map<String, Collection<String>> changedAttributes = new HashMap<String, Collection<String>>();
+            for (Item item : current.getViewedMatches())
+            {
+                String itemId = item.getItemId();
+                if (!before.contains(itemId))
+                {
+                    added.add(item);
+                }
+                else if (changes.containsKey(itemId))
+                {
+                    changed.add(item);
+                    Set<String> attributes = changes.get(itemId);
+                    if (attributes != null)
+                    {
+                        changedAttributes.put(itemId, attributes);
+                    }
+                }
+            }
+
+            List<String> removed = new ArrayList<String>();
+            List<String> deleted = new ArrayList<String>();
+            for (String itemId : viewedIds)
+            {
+                if (!after.contains(itemId))
+                {
+                    removed.add(itemId);
+                    if (deletes.contains(itemId))
+                    {
+                        deleted.add(itemId);
+                    }
+                }
+            }
+
+            boolean moved = !currentIds.equals(viewedIds);
+            RegionChange change = new RegionChange(region.getStart(), current.getTotalMatchCount(), moved ? currentIds : null, added, removed, deleted, changed, changedAttributes);
+            if (change.isEmpty() && current.getTotalMatchCount() == totalMatchCount)
+            {
+                return;
+            }
+
+            viewedIds = currentIds;
+            totalMatchCount = current.getTotalMatchCount();
+            listener.regionChanged(provider, change);
+        }
+
+        /**
+         * The viewer to tell about changes
+         */
+        final StoreRegionListener<T> listener;
+
+        /**
+         * The region that the viewer is looking at
+         */
+        final StoreRegion region;
+
+        /**
+         * The IDs of the items that the viewer can see, in order
+         */
+        private List<String> viewedIds;
+
+        /**
+         * The total number of matches that the viewer knows about
+         */
+        private int totalMatchCount;
+    }
+
+    /**
+     * Extract the item IDs from some matches
+     */
+    private static List<String> getIds(MatchedItems matches)
+    {
+        List<String> ids = new ArrayList<String>(matches.getViewedMatches().size());
+        for (Item item : matches.getViewedMatches())
+        {
+            ids.add(item.getItemId());
+        }
+        return ids;
+    }
+
+    /**
+     * The store that we report changes from
+     */
+    private final StoreProvider<T> provider;
+
+    /**
+     * How long (in milliseconds) we collect changes for
+     */
+    private volatile long window;
+
+    /**
+     * How we schedule the end of a window
+     */
+    private volatile ScheduledExecutorService executor;
+
+    /**
+     * The viewers that we are reporting to
+     */
+    private final Map<StoreChangeListener<T>, Subscription> subscriptions = new ConcurrentHashMap<StoreChangeListener<T>, Subscription>();
+
+    /**
+     * The items changed in this window and what changed about them (null
+     * for everything)
+     */
+    /* @GuardedBy("this") */private Map<String, Set<String>> pending = new HashMap<String, Set<String>>();
+
+    /**
+     * The items removed from the store in this window
+     */
+    /* @GuardedBy("this") */private Set<String> pendingDeletes = new HashSet<String>();
+
+    /**
+     * Is there a flush scheduled for the end of this window?
+     */
+    /* @GuardedBy("this") */private boolean scheduled = false;
+
+    /**
+     * The log stream
+     */
+    private static final Log log = LogFactory.getLog(StoreChangeCoalescer.class);
+}
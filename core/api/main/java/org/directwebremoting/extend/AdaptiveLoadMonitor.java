@@ -0,0 +1,79 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.extend;
+
+/**
+ * A {@link ServerLoadMonitor} that measures how long calls take and can give
+ * different advice to different classes of client. The poll handler asks
+ * whether each class of client may use its preferred way of connecting, and
+ * how long it should stay connected and disconnected, so load can be shed from
+ * the most expensive clients first.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public interface AdaptiveLoadMonitor extends ServerLoadMonitor
+{
+    /**
+     * The ways that a client can wait for reverse ajax updates, from the most
+     * expensive for the server to the least
+     */
+    enum ClientClass
+    {
+        /**
+         * Clients that hold a connection open and receive updates as they
+         * happen
+         */
+        STREAMING,
+
+        /**
+         * Clients that hold a connection open until there is something to
+         * send them
+         */
+        LONG_POLL,
+
+        /**
+         * Clients that can't hold a connection open
+         */
+        POLL
+    }
+
+    /**
+     * A batch of calls has been handled.
+     * @param nanos How long the batch took in nanoseconds
+     */
+    void callCompleted(long nanos);
+
+    /**
+     * Should a client of the given class be allowed to connect in its usual
+     * way? If not it should be treated as the next cheaper class.
+     * @param clientClass The way the client would like to wait
+     * @return true if the client may wait that way
+     */
+    boolean supportsStreaming(ClientClass clientClass);
+
+    /**
+     * @param clientClass The way the client is waiting
+     * @return The maximum client connected time
+     * @see ServerLoadMonitor#getConnectedTime()
+     */
+    long getConnectedTime(ClientClass clientClass);
+
+    /**
+     * @param clientClass The way the client is waiting
+     * @return How long should this client wait until it next polls?
+     * @see ServerLoadMonitor#getDisconnectedTime()
+     */
+    int getDisconnectedTime(ClientClass clientClass);
+}
@@ -16,8 +16,6 @@
 package org.directwebremoting.extend;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
@@ -119,6 +117,9 @@ public class Call
      * sequences, this simpler version is less defined in the order in which it
      * matches methods, but able to find more matches. If we discover that this
      * version creates problems, the old version was around up to revision 2317.
+     * <p>Candidate methods come from a {@link MethodDispatchTable} so we only
+     * look at the methods with the right name that could take the number of
+     * parameters that were passed.
      */
     public void findMethod(ModuleManager moduleManager, ConverterManager converterManager, InboundContext inctx, int callNum)
     {
@@ -133,42 +134,31 @@ public class Call
         }
 
         int inputArgCount = inctx.getParameterCount(callNum);
-        // Get a mutable list of all methods on the type specified by the creator
         Module module = moduleManager.getModule(scriptName, true);
-        List<MethodDeclaration> allMethods = new ArrayList<MethodDeclaration>();
-        allMethods.addAll(Arrays.asList(module.getMethods()));
+        MethodDispatchTable table = MethodDispatchTable.getDispatchTable(module);
 
-        // Remove all methods that don't have a matching name
-        for (Iterator<MethodDeclaration> it = allMethods.iterator(); it.hasNext();)
-        {
-            if (!it.next().getName().equals(methodName))
-            {
-                it.remove();
-            }
-        }
-
-        if (allMethods.isEmpty())
+        MethodDeclaration[] namedMethods = table.getMethods(methodName);
+        if (namedMethods.length == 0)
         {
             // Not even a name match
             log.warn("No method called '" + methodName + "' found in " + module.toString());
             throw new IllegalArgumentException("Method name not found. See logs for details");
         }
 
-        // Remove all the methods where we can't convert the parameters
+        // The table has already removed non-varargs methods which declare
+        // less params than were passed. Now remove the methods where we can't
+        // convert the parameters
+        List<MethodDeclaration> allMethods = new ArrayList<MethodDeclaration>();
         allMethodsLoop:
-        for (Iterator<MethodDeclaration> it = allMethods.iterator(); it.hasNext();)
+        for (int index : table.getCandidates(methodName, inputArgCount))
         {
-            MethodDeclaration m = it.next();
+            MethodDeclaration m = namedMethods[index];
             Class<?>[] methodParamTypes = m.getParameterTypes();
 
-            // Remove non-varargs methods which declare less params than were passed
-            if (!m.isVarArgs() && methodParamTypes.length < inputArgCount)
-            {
-                it.remove();
-                continue allMethodsLoop;
-            }
+            // The number of methods still in the running: those we have kept
+            // and those that we have yet to look at
+            int remaining = allMethods.size() + namedMethods.length - index;
 
-            // Remove methods where we can't convert the input
             for (int i = 0; i < methodParamTypes.length; i++)
             {
                 Class<?> methodParamType = methodParamTypes[i];
@@ -176,23 +166,20 @@ public class Call
                 Class<?> inputType = converterManager.getClientDeclaredType(param);
 
                 // If we can't convert this parameter type, ignore the method
-                if (inputType == null && !converterManager.isConvertable(methodParamType))
+                if (inputType == null && !table.isConvertable(converterManager, methodParamType))
                 {
-                    it.remove();
                     continue allMethodsLoop;
                 }
 
                 // Remove methods which declare more non-nullable parameters than were passed
                 if (inputArgCount <= i && methodParamType.isPrimitive())
                 {
-                    it.remove();
                     continue allMethodsLoop;
                 }
 
                 // Remove methods where the client passed a type and we can't use it.
                 if (inputType != null && !methodParamType.isAssignableFrom(inputType))
                 {
-                    it.remove();
                     continue allMethodsLoop;
                 }
 
@@ -201,7 +188,7 @@ public class Call
                  * We are limited to what JavaScript gives us (number, date, boolean, etc.)
                  * We only want to performn this if there are multiple methods with the same name (hack for now).
                  */
-                if (allMethods.size() > 1) {
+                if (remaining > 1) {
                     String javaScriptType = param.getType();
                     // If this method takes a vararg, the JavaScript type being passed is not
                     // an array, and this is the var argument we need to use the component type of the argument.
@@ -213,12 +200,13 @@ public class Call
                     }
                     if (!LocalUtil.isJavaScriptTypeAssignableTo(javaScriptType, methodParamType))
                     {
-                        it.remove();
                         continue allMethodsLoop;
                     }
                     /** end overloaded section */
                 }
             }
+
+            allMethods.add(m);
         }
 
         if (allMethods.isEmpty())
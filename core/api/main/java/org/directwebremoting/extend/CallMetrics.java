@@ -0,0 +1,114 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.extend;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Where the time goes inside a DWR call. The call handlers, {@link Remoter}
+ * and modules report how long each stage of a call took and what happened
+ * to each remoted method.
+ * <p>Implementations must be cheap and thread safe. Callers check
+ * {@link #isEnabled()} before reading the clock, so when metrics are off the
+ * cost of a call is a volatile read per stage.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public interface CallMetrics
+{
+    /**
+     * The stages of a call. Stages can contain other stages, e.g.
+     * {@link #MARSHALL_INBOUND} includes {@link #FIND_METHOD}, and the time
+     * recorded for a stage includes the time for the stages it contains.
+     */
+    enum Stage
+    {
+        /**
+         * Reading and parsing the request into a batch of calls
+         */
+        PARSE,
+
+        /**
+         * Finding methods and converting parameters for a batch of calls
+         */
+        MARSHALL_INBOUND,
+
+        /**
+         * Finding the method to call for a single call
+         */
+        FIND_METHOD,
+
+        /**
+         * Executing a batch of calls
+         */
+        EXECUTE,
+
+        /**
+         * Running the {@link org.directwebremoting.AjaxFilter}s and the
+         * remoted method for a single call
+         */
+        FILTER_CHAIN,
+
+        /**
+         * Converting the replies to script and writing them to the response
+         */
+        MARSHALL_OUTBOUND
+    }
+
+    /**
+     * Are metrics being collected? If not there is no need to measure
+     * anything.
+     * @return true if the other methods do something
+     */
+    boolean isEnabled();
+
+    /**
+     * A stage of a call has finished
+     * @param stage The stage that finished
+     * @param nanos How long the stage took in nanoseconds
+     */
+    void stageCompleted(Stage stage, long nanos);
+
+    /**
+     * A remoted method has been executed
+     * @param scriptName The name of the module that was called
+     * @param methodName The name of the method that was called
+     * @param nanos How long the method (including filters) took in nanoseconds
+     * @param failed true if the method threw or could not be called
+     */
+    void methodCompleted(String scriptName, String methodName, long nanos, boolean failed);
+
+    /**
+     * The reply for a remoted method has been converted and written
+     * @param scriptName The name of the module that was called
+     * @param methodName The name of the method that was called
+     * @param chars The number of characters of script written
+     */
+    void replyWritten(String scriptName, String methodName, long chars);
+
+    /**
+     * A request has been read
+     * @param bytes The number of bytes in the body of the request
+     */
+    void requestRead(long bytes);
+
+    /**
+     * Write a summary of the metrics collected so far as a JSON object
+     * @param out Where to write the summary
+     * @throws IOException If the write fails
+     */
+    void writeJson(Writer out) throws IOException;
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.extend;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.directwebremoting.io.FileTransfer;
+import org.directwebremoting.io.InputStreamFactory;
+import org.directwebremoting.util.LocalUtil;
+
+/**
+ * A {@link FileTransfer} whose data is held in a file on local disk.
+ * Knowing the file allows a handler to serve it directly, including parts of
+ * it, rather than reading it through an {@link InputStream}.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class DiskFileTransfer extends FileTransfer
+{
+    /**
+     * @param filename The filename to offer to the browser
+     * @param mimeType The mime type of the data
+     * @param file The file on disk that holds the data
+     */
+    public DiskFileTransfer(String filename, String mimeType, File file)
+    {
+        this(filename, mimeType, file, new FileInputStreamFactory(file));
+    }
+
+    /**
+     * Internal ctor so we can hang on to the stream factory
+     */
+    private DiskFileTransfer(String filename, String mimeType, File file, InputStreamFactory factory)
+    {
+        super(filename, mimeType, file.length(), factory);
+        this.file = file;
+    }
+
+    /**
+     * @return The file on disk that holds the data
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * An {@link InputStreamFactory} that opens the file when first asked
+     */
+    private static class FileInputStreamFactory implements InputStreamFactory
+    {
+        FileInputStreamFactory(File file)
+        {
+            this.file = file;
+        }
+
+        /* (non-Javadoc)
+         * @see org.directwebremoting.io.InputStreamFactory#getInputStream()
+         */
+        public synchronized InputStream getInputStream() throws IOException
+        {
+            if (in == null)
+            {
+                in = new FileInputStream(file);
+            }
+            return in;
+        }
+
+        /* (non-Javadoc)
+         * @see org.directwebremoting.io.InputStreamFactory#close()
+         */
+        public synchronized void close() throws IOException
+        {
+            LocalUtil.close(in);
+            in = null;
+        }
+
+        /**
+         * The file to read from
+         */
+        private final File file;
+
+        /**
+         * The stream, once opened
+         */
+        private InputStream in;
+    }
+
+    /**
+     * The file on disk that holds the data
+     */
+    private final File file;
+}
@@ -125,7 +125,7 @@ public class FormField
      */
     public String getString()
     {
-        if (string == null)
+        if (string == null && inputStreamFactory != null)
         {
             try
             {
@@ -143,6 +143,38 @@ public class FormField
         return string;
     }
 
+    /**
+     * Find a character in the value of a simple form field. Subclasses that
+     * hold their value in a buffer can do this without creating a String.
+     * @param ch The character to look for
+     * @return The position of the first ch in the value, or -1
+     */
+    public int indexOf(char ch)
+    {
+        String value = getString();
+        return value == null ? -1 : value.indexOf(ch);
+    }
+
+    /**
+     * Copy the start of the value of a simple form field to a String
+     * @param end The position after the last char to copy
+     * @return The chars from 0 to end
+     */
+    public String substring(int end)
+    {
+        return getString().substring(0, end);
+    }
+
+    /**
+     * The end of the value of a simple form field
+     * @param start The position of the first char to include
+     * @return A field containing the chars from start to the end of the value
+     */
+    public FormField subField(int start)
+    {
+        return new FormField(getString().substring(start));
+    }
+
     /**
      * Determines whether or not a FormField instance represents a simple form
      * field.
@@ -159,13 +191,13 @@ public class FormField
     @Override
     public String toString()
     {
-        if (string == null)
+        if (isFile())
         {
             return "FormField:File:" + name;
         }
         else
         {
-            return "FormField:String:" + string;
+            return "FormField:String:" + getString();
         }
     }
 
@@ -175,13 +207,14 @@ public class FormField
     @Override
     public int hashCode()
     {
-        if (string == null)
+        if (isFile())
         {
             return super.hashCode();
         }
         else
         {
-            return string.hashCode();
+            String value = getString();
+            return value == null ? 0 : value.hashCode();
         }
     }
 
@@ -196,26 +229,22 @@ public class FormField
             return true;
         }
 
-        if (obj == null || this.getClass() != obj.getClass())
+        if (!(obj instanceof FormField))
         {
             return false;
         }
 
         FormField that = (FormField) obj;
 
-        if (string == null)
-        {
-            return super.equals(that);
-        }
-        else
+        // Files are only equal to themselves. String fields are equal if they
+        // have the same value, however it is stored.
+        if (this.isFile() || that.isFile())
         {
-            if (!this.string.equals(that.string))
-            {
-                return false;
-            }
+            return false;
         }
 
-        return true;
+        String value = this.getString();
+        return value == null ? that.getString() == null : value.equals(that.getString());
     }
 
     private final String string;
@@ -15,9 +15,12 @@
  */
 package org.directwebremoting.extend;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
@@ -28,6 +31,10 @@ import org.directwebremoting.ConversionException;
  * InboundContext is the context for set of inbound conversions.
  * Since a data set may be recursive parts of some data members may refer to
  * others so we need to keep track of who is converted for what.
+ * <p>Variables with the usual names (c0-param0, c0-e0) are stored in lists by
+ * call number and index rather than hashed by name, and each variable is
+ * given a slot number so we can remember conversions without creating a key
+ * object for every lookup.
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
 public final class InboundContext
@@ -35,11 +42,30 @@ public final class InboundContext
     /**
      * When we are sure we have finished parsing the input, we can begin to
      * fix all cross-references.
+     * Only the parameters are dereferenced here, the variables that they refer
+     * to are dereferenced (and have their types parsed) as the converters
+     * reach them.
      * @throws ConversionException If cross-references don't add up
      */
     public void dereference() throws ConversionException
     {
-        for (InboundVariable variable : variables.values())
+        for (CallVariables call : calls)
+        {
+            if (call == null)
+            {
+                continue;
+            }
+
+            for (InboundVariable param : call.params)
+            {
+                if (param != null)
+                {
+                    param.dereference();
+                }
+            }
+        }
+
+        for (InboundVariable variable : named.values())
         {
             variable.dereference();
         }
@@ -102,6 +128,20 @@ public final class InboundContext
         checkInboundVariable(callNum, key, iv);
     }
 
+    /**
+     * Create an inbound variable from a declaration that still has the type
+     * on the front (e.g. string:hello). The declaration is not split until
+     * the variable is used.
+     * @param callNum The call number to work on
+     * @param key The name of the variable
+     * @param declaration The javascript type and value, separated by a colon
+     */
+    public void createInboundVariable(int callNum, String key, FormField declaration)
+    {
+        InboundVariable iv = new InboundVariable(this, key, declaration);
+        checkInboundVariable(callNum, key, iv);
+    }
+
     /**
      * Internal method to check the variable we just created does not already
      * exist, and to ensure that our count of inbound parameters is up to date
@@ -111,24 +151,49 @@ public final class InboundContext
      */
     private void checkInboundVariable(int callNum, String key, InboundVariable iv)
     {
-        Object old = variables.put(key, iv);
-        if (old != null)
+        InboundVariable old;
+
+        // The numbers in names come from the client, so we only use them as
+        // list indexes if they don't leave a large gap. Anything else is
+        // treated as any other name, and isn't counted as a parameter.
+        int varCallNum = getCallNum(key);
+        int paramIndex = getIndex(key, ProtocolConstants.INBOUND_KEY_PARAM);
+        int elementIndex = getIndex(key, ProtocolConstants.INBOUND_KEY_ENV);
+        CallVariables call = null;
+        if (varCallNum != -1 && isDense(calls, varCallNum) && (paramIndex != -1 || elementIndex != -1))
         {
-            log.warn("Duplicate variable called: " + key);
+            call = getCallVariables(varCallNum);
         }
 
-        String paramPrefix = ProtocolConstants.INBOUND_CALLNUM_PREFIX + callNum +
-                             ProtocolConstants.INBOUND_CALLNUM_SUFFIX +
-                             ProtocolConstants.INBOUND_KEY_PARAM;
-
-        if (key.startsWith(paramPrefix))
+        if (call != null && paramIndex != -1 && isDense(call.params, paramIndex))
         {
-            int i = Integer.parseInt(key.substring(paramPrefix.length())) + 1;
-            if (i > paramCount)
+            old = set(call.params, paramIndex, iv);
+            if (varCallNum == callNum && paramIndex + 1 > paramCount)
             {
-                paramCount = i;
+                paramCount = paramIndex + 1;
             }
         }
+        else if (call != null && elementIndex != -1 && isDense(call.elements, elementIndex))
+        {
+            old = set(call.elements, elementIndex, iv);
+        }
+        else
+        {
+            old = named.put(key, iv);
+        }
+
+        if (old != null)
+        {
+            log.warn("Duplicate variable called: " + key);
+            slots.set(old.slot, iv);
+            iv.slot = old.slot;
+        }
+        else
+        {
+            iv.slot = slots.size();
+            slots.add(iv);
+            names.add(key);
+        }
     }
 
     /**
@@ -138,7 +203,32 @@ public final class InboundContext
      */
     public InboundVariable getInboundVariable(String name)
     {
-        return variables.get(name);
+        CallVariables call = findCallVariables(getCallNum(name));
+        if (call != null)
+        {
+            int paramIndex = getIndex(name, ProtocolConstants.INBOUND_KEY_PARAM);
+            InboundVariable found = null;
+            if (paramIndex != -1)
+            {
+                found = get(call.params, paramIndex);
+            }
+            else
+            {
+                int elementIndex = getIndex(name, ProtocolConstants.INBOUND_KEY_ENV);
+                if (elementIndex != -1)
+                {
+                    found = get(call.elements, elementIndex);
+                }
+            }
+
+            if (found != null)
+            {
+                return found;
+            }
+        }
+
+        // Including names with numbers too large to be kept in a list
+        return named.get(name);
     }
 
     /**
@@ -160,12 +250,30 @@ public final class InboundContext
      */
     public void addConverted(InboundVariable iv, Class<?> type, Object bean)
     {
-        Conversion conversion = new Conversion(iv, type);
-        Object old = converted.put(conversion, bean);
-        if (old != null)
+        int slot = iv.getSlot();
+        if (slot == -1)
+        {
+            // Inline data can't be referred to from elsewhere
+            return;
+        }
+
+        Object[] beans = converted.get(type);
+        if (beans == null || slot >= beans.length)
+        {
+            Object[] grown = new Object[slots.size()];
+            if (beans != null)
+            {
+                System.arraycopy(beans, 0, grown, 0, beans.length);
+            }
+            beans = grown;
+            converted.put(type, beans);
+        }
+
+        if (beans[slot] != null)
         {
-            log.warn("Duplicate variable conversion called: " + conversion);
+            log.warn("Duplicate variable conversion called: " + iv + " to " + type.getName());
         }
+        beans[slot] = bean;
     }
 
     /**
@@ -176,8 +284,14 @@ public final class InboundContext
      */
     public Object getConverted(InboundVariable iv, Class<?> type)
     {
-        Conversion conversion = new Conversion(iv, type);
-        return converted.get(conversion);
+        int slot = iv.getSlot();
+        Object[] beans = converted.get(type);
+        if (slot == -1 || beans == null || slot >= beans.length)
+        {
+            return null;
+        }
+
+        return beans[slot];
     }
 
     /**
@@ -197,11 +311,16 @@ public final class InboundContext
      */
     public int getParameterCount(int callNum)
     {
+        CallVariables call = findCallVariables(callNum);
+        if (call == null)
+        {
+            return 0;
+        }
+
         int count = 0;
-        String prefix = ProtocolConstants.INBOUND_CALLNUM_PREFIX + callNum + ProtocolConstants.INBOUND_CALLNUM_SUFFIX + ProtocolConstants.INBOUND_KEY_PARAM;
-        for (String key : variables.keySet())
+        for (InboundVariable param : call.params)
         {
-            if (key.startsWith(prefix))
+            if (param != null)
             {
                 count++;
             }
@@ -217,14 +336,14 @@ public final class InboundContext
      */
     public InboundVariable getParameter(int callNum, int index)
     {
-        String key = ProtocolConstants.INBOUND_CALLNUM_PREFIX + callNum +
-                     ProtocolConstants.INBOUND_CALLNUM_SUFFIX +
-                     ProtocolConstants.INBOUND_KEY_PARAM + index;
-
-        InboundVariable found = variables.get(key);
-        if (found != null)
+        CallVariables call = findCallVariables(callNum);
+        if (call != null)
         {
-            return found;
+            InboundVariable found = get(call.params, index);
+            if (found != null)
+            {
+                return found;
+            }
         }
 
         return nullInboundVariable;
@@ -260,72 +379,167 @@ public final class InboundContext
      */
     public Iterator<String> getInboundVariableNames()
     {
-        return variables.keySet().iterator();
+        return Collections.unmodifiableList(names).iterator();
     }
 
     /**
-     * A Class to use as a key in a map for conversion purposes.
-     * A collection of an InboundVariable and a type
+     * Find (or create) the variables for a given call
+     * @param callNum The call number to work on
+     * @return The parameters and elements of the call
      */
-    protected static class Conversion
+    private CallVariables getCallVariables(int callNum)
     {
-        /**
-         * @param inboundVariable The new inboundVariable
-         * @param type The new type
-         */
-        Conversion(InboundVariable inboundVariable, Class<?> type)
+        // Contexts usually hold a single call so the list has gaps
+        while (calls.size() <= callNum)
         {
-            if (inboundVariable == null)
-            {
-                throw new NullPointerException("InboundVariable");
-            }
+            calls.add(null);
+        }
 
-            if (type == null)
-            {
-                throw new NullPointerException("Class type");
-            }
+        CallVariables call = calls.get(callNum);
+        if (call == null)
+        {
+            call = new CallVariables();
+            calls.set(callNum, call);
+        }
+
+        return call;
+    }
+
+    /**
+     * Find the variables for a given call
+     * @param callNum The call number to work on
+     * @return The parameters and elements of the call, or null if there are
+     * none
+     */
+    private CallVariables findCallVariables(int callNum)
+    {
+        if (callNum < 0 || callNum >= calls.size())
+        {
+            return null;
+        }
+
+        return calls.get(callNum);
+    }
 
-            this.inboundVariable = inboundVariable;
-            this.type = type;
+    /**
+     * Extract the call number from a name like c12-param0
+     * @param name The variable name
+     * @return The call number, or -1 if name does not start c[digits]-
+     */
+    private static int getCallNum(String name)
+    {
+        if (!name.startsWith(ProtocolConstants.INBOUND_CALLNUM_PREFIX))
+        {
+            return -1;
         }
 
-        /* (non-Javadoc)
-         * @see java.lang.Object#equals(java.lang.Object)
-         */
-        @Override
-        public boolean equals(Object obj)
+        int start = ProtocolConstants.INBOUND_CALLNUM_PREFIX.length();
+        int dash = name.indexOf(ProtocolConstants.INBOUND_CALLNUM_SUFFIX, start);
+        if (dash == -1)
         {
-            if (!(obj instanceof Conversion))
-            {
-                return false;
-            }
+            return -1;
+        }
 
-            Conversion that = (Conversion) obj;
+        return parseNumber(name, start, dash);
+    }
 
-            return this.type.equals(that.type) && this.inboundVariable.equals(that.inboundVariable);
+    /**
+     * Extract the index from a name like c0-param12 or c0-e12
+     * @param name The variable name
+     * @param kind The part of the name between the call number and the index
+     * @return The index, or -1 if the name is not of the given kind
+     */
+    private static int getIndex(String name, String kind)
+    {
+        int dash = name.indexOf(ProtocolConstants.INBOUND_CALLNUM_SUFFIX);
+        int start = dash + ProtocolConstants.INBOUND_CALLNUM_SUFFIX.length();
+        if (dash == -1 || !name.startsWith(kind, start))
+        {
+            return -1;
         }
 
-        /* (non-Javadoc)
-         * @see java.lang.Object#hashCode()
-         */
-        @Override
-        public int hashCode()
+        return parseNumber(name, start + kind.length(), name.length());
+    }
+
+    /**
+     * Parse a small non-negative number without creating a substring
+     * @param text The string containing the number
+     * @param start The position of the first digit
+     * @param end The position after the last digit
+     * @return The number, or -1 if there are no digits, too many digits, or
+     * any other characters between start and end
+     */
+    private static int parseNumber(String text, int start, int end)
+    {
+        if (start >= end || end - start > 9)
         {
-            return inboundVariable.hashCode() + type.hashCode();
+            return -1;
         }
 
-        /* (non-Javadoc)
-         * @see java.lang.Object#toString()
-         */
-        @Override
-        public String toString()
+        int number = 0;
+        for (int i = start; i < end; i++)
         {
-            return "Conversion[" + inboundVariable + "," + type.getName() + "]";
+            char ch = text.charAt(i);
+            if (ch < '0' || ch > '9')
+            {
+                return -1;
+            }
+            number = number * 10 + (ch - '0');
         }
+        return number;
+    }
 
-        private final InboundVariable inboundVariable;
+    /**
+     * Is an index close enough to the end of a list that we can store it in
+     * the list without a client being able to make us allocate a huge gap?
+     */
+    private static boolean isDense(List<?> list, int index)
+    {
+        return index < list.size() + MAX_INDEX_GAP;
+    }
 
-        private final Class<?> type;
+    /**
+     * Store a variable in a list, growing the list if needed
+     * @return The variable previously at that index, or null
+     */
+    private static InboundVariable set(List<InboundVariable> list, int index, InboundVariable iv)
+    {
+        while (list.size() <= index)
+        {
+            list.add(null);
+        }
+
+        return list.set(index, iv);
+    }
+
+    /**
+     * Null safe lookup of a variable in a list
+     * @return The variable at that index, or null if there isn't one
+     */
+    private static InboundVariable get(List<InboundVariable> list, int index)
+    {
+        if (index < 0 || index >= list.size())
+        {
+            return null;
+        }
+
+        return list.get(index);
+    }
+
+    /**
+     * The variables declared for a single call, by index
+     */
+    private static final class CallVariables
+    {
+        /**
+         * The cN-paramM variables
+         */
+        final List<InboundVariable> params = new ArrayList<InboundVariable>();
+
+        /**
+         * The cN-eM variables
+         */
+        final List<InboundVariable> elements = new ArrayList<InboundVariable>();
     }
 
     /* (non-Javadoc)
@@ -336,11 +550,11 @@ public final class InboundContext
     {
         StringBuffer buffer = new StringBuffer();
         buffer.append("InboundContext[");
-        for (Map.Entry<String, InboundVariable> entry : variables.entrySet())
+        for (int i = 0; i < slots.size(); i++)
         {
-            buffer.append(entry.getKey());
+            buffer.append(names.get(i));
             buffer.append('=');
-            buffer.append(entry.getValue());
+            buffer.append(slots.get(i));
             buffer.append(',');
         }
         buffer.append("]");
@@ -366,14 +580,37 @@ public final class InboundContext
     private int paramCount = 0;
 
     /**
-     * A map of all the inbound variables
+     * The parameters and elements of each call, indexed by call number.
+     * Calls that have no variables in this context are null.
+     */
+    private final List<CallVariables> calls = new ArrayList<CallVariables>();
+
+    /**
+     * Variables whose names don't fit the cN-paramM or cN-eM pattern
+     */
+    private final Map<String, InboundVariable> named = new HashMap<String, InboundVariable>();
+
+    /**
+     * Every variable, indexed by {@link InboundVariable#slot}
+     */
+    private final List<InboundVariable> slots = new ArrayList<InboundVariable>();
+
+    /**
+     * The names of the variables in {@link #slots}, in the same order
+     */
+    private final List<String> names = new ArrayList<String>();
+
+    /**
+     * The converted variables. For each type we converted to, an array of
+     * the converted objects indexed by slot.
      */
-    private final Map<String, InboundVariable> variables = new HashMap<String, InboundVariable>();
+    private final Map<Class<?>, Object[]> converted = new HashMap<Class<?>, Object[]>();
 
     /**
-     * A map of all the variables converted.
+     * How far past the end of a list we will store a variable, see
+     * {@link #isDense(List, int)}
      */
-    private final Map<Conversion, Object> converted = new HashMap<Conversion, Object>();
+    private static final int MAX_INDEX_GAP = 256;
 
     /**
      * The log stream
@@ -15,6 +15,8 @@
  */
 package org.directwebremoting.extend;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.directwebremoting.ConversionException;
 
 /**
@@ -54,6 +56,25 @@ public final class InboundVariable
         this.formField = fileField;
     }
 
+    /**
+     * Parsing ctor for a declaration that has not been split into type and
+     * value yet. The split happens the first time either is needed, so
+     * variables that are never converted are never split.
+     * @param context How we lookup references
+     * @param key The name of the variable that this was transfered as
+     * @param declaration The type information and value from javascript,
+     * separated by a colon
+     */
+    public InboundVariable(InboundContext context, String key, FormField declaration)
+    {
+        this.context = context;
+        this.key = key;
+        this.type = null;
+        this.members = null;
+        this.formField = null;
+        this.declaration = declaration;
+    }
+
     /**
      * Constructor for when we need something to represent null
      * @param context How we lookup references
@@ -103,7 +124,7 @@ public final class InboundVariable
     {
         int depth = 0;
 
-        while (ProtocolConstants.TYPE_REFERENCE.equals(type))
+        while (ProtocolConstants.TYPE_REFERENCE.equals(getType()))
         {
             InboundVariable cd = context.getInboundVariable(formField.getString());
             if (cd == null)
@@ -111,9 +132,10 @@ public final class InboundVariable
                 throw new ConversionException(getClass(), "Found reference to variable named '" + formField.getString() + "', but no variable of that name could be found.");
             }
 
-            type = cd.type;
+            type = cd.getType();
             formField = cd.getFormField();
             key = cd.key;
+            slot = cd.slot;
 
             depth++;
             if (depth > 20)
@@ -125,6 +147,44 @@ public final class InboundVariable
         dereferenced = true;
     }
 
+    /**
+     * Split the declaration into type and value if we have not done so yet
+     */
+    private void parseDeclaration()
+    {
+        if (declaration != null)
+        {
+            int colon = declaration.indexOf(ProtocolConstants.INBOUND_TYPE_SEPARATOR.charAt(0));
+            if (colon == -1)
+            {
+                log.error("Missing : in conversion data (" + declaration.getString() + ')');
+                type = ProtocolConstants.TYPE_STRING;
+                formField = declaration;
+            }
+            else
+            {
+                type = declaration.substring(colon).replace('?', ':');
+                formField = declaration.subField(colon + 1);
+            }
+            declaration = null;
+        }
+    }
+
+    /**
+     * The position in our context of the variable that we refer to, so the
+     * context can remember conversions without hashing the variable.
+     * @return The slot, or -1 if the data was not declared in the context
+     */
+    int getSlot()
+    {
+        if (!dereferenced)
+        {
+            throw new IllegalStateException("getSlot() called before dereference()");
+        }
+
+        return slot;
+    }
+
     /**
      * If we are using object parameters that have specified types then the
      * {@link ConverterManager} will need to get to know what the required type
@@ -133,6 +193,7 @@ public final class InboundVariable
      */
     public String getNamedObjectType()
     {
+        String type = getType();
         if (type.startsWith("Object_"))
         {
             return type.substring("Object_".length());
@@ -149,7 +210,7 @@ public final class InboundVariable
      */
     public boolean isNull()
     {
-        return ProtocolConstants.INBOUND_NULL.equals(type);
+        return ProtocolConstants.INBOUND_NULL.equals(getType());
     }
 
     /**
@@ -157,7 +218,7 @@ public final class InboundVariable
      */
     public String getValue()
     {
-        return formField.getString();
+        return getFormField().getString();
     }
 
     /**
@@ -165,6 +226,7 @@ public final class InboundVariable
      */
     public FormField getFormField()
     {
+        parseDeclaration();
         return formField;
     }
 
@@ -173,6 +235,7 @@ public final class InboundVariable
      */
     public String getType()
     {
+        parseDeclaration();
         return type;
     }
 
@@ -190,6 +253,7 @@ public final class InboundVariable
     @Override
     public String toString()
     {
+        parseDeclaration();
         if (formField == null)
         {
             return type + ProtocolConstants.INBOUND_TYPE_SEPARATOR + "null";
@@ -296,4 +360,19 @@ public final class InboundVariable
      * The javascript declared file value
      */
     private FormField formField;
+
+    /**
+     * The type and value before they are split, null once they have been
+     */
+    private FormField declaration;
+
+    /**
+     * Where the variable that we refer to lives in our context
+     */
+    int slot = -1;
+
+    /**
+     * The log stream
+     */
+    private static final Log log = LogFactory.getLog(InboundVariable.class);
 }
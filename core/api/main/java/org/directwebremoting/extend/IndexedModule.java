@@ -0,0 +1,31 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.extend;
+
+/**
+ * A {@link Module} that keeps its own {@link MethodDispatchTable}, so that
+ * finding the method for a call needs no shared lookup or lock.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public interface IndexedModule extends Module
+{
+    /**
+     * Cacheable modules should build their table once and return the same one
+     * each time, others can build a new table for each call.
+     * @return An index of the methods returned by {@link #getMethods()}
+     */
+    MethodDispatchTable getDispatchTable();
+}
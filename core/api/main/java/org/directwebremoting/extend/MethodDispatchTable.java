@@ -0,0 +1,220 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.extend;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An index of the methods of a {@link Module} by name and then by the number
+ * of parameters that a call passes, so that {@link Call#findMethod} does not
+ * need to ask the module for all of its methods and filter them on every call.
+ * <p>Modules that implement {@link IndexedModule} keep their own table, so
+ * a {@link ModuleManager} that hands out the same Module for as long as its
+ * contents don't change gets a table that is built only once.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class MethodDispatchTable
+{
+    /**
+     * Index a set of methods
+     * @param methods The methods to index, generally from {@link Module#getMethods()}
+     */
+    public MethodDispatchTable(MethodDeclaration[] methods)
+    {
+        Map<String, List<MethodDeclaration>> grouped = new HashMap<String, List<MethodDeclaration>>();
+        for (MethodDeclaration method : methods)
+        {
+            List<MethodDeclaration> group = grouped.get(method.getName());
+            if (group == null)
+            {
+                group = new ArrayList<MethodDeclaration>();
+                grouped.put(method.getName(), group);
+            }
+            group.add(method);
+        }
+
+        for (Map.Entry<String, List<MethodDeclaration>> entry : grouped.entrySet())
+        {
+            List<MethodDeclaration> group = entry.getValue();
+            overloads.put(entry.getKey(), new Overloads(group.toArray(new MethodDeclaration[group.size()])));
+        }
+    }
+
+    /**
+     * Find the dispatch table for a module, creating it if needed.
+     * @param module The module to find a table for
+     * @return The module's own table if it is an {@link IndexedModule}, a new
+     * one otherwise
+     */
+    public static MethodDispatchTable getDispatchTable(Module module)
+    {
+        if (module instanceof IndexedModule)
+        {
+            return ((IndexedModule) module).getDispatchTable();
+        }
+
+        return new MethodDispatchTable(module.getMethods());
+    }
+
+    /**
+     * @param methodName The method name to look for
+     * @return The number of methods with the given name
+     */
+    public int getMethodCount(String methodName)
+    {
+        Overloads group = overloads.get(methodName);
+        return group == null ? 0 : group.methods.length;
+    }
+
+    /**
+     * Find the methods with the given name in the order that the module
+     * declared them.
+     * @param methodName The method name to look for
+     * @return The matching methods, which must not be altered
+     */
+    public MethodDeclaration[] getMethods(String methodName)
+    {
+        Overloads group = overloads.get(methodName);
+        return group == null ? NO_METHODS : group.methods;
+    }
+
+    /**
+     * Find the methods that could accept a given number of parameters, which
+     * is all the varargs methods and any others that declare at least that
+     * many parameters (missing parameters are passed as null).
+     * @param methodName The method name to look for
+     * @param paramCount The number of parameters passed by the client
+     * @return Indexes into {@link #getMethods(String)} in ascending order
+     */
+    public int[] getCandidates(String methodName, int paramCount)
+    {
+        Overloads group = overloads.get(methodName);
+        if (group == null)
+        {
+            return NO_CANDIDATES;
+        }
+
+        int[][] byParamCount = group.candidates;
+        return byParamCount[Math.min(paramCount, byParamCount.length - 1)];
+    }
+
+    /**
+     * Can parameters of the given type be converted? Only positive answers
+     * are remembered because converters can be added but not removed.
+     * @param converterManager The converter manager to ask
+     * @param paramType The declared parameter type
+     * @return true if we can convert to the given type
+     */
+    public boolean isConvertable(ConverterManager converterManager, Class<?> paramType)
+    {
+        if (converterManager == convertableManager && convertable.containsKey(paramType))
+        {
+            return true;
+        }
+
+        boolean reply = converterManager.isConvertable(paramType);
+        if (reply)
+        {
+            if (converterManager != convertableManager)
+            {
+                convertable.clear();
+                convertableManager = converterManager;
+            }
+            convertable.put(paramType, Boolean.TRUE);
+        }
+
+        return reply;
+    }
+
+    /**
+     * The methods that share a name and the candidates for each parameter count
+     */
+    private static final class Overloads
+    {
+        Overloads(MethodDeclaration[] methods)
+        {
+            this.methods = methods;
+
+            int maxFixed = -1;
+            for (MethodDeclaration method : methods)
+            {
+                if (!method.isVarArgs())
+                {
+                    maxFixed = Math.max(maxFixed, method.getParameterTypes().length);
+                }
+            }
+
+            // Beyond the longest fixed parameter list only varargs match, so
+            // the last entry serves for all larger parameter counts
+            candidates = new int[maxFixed + 2][];
+            for (int paramCount = 0; paramCount < candidates.length; paramCount++)
+            {
+                int[] matches = new int[methods.length];
+                int found = 0;
+                for (int i = 0; i < methods.length; i++)
+                {
+                    if (methods[i].isVarArgs() || methods[i].getParameterTypes().length >= paramCount)
+                    {
+                        matches[found++] = i;
+                    }
+                }
+
+                candidates[paramCount] = new int[found];
+                System.arraycopy(matches, 0, candidates[paramCount], 0, found);
+            }
+        }
+
+        /**
+         * The methods in declaration order
+         */
+        final MethodDeclaration[] methods;
+
+        /**
+         * Indexes into {@link #methods} for each parameter count
+         */
+        final int[][] candidates;
+    }
+
+    /**
+     * The methods grouped by name
+     */
+    private final Map<String, Overloads> overloads = new HashMap<String, Overloads>();
+
+    /**
+     * The parameter types that we know we can convert
+     */
+    private final ConcurrentMap<Class<?>, Boolean> convertable = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    /**
+     * The ConverterManager that {@link #convertable} applies to
+     */
+    private volatile ConverterManager convertableManager;
+
+    /**
+     * Returned when there is no method with the requested name
+     */
+    private static final MethodDeclaration[] NO_METHODS = new MethodDeclaration[0];
+
+    /**
+     * Returned when there is no method with the requested name
+     */
+    private static final int[] NO_CANDIDATES = new int[0];
+}
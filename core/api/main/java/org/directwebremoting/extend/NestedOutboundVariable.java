@@ -15,6 +15,9 @@
  */
 package org.directwebremoting.extend;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Collection;
 
 /**
@@ -78,6 +81,153 @@ public abstract class NestedOutboundVariable implements OutboundVariable
         return builder.toString();
     }
 
+    /**
+     * Write the {@link #getDeclareCode()}s of all our children
+     * @param out The stream to write to
+     * @throws IOException If the write fails
+     */
+    protected void writeChildDeclareCodes(Writer out) throws IOException
+    {
+        for (OutboundVariable child : children)
+        {
+            writeDeclareCode(child, out);
+        }
+    }
+
+    /**
+     * Write the {@link #getBuildCode()}s of all our children
+     * @param out The stream to write to
+     * @throws IOException If the write fails
+     */
+    protected void writeChildBuildCodes(Writer out) throws IOException
+    {
+        for (OutboundVariable child : children)
+        {
+            writeBuildCode(child, out);
+        }
+    }
+
+    /**
+     * Write our {@link #getDeclareCode()} without creating a String for it.
+     * Subclasses with large numbers of children should override this (and
+     * the other write methods) so that the output of a large object graph
+     * is never held in memory all at once.
+     * @param out The stream to write to
+     * @throws IOException If the write fails
+     */
+    public void writeDeclareCode(Writer out) throws IOException
+    {
+        out.write(getDeclareCode());
+    }
+
+    /**
+     * Write our {@link #getBuildCode()} without creating a String for it.
+     * @param out The stream to write to
+     * @throws IOException If the write fails
+     * @see #writeDeclareCode(Writer)
+     */
+    public void writeBuildCode(Writer out) throws IOException
+    {
+        out.write(getBuildCode());
+    }
+
+    /**
+     * Write our {@link #getAssignCode()} without creating a String for it.
+     * @param out The stream to write to
+     * @throws IOException If the write fails
+     * @see #writeDeclareCode(Writer)
+     */
+    public void writeAssignCode(Writer out) throws IOException
+    {
+        out.write(getAssignCode());
+    }
+
+    /**
+     * Write the declare code of any OutboundVariable, streaming it if we can
+     * @param variable The variable to output
+     * @param out The stream to write to
+     * @throws IOException If the write fails
+     */
+    protected static void writeDeclareCode(OutboundVariable variable, Writer out) throws IOException
+    {
+        if (variable instanceof NestedOutboundVariable)
+        {
+            ((NestedOutboundVariable) variable).writeDeclareCode(out);
+        }
+        else
+        {
+            out.write(variable.getDeclareCode());
+        }
+    }
+
+    /**
+     * Write the build code of any OutboundVariable, streaming it if we can
+     * @param variable The variable to output
+     * @param out The stream to write to
+     * @throws IOException If the write fails
+     */
+    protected static void writeBuildCode(OutboundVariable variable, Writer out) throws IOException
+    {
+        if (variable instanceof NestedOutboundVariable)
+        {
+            ((NestedOutboundVariable) variable).writeBuildCode(out);
+        }
+        else
+        {
+            out.write(variable.getBuildCode());
+        }
+    }
+
+    /**
+     * Write the assign code of any OutboundVariable, streaming it if we can
+     * @param variable The variable to output
+     * @param out The stream to write to
+     * @throws IOException If the write fails
+     */
+    protected static void writeAssignCode(OutboundVariable variable, Writer out) throws IOException
+    {
+        if (variable instanceof NestedOutboundVariable)
+        {
+            ((NestedOutboundVariable) variable).writeAssignCode(out);
+        }
+        else
+        {
+            out.write(String.valueOf(variable.getAssignCode()));
+        }
+    }
+
+    /**
+     * Collect the output of one of the write methods in a String. For
+     * subclasses that implement the get methods using the write methods.
+     * @param code Which code to write: DECLARE_CODE, BUILD_CODE or ASSIGN_CODE
+     * @return The output as a String
+     */
+    protected String writeToString(int code)
+    {
+        StringWriter buffer = new StringWriter();
+        try
+        {
+            switch (code)
+            {
+            case DECLARE_CODE:
+                writeDeclareCode(buffer);
+                break;
+            case BUILD_CODE:
+                writeBuildCode(buffer);
+                break;
+            default:
+                writeAssignCode(buffer);
+                break;
+            }
+        }
+        catch (IOException ex)
+        {
+            // StringWriter doesn't throw IOException
+            throw new IllegalStateException(ex.toString());
+        }
+        return buffer.toString();
+    }
+
     /* (non-Javadoc)
      * @see org.directwebremoting.OutboundVariable#getReference()
      */
@@ -122,6 +272,21 @@ public abstract class NestedOutboundVariable implements OutboundVariable
         return context.isJsonMode();
     }
 
+    /**
+     * For {@link #writeToString(int)}: the declare code
+     */
+    protected static final int DECLARE_CODE = 0;
+
+    /**
+     * For {@link #writeToString(int)}: the build code
+     */
+    protected static final int BUILD_CODE = 1;
+
+    /**
+     * For {@link #writeToString(int)}: the assign code
+     */
+    protected static final int ASSIGN_CODE = 2;
+
     /**
      * Are there references to us (forcing outline)?
      */
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.extend;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A Sleeper that can also write to the response that it is holding open
+ * without blocking the writing thread on a slow client.
+ * <p>Output is buffered until the container says that the client can take
+ * more. If the client falls too far behind, the writer goes into error (see
+ * {@link PrintWriter#checkError()}) and the sleeper should be woken up.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public interface NonBlockingSleeper extends Sleeper
+{
+    /**
+     * Create a writer for the response to the request that this sleeper was
+     * created for. This must be called at most once, and before any other
+     * output has been written. The content type should already have been set.
+     * @param response The response to write to
+     * @return A writer that never blocks, or null if we can't do that for this
+     * response, in which case {@link HttpServletResponse#getWriter()} should be
+     * used as normal.
+     * @throws IOException If the output stream can't be setup
+     */
+    PrintWriter getNonBlockingWriter(HttpServletResponse response) throws IOException;
+}
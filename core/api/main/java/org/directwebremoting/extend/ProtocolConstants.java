@@ -118,6 +118,12 @@ public interface ProtocolConstants
      */
     public static final String INBOUND_KEY_PARTIAL_RESPONSE = "partialResponse";
 
+    /**
+     * The inbound key that lists the names of the file upload parts of a
+     * multipart request. The file parts are sent after all the other parts.
+     */
+    public static final String INBOUND_KEY_FILE_PARTS = "fileParts";
+
     /**
      * The character to use to distinguish between the variable name and the
      * variable value
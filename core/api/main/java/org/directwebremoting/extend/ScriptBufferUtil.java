@@ -15,6 +15,9 @@
  */
 package org.directwebremoting.extend;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -22,7 +25,8 @@ import org.directwebremoting.ConversionException;
 import org.directwebremoting.ScriptBuffer;
 
 /**
- * A simple utility class to extract a {@link String} from a {@link ScriptBuffer}.
+ * A simple utility class to extract a {@link String} from a {@link ScriptBuffer},
+ * or to write it to a stream.
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
 public class ScriptBufferUtil
@@ -55,6 +59,63 @@ public class ScriptBufferUtil
      * @throws ConversionException If an error happens during parameter marshalling
      */
     public static String createOutput(ScriptBuffer script, ConverterManager converterManager, boolean jsonOutput) throws ConversionException
+    {
+        if (script instanceof SharedScriptBuffer)
+        {
+            return ((SharedScriptBuffer) script).getOutput(converterManager, jsonOutput);
+        }
+
+        return convertOutput(script, converterManager, jsonOutput);
+    }
+
+    /**
+     * Convert a script to a string, without looking to see if someone else
+     * has already done so.
+     * @see #createOutput(ScriptBuffer, ConverterManager, boolean)
+     */
+    static String convertOutput(ScriptBuffer script, ConverterManager converterManager, boolean jsonOutput) throws ConversionException
+    {
+        StringWriter buffer = new StringWriter();
+        try
+        {
+            writeConvertedOutput(script, converterManager, jsonOutput, buffer);
+        }
+        catch (IOException ex)
+        {
+            // StringWriter doesn't throw IOException
+            throw new IllegalStateException(ex.toString());
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Write the output of {@link #createOutput(ScriptBuffer, ConverterManager, boolean)}
+     * to a stream, without creating the output as a String first. Everything
+     * is converted before anything is written, so a {@link ConversionException}
+     * never leaves half a script in the stream.
+     * @param script The source of the script data
+     * @param converterManager How we convert script variable to Javascript
+     * @param jsonOutput Are we doing strict JSON output?
+     * @param out The stream to write the script to
+     * @throws ConversionException If an error happens during parameter marshalling
+     * @throws IOException If the write fails
+     */
+    public static void writeOutput(ScriptBuffer script, ConverterManager converterManager, boolean jsonOutput, Writer out) throws ConversionException, IOException
+    {
+        if (script instanceof SharedScriptBuffer)
+        {
+            out.write(((SharedScriptBuffer) script).getOutput(converterManager, jsonOutput));
+            return;
+        }
+
+        writeConvertedOutput(script, converterManager, jsonOutput, out);
+    }
+
+    /**
+     * Convert a script and write it to a stream
+     * @see #writeOutput(ScriptBuffer, ConverterManager, boolean, Writer)
+     */
+    private static void writeConvertedOutput(ScriptBuffer script, ConverterManager converterManager, boolean jsonOutput, Writer out) throws ConversionException, IOException
     {
         OutboundContext context = new OutboundContext(jsonOutput);
         List<OutboundVariable> scriptParts = new ArrayList<OutboundVariable>();
@@ -62,7 +123,6 @@ public class ScriptBufferUtil
 
         // First convert everything into OutboundVariables
         // TODO - something for IE 7 bug here?
-        int variableCount = 0;
         for (Object part : script.getParts())
         {
             OutboundVariable ov = converterManager.convertOutbound(part, context);
@@ -72,49 +132,150 @@ public class ScriptBufferUtil
             }
 
             scriptParts.add(ov);
-            variableCount++;
         }
 
-        StringBuilder buffer = new StringBuilder();
+        if (!jsonOutput)
+        {
+            writeParts(scriptParts, out);
+        }
+        else if (outboundError)
+        {
+            // Real JSON must be wrapped in { }, and errors are rare and small
+            // enough for us to do this the simple way
+            StringWriter buffer = new StringWriter();
+            writeParts(scriptParts, buffer);
+            String output = buffer.toString();
+            if (!output.startsWith("{") && !output.startsWith("["))
+            {
+                output = output.replaceFirst("null", "{}");
+                output = "{\"error\":" + output + "}";
+            }
+            out.write(output);
+        }
+        else
+        {
+            // Real JSON must be wrapped in { }
+            JsonReplyWriter reply = new JsonReplyWriter(out);
+            writeParts(scriptParts, reply);
+            reply.finish();
+        }
+    }
 
+    /**
+     * Write the declaration, construction and assignment code of some
+     * converted parts of a script
+     */
+    private static void writeParts(List<OutboundVariable> scriptParts, Writer out) throws IOException
+    {
         // First we look for the declaration code
         for (OutboundVariable ov : scriptParts)
         {
-            buffer.append(ov.getDeclareCode());
+            NestedOutboundVariable.writeDeclareCode(ov, out);
         }
 
         // Then we look for the construction code
         for (OutboundVariable ov : scriptParts)
         {
-            buffer.append(ov.getBuildCode());
+            NestedOutboundVariable.writeBuildCode(ov, out);
         }
 
         // Then we output everything else
         for (OutboundVariable ov : scriptParts)
         {
-            String assignCode = ov.getAssignCode();
-            if (assignCode == null)
+            if (!(ov instanceof NestedOutboundVariable) && ov.getAssignCode() == null)
             {
                 throw new NullPointerException();
             }
-            buffer.append(assignCode);
+            NestedOutboundVariable.writeAssignCode(ov, out);
+        }
+    }
+
+    /**
+     * Wraps JSON output in <code>{ "reply":...}</code> unless it is already
+     * an object or an array. We can only tell when the first character is
+     * written, so that is when we decide.
+     */
+    private static class JsonReplyWriter extends Writer
+    {
+        JsonReplyWriter(Writer out)
+        {
+            this.out = out;
         }
 
-        // Real JSON must be wrapped in { }
-        String output = buffer.toString();
-        if (jsonOutput && !output.startsWith("{") && !output.startsWith("["))
+        /* (non-Javadoc)
+         * @see java.io.Writer#write(char[], int, int)
+         */
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
         {
-            if (outboundError)
+            if (len == 0)
             {
-                output = output.replaceFirst("null", "{}");
-                output = "{\"error\":" + output + "}";
+                return;
             }
-            else
+
+            if (!started)
             {
-                output = "{ \"reply\":" + output + "}";
+                started = true;
+                char first = cbuf[off];
+                wrapped = first != '{' && first != '[';
+                if (wrapped)
+                {
+                    out.write("{ \"reply\":");
+                }
+            }
+
+            out.write(cbuf, off, len);
+        }
+
+        /**
+         * Called when all the output has been written
+         * @throws IOException If the write fails
+         */
+        public void finish() throws IOException
+        {
+            if (!started)
+            {
+                out.write("{ \"reply\":");
+                wrapped = true;
+            }
+
+            if (wrapped)
+            {
+                out.write("}");
             }
         }
 
-        return output;
+        /* (non-Javadoc)
+         * @see java.io.Writer#flush()
+         */
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.Writer#close()
+         */
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+
+        /**
+         * Have we written anything yet?
+         */
+        private boolean started = false;
+
+        /**
+         * Did we need to wrap the output?
+         */
+        private boolean wrapped = false;
+
+        /**
+         * The stream we write to
+         */
+        private final Writer out;
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.extend;
+
+import org.directwebremoting.ConversionException;
+import org.directwebremoting.ScriptBuffer;
+
+/**
+ * A copy of a ScriptBuffer that is being sent to many ScriptSessions at
+ * once. The data in the script is converted once for each output mode (plain
+ * Javascript or JSON) and the result is shared by every conduit that the
+ * script goes to, rather than each of them converting the same objects.
+ * <p>The output is created from the state of the data when the first conduit
+ * asks for it. A SharedScriptBuffer must not be altered once it has been
+ * created, changes to the original ScriptBuffer are not seen.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class SharedScriptBuffer extends ScriptBuffer
+{
+    /**
+     * @param original The script that is about to be broadcast
+     */
+    public SharedScriptBuffer(ScriptBuffer original)
+    {
+        appendAll(original);
+    }
+
+    /**
+     * Share a script unless it is already shared
+     * @param script The script that is about to be broadcast
+     * @return A SharedScriptBuffer with the contents of the given script
+     */
+    public static SharedScriptBuffer share(ScriptBuffer script)
+    {
+        if (script instanceof SharedScriptBuffer)
+        {
+            return (SharedScriptBuffer) script;
+        }
+
+        return new SharedScriptBuffer(script);
+    }
+
+    /**
+     * Get the converted script, converting it if no one has done so already.
+     * @param converterManager How we convert script variable to Javascript
+     * @param jsonOutput Are we doing strict JSON output?
+     * @return The output of {@link ScriptBufferUtil#createOutput(ScriptBuffer, ConverterManager, boolean)}
+     * @throws ConversionException If an error happens during parameter marshalling
+     */
+    public String getOutput(ConverterManager converterManager, boolean jsonOutput) throws ConversionException
+    {
+        int mode = jsonOutput ? 1 : 0;
+
+        synchronized (outputs)
+        {
+            if (outputsConverterManager == null)
+            {
+                outputsConverterManager = converterManager;
+            }
+
+            if (outputsConverterManager == converterManager)
+            {
+                if (outputs[mode] == null)
+                {
+                    outputs[mode] = ScriptBufferUtil.convertOutput(this, converterManager, jsonOutput);
+                }
+
+                return outputs[mode];
+            }
+        }
+
+        // Someone is using a different ConverterManager. We don't expect this
+        // so we don't bother to remember the result
+        return ScriptBufferUtil.convertOutput(this, converterManager, jsonOutput);
+    }
+
+    /**
+     * The converted output for plain Javascript [0] and for JSON [1]
+     */
+    /* @GuardedBy("outputs") */private final String[] outputs = new String[2];
+
+    /**
+     * The ConverterManager that created {@link #outputs}
+     */
+    /* @GuardedBy("outputs") */private ConverterManager outputsConverterManager = null;
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.io;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The difference between what a viewer of a {@link StoreRegion} last saw and
+ * what is there now, after a number of changes to the store have been
+ * coalesced. Items that changed outside of the viewed region are not
+ * mentioned unless they moved into it.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class RegionChange
+{
+    /**
+     * All parameters are required, except viewedIds which is null if the
+     * items in the region and their order have not changed.
+     */
+    public RegionChange(int start, int totalMatchCount, List<String> viewedIds, List<Item> added, List<String> removed, List<String> deleted, List<Item> changed, Map<String, Collection<String>> changedAttributes)
+    {
+        this.start = start;
+        this.totalMatchCount = totalMatchCount;
+        this.viewedIds = viewedIds;
+        this.added = added;
+        this.removed = removed;
+        this.deleted = deleted;
+        this.changed = changed;
+        this.changedAttributes = changedAttributes;
+    }
+
+    /**
+     * Accessor for the start of the viewed region
+     */
+    public int getStart()
+    {
+        return start;
+    }
+
+    /**
+     * Accessor for the total number of matches (before start/count filtering)
+     */
+    public int getTotalMatchCount()
+    {
+        return totalMatchCount;
+    }
+
+    /**
+     * Accessor for the IDs of the items now in the region, in order. This is
+     * how moves are described, and is null if nothing was added, removed or
+     * moved.
+     */
+    public List<String> getViewedIds()
+    {
+        return viewedIds;
+    }
+
+    /**
+     * Accessor for the items that have come into the region
+     */
+    public List<Item> getAdded()
+    {
+        return added;
+    }
+
+    /**
+     * Accessor for the IDs of the items that have left the region
+     */
+    public List<String> getRemoved()
+    {
+        return removed;
+    }
+
+    /**
+     * Accessor for the IDs of the items that have left the region because
+     * they have been deleted from the store. A subset of {@link #getRemoved()}
+     */
+    public List<String> getDeleted()
+    {
+        return deleted;
+    }
+
+    /**
+     * Accessor for the items that stayed in the region but were altered
+     */
+    public List<Item> getChanged()
+    {
+        return changed;
+    }
+
+    /**
+     * Accessor for the attributes that changed for each item in
+     * {@link #getChanged()}. If an item is missing from this map then you
+     * should assume that everything has changed
+     */
+    public Map<String, Collection<String>> getChangedAttributes()
+    {
+        return changedAttributes;
+    }
+
+    /**
+     * Is there nothing to tell the viewer?
+     */
+    public boolean isEmpty()
+    {
+        return viewedIds == null && changed.isEmpty();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "RegionChange[start=" + start + ",totalMatchCount=" + totalMatchCount + ",added=" + added.size() + ",removed=" + removed.size() + ",changed=" + changed.size() + "]";
+    }
+
+    private final int start;
+    private final int totalMatchCount;
+    private final List<String> viewedIds;
+    private final List<Item> added;
+    private final List<String> removed;
+    private final List<String> deleted;
+    private final List<Item> changed;
+    private final Map<String, Collection<String>> changedAttributes;
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.io;
+
+import org.directwebremoting.datasync.StoreProvider;
+
+/**
+ * A {@link StoreChangeListener} that can accept a batch of changes to the
+ * region that it is viewing in one go, rather than one call per item.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public interface StoreRegionListener<T> extends StoreChangeListener<T>
+{
+    /**
+     * A number of items in or around the viewed region have changed
+     * @param source The store in which the changes happened
+     * @param change The difference between the region as last seen and now
+     */
+    public void regionChanged(StoreProvider<T> source, RegionChange change);
+}
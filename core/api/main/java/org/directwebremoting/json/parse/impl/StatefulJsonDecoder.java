@@ -209,7 +209,7 @@ public abstract class StatefulJsonDecoder implements JsonDecoder
     {
         if (expPart != null)
         {
-            return new BigDecimal(intPart + floatPart + expPart);
+            return new BigDecimal(intPart + (floatPart == null ? "" : floatPart) + expPart);
         }
         else if (floatPart != null)
         {
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A cache of things we have worked out about classes (property maps,
+ * constructors and so on) that does not stop a web application from being
+ * unloaded.
+ * <p>Classes loaded by the same ClassLoader as DWR, or by one of its
+ * parents, can't be unloaded before DWR is, so we hold on to them in a plain
+ * concurrent map and lookups don't lock. Anything else (for example when DWR
+ * is in a shared lib directory and the classes are in a web application) is
+ * held with a weak key and a soft value, so a redeploy leaves nothing behind
+ * once the garbage collector wants the memory back.
+ * <p>Values almost always refer back to the class that they describe (through
+ * a {@link java.lang.reflect.Method} for example) which is why the values in
+ * the second case can't be strong references.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class ClassMetadataCache<V>
+{
+    /**
+     * Find what we remembered about a class
+     * @param type The class to lookup
+     * @return The cached value or null if there isn't one
+     */
+    public V get(Class<?> type)
+    {
+        V value = safe.get(type);
+        if (value != null)
+        {
+            return value;
+        }
+
+        synchronized (unsafe)
+        {
+            Reference<V> reference = unsafe.get(type);
+            return reference == null ? null : reference.get();
+        }
+    }
+
+    /**
+     * Remember something about a class
+     * @param type The class that the value describes
+     * @param value The value to cache
+     */
+    public void put(Class<?> type, V value)
+    {
+        if (isCacheSafe(type))
+        {
+            safe.put(type, value);
+        }
+        else
+        {
+            synchronized (unsafe)
+            {
+                unsafe.put(type, new SoftReference<V>(value));
+            }
+        }
+    }
+
+    /**
+     * Forget about a single class
+     * @param type The class to forget
+     */
+    public void remove(Class<?> type)
+    {
+        safe.remove(type);
+        synchronized (unsafe)
+        {
+            unsafe.remove(type);
+        }
+    }
+
+    /**
+     * Forget everything, for example because the rules used to create the
+     * values have changed
+     */
+    public void clear()
+    {
+        safe.clear();
+        synchronized (unsafe)
+        {
+            unsafe.clear();
+        }
+    }
+
+    /**
+     * @return The number of classes that we know about
+     */
+    public int size()
+    {
+        synchronized (unsafe)
+        {
+            return safe.size() + unsafe.size();
+        }
+    }
+
+    /**
+     * Can the given class be strongly referenced without preventing its
+     * ClassLoader from being garbage collected? This is the case when it was
+     * loaded by the ClassLoader that loaded DWR or by one of its parents.
+     * @param type The class to check
+     * @return true if a strong reference to the class is harmless
+     */
+    public static boolean isCacheSafe(Class<?> type)
+    {
+        ClassLoader target = type.getClassLoader();
+        if (target == null)
+        {
+            // Bootstrap classes are never unloaded
+            return true;
+        }
+
+        ClassLoader loader = ClassMetadataCache.class.getClassLoader();
+        while (loader != null)
+        {
+            if (loader == target)
+            {
+                return true;
+            }
+            loader = loader.getParent();
+        }
+
+        return false;
+    }
+
+    /**
+     * Values for classes that live at least as long as we do
+     */
+    private final ConcurrentMap<Class<?>, V> safe = new ConcurrentHashMap<Class<?>, V>();
+
+    /**
+     * Values for classes that could be unloaded before we are
+     */
+    private final Map<Class<?>, Reference<V>> unsafe = new WeakHashMap<Class<?>, Reference<V>>();
+}
@@ -15,9 +15,15 @@
  */
 package org.directwebremoting.util;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
  * We need a way to record how heavily used the server is, and adjust our
  * behavior to reduce the load on the server.
+ * <p>Hits are counted in a ring of one second slots. Each slot is split into
+ * stripes so threads recording hits at the same time don't all update the same
+ * counter, and no locks are taken. The first thread to record a hit in a new
+ * second resets the slot, so a hit that races with the reset can be lost.
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
 public class HitMonitor
@@ -29,7 +35,16 @@ public class HitMonitor
      */
     public HitMonitor(int seconds)
     {
-        hitLog = new long[seconds];
+        int count = 1;
+        while (count < Runtime.getRuntime().availableProcessors() && count < MAX_STRIPES)
+        {
+            count <<= 1;
+        }
+
+        this.seconds = seconds;
+        this.stripes = count;
+        this.stamps = new AtomicLongArray(seconds);
+        this.counts = new AtomicLongArray(seconds * stripes * PADDING);
     }
 
     /**
@@ -37,11 +52,21 @@ public class HitMonitor
      */
     public void recordHit()
     {
-        synchronized (hitLog)
+        long now = getCurrentTimestamp();
+        int slot = (int) (now % seconds);
+
+        long stamp = stamps.get(slot);
+        if (stamp < now && stamps.compareAndSet(slot, stamp, now))
         {
-            trimHitLog();
-            hitLog[0]++;
+            // The slot last counted an earlier second, start again
+            for (int i = 0; i < stripes; i++)
+            {
+                counts.set((slot * stripes + i) * PADDING, 0);
+            }
         }
+
+        int stripe = (int) Thread.currentThread().getId() & (stripes - 1);
+        counts.incrementAndGet((slot * stripes + stripe) * PADDING);
     }
 
     /**
@@ -51,63 +76,78 @@ public class HitMonitor
      */
     public int getHitsInLastPeriod()
     {
-        synchronized (hitLog)
-        {
-            trimHitLog();
+        long now = getCurrentTimestamp();
 
-            int count = 0;
-            for (long hit : hitLog)
+        long count = 0;
+        for (int slot = 0; slot < seconds; slot++)
+        {
+            long stamp = stamps.get(slot);
+            if (stamp > now - seconds && stamp <= now)
             {
-                count += hit;
+                for (int i = 0; i < stripes; i++)
+                {
+                    count += counts.get((slot * stripes + i) * PADDING);
+                }
             }
-
-            return count;
         }
+
+        return (int) count;
     }
 
     /**
-     * Remove all the hits that are no longer relevant.
-     * PERFORMANCE: There is probably a faster way to do this
+     * @return The number of seconds that we record hits for
      */
-    private void trimHitLog()
+    public int getSeconds()
     {
-        long now = getCurrentTimestamp();
-        long secondsPassedSinceLastHit = now - zeroTimestamp;
-        zeroTimestamp = now;
-
-        if (secondsPassedSinceLastHit > 0)
-        {
-            // Move the counts down
-            for (int i = hitLog.length - 1; i >= 0; i--)
-            {
-                if (i >= secondsPassedSinceLastHit)
-                {
-                    hitLog[i] = hitLog[i - (int) secondsPassedSinceLastHit];
-                }
-                else
-                {
-                    hitLog[i] = 0;
-                }
-            }
-        }
+        return seconds;
     }
 
     /**
      * A timestamp is {@link System#currentTimeMillis()} divided by 1000
      * @return The current timestamp
      */
-    private static long getCurrentTimestamp()
+    long getCurrentTimestamp()
     {
         return System.currentTimeMillis() / 1000;
     }
 
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "HitMonitor[hits=" + getHitsInLastPeriod() + ", seconds=" + seconds + "]";
+    }
+
+    /**
+     * The number of one second slots
+     */
+    private final int seconds;
+
+    /**
+     * The number of counters in each slot, a power of 2
+     */
+    private final int stripes;
+
+    /**
+     * The second that each slot is counting
+     */
+    private final AtomicLongArray stamps;
+
+    /**
+     * The counters, stripes per slot, spaced out so that stripes don't share
+     * a cache line
+     */
+    private final AtomicLongArray counts;
+
     /**
-     * What is the timestamp of the first element of the hitLog?
+     * We don't need more stripes than this however many processors there are
      */
-    private long zeroTimestamp = getCurrentTimestamp();
+    private static final int MAX_STRIPES = 16;
 
     /**
-     * Our log of hits
+     * 8 longs fill a 64 byte cache line
      */
-    private final long[] hitLog;
+    private static final int PADDING = 8;
 }
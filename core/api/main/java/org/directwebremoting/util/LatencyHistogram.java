@@ -0,0 +1,199 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies (or any other non-negative values) that can be
+ * recorded to from many threads without locking.
+ * <p>Values below 16 have a bucket each. Above that, each power of 2 is split
+ * into 8 buckets, so a percentile is accurate to within 12.5%, whatever the
+ * size of the values. Recording a value is a couple of shifts and an atomic
+ * increment.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class LatencyHistogram
+{
+    /**
+     * @param value The value to record, negative values are recorded as 0
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+        {
+            value = 0;
+        }
+
+        counts.incrementAndGet(getBucket(value));
+        total.addAndGet(value);
+
+        long max = maximum.get();
+        while (value > max && !maximum.compareAndSet(max, value))
+        {
+            max = maximum.get();
+        }
+    }
+
+    /**
+     * @return The number of values recorded
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return The largest value recorded, or 0 if there are none
+     */
+    public long getMax()
+    {
+        return maximum.get();
+    }
+
+    /**
+     * @return The mean of the values recorded, or 0 if there are none
+     */
+    public double getMean()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : (double) total.get() / count;
+    }
+
+    /**
+     * Find the value that the given fraction of recorded values are less than
+     * or equal to.
+     * @param fraction The percentile to find, e.g. 0.99 for the 99th
+     * @return The highest value in the bucket containing the percentile, or 0
+     * if nothing has been recorded
+     */
+    public long getPercentile(double fraction)
+    {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+
+        long wanted = Math.max((long) Math.ceil(count * fraction), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= wanted)
+            {
+                return Math.min(getLowerBound(i + 1) - 1, getMax());
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Forget all the recorded values. Values recorded while this runs may or
+     * may not be forgotten.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        maximum.set(0);
+    }
+
+    /**
+     * Which bucket does a value belong in?
+     * @param value A non-negative value
+     * @return The bucket index
+     */
+    static int getBucket(long value)
+    {
+        if (value < 2 * SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * The smallest value that belongs in a bucket
+     * @param bucket The bucket index
+     * @return The lowest value that {@link #getBucket(long)} puts in bucket
+     */
+    static long getLowerBound(int bucket)
+    {
+        if (bucket < 2 * SUB_BUCKETS)
+        {
+            return bucket;
+        }
+
+        int group = bucket / SUB_BUCKETS;
+        long lower = ((long) SUB_BUCKETS + (bucket % SUB_BUCKETS)) << (group - 1);
+        return lower < 0 ? Long.MAX_VALUE : lower;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "LatencyHistogram[count=" + getCount() + ", mean=" + Math.round(getMean()) + ", p50=" + getPercentile(0.5) + ", p90=" + getPercentile(0.9) + ", p99=" + getPercentile(0.99) + ", max=" + getMax() + "]";
+    }
+
+    /**
+     * log2 of the number of buckets each power of 2 is split into
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * The number of buckets each power of 2 is split into
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Enough buckets for any positive long
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * The number of values in each bucket
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The sum of the values, for the mean
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * The largest value recorded
+     */
+    private final AtomicLong maximum = new AtomicLong();
+}
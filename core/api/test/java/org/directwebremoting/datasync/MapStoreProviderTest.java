@@ -0,0 +1,320 @@
+package org.directwebremoting.datasync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.directwebremoting.io.Item;
+import org.directwebremoting.io.MatchedItems;
+import org.directwebremoting.io.QueryOptions;
+import org.directwebremoting.io.RegionChange;
+import org.directwebremoting.io.SortCriterion;
+import org.directwebremoting.io.StoreRegion;
+import org.directwebremoting.io.StoreRegionListener;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MapStoreProviderTest
+{
+    @Test
+    public void testPaging()
+    {
+        MapStoreProvider<Bean> provider = createProvider(1000);
+
+        MatchedItems page = provider.viewRegion(region(990, 20, "name", null));
+        assertEquals(1000, page.getTotalMatchCount());
+        assertEquals(10, page.getViewedMatches().size());
+
+        // Names sort as strings, so the ids are in the same order
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++)
+        {
+            ids.add("id" + i);
+        }
+        Collections.sort(ids);
+        assertEquals(ids.get(990), page.getViewedMatches().get(0).getItemId());
+        assertEquals(ids.get(999), page.getViewedMatches().get(9).getItemId());
+
+        page = provider.viewRegion(region(0, 5, "name", "name9*"));
+        assertEquals(111, page.getTotalMatchCount());
+        assertEquals("id9", page.getViewedMatches().get(0).getItemId());
+        assertEquals("id90", page.getViewedMatches().get(1).getItemId());
+    }
+
+    @Test
+    public void testEqualSortValuesAreKept()
+    {
+        MapStoreProvider<Bean> provider = createProvider(10);
+        provider.put("copy", new Bean("name5"));
+
+        MatchedItems all = provider.viewRegion(region(0, -1, "name", null));
+        assertEquals(11, all.getTotalMatchCount());
+    }
+
+    @Test
+    public void testPutMaintainsIndexes()
+    {
+        MapStoreProvider<Bean> provider = createProvider(10);
+        StoreRegion filtered = region(0, -1, "name", "name1*");
+        assertEquals(1, provider.viewRegion(filtered).getTotalMatchCount());
+
+        // Re-putting an altered item moves it within and between indexes
+        Bean bean = new Bean("name5");
+        provider.put("id5", bean);
+        bean.setName("name15");
+        provider.put("id5", bean);
+        provider.put("id1", new Bean("name0"));
+
+        List<Item> matches = provider.viewRegion(filtered).getViewedMatches();
+        assertEquals(1, matches.size());
+        assertEquals("id5", matches.get(0).getItemId());
+
+        List<Item> all = provider.viewRegion(region(0, -1, "name", null)).getViewedMatches();
+        assertEquals(10, all.size());
+        assertEquals("name0", ((Bean) all.get(0).getData()).getName());
+        assertEquals("name0", ((Bean) all.get(1).getData()).getName());
+        assertEquals("id5", all.get(2).getItemId());
+
+        provider.put("id5", (Bean) null);
+        assertEquals(0, provider.viewRegion(filtered).getTotalMatchCount());
+        assertEquals(9, provider.viewRegion(region(0, -1, "name", null)).getTotalMatchCount());
+    }
+
+    @Test
+    public void testUnusedIndexesAreEvicted()
+    {
+        MapStoreProvider<Bean> provider = createProvider(10);
+        provider.setMaxIndexes(2);
+
+        StoreRegion first = region(0, -1, "name", "name1");
+        provider.viewRegion(first);
+        MapStoreProvider<Bean>.Index index = provider.getIndex(first);
+        provider.viewRegion(region(0, -1, "name", "name2"));
+        provider.viewRegion(first);
+        provider.viewRegion(region(0, -1, "name", "name3"));
+
+        assertEquals(3, provider.data.size());
+        assertSame(index, provider.getIndex(first));
+    }
+
+    @Test
+    public void testCoalescedRegionChanges()
+    {
+        Map<String, Bean> map = new HashMap<String, Bean>();
+        for (int i = 10; i < 100; i++)
+        {
+            map.put("id" + i, new Bean("name" + i));
+        }
+        MapStoreProvider<Bean> provider = new MapStoreProvider<Bean>(map, Bean.class);
+        ManualExecutor executor = new ManualExecutor();
+        provider.setScheduledExecutorService(executor);
+        provider.setCoalesceWindow(1000);
+
+        RecordingListener listener = new RecordingListener();
+        StoreRegion region = region(0, 10, "name", null);
+        provider.viewRegion(region, listener);
+
+        // Lots of changes outside the region and one inside make one change
+        for (int i = 50; i < 100; i++)
+        {
+            provider.put("id" + i, new Bean("name" + i + "x"));
+        }
+        provider.put("id12", new Bean("name12"));
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+
+        assertEquals(1, listener.changes.size());
+        RegionChange change = listener.changes.get(0);
+        assertNull(change.getViewedIds());
+        assertEquals(1, change.getChanged().size());
+        assertEquals("id12", change.getChanged().get(0).getItemId());
+        assertTrue(change.getAdded().isEmpty());
+
+        // Something new at the top pushes the last item out
+        provider.put("id05", new Bean("name05"));
+        provider.put("id15", (Bean) null);
+        executor.runAll();
+
+        assertEquals(2, listener.changes.size());
+        change = listener.changes.get(1);
+        assertEquals(10, change.getViewedIds().size());
+        assertEquals("id05", change.getViewedIds().get(0));
+        assertEquals(1, change.getAdded().size());
+        assertEquals("id05", change.getAdded().get(0).getItemId());
+        assertEquals(1, change.getRemoved().size());
+        assertEquals("id15", change.getDeleted().get(0));
+        assertEquals(90, change.getTotalMatchCount());
+
+        // Changes that nobody can see are not sent
+        provider.put("id60", new Bean("name60"));
+        executor.runAll();
+        assertEquals(2, listener.changes.size());
+
+        provider.unsubscribe(listener);
+        provider.put("id11", new Bean("name11"));
+        executor.runAll();
+        assertEquals(2, listener.changes.size());
+    }
+
+    @Test
+    public void testReconfiguringKeepsSubscriptions()
+    {
+        MapStoreProvider<Bean> provider = createProvider(20);
+        ManualExecutor executor = new ManualExecutor();
+        provider.setScheduledExecutorService(executor);
+        provider.setCoalesceWindow(1000);
+
+        RecordingListener listener = new RecordingListener();
+        provider.viewRegion(region(0, 10, "name", null), listener);
+
+        // Changes waiting for the old scheduler are sent when it is replaced
+        provider.put("id0", new Bean("name0"));
+        ManualExecutor replacement = new ManualExecutor();
+        provider.setScheduledExecutorService(replacement);
+        assertEquals(1, listener.changes.size());
+
+        // Later changes use the new settings without resubscribing
+        provider.setCoalesceWindow(500);
+        provider.put("id1", new Bean("name1"));
+        assertEquals(1, replacement.tasks.size());
+        replacement.runAll();
+        assertEquals(2, listener.changes.size());
+    }
+
+    @Test
+    public void testRejectedWindowSendsChangesNow()
+    {
+        MapStoreProvider<Bean> provider = createProvider(20);
+        ScheduledThreadPoolExecutor stopped = new ScheduledThreadPoolExecutor(1);
+        stopped.shutdown();
+        provider.setScheduledExecutorService(stopped);
+        provider.setCoalesceWindow(1000);
+
+        RecordingListener listener = new RecordingListener();
+        provider.viewRegion(region(0, 10, "name", null), listener);
+
+        // Changes are sent straight away rather than waiting forever
+        provider.put("id0", new Bean("name0"));
+        int sent = listener.changes.size();
+        assertTrue(sent > 0);
+        provider.put("id1", new Bean("name1"));
+        assertTrue(listener.changes.size() > sent);
+
+        // A working scheduler is used again once there is one
+        ManualExecutor replacement = new ManualExecutor();
+        provider.setScheduledExecutorService(replacement);
+        sent = listener.changes.size();
+        provider.put("id10", new Bean("name10"));
+        assertEquals(1, replacement.tasks.size());
+        assertEquals(sent, listener.changes.size());
+        replacement.runAll();
+        assertEquals(sent + 1, listener.changes.size());
+    }
+
+    private static MapStoreProvider<Bean> createProvider(int size)
+    {
+        Map<String, Bean> map = new HashMap<String, Bean>();
+        for (int i = 0; i < size; i++)
+        {
+            map.put("id" + i, new Bean("name" + i));
+        }
+        return new MapStoreProvider<Bean>(map, Bean.class);
+    }
+
+    private static StoreRegion region(int start, int count, String sort, String pattern)
+    {
+        List<SortCriterion> criteria = new ArrayList<SortCriterion>();
+        criteria.add(new SortCriterion(sort, false));
+
+        Map<String, String> query = new HashMap<String, String>();
+        if (pattern != null)
+        {
+            query.put("name", pattern);
+        }
+
+        return new StoreRegion(start, count, criteria, query, new QueryOptions());
+    }
+
+    private static class ManualExecutor extends ScheduledThreadPoolExecutor
+    {
+        ManualExecutor()
+        {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+        {
+            tasks.add(command);
+            return null;
+        }
+
+        void runAll()
+        {
+            List<Runnable> toRun = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            for (Runnable task : toRun)
+            {
+                task.run();
+            }
+        }
+
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+    }
+
+    private static class RecordingListener implements StoreRegionListener<Bean>
+    {
+        public void regionChanged(StoreProvider<Bean> source, RegionChange change)
+        {
+            changes.add(change);
+        }
+
+        public void itemAdded(StoreProvider<Bean> source, Item item)
+        {
+            fail("Expected changes to be coalesced");
+        }
+
+        public void itemChanged(StoreProvider<Bean> source, Item item, Collection<String> changedAttributes)
+        {
+            fail("Expected changes to be coalesced");
+        }
+
+        public void itemRemoved(StoreProvider<Bean> source, String itemId)
+        {
+            fail("Expected changes to be coalesced");
+        }
+
+        final List<RegionChange> changes = new ArrayList<RegionChange>();
+    }
+
+    public static class Bean
+    {
+        public Bean()
+        {
+        }
+
+        public Bean(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public void setName(String name)
+        {
+            this.name = name;
+        }
+
+        private String name;
+    }
+}
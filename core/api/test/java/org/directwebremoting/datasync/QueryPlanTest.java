@@ -0,0 +1,111 @@
+package org.directwebremoting.datasync;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.directwebremoting.io.QueryOptions;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryPlanTest
+{
+    @Test
+    public void testFastPaths()
+    {
+        assertTrue(QueryPlan.testPattern("joe*", "joey", false));
+        assertFalse(QueryPlan.testPattern("joe*", "JOEY", false));
+        assertTrue(QueryPlan.testPattern("joe*", "JOEY", true));
+        assertTrue(QueryPlan.testPattern("*ey", "joey", false));
+        assertTrue(QueryPlan.testPattern("*EY", "joey", true));
+        assertFalse(QueryPlan.testPattern("*ey", "joe", false));
+        assertTrue(QueryPlan.testPattern("*oe*", "joey", false));
+        assertTrue(QueryPlan.testPattern("*OE*", "joey", true));
+        assertFalse(QueryPlan.testPattern("*ex*", "joey", true));
+        assertTrue(QueryPlan.testPattern("*", "joey", false));
+        assertFalse(QueryPlan.testPattern("*", "", false));
+        assertTrue(QueryPlan.testPattern("?oey", "joey", false));
+    }
+
+    @Test
+    public void testEveryTermMustMatch()
+    {
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("first", "jo*");
+        query.put("last", "*er");
+        QueryPlan plan = QueryPlan.compile(query, new QueryOptions());
+
+        assertTrue(plan.matches(new Person("joe", "walker")));
+        assertFalse(plan.matches(new Person("joe", "smith")));
+        assertFalse(plan.matches(new Person("jim", "walker")));
+        assertFalse(plan.matches(null));
+
+        // Properties that are missing or not strings never match
+        query.put("age", "*");
+        assertFalse(QueryPlan.compile(query, new QueryOptions()).matches(new Person("joe", "walker")));
+    }
+
+    @Test
+    public void testPlansAreCached()
+    {
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("first", "jo*");
+        QueryPlan plan = QueryPlan.compile(query, new QueryOptions());
+
+        assertSame(plan, QueryPlan.compile(new HashMap<String, String>(query), new QueryOptions()));
+        assertNotSame(plan, QueryPlan.compile(query, new QueryOptions(false, true)));
+
+        // Changing the query after compilation does not change the plan
+        query.put("first", "ji*");
+        assertTrue(plan.matches(new Person("joe", "walker")));
+        assertFalse(QueryPlan.compile(query, new QueryOptions()).matches(new Person("joe", "walker")));
+    }
+
+    @Test
+    public void testDifferentClasses()
+    {
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("first", "joe");
+        QueryPlan plan = QueryPlan.compile(query, new QueryOptions());
+
+        assertTrue(plan.matches(new Person("joe", "walker")));
+        assertTrue(plan.matches(new Employee("joe", "walker")));
+        assertFalse(plan.matches("joe"));
+        assertTrue(plan.matches(new Person("joe", "walker")));
+    }
+
+    public static class Person
+    {
+        public Person(String first, String last)
+        {
+            this.first = first;
+            this.last = last;
+        }
+
+        public String getFirst()
+        {
+            return first;
+        }
+
+        public String getLast()
+        {
+            return last;
+        }
+
+        public int getAge()
+        {
+            return 42;
+        }
+
+        private final String first;
+        private final String last;
+    }
+
+    public static class Employee extends Person
+    {
+        public Employee(String first, String last)
+        {
+            super(first, last);
+        }
+    }
+}
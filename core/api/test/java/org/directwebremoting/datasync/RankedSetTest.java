@@ -0,0 +1,85 @@
+package org.directwebremoting.datasync;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RankedSetTest
+{
+    @Test
+    public void testMatchesTreeSet()
+    {
+        Random random = new Random(42);
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        RankedSet<Integer> actual = new RankedSet<Integer>(NATURAL);
+
+        for (int i = 0; i < 5000; i++)
+        {
+            Integer value = random.nextInt(1000);
+            if (random.nextInt(3) == 0)
+            {
+                expected.remove(value);
+                actual = actual.remove(value);
+            }
+            else
+            {
+                expected.add(value);
+                actual = actual.add(value);
+            }
+        }
+
+        assertEquals(expected.size(), actual.size());
+        List<Integer> list = new ArrayList<Integer>(expected);
+        for (int i = 0; i < list.size(); i++)
+        {
+            assertEquals(list.get(i), actual.get(i));
+            assertEquals(i, actual.indexOf(list.get(i)));
+        }
+
+        assertEquals(list.subList(100, 150), actual.subList(100, 50));
+        assertEquals(list.subList(list.size() - 10, list.size()), actual.subList(list.size() - 10, 100));
+        assertEquals(list, actual.subList(0, -1));
+        assertTrue(actual.subList(list.size() + 5, 10).isEmpty());
+    }
+
+    @Test
+    public void testSnapshotsDoNotChange()
+    {
+        RankedSet<Integer> original = new RankedSet<Integer>(NATURAL);
+        for (int i = 0; i < 100; i++)
+        {
+            original = original.add(i);
+        }
+
+        RankedSet<Integer> changed = original.removeAt(0).add(1000);
+        assertSame(original, original.remove(5000));
+
+        assertEquals(100, original.size());
+        assertEquals(Integer.valueOf(0), original.get(0));
+        assertEquals(Integer.valueOf(99), original.get(99));
+
+        assertEquals(100, changed.size());
+        assertEquals(Integer.valueOf(1), changed.get(0));
+        assertEquals(Integer.valueOf(1000), changed.get(99));
+
+        Iterator<Integer> it = original.iterator(98);
+        assertEquals(Integer.valueOf(98), it.next());
+        assertEquals(Integer.valueOf(99), it.next());
+        assertFalse(it.hasNext());
+    }
+
+    private static final Comparator<Integer> NATURAL = new Comparator<Integer>()
+    {
+        public int compare(Integer i1, Integer i2)
+        {
+            return i1.compareTo(i2);
+        }
+    };
+}
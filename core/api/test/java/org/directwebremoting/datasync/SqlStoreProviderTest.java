@@ -0,0 +1,253 @@
+package org.directwebremoting.datasync;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.directwebremoting.io.Item;
+import org.directwebremoting.io.MatchedItems;
+import org.directwebremoting.io.QueryOptions;
+import org.directwebremoting.io.SortCriterion;
+import org.directwebremoting.io.StoreRegion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SqlStoreProviderTest
+{
+    @BeforeClass
+    public static void setUp() throws Exception
+    {
+        Class.forName("org.hsqldb.jdbcDriver");
+        Connection con = DriverManager.getConnection(URL, "sa", "");
+        Statement stmt = con.createStatement();
+        stmt.execute("CREATE TABLE person (id VARCHAR(10) PRIMARY KEY, name VARCHAR(20) NOT NULL, town VARCHAR(20))");
+        stmt.execute("CREATE INDEX person_name ON person (name)");
+        for (int i = 0; i < 500; i++)
+        {
+            stmt.execute("INSERT INTO person VALUES ('id" + (1000 + i) + "', 'name" + (i % 37) + "', 'town" + (i % 3) + "')");
+        }
+        stmt.execute("INSERT INTO person VALUES ('id_50%', 'odd_name%', 'town0')");
+        stmt.execute("INSERT INTO person VALUES ('id_comma', 'a, b', 'c')");
+        stmt.close();
+        con.close();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception
+    {
+        Connection con = DriverManager.getConnection(URL, "sa", "");
+        con.createStatement().execute("DROP TABLE person");
+        con.close();
+    }
+
+    @Test
+    public void testSequentialPagesSeek() throws Exception
+    {
+        RecordingDataSource recorder = new RecordingDataSource();
+        SqlStoreProvider provider = new SqlStoreProvider(recorder.getDataSource(), "SELECT id, name, town FROM person");
+        provider.setIndexedColumns(Arrays.asList("name"));
+
+        List<String> expected = queryIds("SELECT id FROM person ORDER BY name ASC, id ASC");
+        List<String> actual = new ArrayList<String>();
+        for (int start = 0; start < expected.size(); start += 50)
+        {
+            MatchedItems page = provider.viewRegion(region(start, 50, "name", null, false));
+            assertEquals(expected.size(), page.getTotalMatchCount());
+            for (Item item : page.getViewedMatches())
+            {
+                actual.add(item.getItemId());
+            }
+        }
+        assertEquals(expected, actual);
+
+        // Every page after the first should seek rather than skip rows
+        int seeks = 0;
+        for (String sql : recorder.statements)
+        {
+            if (sql.contains(" OR ("))
+            {
+                seeks++;
+            }
+        }
+        assertEquals(10, seeks);
+
+        // Jumping to a page part way through also works
+        List<Item> jump = provider.viewRegion(region(123, 7, "name", null, false)).getViewedMatches();
+        assertEquals(7, jump.size());
+        assertEquals(expected.get(123), jump.get(0).getItemId());
+        assertEquals(expected.get(129), jump.get(6).getItemId());
+    }
+
+    @Test
+    public void testUnindexedSortUsesOffset() throws Exception
+    {
+        RecordingDataSource recorder = new RecordingDataSource();
+        SqlStoreProvider provider = new SqlStoreProvider(recorder.getDataSource(), "SELECT id, name, town FROM person");
+
+        List<String> expected = queryIds("SELECT id FROM person ORDER BY town DESC, id ASC");
+        provider.viewRegion(region(0, 20, "town", null, true));
+        List<Item> page = provider.viewRegion(region(20, 20, "town", null, true)).getViewedMatches();
+        assertEquals(expected.get(20), page.get(0).getItemId());
+
+        for (String sql : recorder.statements)
+        {
+            assertFalse(sql.contains(" OR ("));
+        }
+    }
+
+    @Test
+    public void testFiltersAndCounts() throws Exception
+    {
+        RecordingDataSource recorder = new RecordingDataSource();
+        SqlStoreProvider provider = new SqlStoreProvider(recorder.getDataSource(), "SELECT id, name, town FROM person");
+
+        MatchedItems matches = provider.viewRegion(region(0, -1, "id", "NAME1?", false));
+        assertEquals(0, matches.getTotalMatchCount());
+
+        matches = provider.viewRegion(region(0, -1, "id", "NAME1?", true));
+        assertEquals(queryIds("SELECT id FROM person WHERE name LIKE 'name1_' ORDER BY id").size(), matches.getTotalMatchCount());
+        assertEquals(matches.getTotalMatchCount(), matches.getViewedMatches().size());
+
+        // Wildcards in the data are escaped
+        matches = provider.viewRegion(region(0, -1, "id", "odd%name*", false));
+        assertEquals(0, matches.getTotalMatchCount());
+        matches = provider.viewRegion(region(0, -1, "id", "odd?name?", false));
+        assertEquals(1, matches.getTotalMatchCount());
+        matches = provider.viewRegion(region(0, -1, "id", "odd_name%", false));
+        assertEquals(1, matches.getTotalMatchCount());
+        @SuppressWarnings("unchecked")
+        Map<String, String> row = (Map<String, String>) matches.getViewedMatches().get(0).getData();
+        assertEquals("town0", row.get("TOWN"));
+
+        // Counts are cached
+        int countQueries = recorder.count("COUNT(*)");
+        provider.viewRegion(region(0, 10, "id", "odd_name%", false));
+        assertEquals(countQueries, recorder.count("COUNT(*)"));
+
+        // Unknown columns are rejected rather than added to the SQL
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("name = name OR 1", "1");
+        matches = provider.viewRegion(new StoreRegion(0, -1, null, query, null));
+        assertEquals(0, matches.getTotalMatchCount());
+        for (String sql : recorder.statements)
+        {
+            assertFalse(sql.contains("OR 1"));
+        }
+
+        assertEquals("odd_name%", ((Map<?, ?>) provider.viewItem("id_50%").getData()).get("NAME"));
+    }
+
+    @Test
+    public void testFiltersWithSimilarValuesAreCachedSeparately() throws Exception
+    {
+        SqlStoreProvider provider = new SqlStoreProvider(new RecordingDataSource().getDataSource(), "SELECT id, name, town FROM person");
+
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("name", "a, b");
+        query.put("town", "c");
+        assertEquals(1, provider.viewRegion(new StoreRegion(0, -1, null, query, null)).getTotalMatchCount());
+
+        query.put("name", "a");
+        query.put("town", "b, c");
+        assertEquals(0, provider.viewRegion(new StoreRegion(0, -1, null, query, null)).getTotalMatchCount());
+    }
+
+    private static StoreRegion region(int start, int count, String sort, String name, boolean flag)
+    {
+        List<SortCriterion> criteria = new ArrayList<SortCriterion>();
+        criteria.add(new SortCriterion(sort, name == null && flag));
+
+        Map<String, String> query = new HashMap<String, String>();
+        if (name != null)
+        {
+            query.put("name", name);
+        }
+
+        return new StoreRegion(start, count, criteria, query, new QueryOptions(false, name != null && flag));
+    }
+
+    private static List<String> queryIds(String sql) throws Exception
+    {
+        Connection con = DriverManager.getConnection(URL, "sa", "");
+        ResultSet rs = con.createStatement().executeQuery(sql);
+        List<String> ids = new ArrayList<String>();
+        while (rs.next())
+        {
+            ids.add(rs.getString(1));
+        }
+        con.close();
+        return ids;
+    }
+
+    /**
+     * A DataSource that remembers the SQL that it is asked to prepare
+     */
+    private static class RecordingDataSource implements InvocationHandler
+    {
+        DataSource getDataSource()
+        {
+            return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { DataSource.class }, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (!method.getName().equals("getConnection"))
+            {
+                throw new UnsupportedOperationException(method.getName());
+            }
+
+            final Connection con = DriverManager.getConnection(URL, "sa", "");
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Connection.class }, new InvocationHandler()
+            {
+                public Object invoke(Object connectionProxy, Method connectionMethod, Object[] connectionArgs) throws Throwable
+                {
+                    if (connectionMethod.getName().equals("prepareStatement"))
+                    {
+                        statements.add((String) connectionArgs[0]);
+                    }
+
+                    try
+                    {
+                        return connectionMethod.invoke(con, connectionArgs);
+                    }
+                    catch (InvocationTargetException ex)
+                    {
+                        throw ex.getCause();
+                    }
+                }
+            });
+        }
+
+        int count(String fragment)
+        {
+            int count = 0;
+            for (String sql : statements)
+            {
+                if (sql.contains(fragment))
+                {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        final List<String> statements = new ArrayList<String>();
+    }
+
+    private static final String URL = "jdbc:hsqldb:mem:sqlstore";
+}
@@ -0,0 +1,78 @@
+package org.directwebremoting.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HitMonitorTest
+{
+    @Test
+    public void testWindowExpires()
+    {
+        ClockedHitMonitor monitor = new ClockedHitMonitor(3);
+        monitor.now = 1000;
+        monitor.recordHit();
+        monitor.recordHit();
+        assertEquals(2, monitor.getHitsInLastPeriod());
+
+        monitor.now = 1002;
+        monitor.recordHit();
+        assertEquals(3, monitor.getHitsInLastPeriod());
+
+        // The first 2 hits fall out of the window
+        monitor.now = 1003;
+        assertEquals(1, monitor.getHitsInLastPeriod());
+
+        // Slot for 1000 is reused, and the old hits must not come back
+        monitor.recordHit();
+        assertEquals(2, monitor.getHitsInLastPeriod());
+
+        monitor.now = 2000;
+        assertEquals(0, monitor.getHitsInLastPeriod());
+    }
+
+    @Test
+    public void testManyThreads() throws Exception
+    {
+        final HitMonitor monitor = new HitMonitor(60);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 10000; j++)
+                    {
+                        monitor.recordHit();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(80000, monitor.getHitsInLastPeriod());
+    }
+
+    private static class ClockedHitMonitor extends HitMonitor
+    {
+        ClockedHitMonitor(int seconds)
+        {
+            super(seconds);
+        }
+
+        @Override
+        long getCurrentTimestamp()
+        {
+            return now;
+        }
+
+        long now;
+    }
+}
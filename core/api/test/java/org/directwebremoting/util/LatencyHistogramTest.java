@@ -0,0 +1,77 @@
+package org.directwebremoting.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void testBuckets()
+    {
+        for (long value = 0; value < 100000; value++)
+        {
+            int bucket = LatencyHistogram.getBucket(value);
+            assertTrue(LatencyHistogram.getLowerBound(bucket) <= value);
+            assertTrue(LatencyHistogram.getLowerBound(bucket + 1) > value);
+        }
+
+        assertEquals(LatencyHistogram.getBucket(Long.MAX_VALUE), LatencyHistogram.getBucket(Long.MAX_VALUE - 1));
+        assertTrue(LatencyHistogram.getLowerBound(LatencyHistogram.getBucket(Long.MAX_VALUE)) > 0);
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.99));
+
+        for (int i = 1; i <= 1000; i++)
+        {
+            histogram.record(i * 1000);
+        }
+        histogram.record(-5);
+
+        assertEquals(1001, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.getPercentile(1.0));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void testManyThreads() throws Exception
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 10000; j++)
+                    {
+                        histogram.record(j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(80000, histogram.getCount());
+        assertEquals(9999, histogram.getMax());
+    }
+}
@@ -18,12 +18,14 @@ package org.directwebremoting.convert;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,6 +41,7 @@ import org.directwebremoting.extend.OutboundContext;
 import org.directwebremoting.extend.OutboundVariable;
 import org.directwebremoting.extend.Property;
 import org.directwebremoting.extend.ProtocolConstants;
+import org.directwebremoting.util.ClassMetadataCache;
 import org.directwebremoting.util.LocalUtil;
 import org.directwebremoting.util.Pair;
 
@@ -125,22 +128,27 @@ public abstract class BasicObjectConverter implements NamedConverter
         }
 
         // Find a constructor to match
-        List<Class<?>> parameterTypes = new ArrayList<Class<?>>();
-        for (Pair<Class<?>, String> parameter : parameters)
+        Constructor<?> constructor = constructorCache.get(type);
+        if (constructor == null)
         {
-            parameterTypes.add(parameter.left);
-        }
-        Class<?>[] paramTypeArray = parameterTypes.toArray(new Class<?>[parameterTypes.size()]);
+            List<Class<?>> parameterTypes = new ArrayList<Class<?>>();
+            for (Pair<Class<?>, String> parameter : parameters)
+            {
+                parameterTypes.add(parameter.left);
+            }
+            Class<?>[] paramTypeArray = parameterTypes.toArray(new Class<?>[parameterTypes.size()]);
 
-        Constructor<?> constructor;
-        try
-        {
-            constructor = type.getConstructor(paramTypeArray);
-        }
-        catch (NoSuchMethodException ex)
-        {
-            log.error("Can't find a constructor for " + type.getName() + " with params " + parameterTypes);
-            throw ex;
+            try
+            {
+                constructor = type.getConstructor(paramTypeArray);
+            }
+            catch (NoSuchMethodException ex)
+            {
+                log.error("Can't find a constructor for " + type.getName() + " with params " + parameterTypes);
+                throw ex;
+            }
+
+            constructorCache.put(type, constructor);
         }
 
         List<Object> arguments = new ArrayList<Object>();
@@ -315,6 +323,69 @@ public abstract class BasicObjectConverter implements NamedConverter
         return ov;
     }
 
+    /**
+     * Find the properties of a class using the map we created last time if
+     * there is one. Subclasses that implement
+     * {@link #getPropertyMapFromClass(Class, boolean, boolean)} should call
+     * this rather than introspecting every time.
+     * <p>The returned map is shared, so it can not be altered.
+     * @param type The class to find the properties of
+     * @param readRequired Do the properties need to be readable?
+     * @param writeRequired Do the properties need to be writable?
+     * @return An unmodifiable map of the properties of type
+     * @throws ConversionException If {@link #createPropertyMap} fails
+     */
+    protected Map<String, Property> getCachedPropertyMap(Class<?> type, boolean readRequired, boolean writeRequired) throws ConversionException
+    {
+        AtomicReferenceArray<Map<String, Property>> maps = propertyMapCache.get(type);
+        if (maps == null)
+        {
+            // If 2 threads get here at once one set of maps will be thrown
+            // away, which just means we introspect one more time
+            maps = new AtomicReferenceArray<Map<String, Property>>(4);
+            propertyMapCache.put(type, maps);
+        }
+
+        int index = (readRequired ? 1 : 0) + (writeRequired ? 2 : 0);
+        Map<String, Property> properties = maps.get(index);
+        if (properties == null)
+        {
+            properties = Collections.unmodifiableMap(createPropertyMap(type, readRequired, writeRequired));
+            maps.set(index, properties);
+        }
+
+        return properties;
+    }
+
+    /**
+     * Work out the properties of a class from scratch. This is only called
+     * when {@link #getCachedPropertyMap(Class, boolean, boolean)} does not
+     * have an answer already, and the answer must only depend on the
+     * parameters and the configuration of this converter.
+     * <p>The default asks {@link #getPropertyMapFromClass(Class, boolean, boolean)}
+     * so converters written before the cache existed carry on working.
+     * Subclasses that use {@link #getCachedPropertyMap(Class, boolean, boolean)}
+     * from getPropertyMapFromClass must override this method.
+     * @param type The class to find the properties of
+     * @param readRequired Do the properties need to be readable?
+     * @param writeRequired Do the properties need to be writable?
+     * @return A map of property names to properties
+     * @throws ConversionException If the class can't be introspected
+     */
+    protected Map<String, Property> createPropertyMap(Class<?> type, boolean readRequired, boolean writeRequired) throws ConversionException
+    {
+        return getPropertyMapFromClass(type, readRequired, writeRequired);
+    }
+
+    /**
+     * Called whenever the configuration changes in a way that could alter the
+     * results of {@link #createPropertyMap(Class, boolean, boolean)}
+     */
+    protected void clearPropertyMapCache()
+    {
+        propertyMapCache.clear();
+    }
+
     /**
      * Set a list of properties excluded from conversion
      * @param excludes The space or comma separated list of properties to exclude
@@ -340,6 +411,8 @@ public abstract class BasicObjectConverter implements NamedConverter
 
             exclusions.add(rule);
         }
+
+        clearPropertyMapCache();
     }
 
     /**
@@ -367,6 +440,8 @@ public abstract class BasicObjectConverter implements NamedConverter
 
             inclusions.add(rule);
         }
+
+        clearPropertyMapCache();
     }
 
     /**
@@ -550,6 +625,7 @@ public abstract class BasicObjectConverter implements NamedConverter
     public void setConstructor(String paramsString)
     {
         this.paramsString = paramsString;
+        constructorCache.clear();
 
         // Convert a paramString into a list of parameters
         StringTokenizer st = new StringTokenizer(paramsString, ",");
@@ -604,9 +680,16 @@ public abstract class BasicObjectConverter implements NamedConverter
     protected String paramsString;
 
     /**
-     * The constructor to use if we are doing constructor injection
+     * The constructor to use for each type if we are doing constructor
+     * injection
+     */
+    protected final ClassMetadataCache<Constructor<?>> constructorCache = new ClassMetadataCache<Constructor<?>>();
+
+    /**
+     * The property maps that we have already worked out. For each class there
+     * are 4 slots, one for each combination of readRequired and writeRequired
      */
-    protected Map<Class<?>, Constructor<?>> constructorCache = new HashMap<Class<?>, Constructor<?>>();
+    private final ClassMetadataCache<AtomicReferenceArray<Map<String, Property>>> propertyMapCache = new ClassMetadataCache<AtomicReferenceArray<Map<String, Property>>>();
 
     /**
      * If we are doing constructor injection, this is the type list
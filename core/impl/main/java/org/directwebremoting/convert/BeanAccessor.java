@@ -0,0 +1,44 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.convert;
+
+/**
+ * The superclass of the accessors created by {@link BeanAccessorGenerator}.
+ * Each subclass reads and writes the properties of a single bean class using
+ * direct method calls rather than reflection. Properties are identified by
+ * an index that is fixed when the accessor is generated.
+ * <p>This class is public only so that generated classes, which live in a
+ * ClassLoader of their own, can extend it.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public abstract class BeanAccessor
+{
+    /**
+     * Call the getter for a property
+     * @param bean The object to read from
+     * @param index The index of the property
+     * @return The value returned by the getter, boxed if needed
+     */
+    public abstract Object getValue(Object bean, int index);
+
+    /**
+     * Call the setter for a property
+     * @param bean The object to alter
+     * @param index The index of the property
+     * @param value The new value, which will be unboxed if needed
+     */
+    public abstract void setValue(Object bean, int index, Object value);
+}
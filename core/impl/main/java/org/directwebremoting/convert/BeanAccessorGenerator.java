@@ -0,0 +1,416 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.convert;
+
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.directwebremoting.extend.Property;
+import org.directwebremoting.util.ClassMetadataCache;
+import org.directwebremoting.util.LocalUtil;
+
+/**
+ * Creates {@link BeanAccessor}s that call the getters and setters of a bean
+ * class directly, so the converters don't need to use reflection for every
+ * property of every bean.
+ * <p>An accessor class is generated (see {@link ClassFileWriter}) the first time we see a bean
+ * class, and defined in a ClassLoader of its own whose parent is the
+ * ClassLoader of the bean, so it goes away when the bean class does. Only
+ * public classes and methods can be called this way, anything else, or any
+ * failure to generate an accessor, leaves the caller to use reflection.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class BeanAccessorGenerator
+{
+    /**
+     * Create a {@link Property} for a bean property that uses a generated
+     * accessor if it can.
+     * @param type The bean class
+     * @param descriptor The description of the bean property
+     * @return A {@link GeneratedAccessorProperty} or null if neither the getter
+     * nor the setter can be called directly
+     */
+    public static Property createProperty(Class<?> type, PropertyDescriptor descriptor)
+    {
+        ClassAccessors accessors = getAccessors(type);
+        if (accessors == null)
+        {
+            return null;
+        }
+
+        String name = descriptor.getName();
+        Integer getterIndex = accessors.getters.get(name);
+        Integer setterIndex = accessors.setters.get(name);
+        if (getterIndex == null && setterIndex == null)
+        {
+            return null;
+        }
+
+        return new GeneratedAccessorProperty(descriptor, accessors.accessor,
+            getterIndex == null ? -1 : getterIndex.intValue(),
+            setterIndex == null ? -1 : setterIndex.intValue());
+    }
+
+    /**
+     * Find or create the accessors for a bean class
+     * @param type The bean class
+     * @return The accessors or null if we can't generate them
+     */
+    private static ClassAccessors getAccessors(Class<?> type)
+    {
+        ClassAccessors accessors = cache.get(type);
+        if (accessors == null)
+        {
+            // If 2 threads get here at once we generate twice, which is
+            // wasteful but harmless
+            accessors = generate(type);
+            cache.put(type, accessors);
+        }
+
+        return accessors.accessor == null ? null : accessors;
+    }
+
+    /**
+     * Introspect a bean class and generate an accessor for it
+     * @param type The bean class
+     * @return The accessors, with a null accessor if we failed
+     */
+    private static ClassAccessors generate(Class<?> type)
+    {
+        if (type.isArray() || type.isPrimitive() || !Modifier.isPublic(type.getModifiers()))
+        {
+            return NO_ACCESSORS;
+        }
+
+        try
+        {
+            PropertyDescriptor[] descriptors = Introspector.getBeanInfo(type).getPropertyDescriptors();
+            if (!ClassMetadataCache.isCacheSafe(type))
+            {
+                Introspector.flushFromCaches(type);
+            }
+
+            Map<String, Integer> getters = new HashMap<String, Integer>();
+            Map<String, Integer> setters = new HashMap<String, Integer>();
+            List<Method> readMethods = new ArrayList<Method>();
+            List<Method> writeMethods = new ArrayList<Method>();
+
+            for (PropertyDescriptor descriptor : descriptors)
+            {
+                String name = descriptor.getName();
+
+                Method getter = descriptor.getReadMethod();
+                if (isCallable(getter, 0))
+                {
+                    getters.put(name, readMethods.size());
+                    readMethods.add(getter);
+                }
+
+                Method setter = LocalUtil.getWriteMethod(type, descriptor);
+                if (isCallable(setter, 1) && isVisible(setter.getParameterTypes()[0]))
+                {
+                    setters.put(name, writeMethods.size());
+                    writeMethods.add(setter);
+                }
+            }
+
+            if (readMethods.isEmpty() && writeMethods.isEmpty())
+            {
+                return NO_ACCESSORS;
+            }
+
+            String className = GENERATED_PACKAGE + type.getName().replace('.', '_').replace('$', '_');
+            byte[] bytes = generateClass(className, type, readMethods, writeMethods);
+            AccessorClassLoader loader = new AccessorClassLoader(type.getClassLoader());
+            Class<?> generated = loader.define(className, bytes);
+            BeanAccessor accessor = (BeanAccessor) generated.newInstance();
+
+            return new ClassAccessors(accessor, getters, setters);
+        }
+        catch (Throwable ex)
+        {
+            log.warn("Failed to generate accessors for " + type.getName() + ", using reflection instead.", ex);
+            return NO_ACCESSORS;
+        }
+    }
+
+    /**
+     * Create the bytecode for a subclass of {@link BeanAccessor} that calls
+     * the given methods.
+     */
+    private static byte[] generateClass(String className, Class<?> type, List<Method> readMethods, List<Method> writeMethods)
+    {
+        String internalName = className.replace('.', '/');
+        String superName = ClassFileWriter.getInternalName(BeanAccessor.class);
+        String owner = ClassFileWriter.getInternalName(type);
+
+        ClassFileWriter writer = new ClassFileWriter(internalName, superName);
+
+        ClassFileWriter.Code init = writer.addMethod("<init>", "()V", 1, 1);
+        init.varInsn(ClassFileWriter.ALOAD, 0);
+        init.methodInsn(ClassFileWriter.INVOKESPECIAL, superName, "<init>", "()V", 0);
+        init.insn(ClassFileWriter.RETURN);
+
+        // public Object getValue(Object bean, int index)
+        // The stack peaks at 2 when a getter returns a long or double
+        ClassFileWriter.Code get = writer.addMethod("getValue", "(Ljava/lang/Object;I)Ljava/lang/Object;", 2, 3);
+        startSwitch(get, readMethods.size());
+        for (int i = 0; i < readMethods.size(); i++)
+        {
+            Method getter = readMethods.get(i);
+            get.markCase(i);
+            get.varInsn(ClassFileWriter.ALOAD, 1);
+            get.typeInsn(ClassFileWriter.CHECKCAST, owner);
+            invoke(get, type, owner, getter);
+            box(get, getter.getReturnType());
+            get.insn(ClassFileWriter.ARETURN);
+        }
+        endSwitch(get);
+
+        // public void setValue(Object bean, int index, Object value)
+        // The stack peaks at 3 with the bean and an unboxed long or double
+        ClassFileWriter.Code set = writer.addMethod("setValue", "(Ljava/lang/Object;ILjava/lang/Object;)V", 3, 4);
+        startSwitch(set, writeMethods.size());
+        for (int i = 0; i < writeMethods.size(); i++)
+        {
+            Method setter = writeMethods.get(i);
+            set.markCase(i);
+            set.varInsn(ClassFileWriter.ALOAD, 1);
+            set.typeInsn(ClassFileWriter.CHECKCAST, owner);
+            set.varInsn(ClassFileWriter.ALOAD, 3);
+            unbox(set, setter.getParameterTypes()[0]);
+            invoke(set, type, owner, setter);
+
+            // Some setters return this or something else we don't want
+            Class<?> returnType = setter.getReturnType();
+            if (returnType == Long.TYPE || returnType == Double.TYPE)
+            {
+                set.insn(ClassFileWriter.POP2);
+            }
+            else if (returnType != Void.TYPE)
+            {
+                set.insn(ClassFileWriter.POP);
+            }
+
+            set.insn(ClassFileWriter.RETURN);
+        }
+        endSwitch(set);
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Start a switch on the index parameter, with one case for each method.
+     */
+    private static void startSwitch(ClassFileWriter.Code code, int cases)
+    {
+        if (cases > 0)
+        {
+            code.varInsn(ClassFileWriter.ILOAD, 2);
+            code.tableSwitch(cases);
+        }
+    }
+
+    /**
+     * The default case of a switch: throw an IllegalArgumentException
+     */
+    private static void endSwitch(ClassFileWriter.Code code)
+    {
+        code.markCase(-1);
+        code.typeInsn(ClassFileWriter.NEW, "java/lang/IllegalArgumentException");
+        code.insn(ClassFileWriter.DUP);
+        code.methodInsn(ClassFileWriter.INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "()V", 0);
+        code.insn(ClassFileWriter.ATHROW);
+    }
+
+    /**
+     * Call a method on the bean that is on the top of the stack
+     */
+    private static void invoke(ClassFileWriter.Code code, Class<?> type, String owner, Method method)
+    {
+        int opcode = type.isInterface() ? ClassFileWriter.INVOKEINTERFACE : ClassFileWriter.INVOKEVIRTUAL;
+        int argumentSlots = 0;
+        for (Class<?> param : method.getParameterTypes())
+        {
+            argumentSlots += (param == Long.TYPE || param == Double.TYPE) ? 2 : 1;
+        }
+
+        code.methodInsn(opcode, owner, method.getName(), ClassFileWriter.getMethodDescriptor(method), argumentSlots);
+    }
+
+    /**
+     * Convert a primitive on the top of the stack into its wrapper
+     */
+    private static void box(ClassFileWriter.Code code, Class<?> primitive)
+    {
+        Class<?> wrapper = WRAPPERS.get(primitive);
+        if (wrapper != null)
+        {
+            String wrapperName = ClassFileWriter.getInternalName(wrapper);
+            code.methodInsn(ClassFileWriter.INVOKESTATIC, wrapperName, "valueOf", "(" + ClassFileWriter.getDescriptor(primitive) + ")L" + wrapperName + ";", 0);
+        }
+    }
+
+    /**
+     * Cast the Object on the top of the stack to the given type, unwrapping it
+     * if the type is primitive.
+     */
+    private static void unbox(ClassFileWriter.Code code, Class<?> target)
+    {
+        Class<?> wrapper = WRAPPERS.get(target);
+        if (wrapper != null)
+        {
+            String wrapperName = ClassFileWriter.getInternalName(wrapper);
+            code.typeInsn(ClassFileWriter.CHECKCAST, wrapperName);
+            code.methodInsn(ClassFileWriter.INVOKEVIRTUAL, wrapperName, target.getName() + "Value", "()" + ClassFileWriter.getDescriptor(target), 0);
+        }
+        else if (target != Object.class)
+        {
+            code.typeInsn(ClassFileWriter.CHECKCAST, ClassFileWriter.getInternalName(target));
+        }
+    }
+
+    /**
+     * Can a generated class call this method?
+     */
+    private static boolean isCallable(Method method, int parameterCount)
+    {
+        if (method == null)
+        {
+            return false;
+        }
+
+        int modifiers = method.getModifiers();
+        return Modifier.isPublic(modifiers) && !Modifier.isStatic(modifiers) && method.getParameterTypes().length == parameterCount;
+    }
+
+    /**
+     * Can a generated class cast to this type?
+     */
+    private static boolean isVisible(Class<?> type)
+    {
+        while (type.isArray())
+        {
+            type = type.getComponentType();
+        }
+
+        return type.isPrimitive() || Modifier.isPublic(type.getModifiers());
+    }
+
+    /**
+     * What we know about a bean class
+     */
+    private static class ClassAccessors
+    {
+        ClassAccessors(BeanAccessor accessor, Map<String, Integer> getters, Map<String, Integer> setters)
+        {
+            this.accessor = accessor;
+            this.getters = getters;
+            this.setters = setters;
+        }
+
+        /**
+         * The generated accessor or null if we couldn't create one
+         */
+        final BeanAccessor accessor;
+
+        /**
+         * The index in the accessor of the getter for each property
+         */
+        final Map<String, Integer> getters;
+
+        /**
+         * The index in the accessor of the setter for each property
+         */
+        final Map<String, Integer> setters;
+    }
+
+    /**
+     * A ClassLoader for a single generated accessor. The accessor needs to see
+     * both the bean class and {@link BeanAccessor}, which could be in
+     * unrelated ClassLoaders.
+     */
+    private static class AccessorClassLoader extends ClassLoader
+    {
+        AccessorClassLoader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.ClassLoader#loadClass(java.lang.String, boolean)
+         */
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+        {
+            if (name.equals(BeanAccessor.class.getName()))
+            {
+                return BeanAccessor.class;
+            }
+
+            return super.loadClass(name, resolve);
+        }
+
+        Class<?> define(String name, byte[] bytes)
+        {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * The package that generated classes are put in
+     */
+    private static final String GENERATED_PACKAGE = "org.directwebremoting.convert.generated.";
+
+    /**
+     * Used for classes we can't generate an accessor for
+     */
+    private static final ClassAccessors NO_ACCESSORS = new ClassAccessors(null, null, null);
+
+    /**
+     * The wrapper type for each primitive type
+     */
+    private static final Map<Class<?>, Class<?>> WRAPPERS = new HashMap<Class<?>, Class<?>>();
+    static
+    {
+        WRAPPERS.put(Boolean.TYPE, Boolean.class);
+        WRAPPERS.put(Character.TYPE, Character.class);
+        WRAPPERS.put(Byte.TYPE, Byte.class);
+        WRAPPERS.put(Short.TYPE, Short.class);
+        WRAPPERS.put(Integer.TYPE, Integer.class);
+        WRAPPERS.put(Long.TYPE, Long.class);
+        WRAPPERS.put(Float.TYPE, Float.class);
+        WRAPPERS.put(Double.TYPE, Double.class);
+    }
+
+    /**
+     * The accessors that we have already generated
+     */
+    private static final ClassMetadataCache<ClassAccessors> cache = new ClassMetadataCache<ClassAccessors>();
+
+    /**
+     * The log stream
+     */
+    private static final Log log = LogFactory.getLog(BeanAccessorGenerator.class);
+}
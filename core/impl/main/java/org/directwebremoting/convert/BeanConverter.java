@@ -26,6 +26,7 @@ import org.directwebremoting.ConversionException;
 import org.directwebremoting.extend.InboundContext;
 import org.directwebremoting.extend.Property;
 import org.directwebremoting.extend.PropertyDescriptorProperty;
+import org.directwebremoting.util.ClassMetadataCache;
 import org.directwebremoting.util.LocalUtil;
 
 /**
@@ -46,12 +47,28 @@ public class BeanConverter extends BasicObjectConverter
      * @see org.directwebremoting.extend.NamedConverter#getPropertyMap(java.lang.Class, boolean, boolean)
      */
     public Map<String, Property> getPropertyMapFromClass(Class<?> type, boolean readRequired, boolean writeRequired) throws ConversionException
+    {
+        return getCachedPropertyMap(type, readRequired, writeRequired);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.convert.BasicObjectConverter#createPropertyMap(java.lang.Class, boolean, boolean)
+     */
+    @Override
+    protected Map<String, Property> createPropertyMap(Class<?> type, boolean readRequired, boolean writeRequired) throws ConversionException
     {
         try
         {
             BeanInfo info = Introspector.getBeanInfo(type);
             PropertyDescriptor[] descriptors = info.getPropertyDescriptors();
 
+            // The Introspector keeps its own cache, which would stop classes
+            // from other web applications from being unloaded
+            if (!ClassMetadataCache.isCacheSafe(type))
+            {
+                Introspector.flushFromCaches(type);
+            }
+
             Map<String, Property> properties = new HashMap<String, Property>();
             for (PropertyDescriptor descriptor : descriptors)
             {
@@ -79,7 +96,7 @@ public class BeanConverter extends BasicObjectConverter
                     continue;
                 }
 
-                properties.put(name, new PropertyDescriptorProperty(descriptor));
+                properties.put(name, createProperty(type, descriptor));
             }
 
             return properties;
@@ -90,6 +107,37 @@ public class BeanConverter extends BasicObjectConverter
         }
     }
 
+    /**
+     * Create a {@link Property} to access a bean property
+     * @param type The bean class
+     * @param descriptor The description of the bean property
+     * @return A new Property
+     */
+    protected Property createProperty(Class<?> type, PropertyDescriptor descriptor)
+    {
+        if (generateAccessors)
+        {
+            Property property = BeanAccessorGenerator.createProperty(type, descriptor);
+            if (property != null)
+            {
+                return property;
+            }
+        }
+
+        return new PropertyDescriptorProperty(descriptor);
+    }
+
+    /**
+     * Should we generate classes to call getters and setters rather than
+     * using reflection?
+     * @param generateAccessors true to use generated accessors
+     */
+    public void setGenerateAccessors(boolean generateAccessors)
+    {
+        this.generateAccessors = generateAccessors;
+        clearPropertyMapCache();
+    }
+
     /* (non-Javadoc)
      * @see org.directwebremoting.convert.BasicObjectConverter#createTypeHintContext(org.directwebremoting.extend.InboundContext, org.directwebremoting.extend.Property)
      */
@@ -98,4 +146,9 @@ public class BeanConverter extends BasicObjectConverter
     {
         return property;
     }
+
+    /**
+     * Do we use generated accessors rather than reflection?
+     */
+    private boolean generateAccessors = false;
 }
@@ -0,0 +1,520 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.convert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer to create the accessors made by
+ * {@link BeanAccessorGenerator}, so DWR doesn't need a bytecode library.
+ * <p>Classes are written in the Java 1.4 format, so the verifier infers the
+ * types on the stack itself and we don't need to write stack maps. Each
+ * method has a single code attribute with no exception table, and at most
+ * one tableswitch.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+class ClassFileWriter
+{
+    /**
+     * @param className The internal (slash separated) name of the new class
+     * @param superName The internal name of the super class
+     */
+    ClassFileWriter(String className, String superName)
+    {
+        thisClass = classRef(className);
+        superClass = classRef(superName);
+    }
+
+    /**
+     * Add a public method to the class
+     * @param name The method name
+     * @param descriptor The method descriptor
+     * @param maxStack The deepest the operand stack gets
+     * @param maxLocals The number of local variable slots including this
+     * @return The code of the method for the caller to fill in
+     */
+    Code addMethod(String name, String descriptor, int maxStack, int maxLocals)
+    {
+        Code code = new Code(utf8(name), utf8(descriptor), maxStack, maxLocals);
+        methods.add(code);
+        return code;
+    }
+
+    /**
+     * Write the class file
+     * @return The bytes to pass to ClassLoader.defineClass()
+     */
+    byte[] toByteArray()
+    {
+        int codeAttribute = utf8("Code");
+
+        try
+        {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION_1_4);
+
+            out.writeShort(constantCount);
+            out.write(constants.toByteArray());
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+
+            out.writeShort(methods.size());
+            for (Code code : methods)
+            {
+                out.writeShort(ACC_PUBLIC);
+                out.writeShort(code.name);
+                out.writeShort(code.descriptor);
+                out.writeShort(1);
+
+                out.writeShort(codeAttribute);
+                out.writeInt(12 + code.length);
+                out.writeShort(code.maxStack);
+                out.writeShort(code.maxLocals);
+                out.writeInt(code.length);
+                out.write(code.bytes, 0, code.length);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+            }
+
+            out.writeShort(0); // attributes
+            out.flush();
+
+            return buffer.toByteArray();
+        }
+        catch (IOException ex)
+        {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(ex.toString());
+        }
+    }
+
+    /**
+     * The internal name of a class, as used by the class instructions
+     */
+    static String getInternalName(Class<?> type)
+    {
+        if (type.isArray())
+        {
+            return getDescriptor(type);
+        }
+
+        return type.getName().replace('.', '/');
+    }
+
+    /**
+     * The type descriptor of a class, as used in method descriptors
+     */
+    static String getDescriptor(Class<?> type)
+    {
+        if (type.isArray())
+        {
+            return "[" + getDescriptor(type.getComponentType());
+        }
+
+        if (type.isPrimitive())
+        {
+            return PRIMITIVE_DESCRIPTORS.get(type);
+        }
+
+        return "L" + type.getName().replace('.', '/') + ";";
+    }
+
+    /**
+     * The descriptor of a method
+     */
+    static String getMethodDescriptor(Method method)
+    {
+        StringBuilder buffer = new StringBuilder("(");
+        for (Class<?> param : method.getParameterTypes())
+        {
+            buffer.append(getDescriptor(param));
+        }
+        buffer.append(')');
+        buffer.append(getDescriptor(method.getReturnType()));
+
+        return buffer.toString();
+    }
+
+    /**
+     * Find or add a CONSTANT_Utf8 entry
+     */
+    private int utf8(String value)
+    {
+        String key = "U" + value;
+        Integer index = constantIndexes.get(key);
+        if (index != null)
+        {
+            return index.intValue();
+        }
+
+        try
+        {
+            constantsOut.writeByte(CONSTANT_UTF8);
+            constantsOut.writeUTF(value);
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException(ex.toString());
+        }
+
+        return addConstant(key);
+    }
+
+    /**
+     * Find or add a CONSTANT_Class entry
+     */
+    private int classRef(String internalName)
+    {
+        String key = "C" + internalName;
+        Integer index = constantIndexes.get(key);
+        if (index != null)
+        {
+            return index.intValue();
+        }
+
+        int name = utf8(internalName);
+        writeConstant(CONSTANT_CLASS, name, -1);
+        return addConstant(key);
+    }
+
+    /**
+     * Find or add a CONSTANT_Methodref or CONSTANT_InterfaceMethodref entry
+     */
+    private int methodRef(String owner, String name, String descriptor, boolean isInterface)
+    {
+        String key = (isInterface ? "I" : "M") + owner + '.' + name + descriptor;
+        Integer index = constantIndexes.get(key);
+        if (index != null)
+        {
+            return index.intValue();
+        }
+
+        int ownerIndex = classRef(owner);
+
+        String nameAndTypeKey = "N" + name + descriptor;
+        Integer nameAndType = constantIndexes.get(nameAndTypeKey);
+        if (nameAndType == null)
+        {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            writeConstant(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+            nameAndType = addConstant(nameAndTypeKey);
+        }
+
+        writeConstant(isInterface ? CONSTANT_INTERFACE_METHODREF : CONSTANT_METHODREF, ownerIndex, nameAndType.intValue());
+        return addConstant(key);
+    }
+
+    /**
+     * Write a constant made of a tag and one or two indexes
+     */
+    private void writeConstant(int tag, int first, int second)
+    {
+        try
+        {
+            constantsOut.writeByte(tag);
+            constantsOut.writeShort(first);
+            if (second != -1)
+            {
+                constantsOut.writeShort(second);
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException(ex.toString());
+        }
+    }
+
+    /**
+     * Record the index of the constant we just wrote
+     */
+    private int addConstant(String key)
+    {
+        int index = constantCount++;
+        constantIndexes.put(key, index);
+        return index;
+    }
+
+    /**
+     * The bytecode of a single method
+     */
+    class Code
+    {
+        Code(int name, int descriptor, int maxStack, int maxLocals)
+        {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        /**
+         * An instruction with no operands
+         */
+        void insn(int opcode)
+        {
+            putByte(opcode);
+        }
+
+        /**
+         * Load a local variable using the short form of ALOAD or ILOAD
+         * @param opcode ALOAD or ILOAD
+         * @param slot A local variable slot between 0 and 3
+         */
+        void varInsn(int opcode, int slot)
+        {
+            putByte((opcode == ILOAD ? ILOAD_0 : ALOAD_0) + slot);
+        }
+
+        /**
+         * NEW or CHECKCAST
+         */
+        void typeInsn(int opcode, String internalName)
+        {
+            putByte(opcode);
+            putShort(classRef(internalName));
+        }
+
+        /**
+         * INVOKEVIRTUAL, INVOKESPECIAL, INVOKESTATIC or INVOKEINTERFACE
+         * @param argumentSlots The stack size of the arguments, needed only
+         * by INVOKEINTERFACE
+         */
+        void methodInsn(int opcode, String owner, String methodName, String methodDescriptor, int argumentSlots)
+        {
+            boolean isInterface = opcode == INVOKEINTERFACE;
+            putByte(opcode);
+            putShort(methodRef(owner, methodName, methodDescriptor, isInterface));
+            if (isInterface)
+            {
+                putByte(argumentSlots + 1);
+                putByte(0);
+            }
+        }
+
+        /**
+         * Switch on the int on the top of the stack, with cases numbered from
+         * 0 to cases - 1. The targets are filled in by {@link #markCase(int)}
+         */
+        void tableSwitch(int cases)
+        {
+            switchStart = length;
+            putByte(TABLESWITCH);
+            while (length % 4 != 0)
+            {
+                putByte(0);
+            }
+
+            switchTable = length;
+            putInt(0);
+            putInt(0);
+            putInt(cases - 1);
+            for (int i = 0; i < cases; i++)
+            {
+                putInt(0);
+            }
+        }
+
+        /**
+         * Make the next instruction the target of a switch case
+         * @param index The case number, or -1 for the default case
+         */
+        void markCase(int index)
+        {
+            if (switchStart == -1)
+            {
+                // There is no switch, so the code just falls through
+                return;
+            }
+
+            int slot = index == -1 ? switchTable : switchTable + 12 + (index * 4);
+            int offset = length - switchStart;
+            bytes[slot] = (byte) (offset >>> 24);
+            bytes[slot + 1] = (byte) (offset >>> 16);
+            bytes[slot + 2] = (byte) (offset >>> 8);
+            bytes[slot + 3] = (byte) offset;
+        }
+
+        private void putByte(int value)
+        {
+            if (length == bytes.length)
+            {
+                byte[] larger = new byte[bytes.length * 2];
+                System.arraycopy(bytes, 0, larger, 0, length);
+                bytes = larger;
+            }
+
+            bytes[length++] = (byte) value;
+        }
+
+        private void putShort(int value)
+        {
+            putByte(value >>> 8);
+            putByte(value);
+        }
+
+        private void putInt(int value)
+        {
+            putShort(value >>> 16);
+            putShort(value);
+        }
+
+        /**
+         * The constant pool index of the method name
+         */
+        private final int name;
+
+        /**
+         * The constant pool index of the method descriptor
+         */
+        private final int descriptor;
+
+        /**
+         * The deepest the operand stack gets
+         */
+        private final int maxStack;
+
+        /**
+         * The number of local variable slots
+         */
+        private final int maxLocals;
+
+        /**
+         * The bytecode so far
+         */
+        private byte[] bytes = new byte[64];
+
+        /**
+         * How much of {@link #bytes} is used
+         */
+        private int length = 0;
+
+        /**
+         * The offset of the TABLESWITCH opcode
+         */
+        private int switchStart = -1;
+
+        /**
+         * The offset of the default target of the switch
+         */
+        private int switchTable = -1;
+    }
+
+    // The opcodes that BeanAccessorGenerator uses
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int TABLESWITCH = 0xAA;
+    static final int ARETURN = 0xB0;
+    static final int RETURN = 0xB1;
+    static final int INVOKEVIRTUAL = 0xB6;
+    static final int INVOKESPECIAL = 0xB7;
+    static final int INVOKESTATIC = 0xB8;
+    static final int INVOKEINTERFACE = 0xB9;
+    static final int NEW = 0xBB;
+    static final int ATHROW = 0xBF;
+    static final int CHECKCAST = 0xC0;
+
+    // The short forms of ILOAD and ALOAD for slot 0
+    private static final int ILOAD_0 = 0x1A;
+    private static final int ALOAD_0 = 0x2A;
+
+    /**
+     * The class file version of Java 1.4, the last that doesn't need stack maps
+     */
+    private static final int VERSION_1_4 = 48;
+
+    // Access flags
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    // Constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    /**
+     * The descriptor of each primitive type
+     */
+    private static final Map<Class<?>, String> PRIMITIVE_DESCRIPTORS = new HashMap<Class<?>, String>();
+    static
+    {
+        PRIMITIVE_DESCRIPTORS.put(Void.TYPE, "V");
+        PRIMITIVE_DESCRIPTORS.put(Boolean.TYPE, "Z");
+        PRIMITIVE_DESCRIPTORS.put(Character.TYPE, "C");
+        PRIMITIVE_DESCRIPTORS.put(Byte.TYPE, "B");
+        PRIMITIVE_DESCRIPTORS.put(Short.TYPE, "S");
+        PRIMITIVE_DESCRIPTORS.put(Integer.TYPE, "I");
+        PRIMITIVE_DESCRIPTORS.put(Long.TYPE, "J");
+        PRIMITIVE_DESCRIPTORS.put(Float.TYPE, "F");
+        PRIMITIVE_DESCRIPTORS.put(Double.TYPE, "D");
+    }
+
+    /**
+     * The constant pool, written as we go
+     */
+    private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+
+    /**
+     * A stream onto {@link #constants}
+     */
+    private final DataOutputStream constantsOut = new DataOutputStream(constants);
+
+    /**
+     * The index of each constant we have written, keyed by its type and value
+     */
+    private final Map<String, Integer> constantIndexes = new HashMap<String, Integer>();
+
+    /**
+     * The number of constants plus one, because the pool starts at 1
+     */
+    private int constantCount = 1;
+
+    /**
+     * The index of this class in the constant pool
+     */
+    private final int thisClass;
+
+    /**
+     * The index of the super class in the constant pool
+     */
+    private final int superClass;
+
+    /**
+     * The methods of the class
+     */
+    private final List<Code> methods = new ArrayList<Code>();
+}
@@ -31,12 +31,12 @@ import org.directwebremoting.extend.PropertyDescriptorProperty;
 public class ExceptionConverter extends BeanConverter
 {
     /* (non-Javadoc)
-     * @see org.directwebremoting.convert.BasicBeanConverter#getPropertyDescriptors(java.lang.Class, boolean, boolean)
+     * @see org.directwebremoting.convert.BeanConverter#createPropertyMap(java.lang.Class, boolean, boolean)
      */
     @Override
-    public Map<String, Property> getPropertyMapFromClass(Class<?> type, boolean readRequired, boolean writeRequired) throws ConversionException
+    protected Map<String, Property> createPropertyMap(Class<?> type, boolean readRequired, boolean writeRequired) throws ConversionException
     {
-        Map<String, Property> descriptors = super.getPropertyMapFromClass(type, readRequired, writeRequired);
+        Map<String, Property> descriptors = super.createPropertyMap(type, readRequired, writeRequired);
         descriptors.put("javaClassName", new PlainProperty("javaClassName", type.getName()));
 
         // Make sure Throwable's standard properties are added
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.convert;
+
+import java.beans.PropertyDescriptor;
+
+import org.directwebremoting.ConversionException;
+import org.directwebremoting.extend.PropertyDescriptorProperty;
+
+/**
+ * A {@link PropertyDescriptorProperty} that reads and writes using a
+ * generated {@link BeanAccessor} rather than reflection. If either the
+ * getter or setter could not be generated we fall back to reflection for it.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class GeneratedAccessorProperty extends PropertyDescriptorProperty
+{
+    /**
+     * @param descriptor The PropertyDescriptor that we are proxying to
+     * @param accessor The generated accessor for the bean class
+     * @param getterIndex The index of the getter in the accessor or -1
+     * @param setterIndex The index of the setter in the accessor or -1
+     */
+    public GeneratedAccessorProperty(PropertyDescriptor descriptor, BeanAccessor accessor, int getterIndex, int setterIndex)
+    {
+        super(descriptor);
+        this.accessor = accessor;
+        this.getterIndex = getterIndex;
+        this.setterIndex = setterIndex;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.PropertyDescriptorProperty#getValue(java.lang.Object)
+     */
+    @Override
+    public Object getValue(Object bean) throws ConversionException
+    {
+        if (getterIndex == -1)
+        {
+            return super.getValue(bean);
+        }
+
+        try
+        {
+            return accessor.getValue(bean, getterIndex);
+        }
+        catch (Exception ex)
+        {
+            throw new ConversionException(bean.getClass(), ex);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.PropertyDescriptorProperty#setValue(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void setValue(Object bean, Object value) throws ConversionException
+    {
+        if (setterIndex == -1)
+        {
+            super.setValue(bean, value);
+            return;
+        }
+
+        try
+        {
+            accessor.setValue(bean, setterIndex, value);
+        }
+        catch (Exception ex)
+        {
+            throw new ConversionException(bean.getClass(), ex);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.PropertyDescriptorProperty#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "GeneratedAccessorProperty[" + descriptor.getName() + "=" + descriptor.getPropertyType() + "]";
+    }
+
+    /**
+     * The generated accessor for the bean class
+     */
+    private final BeanAccessor accessor;
+
+    /**
+     * The index of the getter in the accessor or -1 to use reflection
+     */
+    private final int getterIndex;
+
+    /**
+     * The index of the setter in the accessor or -1 to use reflection
+     */
+    private final int setterIndex;
+}
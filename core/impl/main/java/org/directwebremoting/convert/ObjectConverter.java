@@ -64,6 +64,7 @@ public class ObjectConverter extends BasicObjectConverter
     public void setForce(String force)
     {
         this.force = Boolean.valueOf(force);
+        clearPropertyMapCache();
     }
 
     /* (non-Javadoc)
@@ -78,7 +79,16 @@ public class ObjectConverter extends BasicObjectConverter
     /* (non-Javadoc)
      * @see org.directwebremoting.extend.NamedConverter#getPropertyMapFromClass(java.lang.Class, boolean, boolean)
      */
-    public Map<String, Property> getPropertyMapFromClass(Class<?> type, boolean readRequired, boolean writeRequired)
+    public Map<String, Property> getPropertyMapFromClass(Class<?> type, boolean readRequired, boolean writeRequired) throws ConversionException
+    {
+        return getCachedPropertyMap(type, readRequired, writeRequired);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.convert.BasicObjectConverter#createPropertyMap(java.lang.Class, boolean, boolean)
+     */
+    @Override
+    protected Map<String, Property> createPropertyMap(Class<?> type, boolean readRequired, boolean writeRequired)
     {
         Map<String, Property> allFields = new HashMap<String, Property>();
 
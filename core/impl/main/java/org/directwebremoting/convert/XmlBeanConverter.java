@@ -163,10 +163,10 @@ public class XmlBeanConverter extends BeanConverter
     }
 
     /* (non-Javadoc)
-     * @see org.directwebremoting.convert.BeanConverter#getPropertyMapFromClass(java.lang.Class, boolean, boolean)
+     * @see org.directwebremoting.convert.BeanConverter#createPropertyMap(java.lang.Class, boolean, boolean)
      */
     @Override
-    public Map<String, Property> getPropertyMapFromClass(Class<?> paramType, boolean readRequired, boolean writeRequired) throws ConversionException
+    protected Map<String, Property> createPropertyMap(Class<?> paramType, boolean readRequired, boolean writeRequired) throws ConversionException
     {
         try
         {
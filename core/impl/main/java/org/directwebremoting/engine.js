@@ -1823,6 +1823,10 @@ if (typeof dwr == 'undefined') dwr = {};
           batch.form.setAttribute("target", idname);
           batch.form.setAttribute("style", "display:none");
           batch.form.setAttribute("method", batch.httpMethod);
+          // File parts go last, so the server can stream them to the remoted
+          // method after reading everything else. We tell it their names first.
+          var fileInputs = [];
+          var fileParts = [];
           for (var prop in batch.map) {
             var value = batch.map[prop];
             if (typeof value != "function") {
@@ -1835,20 +1839,38 @@ if (typeof dwr == 'undefined') dwr = {};
                 value.style.display = "none";
                 value.parentNode.insertBefore(clone, value);
                 value.parentNode.removeChild(value);
-                batch.form.appendChild(value);
+                fileInputs.push(value);
+                fileParts.push(prop);
               } else {
-                var formInput = batch.document.createElement("input");
-                formInput.setAttribute("type", "hidden");
-                formInput.setAttribute("name", prop);
-                formInput.setAttribute("value", value);
-                batch.form.appendChild(formInput);
+                dwr.engine.transport.iframe.appendHidden(batch, prop, value);
               }
             }
           }
+          if (fileInputs.length > 0) {
+            dwr.engine.transport.iframe.appendHidden(batch, "fileParts", fileParts.join(","));
+            for (var i = 0; i < fileInputs.length; i++) {
+              batch.form.appendChild(fileInputs[i]);
+            }
+          }
           batch.form.submit();
         }
       },
 
+      /**
+       * Add a hidden input to the form that we are about to submit
+       * @private
+       * @param {Object} batch The batch containing the form
+       * @param {String} name The name of the input
+       * @param {String} value The value of the input
+       */
+      appendHidden:function(batch, name, value) {
+        var formInput = batch.document.createElement("input");
+        formInput.setAttribute("type", "hidden");
+        formInput.setAttribute("name", name);
+        formInput.setAttribute("value", value);
+        batch.form.appendChild(formInput);
+      },
+
       /**
        * Functions designed to be called by the server
        */
@@ -2590,7 +2612,21 @@ dwr.data = {
      * @param {string[]} changedAttributes A list of changed attributes. If null then
      * you should assume that everything has changed
      */
-    itemChanged:function(source, item, changedAttributes) { }
+    itemChanged:function(source, item, changedAttributes) { },
+
+    /**
+     * A number of changes to the viewed region have been collected together.
+     * Only called if the server side store has a coalescing window set.
+     * @param {StoreProvider} source The store from which it was moved
+     * @param {RegionChange} change Includes:
+     * - viewedIds: The ids in the region in order, or null if unchanged
+     * - added: Items that have come into the region
+     * - removed: The ids of items that have left the region
+     * - deleted: The ids of removed items that have been deleted from the store
+     * - changed: Items in the region that have been altered
+     * - changedAttributes: Map of itemId to changed attributes for changed items
+     */
+    regionChanged:function(source, change) { }
   },
 
   /**
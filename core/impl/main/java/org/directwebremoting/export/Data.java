@@ -28,6 +28,7 @@ import org.directwebremoting.io.ItemUpdate;
 import org.directwebremoting.io.MatchedItems;
 import org.directwebremoting.io.StoreChangeListener;
 import org.directwebremoting.io.StoreRegion;
+import org.directwebremoting.io.StoreRegionListener;
 
 /**
  * External interface to the set of {@link StoreProvider}s that have been
@@ -74,9 +75,10 @@ public class Data
      * should <strong>not</strong> be relied upon.
      * @param region For field documentation see {@link StoreRegion}.
      * @param listener The client side interface to pass async updates to.
-     * Will be <code>null</code> if no async updates are required
+     * Will be <code>null</code> if no async updates are required. If the store
+     * coalesces changes then updates will be sent to regionChanged().
      */
-    public MatchedItems viewRegion(String storeId, StoreRegion region, StoreChangeListener<Object> listener)
+    public MatchedItems viewRegion(String storeId, StoreRegion region, StoreRegionListener<Object> listener)
     {
         StoreProvider<Object> provider = Directory.getRegistration(storeId, Object.class);
         if (provider == null)
@@ -0,0 +1,576 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.impl;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.directwebremoting.extend.AdaptiveLoadMonitor;
+import org.directwebremoting.util.LatencyHistogram;
+
+/**
+ * A ServerLoadMonitor that uses a control loop to hold the 99th percentile
+ * call latency under a target.
+ * <p>Once per control period (1 second by default) we measure:</p>
+ * <ul>
+ * <li>The 99th percentile time taken to handle a batch of calls</li>
+ * <li>The number of tasks on the DWR executor that are overdue to run</li>
+ * <li>The fraction of the maximum heap that is in use</li>
+ * <li>The number of reverse ajax connections that are waiting</li>
+ * </ul>
+ * <p>Each is divided by its limit. If any ratio is over 1 the server is
+ * overloaded.</p>
+ * <p>Each {@link AdaptiveLoadMonitor.ClientClass} has a capacity between 0
+ * and 1, which we adjust AIMD style (additive increase, multiplicative
+ * decrease). When overloaded, capacity is cut, streaming clients hardest
+ * because they cost the most. Otherwise it creeps back up. Capacity
+ * smoothly scales connected times down from the maximum and disconnected
+ * times up from the minimum. Below a threshold, streaming and then long
+ * polling are withdrawn. Clients moved to a cheaper class keep the timing
+ * of the class they came from, if that is tighter.</p>
+ * <p>To use it, set the init-param
+ * <code>org.directwebremoting.extend.ServerLoadMonitor</code> to this class.
+ * Without a ScheduledThreadPoolExecutor the control loop does not run and
+ * the monitor gives the same advice as {@link DefaultServerLoadMonitor}.</p>
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class AdaptiveServerLoadMonitor extends AbstractServerLoadMonitor implements AdaptiveLoadMonitor, Runnable
+{
+    public AdaptiveServerLoadMonitor()
+    {
+        for (ClientClass clientClass : ClientClass.values())
+        {
+            capacities.put(clientClass, 1.0);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.ServerLoadMonitor#supportsStreaming()
+     */
+    public boolean supportsStreaming()
+    {
+        // This decides what engine.js is generated with, which is cached, so
+        // we leave the decision to supportsStreaming(ClientClass)
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.ServerLoadMonitor#getConnectedTime()
+     */
+    public long getConnectedTime()
+    {
+        return getConnectedTime(ClientClass.LONG_POLL);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.ServerLoadMonitor#getDisconnectedTime()
+     */
+    public int getDisconnectedTime()
+    {
+        return getDisconnectedTime(ClientClass.LONG_POLL);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.AdaptiveLoadMonitor#callCompleted(long)
+     */
+    public void callCompleted(long nanos)
+    {
+        latencies.get().record(nanos / 1000);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.AdaptiveLoadMonitor#supportsStreaming(org.directwebremoting.extend.AdaptiveLoadMonitor.ClientClass)
+     */
+    public boolean supportsStreaming(ClientClass clientClass)
+    {
+        switch (clientClass)
+        {
+        case STREAMING:
+            return getCapacity(clientClass) > streamingThreshold;
+        case LONG_POLL:
+            return getCapacity(clientClass) > longPollThreshold;
+        default:
+            return true;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.AdaptiveLoadMonitor#getConnectedTime(org.directwebremoting.extend.AdaptiveLoadMonitor.ClientClass)
+     */
+    public long getConnectedTime(ClientClass clientClass)
+    {
+        double capacity = getTimingCapacity(clientClass);
+        return minConnectedTime + (long) (capacity * (maxConnectedTime - minConnectedTime));
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.AdaptiveLoadMonitor#getDisconnectedTime(org.directwebremoting.extend.AdaptiveLoadMonitor.ClientClass)
+     */
+    public int getDisconnectedTime(ClientClass clientClass)
+    {
+        double capacity = getTimingCapacity(clientClass);
+        return minDisconnectedTime + (int) ((1.0 - capacity) * (maxDisconnectedTime - minDisconnectedTime));
+    }
+
+    /**
+     * The current capacity for a class of client
+     * @param clientClass The way the client is waiting
+     * @return A number between 0 (shed as much load as possible) and 1 (no
+     * load shedding)
+     */
+    public double getCapacity(ClientClass clientClass)
+    {
+        synchronized (capacities)
+        {
+            return capacities.get(clientClass);
+        }
+    }
+
+    /**
+     * The capacity that sets the timing for a class of client. When a more
+     * expensive class is withdrawn its clients are handed to this class, and
+     * they must not get looser timing than they had before, so we use the
+     * lowest capacity of this class and of any withdrawn class above it.
+     * @param clientClass The way the client is waiting
+     * @return A number between 0 and 1, no more than getCapacity(clientClass)
+     */
+    protected double getTimingCapacity(ClientClass clientClass)
+    {
+        double capacity = getCapacity(clientClass);
+        for (ClientClass expensive : ClientClass.values())
+        {
+            if (expensive.ordinal() < clientClass.ordinal() && !supportsStreaming(expensive))
+            {
+                capacity = Math.min(capacity, getCapacity(expensive));
+            }
+        }
+
+        return capacity;
+    }
+
+    /**
+     * One step of the control loop
+     * @see java.lang.Runnable#run()
+     */
+    public void run()
+    {
+        try
+        {
+            adjust();
+        }
+        catch (Exception ex)
+        {
+            log.warn("Failed to adjust for server load", ex);
+        }
+    }
+
+    /**
+     * Measure the load on the server and adjust the capacity of each class of
+     * client to match
+     */
+    protected void adjust()
+    {
+        LatencyHistogram measured = latencies.getAndSet(new LatencyHistogram());
+        latencyP99 = measured.getCount() >= minLatencySamples ? measured.getPercentile(0.99) / 1000 : -1;
+        executorBacklog = countExecutorBacklog();
+
+        Runtime runtime = Runtime.getRuntime();
+        heapUsage = (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+
+        synchronized (waitControllers)
+        {
+            waitingThreads = waitControllers.size();
+        }
+
+        double pressure = Math.max(Math.max((double) latencyP99 / targetLatency, (double) executorBacklog / maxExecutorBacklog),
+                                   Math.max(heapUsage / maxHeapUsage, (double) waitingThreads / maxWaitingThreads));
+        lastPressure = pressure;
+
+        synchronized (capacities)
+        {
+            for (ClientClass clientClass : ClientClass.values())
+            {
+                double capacity = capacities.get(clientClass);
+                if (pressure > 1.0)
+                {
+                    capacity = Math.max(capacity * DECREASE_FACTORS[clientClass.ordinal()], MIN_CAPACITY);
+                }
+                else
+                {
+                    capacity = Math.min(capacity + capacityIncrease, 1.0);
+                }
+                capacities.put(clientClass, capacity);
+            }
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Load: p99=" + latencyP99 + "ms, backlog=" + executorBacklog + ", heap=" + heapUsage + ", waiting=" + waitingThreads + ", pressure=" + pressure + ", capacities=" + capacities);
+        }
+    }
+
+    /**
+     * Count the tasks on the executor that should have run by now, ignoring
+     * the ones (like alarms) that are scheduled for later
+     * @return The number of overdue tasks
+     */
+    private int countExecutorBacklog()
+    {
+        if (executor == null)
+        {
+            return 0;
+        }
+
+        int backlog = 0;
+        for (Runnable task : executor.getQueue())
+        {
+            if (!(task instanceof Delayed) || ((Delayed) task).getDelay(TimeUnit.MILLISECONDS) <= 0)
+            {
+                backlog++;
+            }
+        }
+        return backlog;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.AbstractServerLoadMonitor#contextDestroyed()
+     */
+    @Override
+    public void contextDestroyed()
+    {
+        synchronized (this)
+        {
+            if (future != null)
+            {
+                future.cancel(false);
+                future = null;
+            }
+        }
+
+        super.contextDestroyed();
+    }
+
+    /**
+     * @param executor The DWR provided shutdown system
+     */
+    public synchronized void setScheduledThreadPoolExecutor(ScheduledThreadPoolExecutor executor)
+    {
+        this.executor = executor;
+        schedule();
+    }
+
+    /**
+     * (Re)start the control loop with the current executor and control
+     * period. The container can call the setters in any order so we do this
+     * whenever either changes.
+     */
+    private synchronized void schedule()
+    {
+        if (future != null)
+        {
+            future.cancel(false);
+            future = null;
+        }
+
+        if (executor != null)
+        {
+            future = executor.scheduleWithFixedDelay(this, controlPeriod, controlPeriod, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param targetLatency The 99th percentile call latency to aim for in ms
+     */
+    public void setTargetLatency(long targetLatency)
+    {
+        this.targetLatency = targetLatency;
+    }
+
+    /**
+     * @param maxExecutorBacklog The number of overdue executor tasks that we
+     * count as overloaded
+     */
+    public void setMaxExecutorBacklog(int maxExecutorBacklog)
+    {
+        this.maxExecutorBacklog = maxExecutorBacklog;
+    }
+
+    /**
+     * @param maxHeapUsage The fraction of the maximum heap that we can use
+     * before we count as overloaded
+     */
+    public void setMaxHeapUsage(double maxHeapUsage)
+    {
+        this.maxHeapUsage = maxHeapUsage;
+    }
+
+    /**
+     * @param maxWaitingThreads The number of waiting reverse ajax
+     * connections that we count as overloaded
+     */
+    public void setMaxWaitingThreads(int maxWaitingThreads)
+    {
+        this.maxWaitingThreads = maxWaitingThreads;
+    }
+
+    /**
+     * @param maxConnectedTime The connected time (ms) when there is no load
+     */
+    public void setMaxConnectedTime(int maxConnectedTime)
+    {
+        this.maxConnectedTime = maxConnectedTime;
+    }
+
+    /**
+     * @param minConnectedTime The connected time (ms) at full load
+     */
+    public void setMinConnectedTime(int minConnectedTime)
+    {
+        this.minConnectedTime = minConnectedTime;
+    }
+
+    /**
+     * @param maxDisconnectedTime The disconnected time (ms) at full load
+     */
+    public void setMaxDisconnectedTime(int maxDisconnectedTime)
+    {
+        this.maxDisconnectedTime = maxDisconnectedTime;
+    }
+
+    /**
+     * @param minDisconnectedTime The disconnected time (ms) when there is no
+     * load
+     */
+    public void setMinDisconnectedTime(int minDisconnectedTime)
+    {
+        this.minDisconnectedTime = minDisconnectedTime;
+    }
+
+    /**
+     * @param controlPeriod How often (ms) we run the control loop
+     */
+    public synchronized void setControlPeriod(long controlPeriod)
+    {
+        this.controlPeriod = controlPeriod;
+        schedule();
+    }
+
+    /**
+     * @param capacityIncrease How much capacity we add back each control
+     * period when we are not overloaded
+     */
+    public void setCapacityIncrease(double capacityIncrease)
+    {
+        this.capacityIncrease = capacityIncrease;
+    }
+
+    /**
+     * @param streamingThreshold The capacity at or below which streaming
+     * clients are made to poll
+     */
+    public void setStreamingThreshold(double streamingThreshold)
+    {
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    /**
+     * @param longPollThreshold The capacity at or below which long poll
+     * clients are made to poll
+     */
+    public void setLongPollThreshold(double longPollThreshold)
+    {
+        this.longPollThreshold = longPollThreshold;
+    }
+
+    /**
+     * @return The 99th percentile call latency (ms) in the last control
+     * period, or -1 if there were too few calls to tell
+     */
+    public long getLatencyP99()
+    {
+        return latencyP99;
+    }
+
+    /**
+     * @return The number of overdue executor tasks at the last measurement
+     */
+    public int getExecutorBacklog()
+    {
+        return executorBacklog;
+    }
+
+    /**
+     * @return The fraction of the maximum heap in use at the last measurement
+     */
+    public double getHeapUsage()
+    {
+        return heapUsage;
+    }
+
+    /**
+     * @return The number of waiting connections at the last measurement
+     */
+    public int getWaitingThreads()
+    {
+        return waitingThreads;
+    }
+
+    /**
+     * @return The largest of the measurements divided by their limits, over 1
+     * means overloaded
+     */
+    public double getPressure()
+    {
+        return lastPressure;
+    }
+
+    /**
+     * The latencies recorded since the last control step
+     */
+    private final AtomicReference<LatencyHistogram> latencies = new AtomicReference<LatencyHistogram>(new LatencyHistogram());
+
+    /**
+     * The capacity of each class of client, see {@link #getCapacity}
+     */
+    private final Map<ClientClass, Double> capacities = new EnumMap<ClientClass, Double>(ClientClass.class);
+
+    /**
+     * Where we run the control loop, and whose backlog we measure
+     */
+    protected ScheduledThreadPoolExecutor executor = null;
+
+    /**
+     * The scheduled control loop, so we can stop it
+     */
+    private ScheduledFuture<?> future = null;
+
+    /**
+     * The 99th percentile call latency to aim for in ms
+     */
+    protected long targetLatency = 500;
+
+    /**
+     * The number of overdue executor tasks that we count as overloaded
+     */
+    protected int maxExecutorBacklog = 100;
+
+    /**
+     * The fraction of the maximum heap that we can use before we count as
+     * overloaded
+     */
+    protected double maxHeapUsage = 0.9;
+
+    /**
+     * The number of waiting reverse ajax connections that we count as
+     * overloaded
+     */
+    protected int maxWaitingThreads = 1000;
+
+    /**
+     * The connected time (ms) when there is no load
+     */
+    protected int maxConnectedTime = 60000;
+
+    /**
+     * The connected time (ms) at full load
+     */
+    protected int minConnectedTime = 1000;
+
+    /**
+     * The disconnected time (ms) at full load
+     */
+    protected int maxDisconnectedTime = 10000;
+
+    /**
+     * The disconnected time (ms) when there is no load
+     */
+    protected int minDisconnectedTime = 0;
+
+    /**
+     * How often (ms) we run the control loop
+     */
+    protected long controlPeriod = 1000;
+
+    /**
+     * How much capacity we add back each control period
+     */
+    protected double capacityIncrease = 0.05;
+
+    /**
+     * The capacity at or below which streaming clients are made to poll
+     */
+    protected double streamingThreshold = 0.5;
+
+    /**
+     * The capacity at or below which long poll clients are made to poll
+     */
+    protected double longPollThreshold = 0.2;
+
+    /**
+     * The fewest calls in a control period that we will take a percentile
+     * from
+     */
+    protected int minLatencySamples = 10;
+
+    /**
+     * The last measured 99th percentile call latency in ms
+     */
+    private volatile long latencyP99 = -1;
+
+    /**
+     * The last measured number of overdue executor tasks
+     */
+    private volatile int executorBacklog = 0;
+
+    /**
+     * The last measured fraction of the heap in use
+     */
+    private volatile double heapUsage = 0;
+
+    /**
+     * The last measured number of waiting connections
+     */
+    private volatile int waitingThreads = 0;
+
+    /**
+     * The last combined measurement
+     */
+    private volatile double lastPressure = 0;
+
+    /**
+     * How much we multiply the capacity of each class of client by when we
+     * are overloaded, indexed by ordinal. Streaming costs most so it goes
+     * first.
+     */
+    private static final double[] DECREASE_FACTORS = { 0.5, 0.7, 0.85 };
+
+    /**
+     * We never quite shut clients out
+     */
+    private static final double MIN_CAPACITY = 0.01;
+
+    /**
+     * The log stream
+     */
+    private static final Log log = LogFactory.getLog(AdaptiveServerLoadMonitor.class);
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.impl;
+
+/**
+ * The JMX view of a {@link DefaultCallMetrics}
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public interface CallMetricsMBean
+{
+    /**
+     * @return true if metrics are being collected
+     */
+    boolean isEnabled();
+
+    /**
+     * Turn the collection of metrics on or off
+     * @param enabled true to collect metrics
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return The number of requests read
+     */
+    long getRequests();
+
+    /**
+     * @return The total size of the requests read in bytes
+     */
+    long getBytesRead();
+
+    /**
+     * @return The total size of the replies written in chars
+     */
+    long getCharsWritten();
+
+    /**
+     * @return The number of remoted methods executed
+     */
+    long getCalls();
+
+    /**
+     * @return The number of remoted methods that failed
+     */
+    long getErrors();
+
+    /**
+     * @return The number of remoted methods executed in the last minute
+     */
+    int getCallsInLastMinute();
+
+    /**
+     * @return The number of remoted methods that failed in the last minute
+     */
+    int getErrorsInLastMinute();
+
+    /**
+     * @return A summary of the time taken by each stage of a call, in
+     * microseconds
+     */
+    String[] getStageLatencies();
+
+    /**
+     * Forget everything collected so far
+     */
+    void reset();
+}
@@ -31,8 +31,9 @@ import org.directwebremoting.WebContextFactory;
 import org.directwebremoting.extend.AccessControl;
 import org.directwebremoting.extend.AjaxFilterManager;
 import org.directwebremoting.extend.Creator;
+import org.directwebremoting.extend.IndexedModule;
 import org.directwebremoting.extend.MethodDeclaration;
-import org.directwebremoting.extend.Module;
+import org.directwebremoting.extend.MethodDispatchTable;
 import org.directwebremoting.util.Continuation;
 import org.directwebremoting.util.Loggers;
 
@@ -40,7 +41,7 @@ import org.directwebremoting.util.Loggers;
  * An adapter module for Creators.
  * @author Mike Wilson [mikewse at g mail dot com]
  */
-public class CreatorModule implements Module
+public class CreatorModule implements IndexedModule
 {
     public CreatorModule(Creator creator, AjaxFilterManager ajaxFilterManager, AccessControl accessControl, boolean allowImpossibleTests, String accessLogLevel, boolean debug)
     {
@@ -60,6 +61,14 @@ public class CreatorModule implements Module
         return creator.getJavascript();
     }
 
+    /**
+     * @return The Creator this module is an adapter for
+     */
+    Creator getCreator()
+    {
+        return creator;
+    }
+
     /* (non-Javadoc)
      * @see org.directwebremoting.extend.Module#isCacheable()
      */
@@ -72,6 +81,45 @@ public class CreatorModule implements Module
      * @see org.directwebremoting.extend.Module#getMethods()
      */
     public MethodDeclaration[] getMethods()
+    {
+        MethodDeclaration[] cached = declarations;
+        if (cached == null)
+        {
+            cached = createMethodDeclarations();
+            if (isCacheable())
+            {
+                declarations = cached;
+            }
+        }
+
+        return cached.clone();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.IndexedModule#getDispatchTable()
+     */
+    public MethodDispatchTable getDispatchTable()
+    {
+        MethodDispatchTable table = dispatchTable;
+        if (table == null)
+        {
+            // If 2 threads get here at once we build the table twice, which
+            // is wasteful but harmless
+            table = new MethodDispatchTable(getMethods());
+            if (isCacheable())
+            {
+                dispatchTable = table;
+            }
+        }
+
+        return table;
+    }
+
+    /**
+     * Work out the methods of the type behind the creator that are visible
+     * @return The method declarations of the visible methods
+     */
+    private MethodDeclaration[] createMethodDeclarations()
     {
         Method[] methods = creator.getType().getMethods();
         ArrayList<MethodDeclaration> methodDecls = new ArrayList<MethodDeclaration>();
@@ -299,6 +347,18 @@ public class CreatorModule implements Module
      */
     private final Creator creator;
 
+    /**
+     * The method declarations, if the creator is cacheable and we have
+     * already worked them out
+     */
+    private volatile MethodDeclaration[] declarations;
+
+    /**
+     * The index of {@link #declarations}, if the creator is cacheable and a
+     * call has needed it
+     */
+    private volatile MethodDispatchTable dispatchTable;
+
     /**
      * What AjaxFilters apply to which Ajax calls?
      */
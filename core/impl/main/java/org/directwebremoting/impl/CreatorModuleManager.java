@@ -16,9 +16,12 @@
 package org.directwebremoting.impl;
 
 import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.directwebremoting.extend.AccessControl;
 import org.directwebremoting.extend.AjaxFilterManager;
+import org.directwebremoting.extend.Creator;
 import org.directwebremoting.extend.CreatorManager;
 import org.directwebremoting.extend.Module;
 import org.directwebremoting.extend.ModuleManager;
@@ -42,7 +45,21 @@ public class CreatorModuleManager implements ModuleManager
      */
     public Module getModule(String name, boolean includeHidden)
     {
-        return new CreatorModule(creatorManager.getCreator(name, includeHidden), ajaxFilterManager, accessControl, allowImpossibleTests, accessLogLevel, debug);
+        Creator creator = creatorManager.getCreator(name, includeHidden);
+
+        // We hand out the same module for as long as the creator is the same
+        // so the things that are worked out from it can be cached
+        CreatorModule module = modules.get(name);
+        if (module == null || module.getCreator() != creator)
+        {
+            module = new CreatorModule(creator, ajaxFilterManager, accessControl, allowImpossibleTests, accessLogLevel, debug);
+            if (creator != null)
+            {
+                modules.put(name, module);
+            }
+        }
+
+        return module;
     }
 
     /**
@@ -51,6 +68,7 @@ public class CreatorModuleManager implements ModuleManager
     public void setCreatorManager(CreatorManager creatorManager)
     {
         this.creatorManager = creatorManager;
+        modules.clear();
     }
 
     /**
@@ -59,6 +77,7 @@ public class CreatorModuleManager implements ModuleManager
     public void setAjaxFilterManager(AjaxFilterManager ajaxFilterManager)
     {
         this.ajaxFilterManager = ajaxFilterManager;
+        modules.clear();
     }
 
     /**
@@ -67,6 +86,7 @@ public class CreatorModuleManager implements ModuleManager
     public void setAccessControl(AccessControl accessControl)
     {
         this.accessControl = accessControl;
+        modules.clear();
     }
 
     /**
@@ -75,6 +95,7 @@ public class CreatorModuleManager implements ModuleManager
     public void setAllowImpossibleTests(boolean allowImpossibleTests)
     {
         this.allowImpossibleTests = allowImpossibleTests;
+        modules.clear();
     }
 
     /**
@@ -83,6 +104,7 @@ public class CreatorModuleManager implements ModuleManager
     public void setAccessLogLevel(String accessLogLevel)
     {
         this.accessLogLevel = accessLogLevel;
+        modules.clear();
     }
 
     /**
@@ -91,8 +113,14 @@ public class CreatorModuleManager implements ModuleManager
     public void setDebug(boolean debug)
     {
         this.debug = debug;
+        modules.clear();
     }
 
+    /**
+     * The modules that we have handed out, by name
+     */
+    private final ConcurrentMap<String, CreatorModule> modules = new ConcurrentHashMap<String, CreatorModule>();
+
     private CreatorManager creatorManager;
 
     private AjaxFilterManager ajaxFilterManager;
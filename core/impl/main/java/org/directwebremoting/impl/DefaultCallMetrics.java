@@ -0,0 +1,596 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.servlet.ServletConfig;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.directwebremoting.Container;
+import org.directwebremoting.extend.CallMetrics;
+import org.directwebremoting.extend.InitializingBean;
+import org.directwebremoting.extend.UninitializingBean;
+import org.directwebremoting.util.HitMonitor;
+import org.directwebremoting.util.LatencyHistogram;
+
+/**
+ * The default implementation of {@link CallMetrics}.
+ * <p>Metrics are off unless the <code>callMetricsEnabled</code> init-param is
+ * true. When they are on, the metrics are registered with the platform
+ * MBeanServer (unless <code>callMetricsJmx</code> is false). They can be read
+ * as JSON from the monitor page at <code>/monitor/metrics.json</code> in
+ * debug mode, or when the <code>callMetricsJson</code> init-param is true.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class DefaultCallMetrics implements CallMetrics, CallMetricsMBean, InitializingBean, UninitializingBean
+{
+    /**
+     * Create the histograms for each stage
+     */
+    public DefaultCallMetrics()
+    {
+        for (int i = 0; i < stages.length; i++)
+        {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.CallMetrics#isEnabled()
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.CallMetricsMBean#setEnabled(boolean)
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.CallMetrics#stageCompleted(org.directwebremoting.extend.CallMetrics.Stage, long)
+     */
+    public void stageCompleted(Stage stage, long nanos)
+    {
+        stages[stage.ordinal()].record(nanos / 1000);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.CallMetrics#methodCompleted(java.lang.String, java.lang.String, long, boolean)
+     */
+    public void methodCompleted(String scriptName, String methodName, long nanos, boolean failed)
+    {
+        getMethodMetrics(scriptName, methodName).methodCompleted(nanos / 1000, failed);
+
+        calls.incrementAndGet();
+        callMonitor.recordHit();
+        if (failed)
+        {
+            errors.incrementAndGet();
+            errorMonitor.recordHit();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.CallMetrics#replyWritten(java.lang.String, java.lang.String, long)
+     */
+    public void replyWritten(String scriptName, String methodName, long chars)
+    {
+        getMethodMetrics(scriptName, methodName).replyWritten(chars);
+        charsWritten.addAndGet(chars);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.CallMetrics#requestRead(long)
+     */
+    public void requestRead(long bytes)
+    {
+        requests.incrementAndGet();
+        if (bytes > 0)
+        {
+            bytesRead.addAndGet(bytes);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.CallMetrics#writeJson(java.io.Writer)
+     */
+    public void writeJson(Writer out) throws IOException
+    {
+        out.write("{\"enabled\":" + enabled);
+        out.write(",\"requests\":" + getRequests());
+        out.write(",\"bytesRead\":" + getBytesRead());
+        out.write(",\"charsWritten\":" + getCharsWritten());
+        out.write(",\"calls\":" + getCalls());
+        out.write(",\"errors\":" + getErrors());
+        out.write(",\"callsInLastMinute\":" + getCallsInLastMinute());
+        out.write(",\"errorsInLastMinute\":" + getErrorsInLastMinute());
+
+        out.write(",\"stages\":{");
+        Stage[] names = Stage.values();
+        for (int i = 0; i < names.length; i++)
+        {
+            LatencyHistogram histogram = stages[i];
+            out.write(i == 0 ? "" : ",");
+            out.write(quote(names[i].name()) + ":{\"count\":" + histogram.getCount());
+            out.write(",\"meanMicros\":" + Math.round(histogram.getMean()));
+            out.write(",\"medianMicros\":" + histogram.getPercentile(0.5));
+            out.write(",\"p99Micros\":" + histogram.getPercentile(0.99));
+            out.write(",\"maxMicros\":" + histogram.getMax() + "}");
+        }
+
+        out.write("},\"methods\":{");
+        boolean first = true;
+        for (MethodMetrics metrics : getMethodMetrics())
+        {
+            out.write(first ? "" : ",");
+            first = false;
+
+            out.write(quote(metrics.getScriptName() + "." + metrics.getMethodName()) + ":{\"calls\":" + metrics.getCalls());
+            out.write(",\"errors\":" + metrics.getErrors());
+            out.write(",\"errorRate\":" + metrics.getErrorRate());
+            out.write(",\"meanMicros\":" + Math.round(metrics.getMeanMicros()));
+            out.write(",\"medianMicros\":" + metrics.getMedianMicros());
+            out.write(",\"p99Micros\":" + metrics.getP99Micros());
+            out.write(",\"maxMicros\":" + metrics.getMaxMicros());
+            out.write(",\"charsWritten\":" + metrics.getCharsWritten() + "}");
+        }
+        out.write("}}");
+    }
+
+    /**
+     * @return The metrics for each method that has been called
+     */
+    public List<MethodMetrics> getMethodMetrics()
+    {
+        List<MethodMetrics> reply = new ArrayList<MethodMetrics>();
+        for (Map<String, MethodMetrics> byMethod : methods.values())
+        {
+            reply.addAll(byMethod.values());
+        }
+        return reply;
+    }
+
+    /**
+     * Find or create the metrics for a method. 2 levels of map means that we
+     * don't need to create a key to find an existing entry.
+     * @param scriptName The name of the module that the method belongs to
+     * @param methodName The name of the method
+     * @return The metrics for the method
+     */
+    protected MethodMetrics getMethodMetrics(String scriptName, String methodName)
+    {
+        ConcurrentMap<String, MethodMetrics> byMethod = methods.get(scriptName);
+        if (byMethod == null)
+        {
+            ConcurrentMap<String, MethodMetrics> created = new ConcurrentHashMap<String, MethodMetrics>();
+            byMethod = methods.putIfAbsent(scriptName, created);
+            if (byMethod == null)
+            {
+                byMethod = created;
+            }
+        }
+
+        MethodMetrics metrics = byMethod.get(methodName);
+        if (metrics == null)
+        {
+            MethodMetrics created = new MethodMetrics(scriptName, methodName);
+            metrics = byMethod.putIfAbsent(methodName, created);
+            if (metrics == null)
+            {
+                metrics = created;
+                register(created, getObjectName("MethodMetrics", ",script=" + ObjectName.quote(scriptName) + ",method=" + ObjectName.quote(methodName)));
+            }
+        }
+
+        return metrics;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.CallMetricsMBean#getRequests()
+     */
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.CallMetricsMBean#getBytesRead()
+     */
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.CallMetricsMBean#getCharsWritten()
+     */
+    public long getCharsWritten()
+    {
+        return charsWritten.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.CallMetricsMBean#getCalls()
+     */
+    public long getCalls()
+    {
+        return calls.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.CallMetricsMBean#getErrors()
+     */
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.CallMetricsMBean#getCallsInLastMinute()
+     */
+    public int getCallsInLastMinute()
+    {
+        return callMonitor.getHitsInLastPeriod();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.CallMetricsMBean#getErrorsInLastMinute()
+     */
+    public int getErrorsInLastMinute()
+    {
+        return errorMonitor.getHitsInLastPeriod();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.CallMetricsMBean#getStageLatencies()
+     */
+    public String[] getStageLatencies()
+    {
+        Stage[] names = Stage.values();
+        String[] reply = new String[names.length];
+        for (int i = 0; i < names.length; i++)
+        {
+            reply[i] = names[i] + ": " + stages[i];
+        }
+        return reply;
+    }
+
+    /**
+     * @param stage The stage to look up
+     * @return The times recorded for the stage in microseconds
+     */
+    public LatencyHistogram getStageLatency(Stage stage)
+    {
+        return stages[stage.ordinal()];
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.CallMetricsMBean#reset()
+     */
+    public void reset()
+    {
+        for (LatencyHistogram histogram : stages)
+        {
+            histogram.reset();
+        }
+
+        requests.set(0);
+        bytesRead.set(0);
+        charsWritten.set(0);
+        calls.set(0);
+        errors.set(0);
+
+        methods.clear();
+        unregister(true);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.InitializingBean#afterContainerSetup(org.directwebremoting.Container)
+     */
+    public void afterContainerSetup(Container container)
+    {
+        if (enabled && jmx)
+        {
+            mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            try
+            {
+                // Our name doesn't follow the MBean naming pattern
+                register(new StandardMBean(this, CallMetricsMBean.class), getObjectName("CallMetrics", ""));
+            }
+            catch (NotCompliantMBeanException ex)
+            {
+                log.warn("Failed to create an MBean for " + this + ": " + ex);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.UninitializingBean#contextDestroyed()
+     */
+    public void contextDestroyed()
+    {
+        unregister(false);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.UninitializingBean#servletDestroyed()
+     */
+    public void servletDestroyed()
+    {
+        unregister(false);
+    }
+
+    /**
+     * Register an MBean if we are using JMX. Failure to register is not fatal
+     * because it does not stop us collecting metrics.
+     * @param mbean The MBean to register
+     * @param name The name to register it under, or null if the name is bad
+     */
+    private void register(Object mbean, ObjectName name)
+    {
+        MBeanServer server = mbeanServer;
+        if (server == null || name == null)
+        {
+            return;
+        }
+
+        try
+        {
+            server.registerMBean(mbean, name);
+            synchronized (registered)
+            {
+                registered.add(name);
+            }
+        }
+        catch (Exception ex)
+        {
+            log.warn("Failed to register " + name + " with JMX: " + ex);
+        }
+    }
+
+    /**
+     * Remove the MBeans that we have registered
+     * @param methodsOnly true to leave the MBean for this object registered
+     */
+    private void unregister(boolean methodsOnly)
+    {
+        MBeanServer server = mbeanServer;
+        if (server == null)
+        {
+            return;
+        }
+
+        List<ObjectName> names;
+        synchronized (registered)
+        {
+            names = new ArrayList<ObjectName>(registered);
+            registered.clear();
+        }
+
+        for (ObjectName name : names)
+        {
+            if (methodsOnly && "CallMetrics".equals(name.getKeyProperty("type")))
+            {
+                synchronized (registered)
+                {
+                    registered.add(name);
+                }
+                continue;
+            }
+
+            try
+            {
+                server.unregisterMBean(name);
+            }
+            catch (Exception ex)
+            {
+                log.debug("Failed to unregister " + name + " from JMX: " + ex);
+            }
+        }
+
+        if (!methodsOnly)
+        {
+            mbeanServer = null;
+        }
+    }
+
+    /**
+     * @param type The type of MBean
+     * @param extra Any extra properties, starting with a ','
+     * @return A name for the MBean, or null if the parts can't make a name
+     */
+    private ObjectName getObjectName(String type, String extra)
+    {
+        if (mbeanServer == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return new ObjectName(domain + ":type=" + type + ",servlet=" + ObjectName.quote(servletName) + extra);
+        }
+        catch (Exception ex)
+        {
+            log.warn("Failed to create a JMX name for " + type + extra + ": " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Turn a string into a JSON string
+     */
+    private static String quote(String value)
+    {
+        StringBuilder buffer = new StringBuilder(value.length() + 2);
+        buffer.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char ch = value.charAt(i);
+            if (ch == '"' || ch == '\\')
+            {
+                buffer.append('\\').append(ch);
+            }
+            else if (ch < ' ')
+            {
+                String hex = Integer.toHexString(ch);
+                buffer.append("\\u0000", 0, 6 - hex.length()).append(hex);
+            }
+            else
+            {
+                buffer.append(ch);
+            }
+        }
+        buffer.append('"');
+        return buffer.toString();
+    }
+
+    /**
+     * Do we collect metrics?
+     * @param callMetricsEnabled true to collect metrics
+     */
+    public void setCallMetricsEnabled(boolean callMetricsEnabled)
+    {
+        this.enabled = callMetricsEnabled;
+    }
+
+    /**
+     * Do we register the metrics with JMX when they are enabled at startup?
+     * @param callMetricsJmx false to leave JMX alone
+     */
+    public void setCallMetricsJmx(boolean callMetricsJmx)
+    {
+        this.jmx = callMetricsJmx;
+    }
+
+    /**
+     * The JMX domain that the MBeans are registered in
+     * @param callMetricsJmxDomain The new JMX domain
+     */
+    public void setCallMetricsJmxDomain(String callMetricsJmxDomain)
+    {
+        this.domain = callMetricsJmxDomain;
+    }
+
+    /**
+     * We use the name of the servlet to tell apart the MBeans from more than
+     * one DWR servlet
+     * @param servletConfig The config of the DWR servlet
+     */
+    public void setServletConfig(ServletConfig servletConfig)
+    {
+        this.servletName = servletConfig.getServletName();
+    }
+
+    /**
+     * Are we collecting metrics?
+     */
+    private volatile boolean enabled = false;
+
+    /**
+     * Do we register the metrics with JMX?
+     */
+    private boolean jmx = true;
+
+    /**
+     * The JMX domain that the MBeans are registered in
+     */
+    private String domain = "org.directwebremoting";
+
+    /**
+     * The name of the DWR servlet, so more than one can register MBeans
+     */
+    private String servletName = "dwr-invoker";
+
+    /**
+     * The times taken by each {@link Stage} in microseconds, by ordinal
+     */
+    private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+
+    /**
+     * The metrics for each method, by script name and then method name
+     */
+    private final ConcurrentMap<String, ConcurrentMap<String, MethodMetrics>> methods = new ConcurrentHashMap<String, ConcurrentMap<String, MethodMetrics>>();
+
+    /**
+     * The number of requests read
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * The total size of the requests
+     */
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * The total size of the replies
+     */
+    private final AtomicLong charsWritten = new AtomicLong();
+
+    /**
+     * The number of methods executed
+     */
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * The number of methods that failed
+     */
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * The methods executed in the last minute
+     */
+    private final HitMonitor callMonitor = new HitMonitor(60);
+
+    /**
+     * The methods that failed in the last minute
+     */
+    private final HitMonitor errorMonitor = new HitMonitor(60);
+
+    /**
+     * Where our MBeans are registered, null if we are not using JMX
+     */
+    private volatile MBeanServer mbeanServer = null;
+
+    /**
+     * The names of the MBeans that we have registered
+     */
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    /**
+     * The log stream
+     */
+    private static final Log log = LogFactory.getLog(DefaultCallMetrics.class);
+}
@@ -15,10 +15,13 @@
  */
 package org.directwebremoting.impl;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.directwebremoting.Hub;
 import org.directwebremoting.event.DefaultMessageEvent;
@@ -27,6 +30,14 @@ import org.directwebremoting.event.MessageListener;
 
 /**
  * DWR's default implementation of {@link Hub}
+ * <p>Topic names are split into segments at '.'. When subscribing, a segment
+ * of <code>*</code> matches any single segment, and a final segment of
+ * <code>**</code> matches one or more segments, so a subscription to
+ * <code>stocks.*</code> is told about publishes to <code>stocks.ibm</code>.
+ * <p>Subscriptions are copy-on-write: subscribe and unsubscribe are
+ * serialized, but publish never locks, and when there are no wildcard
+ * subscriptions it does not allocate anything beyond the event it sends to
+ * every listener.
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
 public class DefaultHub implements Hub
@@ -36,16 +47,34 @@ public class DefaultHub implements Hub
      */
     public void subscribe(String topicName, MessageListener listener)
     {
-        synchronized (subscriptions)
+        synchronized (writeLock)
         {
-            Set<MessageListener> listeners = subscriptions.get(topicName);
-            if (listeners == null)
+            if (isPattern(topicName))
             {
-                listeners = new HashSet<MessageListener>();
-                subscriptions.put(topicName, listeners);
+                TopicNode node = patterns;
+                for (String segment : split(topicName))
+                {
+                    node = node.getOrCreateChild(segment);
+                }
+
+                MessageListener[] updated = add(node.listeners, listener);
+                if (updated != node.listeners)
+                {
+                    node.listeners = updated;
+                    patternCount++;
+                }
+            }
+            else
+            {
+                MessageListener[] current = exact.get(topicName);
+                MessageListener[] updated = add(current, listener);
+                if (updated != current)
+                {
+                    exact.put(topicName, updated);
+                }
             }
 
-            listeners.add(listener);
+            subscriptionsChanged();
         }
     }
 
@@ -54,20 +83,61 @@ public class DefaultHub implements Hub
      */
     public boolean unsubscribe(String topicName, MessageListener listener)
     {
-        synchronized (subscriptions)
+        synchronized (writeLock)
         {
             boolean unsubscribed = false;
 
-            Set<MessageListener> listeners = subscriptions.get(topicName);
-            if (listeners != null)
+            if (isPattern(topicName))
             {
-                unsubscribed = listeners.remove(listener);
-                if (listeners.isEmpty())
+                List<TopicNode> path = new ArrayList<TopicNode>();
+                TopicNode node = patterns;
+                for (String segment : split(topicName))
                 {
-                    subscriptions.remove(topicName);
+                    path.add(node);
+                    node = node.children.get(segment);
+                    if (node == null)
+                    {
+                        return false;
+                    }
+                }
+
+                MessageListener[] updated = remove(node.listeners, listener);
+                if (updated != node.listeners)
+                {
+                    node.listeners = updated;
+                    patternCount--;
+                    unsubscribed = true;
+
+                    // Prune the branches that no longer lead anywhere
+                    for (int i = path.size() - 1; i >= 0 && node.isEmpty(); i--)
+                    {
+                        path.get(i).children.remove(node.segment);
+                        node = path.get(i);
+                    }
+                }
+            }
+            else
+            {
+                MessageListener[] current = exact.get(topicName);
+                MessageListener[] updated = remove(current, listener);
+                if (updated != current)
+                {
+                    unsubscribed = true;
+                    if (updated == null)
+                    {
+                        exact.remove(topicName);
+                    }
+                    else
+                    {
+                        exact.put(topicName, updated);
+                    }
                 }
             }
 
+            if (unsubscribed)
+            {
+                subscriptionsChanged();
+            }
             return unsubscribed;
         }
     }
@@ -77,38 +147,347 @@ public class DefaultHub implements Hub
      */
     public void publish(String topicName, Object data)
     {
-        // First clone the list of subscriptions
-        Set<MessageListener> listeners;
-        synchronized (subscriptions)
+        MessageListener[] listeners = getListeners(topicName);
+        if (listeners == null || listeners.length == 0)
         {
-            Set<MessageListener> current = subscriptions.get(topicName);
-            if (current == null)
+            return;
+        }
+
+        // Events are immutable so one will do for everyone
+        MessageEvent event = createEvent(data);
+
+        // Then tell everyone about the message
+        for (MessageListener listener : listeners)
+        {
+            listener.onMessage(event);
+        }
+    }
+
+    /**
+     * Find the listeners to notify of a publish to the given topic.
+     * @param topicName The topic being published to
+     * @return The listeners to notify, which must not be altered. null or an
+     * empty array if there are none.
+     */
+    protected MessageListener[] getListeners(String topicName)
+    {
+        if (patternCount == 0)
+        {
+            return exact.get(topicName);
+        }
+        else
+        {
+            return getMatchingListeners(topicName);
+        }
+    }
+
+    /**
+     * Wrap published data in an event, unless it is one already
+     * @param data The data that was published
+     * @return An event to pass to the listeners
+     */
+    protected MessageEvent createEvent(Object data)
+    {
+        if (data instanceof MessageEvent)
+        {
+            return (MessageEvent) data;
+        }
+        else
+        {
+            return new DefaultMessageEvent(this, data);
+        }
+    }
+
+    /**
+     * Find all the listeners for a topic, including those from wildcard
+     * subscriptions, using the cache of previous answers if we can.
+     * @param topicName The topic being published to
+     * @return The listeners to notify, never null
+     */
+    protected MessageListener[] getMatchingListeners(String topicName)
+    {
+        MessageListener[] listeners = matches.get(topicName);
+        if (listeners != null)
+        {
+            return listeners;
+        }
+
+        int version = subscriptionVersion;
+
+        Set<MessageListener> found = new LinkedHashSet<MessageListener>();
+        MessageListener[] direct = exact.get(topicName);
+        if (direct != null)
+        {
+            Collections.addAll(found, direct);
+        }
+        patterns.match(topicName, 0, found);
+        listeners = found.toArray(new MessageListener[found.size()]);
+
+        // Only remember the answer if the subscriptions did not change while
+        // we were working it out. If they change after we check then the
+        // writer will clear the cache anyway.
+        if (matches.size() < MAX_CACHED_MATCHES && version == subscriptionVersion)
+        {
+            matches.put(topicName, listeners);
+            if (version != subscriptionVersion)
+            {
+                matches.remove(topicName);
+            }
+        }
+
+        return listeners;
+    }
+
+    /**
+     * Called with the writeLock held whenever a subscription is added or
+     * removed so any cached pattern matches get thrown away.
+     */
+    private void subscriptionsChanged()
+    {
+        subscriptionVersion++;
+        matches.clear();
+    }
+
+    /**
+     * Does this topic name contain wildcards?
+     */
+    private static boolean isPattern(String topicName)
+    {
+        if (topicName.indexOf('*') == -1)
+        {
+            return false;
+        }
+
+        String[] segments = split(topicName);
+        boolean pattern = false;
+        for (int i = 0; i < segments.length; i++)
+        {
+            String segment = segments[i];
+            if (segment.equals(MULTI_WILDCARD))
+            {
+                if (i != segments.length - 1)
+                {
+                    throw new IllegalArgumentException("'" + MULTI_WILDCARD + "' is only allowed as the last segment of a topic: " + topicName);
+                }
+                pattern = true;
+            }
+            else if (segment.equals(SINGLE_WILDCARD))
+            {
+                pattern = true;
+            }
+        }
+
+        return pattern;
+    }
+
+    /**
+     * Split a topic name into segments
+     */
+    private static String[] split(String topicName)
+    {
+        return topicName.split("\\.", -1);
+    }
+
+    /**
+     * Create a copy of an array of listeners with one more listener
+     * @return The original array if the listener is already there
+     */
+    private static MessageListener[] add(MessageListener[] listeners, MessageListener listener)
+    {
+        if (listeners == null)
+        {
+            return new MessageListener[] { listener };
+        }
+
+        for (MessageListener existing : listeners)
+        {
+            if (existing.equals(listener))
+            {
+                return listeners;
+            }
+        }
+
+        MessageListener[] updated = new MessageListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        return updated;
+    }
+
+    /**
+     * Create a copy of an array of listeners with a listener removed
+     * @return The original array if the listener was not there, or null if
+     * there are no listeners left
+     */
+    private static MessageListener[] remove(MessageListener[] listeners, MessageListener listener)
+    {
+        if (listeners == null)
+        {
+            return null;
+        }
+
+        for (int i = 0; i < listeners.length; i++)
+        {
+            if (listeners[i].equals(listener))
+            {
+                if (listeners.length == 1)
+                {
+                    return null;
+                }
+
+                MessageListener[] updated = new MessageListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, updated, 0, i);
+                System.arraycopy(listeners, i + 1, updated, i, listeners.length - i - 1);
+                return updated;
+            }
+        }
+
+        return listeners;
+    }
+
+    /**
+     * A node in the trie of wildcard subscriptions. Each node represents one
+     * segment of a topic pattern.
+     */
+    private static class TopicNode
+    {
+        TopicNode(String segment)
+        {
+            this.segment = segment;
+        }
+
+        /**
+         * Called with the writeLock held
+         */
+        TopicNode getOrCreateChild(String childSegment)
+        {
+            TopicNode child = children.get(childSegment);
+            if (child == null)
+            {
+                child = new TopicNode(childSegment);
+                children.put(childSegment, child);
+            }
+            return child;
+        }
+
+        /**
+         * Can this node be removed from its parent?
+         */
+        boolean isEmpty()
+        {
+            return listeners == null && children.isEmpty();
+        }
+
+        /**
+         * Add the listeners of all the patterns below this node that match
+         * the rest of the topic name.
+         * @param topicName The topic being published to
+         * @param start The start of the segment in topicName that we match
+         * @param found The set to add matching listeners to
+         */
+        void match(String topicName, int start, Set<MessageListener> found)
+        {
+            if (children.isEmpty())
             {
                 return;
             }
 
-            listeners = new HashSet<MessageListener>();
-            listeners.addAll(current);
+            int end = topicName.indexOf('.', start);
+            boolean last = end == -1;
+            String segment = topicName.substring(start, last ? topicName.length() : end);
+
+            matchChild(children.get(segment), topicName, end, last, found);
+            matchChild(children.get(SINGLE_WILDCARD), topicName, end, last, found);
+
+            TopicNode rest = children.get(MULTI_WILDCARD);
+            if (rest != null && rest.listeners != null)
+            {
+                Collections.addAll(found, rest.listeners);
+            }
         }
 
-        // Then tell everyone about the message
-        for (MessageListener listener : listeners)
+        private static void matchChild(TopicNode child, String topicName, int end, boolean last, Set<MessageListener> found)
         {
-            MessageEvent event;
-            if (data instanceof MessageEvent)
+            if (child == null)
+            {
+                return;
+            }
+
+            if (last)
             {
-                event = (MessageEvent) data;
+                if (child.listeners != null)
+                {
+                    Collections.addAll(found, child.listeners);
+                }
             }
             else
             {
-                event = new DefaultMessageEvent(this, data);
+                child.match(topicName, end + 1, found);
             }
-            listener.onMessage(event);
         }
+
+        /**
+         * The segment of the topic pattern that this node matches
+         */
+        final String segment;
+
+        /**
+         * The nodes for the following segment
+         */
+        final ConcurrentMap<String, TopicNode> children = new ConcurrentHashMap<String, TopicNode>();
+
+        /**
+         * The listeners subscribed to the pattern that ends at this node.
+         * Replaced, never changed, so it can be iterated without locking.
+         */
+        volatile MessageListener[] listeners;
     }
 
     /**
-     * The cache of current subscriptions
+     * A segment that matches any single segment
+     */
+    private static final String SINGLE_WILDCARD = "*";
+
+    /**
+     * A final segment that matches any number of segments
+     */
+    private static final String MULTI_WILDCARD = "**";
+
+    /**
+     * We don't want an unbounded cache when people publish to a large
+     * number of distinct topics
+     */
+    private static final int MAX_CACHED_MATCHES = 10000;
+
+    /**
+     * Subscriptions to plain topic names. The listener arrays are replaced,
+     * never changed, so they can be iterated without locking.
+     */
+    private final ConcurrentMap<String, MessageListener[]> exact = new ConcurrentHashMap<String, MessageListener[]>();
+
+    /**
+     * The root of the trie of wildcard subscriptions
+     */
+    private final TopicNode patterns = new TopicNode("");
+
+    /**
+     * The number of wildcard subscriptions
+     */
+    private volatile int patternCount = 0;
+
+    /**
+     * When there are wildcard subscriptions, the listeners for each topic that
+     * has been published to. Cleared when any subscription changes.
+     */
+    private final ConcurrentMap<String, MessageListener[]> matches = new ConcurrentHashMap<String, MessageListener[]>();
+
+    /**
+     * Incremented whenever a subscription changes so we don't cache out of
+     * date matches.
+     */
+    private volatile int subscriptionVersion = 0;
+
+    /**
+     * Held by anyone altering the subscriptions
      */
-    private final Map<String, Set<MessageListener>> subscriptions = new HashMap<String, Set<MessageListener>>();
+    private final Object writeLock = new Object();
 }
@@ -26,6 +26,7 @@ import org.apache.commons.logging.LogFactory;
 import org.directwebremoting.WebContextFactory;
 import org.directwebremoting.extend.AccessControl;
 import org.directwebremoting.extend.Call;
+import org.directwebremoting.extend.CallMetrics;
 import org.directwebremoting.extend.Calls;
 import org.directwebremoting.extend.ConverterManager;
 import org.directwebremoting.extend.EnginePrivate;
@@ -306,12 +307,20 @@ public class DefaultRemoter implements Remoter
             throw new SecurityException("Call count for batch is too high");
         }
 
+        CallMetrics metrics = getEnabledCallMetrics();
+        long start = metrics == null ? 0 : System.nanoTime();
+
         for (Call call : calls)
         {
             Reply reply = execute(call);
             replies.addReply(reply);
         }
 
+        if (metrics != null)
+        {
+            metrics.stageCompleted(CallMetrics.Stage.EXECUTE, System.nanoTime() - start);
+        }
+
         return replies;
     }
 
@@ -321,6 +330,33 @@ public class DefaultRemoter implements Remoter
      * @return A Reply to the Call
      */
     public Reply execute(Call call)
+    {
+        CallMetrics metrics = getEnabledCallMetrics();
+        if (metrics == null)
+        {
+            return execute(call, null);
+        }
+
+        long start = System.nanoTime();
+        Reply reply = execute(call, metrics);
+
+        // Calls that don't resolve to a method could have any name, so we
+        // don't let them create per-method metrics
+        if (call.getMethodDeclaration() != null)
+        {
+            metrics.methodCompleted(call.getScriptName(), call.getMethodName(), System.nanoTime() - start, reply.getThrowable() != null);
+        }
+
+        return reply;
+    }
+
+    /**
+     * Execute a single call object, timing the filter chain
+     * @param call The call to execute
+     * @param metrics Where to report how long the filter chain took, or null
+     * @return A Reply to the Call
+     */
+    private Reply execute(Call call, CallMetrics metrics)
     {
         try
         {
@@ -355,9 +391,20 @@ public class DefaultRemoter implements Remoter
                 Loggers.ACCESS.info(buffer.toString());
             }
 
-            Object reply = module.executeMethod(method, call.getParameters());
+            long start = metrics == null ? 0 : System.nanoTime();
+            try
+            {
+                Object reply = module.executeMethod(method, call.getParameters());
 
-            return new Reply(call.getCallId(), reply);
+                return new Reply(call.getCallId(), reply);
+            }
+            finally
+            {
+                if (metrics != null)
+                {
+                    metrics.stageCompleted(CallMetrics.Stage.FILTER_CHAIN, System.nanoTime() - start);
+                }
+            }
         }
         catch (SecurityException ex)
         {
@@ -495,6 +542,23 @@ public class DefaultRemoter implements Remoter
         this.maxCallCount = maxCallCount;
     }
 
+    /**
+     * Where we report how long calls take
+     * @param callMetrics The new CallMetrics
+     */
+    public void setCallMetrics(CallMetrics callMetrics)
+    {
+        this.callMetrics = callMetrics;
+    }
+
+    /**
+     * @return The CallMetrics to report to, or null if metrics are disabled
+     */
+    protected CallMetrics getEnabledCallMetrics()
+    {
+        return callMetrics != null && callMetrics.isEnabled() ? callMetrics : null;
+    }
+
     /**
      * Set the debug status
      * @param debug The new debug setting
@@ -555,6 +619,11 @@ public class DefaultRemoter implements Remoter
      */
     protected int maxCallCount = 20;
 
+    /**
+     * Where we report how long calls take
+     */
+    protected CallMetrics callMetrics = null;
+
     /**
      * The log stream
      */
@@ -16,16 +16,17 @@
 package org.directwebremoting.impl;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -188,77 +189,32 @@ public class DefaultScriptSession implements RealScriptSession
         {
             throw new NullPointerException("null script");
         }
-        synchronized (this.scripts)
-        {
-            // First we try to add the script to an existing conduit
-            if (conduits.isEmpty())
-            {
-                boolean written = false;
-
-                // This would be an excellent solution to the connection limit
-                // problem, however browsers are extending their limits, and
-                // we don't have inter-window communication sorted yet.
-                // If we do sort out I-W comms, then uncomment this, add a
-                // member: private String httpSessionId;
-                // which is passed into the constructor from the Manager
-
-                /*
-                // Are there any other script sessions in the same browser
-                // that could proxy the script for us?
-                Collection<RealScriptSession> sessions = manager.getScriptSessionsByHttpSessionId(httpSessionId);
-                ScriptBuffer proxyScript = EnginePrivate.createForeignWindowProxy(getWindowName(), script);
-
-                for (Iterator<RealScriptSession> it = sessions.iterator(); !written && it.hasNext();)
-                {
-                    RealScriptSession session = it.next();
-                    written = session.addScriptImmediately(proxyScript);
-                }
-                */
 
-                if (!written)
-                {
-                    scripts.add(script);
-                }
-            }
-            else
-            {
-                // Try all the conduits, starting with the first
-                boolean written = false;
-                // The conduit.addScript call is an external call which eventually makes its way back here
-                // and into the removeScriptConduit method.  Since removeScriptConduit may modify the conduits
-                // collection we need to make a protective copy here to prevent ConcurrentModExceptions.
-                List<ScriptConduit> conduitsList;
-                synchronized (conduits)
-                {
-                    conduitsList = new ArrayList<ScriptConduit>(conduits);
-                } // lock synchronized wrapper
+        // This would be an excellent solution to the connection limit
+        // problem, however browsers are extending their limits, and
+        // we don't have inter-window communication sorted yet.
+        // If we do sort out I-W comms, then uncomment this, add a
+        // member: private String httpSessionId;
+        // which is passed into the constructor from the Manager
 
-                for (ScriptConduit conduit : conduitsList)
-                {
-                    try
-                    {
-                        written = conduit.addScript(script);
-                    }
-                    catch (Exception ex)
-                    {
-                        conduits.remove(conduit);
-                        log.debug("Failed to write to ScriptConduit, removing conduit from list: " + conduit);
-                    }
-                    finally
-                    {
-                        if (written)
-                        {
-                            break;
-                        }
-                    }
-                }
+        /*
+        // Are there any other script sessions in the same browser
+        // that could proxy the script for us?
+        Collection<RealScriptSession> sessions = manager.getScriptSessionsByHttpSessionId(httpSessionId);
+        ScriptBuffer proxyScript = EnginePrivate.createForeignWindowProxy(getWindowName(), script);
 
-                if (!written)
-                {
-                    scripts.add(script);
-                }
-            }
+        for (Iterator<RealScriptSession> it = sessions.iterator(); !written && it.hasNext();)
+        {
+            RealScriptSession session = it.next();
+            written = session.addScriptImmediately(proxyScript);
         }
+        */
+
+        // We always queue first so the order in which scripts reach the
+        // browser is the order in which they were added. Whoever owns the
+        // conduits (maybe us) then passes the queue on.
+        scripts.offer(script);
+        drainToConduits();
     }
 
     /* (non-Javadoc)
@@ -275,15 +231,12 @@ public class DefaultScriptSession implements RealScriptSession
     public int countPersistentConnections()
     {
         int persistentConnections = 0;
-        // synchronized collections can throw exceptions when being iterated through without manual synchronization.
-        synchronized (this.conduits)
+        // conduits is copy-on-write so iteration works on a stable snapshot
+        for (ScriptConduit conduit : conduits)
         {
-            for (ScriptConduit conduit : conduits)
+            if (conduit.isHoldingConnectionToBrowser())
             {
-                if (conduit.isHoldingConnectionToBrowser())
-                {
-                    persistentConnections++;
-                }
+                persistentConnections++;
             }
         }
         return persistentConnections;
@@ -295,11 +248,31 @@ public class DefaultScriptSession implements RealScriptSession
     public void addScriptConduit(ScriptConduit conduit) throws IOException
     {
         invalidateIfNeeded();
-        synchronized (this.scripts)
+        drainLock.lock();
+        try
         {
-            writeScripts(conduit);
-            conduits.add(conduit);
+            writeScriptsToConduit(conduit);
+
+            synchronized (conduits)
+            {
+                // Keep the list in rank order. The list is copy-on-write so
+                // changing it is expensive, but conduits come and go once per
+                // poll where scripts can arrive thousands of times a second
+                int index = Collections.binarySearch(conduits, conduit);
+                if (index < 0)
+                {
+                    conduits.add(-(index + 1), conduit);
+                }
+            }
+        }
+        finally
+        {
+            drainLock.unlock();
         }
+
+        // Anyone that added a script while we held the lock will have left it
+        // in the queue for us to pass on.
+        drainToConduits();
     }
 
     /* (non-Javadoc)
@@ -308,32 +281,17 @@ public class DefaultScriptSession implements RealScriptSession
     public void writeScripts(ScriptConduit conduit) throws IOException
     {
         invalidateIfNeeded();
-        // synchronized collections can throw exceptions when being iterated through without manual synchronization.
-        synchronized (this.scripts)
+        drainLock.lock();
+        try
         {
-            for (Iterator<ScriptBuffer> it = scripts.iterator(); it.hasNext();)
-            {
-                ScriptBuffer script = it.next();
-
-                try
-                {
-                    if (conduit.addScript(script))
-                    {
-                        it.remove();
-                    }
-                    else
-                    {
-                        // If we didn't write this one, don't bother with any more
-                        break;
-                    }
-                }
-                catch (ConversionException ex)
-                {
-                    log.error("Failed to convert data. Dropping Javascript: " + script, ex);
-                    it.remove();
-                }
-            }
+            writeScriptsToConduit(conduit);
         }
+        finally
+        {
+            drainLock.unlock();
+        }
+
+        drainToConduits();
     }
 
     /* (non-Javadoc)
@@ -342,14 +300,16 @@ public class DefaultScriptSession implements RealScriptSession
     public void removeScriptConduit(ScriptConduit conduit)
     {
         invalidateIfNeeded();
-        synchronized (this.scripts)
+        boolean removed;
+        synchronized (conduits)
         {
-            boolean removed = conduits.remove(conduit);
-            if (!removed)
-            {
-                log.debug("removeScriptConduit called with ScriptConduit not in our list. conduit=" + conduit);
-                debug();
-            }
+            removed = conduits.remove(conduit);
+        }
+
+        if (!removed)
+        {
+            log.debug("removeScriptConduit called with ScriptConduit not in our list. conduit=" + conduit);
+            debug();
         }
     }
 
@@ -358,9 +318,123 @@ public class DefaultScriptSession implements RealScriptSession
      */
     public boolean hasWaitingScripts()
     {
-        synchronized (this.scripts)
+        return !scripts.isEmpty();
+    }
+
+    /**
+     * Pass queued scripts to the registered conduits, provided that nobody
+     * else is already doing so.
+     * <p>This never blocks: if another thread owns the queue then it will
+     * notice our script when it next looks at the queue. If we are being
+     * called back from inside a conduit that we are already writing to, then
+     * the outer loop will pick the script up.
+     */
+    protected void drainToConduits()
+    {
+        while (!scripts.isEmpty() && !conduits.isEmpty())
+        {
+            if (drainLock.isHeldByCurrentThread() || !drainLock.tryLock())
+            {
+                return;
+            }
+
+            boolean refused;
+            try
+            {
+                refused = writeScriptsToConduits();
+            }
+            finally
+            {
+                drainLock.unlock();
+            }
+
+            // If nobody would take the head of the queue then there is no
+            // point in retrying until a conduit comes or goes. Otherwise we
+            // look again because anyone that added a script while we held the
+            // lock will have left it for us.
+            if (refused)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write as many of the queued scripts as possible to the registered
+     * conduits, in rank order.
+     * <p>Must be called holding {@link #drainLock}, which ensures that only
+     * one thread removes from the queue.
+     * @return true if every conduit refused the script at the head of the
+     * queue, false if we emptied the queue
+     */
+    private boolean writeScriptsToConduits()
+    {
+        ScriptBuffer script;
+        while ((script = scripts.peek()) != null)
+        {
+            boolean written = false;
+            for (ScriptConduit conduit : conduits)
+            {
+                try
+                {
+                    written = conduit.addScript(script);
+                }
+                catch (ConversionException ex)
+                {
+                    log.error("Failed to convert data. Dropping Javascript: " + script, ex);
+                    written = true;
+                }
+                catch (Exception ex)
+                {
+                    synchronized (conduits)
+                    {
+                        conduits.remove(conduit);
+                    }
+                    log.debug("Failed to write to ScriptConduit, removing conduit from list: " + conduit);
+                }
+
+                if (written)
+                {
+                    break;
+                }
+            }
+
+            if (!written)
+            {
+                return true;
+            }
+
+            scripts.poll();
+        }
+
+        return false;
+    }
+
+    /**
+     * Write as many of the queued scripts as possible to a single conduit.
+     * <p>Must be called holding {@link #drainLock}.
+     * @param conduit The conduit to write to
+     * @throws IOException If the conduit is broken
+     */
+    private void writeScriptsToConduit(ScriptConduit conduit) throws IOException
+    {
+        ScriptBuffer script;
+        while ((script = scripts.peek()) != null)
         {
-            return !scripts.isEmpty();
+            try
+            {
+                if (!conduit.addScript(script))
+                {
+                    // If we didn't write this one, don't bother with any more
+                    break;
+                }
+            }
+            catch (ConversionException ex)
+            {
+                log.error("Failed to convert data. Dropping Javascript: " + script, ex);
+            }
+
+            scripts.poll();
         }
     }
 
@@ -500,16 +574,27 @@ public class DefaultScriptSession implements RealScriptSession
     private volatile boolean invalidated = false;
 
     /**
-     * The script conduits that we can use to transfer data to the browser.
-     * <p>GuardedBy("self") for iteration and compound actions.
+     * The script conduits that we can use to transfer data to the browser,
+     * sorted by rank.
+     * <p>Copy-on-write so it can be iterated without locking.
+     * GuardedBy("self") for changes, so they keep the rank order.
+     */
+    protected final List<ScriptConduit> conduits = new CopyOnWriteArrayList<ScriptConduit>();
+
+    /**
+     * The queue of waiting scripts.
+     * <p>Any thread may add to the queue, but only the holder of
+     * {@link #drainLock} may take from it.
      */
-    protected final SortedSet<ScriptConduit> conduits = Collections.synchronizedSortedSet(new TreeSet<ScriptConduit>());
+    protected final Queue<ScriptBuffer> scripts = new ConcurrentLinkedQueue<ScriptBuffer>();
 
     /**
-     * The list of waiting scripts.
-     * <p>GuardedBy("self") for iteration and compound actions.
+     * Ownership of the consuming end of {@link #scripts}.
+     * <p>Threads pushing scripts only ever try for this lock, so they never
+     * wait for a poll thread that is writing to a slow browser. Only threads
+     * that need to write to a particular conduit wait for it.
      */
-    protected final List<ScriptBuffer> scripts = Collections.synchronizedList(new ArrayList<ScriptBuffer>());
+    protected final ReentrantLock drainLock = new ReentrantLock();
 
     /**
      * What is our page session id?
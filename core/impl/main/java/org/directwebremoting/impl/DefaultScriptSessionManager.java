@@ -64,7 +64,7 @@ public class DefaultScriptSessionManager implements ScriptSessionManager, Initia
             }
         };
 
-        future = executor.scheduleWithFixedDelay(runnable, 60, 60, TimeUnit.SECONDS);
+        future = executor.scheduleWithFixedDelay(runnable, scriptSessionCheckTime, scriptSessionCheckTime, TimeUnit.MILLISECONDS);
     }
 
     /* (non-Javadoc)
@@ -104,7 +104,11 @@ public class DefaultScriptSessionManager implements ScriptSessionManager, Initia
             {
                 scriptSession = createScriptSession(sentScriptId, page);
                 Loggers.SESSION.debug("Creating " + scriptSession + " on " + scriptSession.getPage());
-                sessionMap.putIfAbsent(sentScriptId, scriptSession);
+                DefaultScriptSession existing = sessionMap.putIfAbsent(sentScriptId, scriptSession);
+                if (existing == null)
+                {
+                    expiryIndex.add(scriptSession);
+                }
                 // See notes on synchronization in invalidate()
                 fireScriptSessionCreatedEvent(scriptSession);
             }
@@ -112,7 +116,9 @@ public class DefaultScriptSessionManager implements ScriptSessionManager, Initia
             {
                 // This could be called from a poll or an rpc call, so this is a
                 // good place to update the session access time
+                long previousAccessedTime = scriptSession.getLastAccessedTime();
                 scriptSession.updateLastAccessedTime();
+                expiryIndex.update(scriptSession, previousAccessedTime);
 
                 String storedPage = scriptSession.getPage();
                 if (!storedPage.equals(page))
@@ -140,9 +146,11 @@ public class DefaultScriptSessionManager implements ScriptSessionManager, Initia
      * <p/>
      * In case you may decide to provide your own implementation, please be
      * aware of synchronization requirements for e.g.
-     * {@link org.directwebremoting.impl.DefaultScriptSession#scripts}. Synchronization
-     * examples can be found in
-     * {@link DefaultScriptSession#hasWaitingScripts()} or
+     * {@link org.directwebremoting.impl.DefaultScriptSession#scripts}, which
+     * may only be consumed by the holder of
+     * {@link org.directwebremoting.impl.DefaultScriptSession#drainLock}.
+     * Examples can be found in
+     * {@link DefaultScriptSession#drainToConduits()} or
      * {@link org.directwebremoting.impl.DefaultScriptSession#addScriptConduit(org.directwebremoting.extend.ScriptConduit)}.
      *
      * @param sentScriptId The script ID that was sent by the browser, and should
@@ -305,6 +313,7 @@ public class DefaultScriptSessionManager implements ScriptSessionManager, Initia
         // 'hasBeenInvalidated' flag, but we're taking the simple option
         // here of just allowing multiple invalidations.
         sessionMap.remove(scriptSession.getId());
+        expiryIndex.remove(scriptSession);
 
         disassociateScriptSessionAndPage(scriptSession);
         disassociateScriptSessionAndHttpSession(scriptSession);
@@ -331,15 +340,17 @@ public class DefaultScriptSessionManager implements ScriptSessionManager, Initia
     }
 
     /**
-     * Do a check on all the known sessions to see if and have timeout and need
-     * removing.
+     * Check the sessions that might have timed out and remove those that have.
+     * <p>We only look at the sessions that {@link #expiryIndex} says were last
+     * accessed before the timeout, so the cost depends on the number of
+     * sessions that expire and not on the number of sessions we have.
      */
     protected void checkTimeouts()
     {
         long now = System.currentTimeMillis();
-        List<ScriptSession> timeouts = new ArrayList<ScriptSession>();
+        ScriptSessionExpiryIndex index = expiryIndex;
 
-        for (DefaultScriptSession session : sessionMap.values())
+        for (DefaultScriptSession session : index.removeCandidates(now - scriptSessionTimeout))
         {
             if (session.isInvalidated())
             {
@@ -349,14 +360,13 @@ public class DefaultScriptSessionManager implements ScriptSessionManager, Initia
             long age = now - session.getLastAccessedTime();
             if (age > scriptSessionTimeout)
             {
-                timeouts.add(session);
+                session.invalidate();
+            }
+            else
+            {
+                // Accessed since it was indexed, or close to the threshold
+                index.add(session);
             }
-        }
-
-        for (ScriptSession scriptSession : timeouts)
-        {
-            DefaultScriptSession session = (DefaultScriptSession) scriptSession;
-            session.invalidate();
         }
     }
 
@@ -454,11 +464,20 @@ public class DefaultScriptSessionManager implements ScriptSessionManager, Initia
     protected PageNormalizer pageNormalizer;
 
     /**
-     * How often do we check for script sessions that need timing out
+     * How often do we check for script sessions that need timing out.
+     * <p>This is also the resolution of the index that we use to find expired
+     * sessions, so sessions live for at most this long past their timeout.
      */
     public void setScriptSessionCheckTime(long scriptSessionCheckTime)
     {
         this.scriptSessionCheckTime = scriptSessionCheckTime;
+
+        ScriptSessionExpiryIndex index = new ScriptSessionExpiryIndex(scriptSessionCheckTime);
+        for (DefaultScriptSession session : sessionMap.values())
+        {
+            index.add(session);
+        }
+        expiryIndex = index;
     }
 
     /**
@@ -466,6 +485,12 @@ public class DefaultScriptSessionManager implements ScriptSessionManager, Initia
      */
     protected long scriptSessionCheckTime = DEFAULT_SESSION_CHECK_TIME;
 
+    /**
+     * The sessions in {@link #sessionMap}, indexed by last access time.
+     * @see #setScriptSessionCheckTime(long)
+     */
+    protected volatile ScriptSessionExpiryIndex expiryIndex = new ScriptSessionExpiryIndex(DEFAULT_SESSION_CHECK_TIME);
+
     /**
      * How often do we check for script sessions that need timing out
      */
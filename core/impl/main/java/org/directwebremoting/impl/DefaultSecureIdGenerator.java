@@ -18,6 +18,9 @@ package org.directwebremoting.impl;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.directwebremoting.extend.IdGenerator;
 
@@ -25,43 +28,33 @@ import org.directwebremoting.extend.IdGenerator;
  * An id generator that generates secure (non-predictable) random strings
  * that are guaranteed to be unique for eternity within the scope of the
  * running server, as long as the real-time clock is not adjusted backwards.
+ * <p>Threads do not queue on a single random number source. There are a
+ * number of stripes (twice the number of processors, rounded up to a power of
+ * 2), each with its own {@link SecureRandom} and a pool of random bytes
+ * generated in advance. A thread takes bytes from the pool of the stripe that
+ * its id maps to. When a pool runs out it is swapped for a spare that is
+ * filled in the background, if we have been given an executor to do it.
+ * <p>Uniqueness comes from the timestamp and a count of ids generated in the
+ * same millisecond, which are shared by all the stripes and updated without
+ * locking.
  * @author Mike Wilson [mikewse at g mail dot com]
  */
 public class DefaultSecureIdGenerator implements IdGenerator
 {
     public DefaultSecureIdGenerator()
     {
-        // SecureRandom implements a cryptographically secure pseudo-random
-        // number generator (PRNG).
-        // We want Sun's SHA1 algorithm on all platforms.
-        // (see http://www.cigital.com/justiceleague/2009/08/14/proper-use-of-javas-securerandom/)
-
-        // Try Sun's SHA1
-        try
-        {
-            random = SecureRandom.getInstance("SHA1PRNG", "SUN");
-        }
-        catch (NoSuchAlgorithmException ex) { /* squelch */ }
-        catch (NoSuchProviderException ex) { /* squelch */ }
-
-        // Try any SHA1
-        try
+        int processors = Runtime.getRuntime().availableProcessors();
+        int count = 1;
+        while (count < processors * 2)
         {
-            if (random == null)
-            {
-                random = SecureRandom.getInstance("SHA1PRNG");
-            }
+            count <<= 1;
         }
-        catch (NoSuchAlgorithmException ex) { /* squelch */ }
 
-        // Fall back to default
-        if (random == null)
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++)
         {
-            random = new SecureRandom();
+            stripes[i] = new Stripe(createRandom());
         }
-
-        // Now seed the generator
-        reseed();
     }
 
     /**
@@ -72,98 +65,131 @@ public class DefaultSecureIdGenerator implements IdGenerator
      * @return A unique id string
      * @see org.directwebremoting.extend.IdGenerator#generate()
      */
-    public synchronized String generate()
+    public String generate()
     {
-        reseedIfNeeded();
-
-        // Generate 20 random bytes (160 bits)
+        // Take 20 random bytes (160 bits) from the pool of our stripe
         final byte[] bytes = new byte[20];
-        random.nextBytes(bytes);
-
-        // 64 character lookup table (= 2^6, 6 bits)
-        final char[] charmap = "1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ*$".toCharArray();
+        stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)].nextBytes(bytes);
 
         // First part of the id string is the lookup char of the lower 6
         // bits of each of the random bytes (20 bytes)
-        StringBuilder idbuf = new StringBuilder();
+        StringBuilder idbuf = new StringBuilder(40);
         for (byte b : bytes)
         {
-            idbuf.append(charmap[b & 0x3F]);
+            idbuf.append(CHARMAP[b & 0x3F]);
         }
 
         // Second part of the id string is the 64 bit timestamp converted
         // into as many 6 bit lookup chars as needed (variable length)
-        long time = System.currentTimeMillis();
-        long remainder = time;
+        long stamp = nextStamp();
+        long remainder = stamp >>> COUNT_BITS;
         while (remainder > 0)
         {
-            idbuf.append(charmap[(int) remainder & 0x3F]);
+            idbuf.append(CHARMAP[(int) remainder & 0x3F]);
             remainder = remainder >>> 6;
         }
 
         // If we have generated other ids during the same millisecond (same
         // millisecond could mean an up to 50 msec interval on some platforms
         // due to a coarse timer resolution) then ensure that we have no
-        // collisions ...
-        if (time == lastGenTime)
+        // collisions by adding a third delimited section (delimiter needed to
+        // avoid collisions due to sections two and three being of variable
+        // length) with an incremented number mapped to lookup chars
+        remainder = stamp & COUNT_MASK;
+        if (remainder > 0)
         {
-            // Add a third delimited section (delimiter needed to avoid
-            // collisions due to sections two and three being of variable
-            // length) with an incremented number mapped to lookup chars
             idbuf.append('-'); // delimiter
-            remainder = countSinceTimeChange;
             while (remainder > 0)
             {
-                idbuf.append(charmap[(int) remainder & 0x3F]);
+                idbuf.append(CHARMAP[(int) remainder & 0x3F]);
                 remainder = remainder >>> 6;
             }
         }
-        // ... otherwise reset to prepare the new millisecond
-        else
-        {
-            countSinceTimeChange = 0;
-        }
 
-        countSinceSeed++;
-        countSinceTimeChange++;
-        lastGenTime = time;
         return idbuf.toString();
     }
 
     /**
-     * Trigger reseed at desired intervals.
+     * Claim a timestamp and count that no other id has used
+     * @return The time in milliseconds shifted up by {@link #COUNT_BITS},
+     * plus the number of ids generated previously in the same millisecond
      */
-    protected void reseedIfNeeded()
+    private long nextStamp()
     {
-        boolean needReseed = false;
-
-        // Reseed if more than 15 minutes have passed since last reseed
-        long time = System.currentTimeMillis();
-        if (time - seedTime > 15 * 60 * 1000)
+        while (true)
         {
-            needReseed = true;
+            long last = lastStamp.get();
+            long time = System.currentTimeMillis();
+
+            long next;
+            if (time != last >>> COUNT_BITS)
+            {
+                next = time << COUNT_BITS;
+            }
+            else if ((last & COUNT_MASK) == COUNT_MASK)
+            {
+                // We've run out of counts for this millisecond, wait for the
+                // clock to move on
+                Thread.yield();
+                continue;
+            }
+            else
+            {
+                next = last + 1;
+            }
+
+            if (lastStamp.compareAndSet(last, next))
+            {
+                return next;
+            }
         }
+    }
+
+    /**
+     * Create a random number source for a stripe
+     */
+    protected SecureRandom createRandom()
+    {
+        // SecureRandom implements a cryptographically secure pseudo-random
+        // number generator (PRNG).
+        // We want Sun's SHA1 algorithm on all platforms.
+        // (see http://www.cigital.com/justiceleague/2009/08/14/proper-use-of-javas-securerandom/)
+        SecureRandom random = null;
 
-        // Reseed if more than 1000 ids have been generated
-        if (countSinceSeed > 1000)
+        // Try Sun's SHA1
+        try
         {
-            needReseed = true;
+            random = SecureRandom.getInstance("SHA1PRNG", "SUN");
         }
+        catch (NoSuchAlgorithmException ex) { /* squelch */ }
+        catch (NoSuchProviderException ex) { /* squelch */ }
 
-        if (needReseed)
+        // Try any SHA1
+        try
         {
-            reseed();
+            if (random == null)
+            {
+                random = SecureRandom.getInstance("SHA1PRNG");
+            }
+        }
+        catch (NoSuchAlgorithmException ex) { /* squelch */ }
 
-            // Update bookkeeping
-            seedTime = time;
-            countSinceSeed = 0;
+        // Fall back to default
+        if (random == null)
+        {
+            random = new SecureRandom();
         }
+
+        // Now seed the generator
+        reseed(random);
+        return random;
     }
 
     /**
-     * Set up entropy in random number generator
+     * Set up entropy in a random number generator
+     * @param random The random number source to reseed
      */
-    protected void reseed()
+    protected void reseed(SecureRandom random)
     {
         // We would really like to reseed using:
         //   random.setSeed(random.generateSeed(20));
@@ -176,27 +202,167 @@ public class DefaultSecureIdGenerator implements IdGenerator
     }
 
     /**
-     * The random number source
+     * Without an executor, pools are refilled by the thread that empties them
+     * @param executor The DWR provided shutdown system
+     */
+    public void setScheduledThreadPoolExecutor(ScheduledThreadPoolExecutor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * A random number source and the bytes we have taken from it in advance
+     */
+    private final class Stripe implements Runnable
+    {
+        /**
+         * @param random The random number source for this stripe
+         */
+        Stripe(SecureRandom random)
+        {
+            this.random = random;
+        }
+
+        /**
+         * Fill an array with bytes from the pool, refilling it if needed
+         * @param bytes The array to fill
+         */
+        synchronized void nextBytes(byte[] bytes)
+        {
+            if (position + bytes.length > pool.length)
+            {
+                pool = (spare != null) ? spare : fill();
+                spare = null;
+                position = 0;
+
+                if (executor != null && !refilling)
+                {
+                    try
+                    {
+                        executor.execute(this);
+                        refilling = true;
+                    }
+                    catch (RejectedExecutionException ex)
+                    {
+                        // We'll fill the pool ourselves next time
+                    }
+                }
+            }
+
+            System.arraycopy(pool, position, bytes, 0, bytes.length);
+            position += bytes.length;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        public void run()
+        {
+            byte[] filled = fill();
+            synchronized (this)
+            {
+                spare = filled;
+                refilling = false;
+            }
+        }
+
+        /**
+         * Take a pool's worth of bytes from the random number source,
+         * reseeding it first if it is time to.
+         * @return A new pool
+         */
+        private byte[] fill()
+        {
+            synchronized (random)
+            {
+                // Reseed if more than 15 minutes have passed since last reseed
+                // or if more than 1000 ids have been generated
+                long time = System.currentTimeMillis();
+                if (time - seedTime > 15 * 60 * 1000 || idsSinceSeed > 1000)
+                {
+                    reseed(random);
+                    seedTime = time;
+                    idsSinceSeed = 0;
+                }
+
+                byte[] filled = new byte[POOL_SIZE];
+                random.nextBytes(filled);
+                idsSinceSeed += POOL_SIZE / 20;
+                return filled;
+            }
+        }
+
+        /**
+         * The random number source
+         */
+        private final SecureRandom random;
+
+        /**
+         * The bytes that we are handing out
+         */
+        private byte[] pool = new byte[0];
+
+        /**
+         * The next unused byte in the pool
+         */
+        private int position = 0;
+
+        /**
+         * A full pool ready to replace the current one, or null
+         */
+        private byte[] spare = null;
+
+        /**
+         * Is the executor filling a spare pool?
+         */
+        private boolean refilling = false;
+
+        /**
+         * Timestamp from last seeding of random source
+         */
+        private long seedTime = System.currentTimeMillis();
+
+        /**
+         * Number of ids that could have been generated since last seeding of
+         * random source
+         */
+        private int idsSinceSeed = 0;
+    }
+
+    /**
+     * The random number sources, selected by thread id
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * The time and count of the last id, see {@link #nextStamp()}
+     */
+    private final AtomicLong lastStamp = new AtomicLong();
+
+    /**
+     * How we refill pools in the background
      */
-    protected SecureRandom random = null;
+    protected ScheduledThreadPoolExecutor executor = null;
 
     /**
-     * Number of ids generated since last seeding of random source
+     * The bits in a stamp used to count ids in the same millisecond. That
+     * leaves 44 bits for the time which takes us past the year 2500.
      */
-    protected int countSinceSeed = 0;
+    private static final int COUNT_BITS = 20;
 
     /**
-     * Timestamp from last seeding of random source
+     * The count part of a stamp
      */
-    protected long seedTime = 0;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
 
     /**
-     * Number of ids generated during the last same millisecond
+     * The number of random bytes we take from a SecureRandom in one go, enough
+     * for 64 ids
      */
-    protected int countSinceTimeChange = 0;
+    private static final int POOL_SIZE = 20 * 64;
 
     /**
-     * Timestamp from last id generation
+     * 64 character lookup table (= 2^6, 6 bits)
      */
-    protected long lastGenTime = 0;
+    private static final char[] CHARMAP = "1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ*$".toCharArray();
 }
@@ -0,0 +1,563 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.directwebremoting.event.MessageEvent;
+import org.directwebremoting.event.MessageListener;
+import org.directwebremoting.extend.UninitializingBean;
+
+/**
+ * A {@link org.directwebremoting.Hub} that tells listeners about publishes
+ * using a pool of threads, so a slow listener does not hold up the publisher.
+ * <p>Messages published to the same topic are delivered in the order that
+ * they were published, one at a time. Messages to different topics may be
+ * delivered in parallel.
+ * <p>The number of messages waiting to be delivered is bounded by
+ * {@link #setHubQueueCapacity(int)}. What happens when the bound is reached
+ * is decided by {@link #setHubOverflowPolicy(String)}.
+ * <p>To use it, set the init-param
+ * <code>org.directwebremoting.HubFactory$HubBuilder</code> to
+ * {@link ExecutorHubBuilder}. The hub is then visible in the container,
+ * including its queue depth and dispatch latency.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class ExecutorHub extends DefaultHub implements UninitializingBean
+{
+    /**
+     * What to do when a publish happens and the queue is full
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * Wait until there is space in the queue
+         */
+        BLOCK,
+
+        /**
+         * Discard the oldest message waiting for the same topic
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discard the message being published
+         */
+        DROP_NEWEST
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.DefaultHub#publish(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public void publish(String topicName, Object data)
+    {
+        MessageListener[] listeners = getListeners(topicName);
+        if (listeners == null || listeners.length == 0)
+        {
+            return;
+        }
+
+        published.incrementAndGet();
+        Delivery delivery = new Delivery(createEvent(data), listeners);
+
+        while (true)
+        {
+            TopicQueue queue = topics.get(topicName);
+            if (queue == null)
+            {
+                queue = new TopicQueue(topicName);
+                TopicQueue existing = topics.putIfAbsent(topicName, queue);
+                if (existing != null)
+                {
+                    queue = existing;
+                }
+            }
+
+            // Reserving space might have meant waiting, or dropping something
+            // from this queue, so we check if the queue is still live after
+            if (!reserve(queue, delivery))
+            {
+                dropped.incrementAndGet();
+                return;
+            }
+
+            if (queue.offer(delivery))
+            {
+                queueDepth.incrementAndGet();
+                queue.schedule();
+                return;
+            }
+
+            // The queue was retired in the meantime, try a new one
+            release(delivery);
+        }
+    }
+
+    /**
+     * Make space in the queue for a delivery according to the overflow policy
+     * @param queue The queue for the topic being published to
+     * @param delivery The delivery that needs space
+     * @return false if the delivery should be discarded
+     */
+    private boolean reserve(TopicQueue queue, Delivery delivery)
+    {
+        Semaphore current = permits;
+        if (current.tryAcquire())
+        {
+            delivery.permits = current;
+            return true;
+        }
+
+        // Listeners that publish must not wait for themselves to finish, so
+        // they are allowed to go over the limit
+        if (DISPATCHING.get() == Boolean.TRUE)
+        {
+            return true;
+        }
+
+        switch (overflowPolicy)
+        {
+        case BLOCK:
+            try
+            {
+                current.acquire();
+                delivery.permits = current;
+                return true;
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+        case DROP_OLDEST:
+            Delivery oldest = queue.pollOldest();
+            if (oldest == null)
+            {
+                return false;
+            }
+
+            queueDepth.decrementAndGet();
+            dropped.incrementAndGet();
+            delivery.permits = oldest.permits;
+            return true;
+
+        case DROP_NEWEST:
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Give back the space that a delivery was using in the queue
+     */
+    private static void release(Delivery delivery)
+    {
+        if (delivery.permits != null)
+        {
+            delivery.permits.release();
+            delivery.permits = null;
+        }
+    }
+
+    /**
+     * Tell all the listeners about a delivery
+     */
+    private void dispatch(Delivery delivery)
+    {
+        for (MessageListener listener : delivery.listeners)
+        {
+            try
+            {
+                listener.onMessage(delivery.event);
+            }
+            catch (RuntimeException ex)
+            {
+                log.warn("Error in MessageListener: " + listener, ex);
+            }
+        }
+
+        long latency = System.nanoTime() - delivery.published;
+        totalLatency.addAndGet(latency);
+        dispatched.incrementAndGet();
+
+        long max = maxLatency.get();
+        while (latency > max && !maxLatency.compareAndSet(max, latency))
+        {
+            max = maxLatency.get();
+        }
+    }
+
+    /**
+     * The messages waiting to be delivered for a single topic. At most one
+     * thread is delivering messages from a TopicQueue at any time.
+     */
+    private class TopicQueue implements Runnable
+    {
+        TopicQueue(String topicName)
+        {
+            this.topicName = topicName;
+        }
+
+        /**
+         * Add a delivery to the queue
+         * @return false if this queue has been retired and must not be used
+         */
+        synchronized boolean offer(Delivery delivery)
+        {
+            if (retired)
+            {
+                return false;
+            }
+
+            pending.offer(delivery);
+            return true;
+        }
+
+        /**
+         * Remove the oldest waiting delivery
+         */
+        Delivery pollOldest()
+        {
+            return pending.poll();
+        }
+
+        /**
+         * Make sure there is a thread delivering from this queue
+         */
+        void schedule()
+        {
+            if (scheduled.compareAndSet(false, true))
+            {
+                executor.execute(this);
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        public void run()
+        {
+            DISPATCHING.set(Boolean.TRUE);
+            try
+            {
+                // Deliver a batch, and then give other topics a chance
+                for (int i = 0; i < BATCH_SIZE; i++)
+                {
+                    Delivery delivery = pending.poll();
+                    if (delivery == null)
+                    {
+                        break;
+                    }
+
+                    queueDepth.decrementAndGet();
+                    release(delivery);
+                    dispatch(delivery);
+                }
+            }
+            finally
+            {
+                DISPATCHING.remove();
+                scheduled.set(false);
+            }
+
+            if (!pending.isEmpty())
+            {
+                schedule();
+            }
+            else
+            {
+                retireIfIdle();
+            }
+        }
+
+        /**
+         * Remove ourselves from the set of topics if there is nothing to do so
+         * we don't keep a queue for every topic ever published to.
+         */
+        private synchronized void retireIfIdle()
+        {
+            if (pending.isEmpty() && !scheduled.get())
+            {
+                retired = true;
+                topics.remove(topicName, this);
+            }
+        }
+
+        /**
+         * The topic that we deliver for
+         */
+        private final String topicName;
+
+        /**
+         * The deliveries waiting to happen
+         */
+        private final Queue<Delivery> pending = new ConcurrentLinkedQueue<Delivery>();
+
+        /**
+         * Is there a thread delivering from this queue?
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        /**
+         * Once retired a new TopicQueue must be created for the topic.
+         * <p>GuardedBy("this")
+         */
+        private boolean retired = false;
+    }
+
+    /**
+     * A message on its way to a set of listeners
+     */
+    private static class Delivery
+    {
+        Delivery(MessageEvent event, MessageListener[] listeners)
+        {
+            this.event = event;
+            this.listeners = listeners;
+        }
+
+        final MessageEvent event;
+        final MessageListener[] listeners;
+        final long published = System.nanoTime();
+
+        /**
+         * Where to give back the queue space that we hold, if any
+         */
+        volatile Semaphore permits;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.UninitializingBean#contextDestroyed()
+     */
+    public void contextDestroyed()
+    {
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.UninitializingBean#servletDestroyed()
+     */
+    public void servletDestroyed()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * How many threads deliver messages to listeners
+     * @param hubThreads The number of threads
+     */
+    public void setHubThreads(int hubThreads)
+    {
+        if (hubThreads < 1)
+        {
+            throw new IllegalArgumentException("hubThreads must be at least 1");
+        }
+
+        if (hubThreads > executor.getMaximumPoolSize())
+        {
+            executor.setMaximumPoolSize(hubThreads);
+            executor.setCorePoolSize(hubThreads);
+        }
+        else
+        {
+            executor.setCorePoolSize(hubThreads);
+            executor.setMaximumPoolSize(hubThreads);
+        }
+    }
+
+    /**
+     * How many messages can be waiting for delivery before the overflow
+     * policy applies. This should be set before anything is published.
+     * @param hubQueueCapacity The maximum number of waiting messages
+     */
+    public void setHubQueueCapacity(int hubQueueCapacity)
+    {
+        if (hubQueueCapacity < 1)
+        {
+            throw new IllegalArgumentException("hubQueueCapacity must be at least 1");
+        }
+
+        this.queueCapacity = hubQueueCapacity;
+        this.permits = new Semaphore(hubQueueCapacity);
+    }
+
+    /**
+     * What to do when the queue is full.
+     * @param hubOverflowPolicy One of the names in {@link OverflowPolicy}
+     */
+    public void setHubOverflowPolicy(String hubOverflowPolicy)
+    {
+        this.overflowPolicy = OverflowPolicy.valueOf(hubOverflowPolicy.trim().toUpperCase());
+    }
+
+    /**
+     * @return The number of messages waiting to be delivered
+     */
+    public int getQueueDepth()
+    {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return The maximum number of messages that can wait for delivery
+     */
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    /**
+     * @return The number of publishes that had at least one listener
+     */
+    public long getPublishedCount()
+    {
+        return published.get();
+    }
+
+    /**
+     * @return The number of messages delivered to their listeners
+     */
+    public long getDispatchedCount()
+    {
+        return dispatched.get();
+    }
+
+    /**
+     * @return The number of messages discarded because the queue was full
+     */
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * @return The mean time in milliseconds from publish until all the
+     * listeners had been told
+     */
+    public double getMeanDispatchLatency()
+    {
+        long count = dispatched.get();
+        if (count == 0)
+        {
+            return 0;
+        }
+        return totalLatency.get() / (count * 1000000.0);
+    }
+
+    /**
+     * @return The longest time in milliseconds from publish until all the
+     * listeners had been told
+     */
+    public double getMaxDispatchLatency()
+    {
+        return maxLatency.get() / 1000000.0;
+    }
+
+    /**
+     * How many messages does a thread deliver for a topic before letting
+     * other topics have a go
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Set on the threads that are delivering messages
+     */
+    private static final ThreadLocal<Boolean> DISPATCHING = new ThreadLocal<Boolean>();
+
+    /**
+     * The threads that deliver messages. The tasks are topics with waiting
+     * messages so the task queue does not need a bound.
+     */
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+
+    /**
+     * The queue for each topic that has messages waiting
+     */
+    private final ConcurrentMap<String, TopicQueue> topics = new ConcurrentHashMap<String, TopicQueue>();
+
+    /**
+     * Space in the queue
+     */
+    private volatile Semaphore permits = new Semaphore(DEFAULT_QUEUE_CAPACITY);
+
+    /**
+     * @see #setHubQueueCapacity(int)
+     */
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /**
+     * @see #setHubOverflowPolicy(String)
+     */
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    /**
+     * @see #getQueueDepth()
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /**
+     * @see #getPublishedCount()
+     */
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * @see #getDispatchedCount()
+     */
+    private final AtomicLong dispatched = new AtomicLong();
+
+    /**
+     * @see #getDroppedCount()
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Sum of the dispatch latencies in nanoseconds
+     */
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    /**
+     * Longest dispatch latency in nanoseconds
+     */
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * The default number of threads
+     */
+    private static final int DEFAULT_THREADS = 4;
+
+    /**
+     * The default number of messages that can be waiting
+     */
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /**
+     * The log stream
+     */
+    private static final Log log = LogFactory.getLog(ExecutorHub.class);
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.impl;
+
+import org.directwebremoting.Container;
+import org.directwebremoting.Hub;
+import org.directwebremoting.HubFactory.HubBuilder;
+
+/**
+ * A Builder that creates ExecutorHubs.
+ * <p>The hub is added to the container so that it is shut down with
+ * everything else, and so its statistics show up alongside the other beans.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class ExecutorHubBuilder extends DefaultBuilder<Hub> implements HubBuilder
+{
+    /**
+     * Initialize the DefaultBuilder with type of object to create
+     */
+    public ExecutorHubBuilder()
+    {
+        super(ExecutorHub.class);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.DefaultBuilder#attach(org.directwebremoting.Container)
+     */
+    @Override
+    public Hub attach(Container container)
+    {
+        Hub hub = super.attach(container);
+        if (container instanceof DefaultContainer)
+        {
+            ((DefaultContainer) container).addBean(Hub.class, hub);
+        }
+        return hub;
+    }
+}
@@ -16,28 +16,32 @@
 package org.directwebremoting.impl;
 
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.directwebremoting.Container;
+import org.directwebremoting.extend.DiskFileTransfer;
 import org.directwebremoting.extend.DownloadManager;
 import org.directwebremoting.extend.InitializingBean;
 import org.directwebremoting.io.FileTransfer;
-import org.directwebremoting.io.InputStreamFactory;
 import org.directwebremoting.io.OutputStreamLoader;
 import org.directwebremoting.util.LocalUtil;
 
 /**
  * A {@link DownloadManager} that stores the files on disk.
  * This implementation has the advantage that does not require large amounts of
- * memory, however some writable disk must be available, and
+ * memory, however some writable disk must be available.
+ * <p>Files are spread over a number of sub-directories so no one directory
+ * gets too large, and we keep an index of the files in memory so finding and
+ * purging a download does not need a directory listing. The index is rebuilt
+ * from the disk at startup so downloads survive a restart.
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
 public class FileStoreDownloadManager extends PurgingDownloadManager implements DownloadManager, InitializingBean
@@ -78,6 +82,8 @@ public class FileStoreDownloadManager extends PurgingDownloadManager implements
                 }
             }
         }
+
+        rebuildIndex();
     }
 
     /* (non-Javadoc)
@@ -88,19 +94,29 @@ public class FileStoreDownloadManager extends PurgingDownloadManager implements
     {
         String filename = FILE_PREFIX
                         + PART_SEPARATOR
-                        + id
+                        + encode(id)
                         + PART_SEPARATOR
-                        + transfer.getMimeType().replace("/", ".")
+                        + encode(transfer.getMimeType())
                         + PART_SEPARATOR
-                        + transfer.getFilename();
+                        + encode(transfer.getFilename());
+
+        File shard = new File(downloadFileCache, getShardName(id));
+        if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory())
+        {
+            log.error("Failed to create download cache directory: " + shard);
+            return;
+        }
 
+        File file = new File(shard, filename);
         OutputStream out = null;
         OutputStreamLoader loader = null;
+        boolean written = false;
         try
         {
-            out = new FileOutputStream(new File(downloadFileCache, filename));
+            out = new FileOutputStream(file);
             loader = transfer.getOutputStreamLoader();
             loader.load(out);
+            written = true;
         }
         catch (IOException ex)
         {
@@ -111,87 +127,217 @@ public class FileStoreDownloadManager extends PurgingDownloadManager implements
             LocalUtil.close(loader);
             LocalUtil.close(out);
         }
+
+        if (written)
+        {
+            index.put(id, new StoredFile(file, transfer.getMimeType(), transfer.getFilename(), System.currentTimeMillis()));
+        }
+        else
+        {
+            file.delete();
+        }
     }
 
     /* (non-Javadoc)
      * @see org.directwebremoting.impl.PurgingDownloadManager#getFileTransfer(java.lang.String)
      */
-    public FileTransfer getFileTransfer(String id) throws FileNotFoundException
+    public FileTransfer getFileTransfer(String id)
     {
-        final String prefix = FILE_PREFIX + PART_SEPARATOR + id + PART_SEPARATOR;
+        StoredFile stored = index.get(id);
+        if (stored == null)
+        {
+            return null;
+        }
 
-        final File[] match = downloadFileCache.listFiles(new FileFilter()
+        // Someone else may have tidied up the directory
+        if (!stored.file.isFile())
         {
-            /* (non-Javadoc)
-             * @see java.io.FileFilter#accept(java.io.File, java.lang.String)
-             */
-            public boolean accept(File file)
+            index.remove(id, stored);
+            return null;
+        }
+
+        // Some download managers cause multiple downloads. Since space is less
+        // likely to be a problem on a disk, we wait until the purge process to
+        // run rather than deleting now.
+        return new DiskFileTransfer(stored.filename, stored.mimeType, stored.file);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.PurgingDownloadManager#purge()
+     */
+    @Override
+    protected void purge()
+    {
+        long now = System.currentTimeMillis();
+
+        for (Iterator<StoredFile> it = index.values().iterator(); it.hasNext();)
+        {
+            StoredFile stored = it.next();
+            if (now > stored.created + purgeDownloadsAfter)
             {
-                return file.getName().startsWith(prefix);
+                it.remove();
+                if (!stored.file.delete() && stored.file.exists())
+                {
+                    log.warn("Failed to delete expired download: " + stored.file);
+                }
             }
-        });
+        }
+    }
 
-        if (match.length == 0)
+    /**
+     * Read the download cache directory to find the files that were stored
+     * before we started.
+     */
+    protected void rebuildIndex()
+    {
+        File[] files = downloadFileCache.listFiles();
+        if (files == null)
         {
-            return null;
+            log.warn("Failed to read download cache: " + downloadFileCache);
+            return;
         }
 
-        if (match.length > 1)
+        for (File file : files)
         {
-            log.warn("More than 1 match for prefix: " + prefix + ". Using first.");
+            String name = file.getName();
+            if (file.isDirectory() && name.startsWith(SHARD_PREFIX))
+            {
+                File[] stored = file.listFiles();
+                if (stored != null)
+                {
+                    for (File inShard : stored)
+                    {
+                        indexFile(inShard, true);
+                    }
+                }
+            }
+            else if (file.isFile() && name.startsWith(FILE_PREFIX + PART_SEPARATOR))
+            {
+                // Files from before we used shards have unencoded names
+                indexFile(file, false);
+            }
         }
 
-        final File matched = match[0];
-        String[] parts = matched.getName().split(PART_SEPARATOR, 4);
+        log.debug("Found " + index.size() + " stored downloads in " + downloadFileCache);
+    }
 
-        // Parts 0 and 1 are the prefix and id. We know they're right
-        String mimeType = parts[2].replace(".", "/");
-        String filename = parts[3];
-        final InputStream in = new FileInputStream(matched);
+    /**
+     * Add a file found on disk to the index, if we understand its name
+     * @param file The file to index
+     * @param encoded Are the parts of the filename encoded?
+     */
+    private void indexFile(File file, boolean encoded)
+    {
+        String[] parts = file.getName().split(PART_SEPARATOR, 4);
+        if (parts.length != 4 || !parts[0].equals(FILE_PREFIX))
+        {
+            return;
+        }
 
-        return new FileTransfer(filename, mimeType, matched.length(), new InputStreamFactory()
+        try
         {
-            public InputStream getInputStream() throws IOException
-            {
-                return in;
-            }
+            // Part 0 is the prefix, which we know is right
+            String id = encoded ? decode(parts[1]) : parts[1];
+            String mimeType = encoded ? decode(parts[2]) : parts[2].replace(".", "/");
+            String filename = encoded ? decode(parts[3]) : parts[3];
 
-            public void close() throws IOException
-            {
-                LocalUtil.close(in);
+            index.putIfAbsent(id, new StoredFile(file, mimeType, filename, file.lastModified()));
+        }
+        catch (IllegalArgumentException ex)
+        {
+            log.warn("Ignoring unrecognized file in download cache: " + file);
+        }
+    }
 
-                // Some download managers cause multiple downloads. Since
-                // space is less likely to be a problem on a disk, we wait
-                // until the purge process to run rather than deleting now.
-                //matched.delete();
-            }
-        });
+    /**
+     * Work out which sub-directory to store a download in
+     * @param id The id of the download
+     * @return The name of a sub-directory of the download cache
+     */
+    private static String getShardName(String id)
+    {
+        int shard = (id.hashCode() & 0x7fffffff) % SHARD_COUNT;
+        return SHARD_PREFIX + HEX.charAt(shard >> 4) + HEX.charAt(shard & 0xf);
     }
 
-    /* (non-Javadoc)
-     * @see org.directwebremoting.impl.PurgingDownloadManager#purge()
+    /**
+     * Ids, mime-types and filenames can contain characters that are not safe
+     * in a filename, or that would be confused with {@link #PART_SEPARATOR},
+     * so we escape everything other than letters, digits and '.' as UTF-8
+     * bytes in the form _XX.
+     * @param part The part of the filename to encode
+     * @return A filename safe version of part
      */
-    @Override
-    protected void purge()
+    protected static String encode(String part)
     {
-        final long now = System.currentTimeMillis();
+        if (part == null)
+        {
+            return "";
+        }
 
-        final File[] match = downloadFileCache.listFiles(new FileFilter()
+        try
         {
-            /* (non-Javadoc)
-             * @see java.io.FileFilter#accept(java.io.File)
-             */
-            public boolean accept(File file)
+            StringBuilder buffer = new StringBuilder();
+            for (byte b : part.getBytes("UTF-8"))
             {
-                boolean nameMatch = file.getName().startsWith(FILE_PREFIX);
-                boolean oldEnough = now > file.lastModified() + purgeDownloadsAfter;
-                return nameMatch && oldEnough;
+                if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '.')
+                {
+                    buffer.append((char) b);
+                }
+                else
+                {
+                    buffer.append(ESCAPE).append(HEX.charAt((b >> 4) & 0xf)).append(HEX.charAt(b & 0xf));
+                }
             }
-        });
+            return buffer.toString();
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new IllegalStateException("UTF-8 is not supported");
+        }
+    }
 
-        for (File file : match)
+    /**
+     * The reverse of {@link #encode(String)}
+     * @param part The encoded part of a filename
+     * @return The original string
+     * @throws IllegalArgumentException If part is not correctly encoded
+     */
+    protected static String decode(String part)
+    {
+        byte[] bytes = new byte[part.length()];
+        int length = 0;
+        for (int i = 0; i < part.length(); i++)
         {
-            file.delete();
+            char c = part.charAt(i);
+            if (c == ESCAPE)
+            {
+                if (i + 2 >= part.length())
+                {
+                    throw new IllegalArgumentException("Truncated escape in: " + part);
+                }
+                int high = HEX.indexOf(part.charAt(i + 1));
+                int low = HEX.indexOf(part.charAt(i + 2));
+                if (high == -1 || low == -1)
+                {
+                    throw new IllegalArgumentException("Invalid escape in: " + part);
+                }
+                bytes[length++] = (byte) ((high << 4) | low);
+                i += 2;
+            }
+            else
+            {
+                bytes[length++] = (byte) c;
+            }
+        }
+
+        try
+        {
+            return new String(bytes, 0, length, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new IllegalStateException("UTF-8 is not supported");
         }
     }
 
@@ -214,6 +360,25 @@ public class FileStoreDownloadManager extends PurgingDownloadManager implements
         }
     }
 
+    /**
+     * What we know about a file in the download cache
+     */
+    protected static class StoredFile
+    {
+        protected StoredFile(File file, String mimeType, String filename, long created)
+        {
+            this.file = file;
+            this.mimeType = mimeType;
+            this.filename = filename;
+            this.created = created;
+        }
+
+        protected final File file;
+        protected final String mimeType;
+        protected final String filename;
+        protected final long created;
+    }
+
     /**
      * The prefix for all temp files that we save
      */
@@ -225,12 +390,37 @@ public class FileStoreDownloadManager extends PurgingDownloadManager implements
      */
     private static final String PART_SEPARATOR = "-";
 
+    /**
+     * The prefix for the sub-directories that we spread files across
+     */
+    private static final String SHARD_PREFIX = "dwr.downloads.";
+
+    /**
+     * How many sub-directories do we spread files across?
+     */
+    private static final int SHARD_COUNT = 256;
+
+    /**
+     * The character that starts an escaped byte in an encoded filename
+     */
+    private static final char ESCAPE = '_';
+
+    /**
+     * Digits for escaped bytes and sub-directory names
+     */
+    private static final String HEX = "0123456789abcdef";
+
     /**
      * The lock which you must hold to read or write from the list of
      * {@link FileTransfer}s.
      */
     protected Object contentsLock = new Object();
 
+    /**
+     * The files in the download cache, by download id
+     */
+    protected final ConcurrentMap<String, StoredFile> index = new ConcurrentHashMap<String, StoredFile>();
+
     /**
      * The directory in which we store temp files.
      */
@@ -15,21 +15,37 @@
  */
 package org.directwebremoting.impl;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.directwebremoting.extend.DiskFileTransfer;
 import org.directwebremoting.extend.DownloadManager;
 import org.directwebremoting.io.FileTransfer;
+import org.directwebremoting.io.InputStreamFactory;
+import org.directwebremoting.io.OutputStreamLoader;
+import org.directwebremoting.util.LocalUtil;
 
 /**
- * A {@link DownloadManager} that simply stores the links in-memory.
+ * A {@link DownloadManager} that stores the downloads in memory.
  * This implementation has the advantage that it is simple - no disk storage is
- * required, however in anything but a lightly used system it could cause
- * significant memory usage.
+ * needed in normal use.
+ * <p>To stop a burst of large downloads from exhausting the heap, the data is
+ * held in direct (off-heap) buffers, and the total held is limited to
+ * {@link #setMaxMemorySize(long)}. Downloads larger than
+ * {@link #setMaxMemoryFileSize(long)} are written straight to disk, and when
+ * the limit is passed the least recently used downloads are moved to disk.
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
 public class InMemoryDownloadManager extends PurgingDownloadManager implements DownloadManager
@@ -40,10 +56,45 @@ public class InMemoryDownloadManager extends PurgingDownloadManager implements D
     @Override
     protected void putFileTransfer(String id, FileTransfer transfer)
     {
+        SpillingOutputStream out = new SpillingOutputStream(maxMemoryFileSize, spillDirectory);
+        OutputStreamLoader loader = null;
+        try
+        {
+            loader = transfer.getOutputStreamLoader();
+            loader.load(out);
+            out.close();
+        }
+        catch (IOException ex)
+        {
+            log.error("Failed to store download", ex);
+            out.discard();
+            return;
+        }
+        finally
+        {
+            LocalUtil.close(loader);
+        }
+
+        StoredDownload stored = new StoredDownload(transfer.getFilename(), transfer.getMimeType(), out.getSize(), out.getChunks(), out.getFile());
         synchronized (contentsLock)
         {
-            contents.put(id, new TimedFileTransfer(transfer));
+            StoredDownload old = contents.put(id, stored);
+            if (old != null)
+            {
+                forget(old);
+            }
+
+            if (stored.chunks != null)
+            {
+                bytesInMemory += stored.size;
+            }
+            else
+            {
+                bytesOnDisk += stored.size;
+            }
         }
+
+        spillToBudget();
     }
 
     /* (non-Javadoc)
@@ -51,19 +102,36 @@ public class InMemoryDownloadManager extends PurgingDownloadManager implements D
      */
     public FileTransfer getFileTransfer(String id)
     {
+        ByteBuffer[] chunks;
+        File file;
+        StoredDownload stored;
+
         synchronized (contentsLock)
         {
-            TimedFileTransfer transfer = contents.get(id);
-            if (transfer == null)
+            stored = contents.get(id);
+            if (stored == null)
             {
                 return null;
             }
-            transfer.downloadRequests++;
-            if (transfer.downloadRequests >= this.downloadRequestsBeforeRemove)
+
+            stored.downloadRequests++;
+            if (stored.downloadRequests >= this.downloadRequestsBeforeRemove)
             {
                 contents.remove(id);
+                forget(stored);
             }
-            return transfer.fileTransfer;
+
+            chunks = stored.chunks;
+            file = stored.file;
+        }
+
+        if (chunks != null)
+        {
+            return new FileTransfer(stored.filename, stored.mimeType, stored.size, new BufferInputStreamFactory(chunks));
+        }
+        else
+        {
+            return new DiskFileTransfer(stored.filename, stored.mimeType, file);
         }
     }
 
@@ -74,42 +142,185 @@ public class InMemoryDownloadManager extends PurgingDownloadManager implements D
     protected void purge()
     {
         long now = System.currentTimeMillis();
+        List<File> deletable;
+
+        synchronized (contentsLock)
+        {
+            for (Iterator<StoredDownload> it = contents.values().iterator(); it.hasNext();)
+            {
+                StoredDownload stored = it.next();
+                if (now > stored.timeInserted + purgeDownloadsAfter)
+                {
+                    it.remove();
+                    forget(stored);
+                }
+            }
+
+            deletable = new ArrayList<File>(orphans);
+            orphans.clear();
+        }
 
+        // Files may still be being downloaded, in which case some platforms
+        // won't let us delete them, so we try again next time.
+        List<File> failed = new ArrayList<File>();
+        for (File file : deletable)
+        {
+            if (!file.delete() && file.exists())
+            {
+                failed.add(file);
+            }
+        }
+
+        if (!failed.isEmpty())
+        {
+            synchronized (contentsLock)
+            {
+                orphans.addAll(failed);
+            }
+        }
+    }
+
+    /**
+     * Release the resources held by a download that has been removed from
+     * {@link #contents}. You must hold {@link #contentsLock}.
+     * @param stored The download to forget about
+     */
+    private void forget(StoredDownload stored)
+    {
+        stored.removed = true;
+        if (stored.chunks != null)
+        {
+            bytesInMemory -= stored.size;
+        }
+        else
+        {
+            bytesOnDisk -= stored.size;
+            orphans.add(stored.file);
+        }
+    }
+
+    /**
+     * Move the least recently used downloads to disk until we are inside our
+     * memory budget. The writing happens outside the lock so downloads can
+     * continue to be served while we wait for the disk.
+     */
+    protected void spillToBudget()
+    {
+        List<StoredDownload> victims = new ArrayList<StoredDownload>();
         synchronized (contentsLock)
         {
-            for (Iterator<Map.Entry<String, TimedFileTransfer>> it = contents.entrySet().iterator(); it.hasNext();)
+            long excess = bytesInMemory - bytesSpilling - maxMemorySize;
+            for (Iterator<StoredDownload> it = contents.values().iterator(); excess > 0 && it.hasNext();)
+            {
+                StoredDownload stored = it.next();
+                if (stored.chunks != null && !stored.spilling)
+                {
+                    stored.spilling = true;
+                    bytesSpilling += stored.size;
+                    excess -= stored.size;
+                    victims.add(stored);
+                }
+            }
+        }
+
+        for (StoredDownload stored : victims)
+        {
+            File file = null;
+            try
+            {
+                file = writeToDisk(stored.chunks, spillDirectory);
+            }
+            catch (IOException ex)
             {
-                Map.Entry<String, TimedFileTransfer> entry = it.next();
+                log.warn("Failed to move download to disk, keeping it in memory: " + ex);
+            }
+
+            synchronized (contentsLock)
+            {
+                stored.spilling = false;
+                bytesSpilling -= stored.size;
 
-                try
+                if (stored.removed)
                 {
-                    if (now > entry.getValue().timeInserted + purgeDownloadsAfter)
+                    // The memory was released by forget()
+                    if (file != null)
                     {
-                        it.remove();
+                        orphans.add(file);
                     }
                 }
-                catch (Exception ex)
+                else if (file != null)
                 {
-                    log.warn("Deletion queue processing error: " + ex.getMessage());
+                    stored.file = file;
+                    stored.chunks = null;
+                    bytesInMemory -= stored.size;
+                    bytesOnDisk += stored.size;
                 }
             }
         }
     }
 
     /**
-     * A union of a FileTransfer and the time it was inserted into this manager
+     * Write a set of buffers to a new temp file
      */
-    protected static class TimedFileTransfer
+    private static File writeToDisk(ByteBuffer[] chunks, File directory) throws IOException
     {
-        protected TimedFileTransfer(FileTransfer fileTransfer)
+        File file = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, directory);
+        FileOutputStream out = null;
+        try
         {
-            this.fileTransfer = fileTransfer;
-            this.timeInserted = System.currentTimeMillis();
+            out = new FileOutputStream(file);
+            FileChannel channel = out.getChannel();
+            for (ByteBuffer chunk : chunks)
+            {
+                ByteBuffer source = chunk.duplicate();
+                while (source.hasRemaining())
+                {
+                    channel.write(source);
+                }
+            }
+            out.close();
+            out = null;
+            return file;
         }
+        catch (IOException ex)
+        {
+            LocalUtil.close(out);
+            file.delete();
+            throw ex;
+        }
+    }
 
-        protected final FileTransfer fileTransfer;
-        protected final long timeInserted;
-        protected int downloadRequests = 0;
+    /**
+     * @return The number of bytes of download data held in memory
+     */
+    public long getBytesInMemory()
+    {
+        synchronized (contentsLock)
+        {
+            return bytesInMemory;
+        }
+    }
+
+    /**
+     * @return The number of bytes of download data that have been moved to disk
+     */
+    public long getBytesOnDisk()
+    {
+        synchronized (contentsLock)
+        {
+            return bytesOnDisk;
+        }
+    }
+
+    /**
+     * @return The number of downloads waiting to be fetched
+     */
+    public int getDownloadCount()
+    {
+        synchronized (contentsLock)
+        {
+            return contents.size();
+        }
     }
 
     /**
@@ -121,21 +332,367 @@ public class InMemoryDownloadManager extends PurgingDownloadManager implements D
         this.downloadRequestsBeforeRemove = downloadRequestsBeforeRemove;
     }
 
+    /**
+     * The most download data that we will hold in memory, across all
+     * downloads, before we start moving downloads to disk.
+     */
+    public void setMaxMemorySize(long maxMemorySize)
+    {
+        this.maxMemorySize = maxMemorySize;
+    }
+
+    /**
+     * Downloads bigger than this are written straight to disk.
+     */
+    public void setMaxMemoryFileSize(long maxMemoryFileSize)
+    {
+        this.maxMemoryFileSize = maxMemoryFileSize;
+    }
+
+    /**
+     * The directory to write downloads to when they don't fit in memory.
+     * By default we use the JVM's temp directory.
+     */
+    public void setSpillDirectory(String spillDirectory)
+    {
+        File directory = new File(spillDirectory);
+        if (!directory.isDirectory())
+        {
+            throw new IllegalArgumentException("Spill directory is not a directory: " + spillDirectory);
+        }
+
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * A download and what we know about it.
+     * Exactly one of chunks and file is non-null.
+     */
+    protected static class StoredDownload
+    {
+        protected StoredDownload(String filename, String mimeType, long size, ByteBuffer[] chunks, File file)
+        {
+            this.filename = filename;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.chunks = chunks;
+            this.file = file;
+            this.timeInserted = System.currentTimeMillis();
+        }
+
+        protected final String filename;
+        protected final String mimeType;
+        protected final long size;
+        protected final long timeInserted;
+        protected ByteBuffer[] chunks;
+        protected File file;
+        protected int downloadRequests = 0;
+        protected boolean spilling = false;
+        protected boolean removed = false;
+    }
+
+    /**
+     * An OutputStream that writes to a growing list of direct buffers until
+     * it passes a limit, at which point it moves everything to a temp file.
+     */
+    private static class SpillingOutputStream extends OutputStream
+    {
+        SpillingOutputStream(long memoryLimit, File directory)
+        {
+            this.memoryLimit = memoryLimit;
+            this.directory = directory;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (fileOut == null && size + len > memoryLimit)
+            {
+                ByteBuffer[] written = getChunks();
+                file = writeToDisk(written, directory);
+                fileOut = new FileOutputStream(file, true);
+                chunks = null;
+            }
+
+            size += len;
+
+            if (fileOut != null)
+            {
+                fileOut.write(b, off, len);
+                return;
+            }
+
+            while (len > 0)
+            {
+                if (current == null || !current.hasRemaining())
+                {
+                    int capacity = current == null ? FIRST_CHUNK_SIZE : Math.min(current.capacity() * 2, MAX_CHUNK_SIZE);
+                    current = ByteBuffer.allocateDirect(capacity);
+                    chunks.add(current);
+                }
+
+                int count = Math.min(len, current.remaining());
+                current.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.OutputStream#close()
+         */
+        @Override
+        public void close() throws IOException
+        {
+            if (fileOut != null)
+            {
+                fileOut.close();
+            }
+        }
+
+        /**
+         * Throw away anything that we have written
+         */
+        void discard()
+        {
+            LocalUtil.close(fileOut);
+            if (file != null)
+            {
+                file.delete();
+            }
+            chunks = null;
+        }
+
+        /**
+         * @return The buffers that hold the data, ready to read, or null if
+         * the data is in {@link #getFile()}
+         */
+        ByteBuffer[] getChunks()
+        {
+            if (chunks == null)
+            {
+                return null;
+            }
+
+            ByteBuffer[] reply = new ByteBuffer[chunks.size()];
+            for (int i = 0; i < reply.length; i++)
+            {
+                ByteBuffer readable = chunks.get(i).duplicate();
+                readable.flip();
+                reply[i] = readable;
+            }
+            return reply;
+        }
+
+        /**
+         * @return The file that holds the data, or null if it is in memory
+         */
+        File getFile()
+        {
+            return file;
+        }
+
+        /**
+         * @return The number of bytes written
+         */
+        long getSize()
+        {
+            return size;
+        }
+
+        private final long memoryLimit;
+        private final File directory;
+        private List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        private ByteBuffer current;
+        private long size = 0;
+        private File file;
+        private OutputStream fileOut;
+    }
+
+    /**
+     * Read a set of buffers without copying them onto the heap first. Each
+     * call to {@link #getInputStream()} starts from the beginning so
+     * downloads can be repeated.
+     */
+    private static class BufferInputStreamFactory implements InputStreamFactory
+    {
+        BufferInputStreamFactory(ByteBuffer[] chunks)
+        {
+            this.chunks = chunks;
+        }
+
+        /* (non-Javadoc)
+         * @see org.directwebremoting.io.InputStreamFactory#getInputStream()
+         */
+        public InputStream getInputStream()
+        {
+            return new BufferInputStream(chunks);
+        }
+
+        /* (non-Javadoc)
+         * @see org.directwebremoting.io.InputStreamFactory#close()
+         */
+        public void close()
+        {
+        }
+
+        private final ByteBuffer[] chunks;
+    }
+
+    /**
+     * An InputStream over independent views of a set of buffers
+     */
+    private static class BufferInputStream extends InputStream
+    {
+        BufferInputStream(ByteBuffer[] chunks)
+        {
+            this.chunks = new ByteBuffer[chunks.length];
+            for (int i = 0; i < chunks.length; i++)
+            {
+                this.chunks[i] = chunks[i].duplicate();
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.InputStream#read()
+         */
+        @Override
+        public int read()
+        {
+            ByteBuffer chunk = next();
+            return chunk == null ? -1 : chunk.get() & 0xff;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+
+            ByteBuffer chunk = next();
+            if (chunk == null)
+            {
+                return -1;
+            }
+
+            int count = Math.min(len, chunk.remaining());
+            chunk.get(b, off, count);
+            return count;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.InputStream#available()
+         */
+        @Override
+        public int available()
+        {
+            ByteBuffer chunk = next();
+            return chunk == null ? 0 : chunk.remaining();
+        }
+
+        /**
+         * Find the next buffer with something left to read
+         */
+        private ByteBuffer next()
+        {
+            while (index < chunks.length && !chunks[index].hasRemaining())
+            {
+                index++;
+            }
+            return index < chunks.length ? chunks[index] : null;
+        }
+
+        private final ByteBuffer[] chunks;
+        private int index = 0;
+    }
+
     /**
      * @see #setDownloadRequestsBeforeRemove(int)
      */
     protected int downloadRequestsBeforeRemove = 1;
 
+    /**
+     * @see #setMaxMemorySize(long)
+     */
+    protected long maxMemorySize = 32 * 1024 * 1024;
+
+    /**
+     * @see #setMaxMemoryFileSize(long)
+     */
+    protected long maxMemoryFileSize = 4 * 1024 * 1024;
+
+    /**
+     * @see #setSpillDirectory(String)
+     */
+    protected File spillDirectory = null;
+
     /**
      * The lock which you must hold to read or write from the list of
-     * {@link FileTransfer}s.
+     * {@link FileTransfer}s and the byte counts.
      */
     protected final Object contentsLock = new Object();
 
     /**
-     * The list of files in the system
+     * The list of files in the system, with the least recently used first
+     */
+    protected final Map<String, StoredDownload> contents = new LinkedHashMap<String, StoredDownload>(16, 0.75f, true);
+
+    /**
+     * Files that we no longer need but have not yet deleted
+     */
+    protected final List<File> orphans = new ArrayList<File>();
+
+    /**
+     * The number of bytes held in direct buffers
+     */
+    protected long bytesInMemory = 0;
+
+    /**
+     * The number of bytes in memory that are being written to disk
+     */
+    protected long bytesSpilling = 0;
+
+    /**
+     * The number of bytes that have been moved to disk
+     */
+    protected long bytesOnDisk = 0;
+
+    /**
+     * The size of the first buffer for each download
+     */
+    private static final int FIRST_CHUNK_SIZE = 4 * 1024;
+
+    /**
+     * The largest buffer that we allocate
+     */
+    private static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The prefix for files that we move to disk
+     */
+    private static final String SPILL_PREFIX = "dwr-download";
+
+    /**
+     * The suffix for files that we move to disk
      */
-    protected final Map<String, TimedFileTransfer> contents = Collections.synchronizedMap(new HashMap<String, TimedFileTransfer>());
+    private static final String SPILL_SUFFIX = ".tmp";
 
     /**
      * The log stream
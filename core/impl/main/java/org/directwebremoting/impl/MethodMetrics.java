@@ -0,0 +1,175 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.directwebremoting.util.LatencyHistogram;
+
+/**
+ * The metrics for a single remoted method
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class MethodMetrics implements MethodMetricsMBean
+{
+    /**
+     * @param scriptName The name of the module that the method belongs to
+     * @param methodName The name of the method
+     */
+    public MethodMetrics(String scriptName, String methodName)
+    {
+        this.scriptName = scriptName;
+        this.methodName = methodName;
+    }
+
+    /**
+     * The method has been executed
+     * @param micros How long it took
+     * @param failed true if the method failed
+     */
+    public void methodCompleted(long micros, boolean failed)
+    {
+        latencies.record(micros);
+        if (failed)
+        {
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * The reply from the method has been written
+     * @param chars The size of the reply
+     */
+    public void replyWritten(long chars)
+    {
+        charsWritten.addAndGet(chars);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.MethodMetricsMBean#getScriptName()
+     */
+    public String getScriptName()
+    {
+        return scriptName;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.MethodMetricsMBean#getMethodName()
+     */
+    public String getMethodName()
+    {
+        return methodName;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.MethodMetricsMBean#getCalls()
+     */
+    public long getCalls()
+    {
+        return latencies.getCount();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.MethodMetricsMBean#getErrors()
+     */
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.MethodMetricsMBean#getErrorRate()
+     */
+    public double getErrorRate()
+    {
+        long calls = getCalls();
+        return calls == 0 ? 0 : (double) getErrors() / calls;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.MethodMetricsMBean#getMeanMicros()
+     */
+    public double getMeanMicros()
+    {
+        return latencies.getMean();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.MethodMetricsMBean#getMedianMicros()
+     */
+    public long getMedianMicros()
+    {
+        return latencies.getPercentile(0.5);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.MethodMetricsMBean#getP99Micros()
+     */
+    public long getP99Micros()
+    {
+        return latencies.getPercentile(0.99);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.MethodMetricsMBean#getMaxMicros()
+     */
+    public long getMaxMicros()
+    {
+        return latencies.getMax();
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.impl.MethodMetricsMBean#getCharsWritten()
+     */
+    public long getCharsWritten()
+    {
+        return charsWritten.get();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "MethodMetrics[" + scriptName + "." + methodName + ", calls=" + getCalls() + ", errors=" + getErrors() + ", p99=" + getP99Micros() + "us]";
+    }
+
+    /**
+     * The name of the module that the method belongs to
+     */
+    private final String scriptName;
+
+    /**
+     * The name of the method
+     */
+    private final String methodName;
+
+    /**
+     * How long the method takes in microseconds
+     */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * The number of times the method has failed
+     */
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * The total size of the replies from the method
+     */
+    private final AtomicLong charsWritten = new AtomicLong();
+}
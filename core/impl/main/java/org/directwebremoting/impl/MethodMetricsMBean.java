@@ -0,0 +1,73 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.impl;
+
+/**
+ * The JMX view of the metrics for a single remoted method
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public interface MethodMetricsMBean
+{
+    /**
+     * @return The name of the module that the method belongs to
+     */
+    String getScriptName();
+
+    /**
+     * @return The name of the method
+     */
+    String getMethodName();
+
+    /**
+     * @return The number of times the method has been executed
+     */
+    long getCalls();
+
+    /**
+     * @return The number of times the method has failed
+     */
+    long getErrors();
+
+    /**
+     * @return The fraction of calls that have failed
+     */
+    double getErrorRate();
+
+    /**
+     * @return The mean time taken by the method in microseconds
+     */
+    double getMeanMicros();
+
+    /**
+     * @return The median time taken by the method in microseconds
+     */
+    long getMedianMicros();
+
+    /**
+     * @return The 99th percentile time taken by the method in microseconds
+     */
+    long getP99Micros();
+
+    /**
+     * @return The longest time taken by the method in microseconds
+     */
+    long getMaxMicros();
+
+    /**
+     * @return The total size of the replies from the method in chars
+     */
+    long getCharsWritten();
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of {@link DefaultScriptSession}s by the time they were last
+ * accessed, so that finding the sessions that might have timed out does not
+ * mean looking at every session.
+ * <p>Sessions are filed into buckets that are <code>resolution</code>
+ * milliseconds wide. A session is only moved to a new bucket when an access
+ * takes it past the end of its current one, so most accesses do not touch the
+ * index at all.
+ * <p>The index is allowed to be slightly out of date: a session may be filed
+ * under a bucket older than its real last access time. Consumers of
+ * {@link #removeCandidates(long)} must check each session and {@link #add}
+ * back any that have not actually expired.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class ScriptSessionExpiryIndex
+{
+    /**
+     * @param resolution The width of each bucket in milliseconds
+     */
+    public ScriptSessionExpiryIndex(long resolution)
+    {
+        if (resolution <= 0)
+        {
+            throw new IllegalArgumentException("resolution must be positive");
+        }
+
+        this.resolution = resolution;
+    }
+
+    /**
+     * File a session according to its current last accessed time
+     * @param session The session to index
+     */
+    public synchronized void add(DefaultScriptSession session)
+    {
+        long bucket = filingBucketOf(session.getLastAccessedTime());
+
+        Set<DefaultScriptSession> sessions = buckets.get(bucket);
+        if (sessions == null)
+        {
+            sessions = new HashSet<DefaultScriptSession>();
+            buckets.put(bucket, sessions);
+        }
+
+        if (sessions.add(session))
+        {
+            size++;
+        }
+    }
+
+    /**
+     * Tell the index that a session has been accessed.
+     * <p>This is a no-op unless the access moved the session into a new
+     * bucket, or if we are not currently indexing the session (for example
+     * because it is being checked by {@link #removeCandidates(long)}).
+     * @param session The session that was accessed
+     * @param previousAccessedTime The last accessed time before the access
+     */
+    public synchronized void update(DefaultScriptSession session, long previousAccessedTime)
+    {
+        long previousBucket = filingBucketOf(previousAccessedTime);
+        if (previousBucket == filingBucketOf(session.getLastAccessedTime()))
+        {
+            return;
+        }
+
+        if (removeFromBucket(session, previousBucket))
+        {
+            add(session);
+        }
+    }
+
+    /**
+     * Stop indexing a session
+     * @param session The session to forget
+     */
+    public synchronized void remove(DefaultScriptSession session)
+    {
+        removeFromBucket(session, filingBucketOf(session.getLastAccessedTime()));
+    }
+
+    /**
+     * Remove and return all the sessions filed under a time at or before the
+     * bucket that contains <code>threshold</code>.
+     * <p>All sessions last accessed before <code>threshold</code> will be
+     * returned, along with some that may have been accessed since.
+     * @param threshold The time before which sessions count as expired
+     * @return The sessions that need checking
+     */
+    public synchronized List<DefaultScriptSession> removeCandidates(long threshold)
+    {
+        List<DefaultScriptSession> candidates = new ArrayList<DefaultScriptSession>();
+        long last = bucketOf(threshold);
+
+        // There are only ever about (timeout / resolution) buckets so walking
+        // the keys is cheap compared to walking the sessions
+        for (Iterator<Map.Entry<Long, Set<DefaultScriptSession>>> it = buckets.entrySet().iterator(); it.hasNext();)
+        {
+            Map.Entry<Long, Set<DefaultScriptSession>> entry = it.next();
+            if (entry.getKey() <= last)
+            {
+                candidates.addAll(entry.getValue());
+                it.remove();
+            }
+        }
+
+        // Anything added back from now on must not land in a bucket that we
+        // will not look at again.
+        oldestBucket = Math.max(oldestBucket, last);
+        size -= candidates.size();
+        return candidates;
+    }
+
+    /**
+     * @return The number of sessions currently indexed
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return The width of each bucket in milliseconds
+     */
+    public long getResolution()
+    {
+        return resolution;
+    }
+
+    /**
+     * Remove a session from a given bucket, tidying up if the bucket is empty
+     * @return true if the session was filed in the bucket
+     */
+    private boolean removeFromBucket(DefaultScriptSession session, long bucket)
+    {
+        Set<DefaultScriptSession> sessions = buckets.get(bucket);
+        if (sessions == null || !sessions.remove(session))
+        {
+            return false;
+        }
+
+        if (sessions.isEmpty())
+        {
+            buckets.remove(bucket);
+        }
+        size--;
+        return true;
+    }
+
+    /**
+     * Which bucket does a given time fall into?
+     */
+    private long bucketOf(long time)
+    {
+        return time / resolution;
+    }
+
+    /**
+     * Which bucket would we file a session accessed at the given time into?
+     */
+    private long filingBucketOf(long time)
+    {
+        return Math.max(bucketOf(time), oldestBucket);
+    }
+
+    /**
+     * The width of each bucket in milliseconds
+     */
+    private final long resolution;
+
+    /**
+     * The newest bucket handed out by {@link #removeCandidates(long)}. Nothing
+     * is filed before this because nobody would look there again.
+     * <p>GuardedBy("this")
+     */
+    private long oldestBucket = Long.MIN_VALUE;
+
+    /**
+     * The number of indexed sessions.
+     * <p>GuardedBy("this")
+     */
+    private int size = 0;
+
+    /**
+     * The sessions, keyed by bucket number.
+     * <p>GuardedBy("this")
+     */
+    private final Map<Long, Set<DefaultScriptSession>> buckets = new HashMap<Long, Set<DefaultScriptSession>>();
+}
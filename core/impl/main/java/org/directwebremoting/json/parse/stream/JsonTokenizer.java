@@ -0,0 +1,795 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.json.parse.stream;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.directwebremoting.json.parse.JsonParseException;
+
+/**
+ * A pull tokenizer for JSON. Callers ask for one {@link Token} at a time
+ * using {@link #next()}, so the input is read incrementally through a fixed
+ * size buffer and never needs to be held in memory all at once.
+ * <p>The grammar is the same as the JavaCC parser: the document must be an
+ * object or an array, and property names must be quoted. Numbers follow the
+ * JSON spec, so leading zeros are not allowed.
+ * <p>A JsonTokenizer is not thread safe, but it can be reused for another
+ * document with {@link #reset(Reader)} so the buffers are only allocated once.
+ * {@link #borrow(Reader)} and {@link #release()} do this for each thread.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class JsonTokenizer
+{
+    /**
+     * The things that {@link JsonTokenizer#next()} can find
+     */
+    public enum Token
+    {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+
+        /**
+         * A property name in an object. {@link JsonTokenizer#getText()}
+         * returns the name
+         */
+        NAME,
+
+        /**
+         * A string value. {@link JsonTokenizer#getText()} returns the
+         * unescaped string
+         */
+        STRING,
+
+        /**
+         * A number value. {@link JsonTokenizer#getText()} returns the number
+         * as it was written
+         */
+        NUMBER,
+
+        TRUE,
+        FALSE,
+        NULL,
+
+        /**
+         * There is nothing more in the input
+         */
+        END_DOCUMENT
+    }
+
+    /**
+     * Create a tokenizer that needs {@link #reset(Reader)} before use
+     */
+    public JsonTokenizer()
+    {
+        reset(null);
+    }
+
+    /**
+     * Create a tokenizer for the given input
+     * @param in The source of the JSON data
+     */
+    public JsonTokenizer(Reader in)
+    {
+        reset(in);
+    }
+
+    /**
+     * Get a tokenizer for the given input, reusing the buffers of one that
+     * the current thread has released if there is one.
+     * @param in The source of the JSON data
+     * @return A tokenizer that should be passed to {@link #release()} when done
+     */
+    public static JsonTokenizer borrow(Reader in)
+    {
+        JsonTokenizer tokenizer = spare.get();
+        if (tokenizer == null)
+        {
+            tokenizer = new JsonTokenizer();
+        }
+        else
+        {
+            // Someone might borrow again before we are released
+            spare.set(null);
+        }
+
+        tokenizer.reset(in);
+        return tokenizer;
+    }
+
+    /**
+     * Give this tokenizer back to the current thread, so the next call to
+     * {@link #borrow(Reader)} can reuse its buffers. It must not be used after
+     * this.
+     */
+    public void release()
+    {
+        reset(null);
+        spare.set(this);
+    }
+
+    /**
+     * Start reading a new document
+     * @param reader The source of the JSON data
+     */
+    public void reset(Reader reader)
+    {
+        this.in = reader;
+        pos = 0;
+        limit = 0;
+        consumed = 0;
+        textLength = 0;
+        scopes[0] = SCOPE_DOCUMENT_START;
+        depth = 1;
+
+        // Don't hang on to the memory needed for a huge string
+        if (text.length > MAX_RETAINED_TEXT)
+        {
+            text = new char[INITIAL_TEXT_SIZE];
+        }
+    }
+
+    /**
+     * Read the next token from the input
+     * @return The next token, or {@link Token#END_DOCUMENT} when there are no
+     * more
+     * @throws JsonParseException If the input is not valid JSON or can't be read
+     */
+    public Token next() throws JsonParseException
+    {
+        textLength = 0;
+
+        int c;
+        switch (scopes[depth - 1])
+        {
+        case SCOPE_DOCUMENT_START:
+            c = nextNonWhitespace();
+            if (c != '{' && c != '[')
+            {
+                throw error("Expected '{' or '[' at the start of the document");
+            }
+            scopes[depth - 1] = SCOPE_DOCUMENT_END;
+            return beginValue(c);
+
+        case SCOPE_DOCUMENT_END:
+            if (nextNonWhitespace() != -1)
+            {
+                throw error("Unexpected content after the end of the document");
+            }
+            return Token.END_DOCUMENT;
+
+        case SCOPE_ARRAY_START:
+            c = nextNonWhitespace();
+            if (c == ']')
+            {
+                depth--;
+                return Token.END_ARRAY;
+            }
+            scopes[depth - 1] = SCOPE_ARRAY;
+            return beginValue(c);
+
+        case SCOPE_ARRAY:
+            c = nextNonWhitespace();
+            if (c == ']')
+            {
+                depth--;
+                return Token.END_ARRAY;
+            }
+            if (c != ',')
+            {
+                throw error("Expected ',' or ']'");
+            }
+            return beginValue(nextNonWhitespace());
+
+        case SCOPE_OBJECT_START:
+            c = nextNonWhitespace();
+            if (c == '}')
+            {
+                depth--;
+                return Token.END_OBJECT;
+            }
+            return beginName(c);
+
+        case SCOPE_OBJECT:
+            c = nextNonWhitespace();
+            if (c == '}')
+            {
+                depth--;
+                return Token.END_OBJECT;
+            }
+            if (c != ',')
+            {
+                throw error("Expected ',' or '}'");
+            }
+            return beginName(nextNonWhitespace());
+
+        case SCOPE_OBJECT_NAME:
+            if (nextNonWhitespace() != ':')
+            {
+                throw error("Expected ':'");
+            }
+            scopes[depth - 1] = SCOPE_OBJECT;
+            return beginValue(nextNonWhitespace());
+
+        default:
+            throw new IllegalStateException("Unknown scope: " + scopes[depth - 1]);
+        }
+    }
+
+    /**
+     * The text of the last {@link Token#NAME}, {@link Token#STRING} or
+     * {@link Token#NUMBER}. This is only valid until the next call to
+     * {@link #next()}.
+     * @return The text of the current token
+     */
+    public String getText()
+    {
+        return new String(text, 0, textLength);
+    }
+
+    /**
+     * Read past the next value, including all of its children if it is an
+     * object or an array.
+     * @throws JsonParseException If the input is not valid, or the next token
+     * is not the start of a value
+     */
+    public void skipValue() throws JsonParseException
+    {
+        int start = depth;
+        Token token = next();
+        switch (token)
+        {
+        case BEGIN_OBJECT:
+        case BEGIN_ARRAY:
+            while (depth > start)
+            {
+                next();
+            }
+            return;
+
+        case NAME:
+        case END_OBJECT:
+        case END_ARRAY:
+        case END_DOCUMENT:
+            throw error("Expected a value but found " + token);
+
+        default:
+            return;
+        }
+    }
+
+    /**
+     * Read past the end of the object or array that we are in, for when a
+     * {@link Token#BEGIN_OBJECT} or {@link Token#BEGIN_ARRAY} turns out to be
+     * something that we don't want.
+     * @throws JsonParseException If the input is not valid
+     */
+    public void skipToEnd() throws JsonParseException
+    {
+        // The document itself is not something we can skip to the end of
+        int end = depth - 1;
+        while (depth > end && end > 0)
+        {
+            next();
+        }
+    }
+
+    /**
+     * Work out what the value starting with c is
+     */
+    private Token beginValue(int c) throws JsonParseException
+    {
+        switch (c)
+        {
+        case '{':
+            push(SCOPE_OBJECT_START);
+            return Token.BEGIN_OBJECT;
+
+        case '[':
+            push(SCOPE_ARRAY_START);
+            return Token.BEGIN_ARRAY;
+
+        case '"':
+            readString();
+            return Token.STRING;
+
+        case 't':
+            readLiteral("true");
+            return Token.TRUE;
+
+        case 'f':
+            readLiteral("false");
+            return Token.FALSE;
+
+        case 'n':
+            readLiteral("null");
+            return Token.NULL;
+
+        case -1:
+            throw error("Unexpected end of input");
+
+        default:
+            if (c == '-' || (c >= '0' && c <= '9'))
+            {
+                readNumber(c);
+                return Token.NUMBER;
+            }
+            throw error("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    /**
+     * Read a property name that starts with c
+     */
+    private Token beginName(int c) throws JsonParseException
+    {
+        if (c != '"')
+        {
+            throw error("Expected a quoted property name");
+        }
+
+        readString();
+        scopes[depth - 1] = SCOPE_OBJECT_NAME;
+        return Token.NAME;
+    }
+
+    /**
+     * Read the rest of a string into the text buffer. The opening quote has
+     * already been read.
+     */
+    private void readString() throws JsonParseException
+    {
+        while (true)
+        {
+            if (pos == limit && !fill())
+            {
+                throw error("Unterminated string");
+            }
+
+            // Copy runs of characters that need no unescaping in one go
+            int start = pos;
+            while (pos < limit)
+            {
+                char c = buffer[pos];
+                if (c == '"' || c == '\\')
+                {
+                    break;
+                }
+                pos++;
+            }
+            appendText(buffer, start, pos - start);
+
+            if (pos < limit)
+            {
+                if (buffer[pos++] == '"')
+                {
+                    return;
+                }
+                appendText(readEscape());
+            }
+        }
+    }
+
+    /**
+     * Read the part of an escape sequence after the backslash
+     */
+    private char readEscape() throws JsonParseException
+    {
+        int c = read();
+        switch (c)
+        {
+        case '"':
+        case '\\':
+        case '/':
+            return (char) c;
+
+        case 'b':
+            return '\b';
+
+        case 'f':
+            return '\f';
+
+        case 'n':
+            return '\n';
+
+        case 'r':
+            return '\r';
+
+        case 't':
+            return '\t';
+
+        case 'u':
+            int value = 0;
+            for (int i = 0; i < 4; i++)
+            {
+                int digit = Character.digit(read(), 16);
+                if (digit == -1)
+                {
+                    throw error("Invalid unicode escape");
+                }
+                value = (value << 4) | digit;
+            }
+            return (char) value;
+
+        case -1:
+            throw error("Unterminated string");
+
+        default:
+            throw error("Invalid escape character '" + (char) c + "'");
+        }
+    }
+
+    /**
+     * Check the rest of a true, false or null. The first character has
+     * already been read.
+     */
+    private void readLiteral(String literal) throws JsonParseException
+    {
+        for (int i = 1; i < literal.length(); i++)
+        {
+            if (read() != literal.charAt(i))
+            {
+                throw error("Expected '" + literal + "'");
+            }
+        }
+    }
+
+    /**
+     * Read the rest of a number that starts with first into the text buffer
+     */
+    private void readNumber(int first) throws JsonParseException
+    {
+        int c = first;
+        appendText((char) c);
+
+        if (c == '-')
+        {
+            c = read();
+            if (!isDigit(c))
+            {
+                throw error("Expected a digit after '-'");
+            }
+            appendText((char) c);
+        }
+
+        // JSON does not allow leading zeros
+        if (c != '0')
+        {
+            readDigits();
+        }
+
+        if (peek() == '.')
+        {
+            appendText((char) read());
+            if (!isDigit(peek()))
+            {
+                throw error("Expected a digit after '.'");
+            }
+            readDigits();
+        }
+
+        c = peek();
+        if (c == 'e' || c == 'E')
+        {
+            appendText((char) read());
+            c = peek();
+            if (c == '+' || c == '-')
+            {
+                appendText((char) read());
+            }
+            if (!isDigit(peek()))
+            {
+                throw error("Expected a digit in the exponent");
+            }
+            readDigits();
+        }
+    }
+
+    /**
+     * Copy digits into the text buffer until we find something else
+     */
+    private void readDigits() throws JsonParseException
+    {
+        while (isDigit(peek()))
+        {
+            appendText(buffer[pos++]);
+        }
+    }
+
+    /**
+     * Is c an ASCII digit?
+     */
+    private static boolean isDigit(int c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Read characters until we find one that is not whitespace
+     * @return The first non-whitespace character or -1 at the end of input
+     */
+    private int nextNonWhitespace() throws JsonParseException
+    {
+        while (true)
+        {
+            if (pos == limit && !fill())
+            {
+                return -1;
+            }
+
+            char c = buffer[pos++];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+            {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Read a single character
+     * @return The character or -1 at the end of input
+     */
+    private int read() throws JsonParseException
+    {
+        if (pos == limit && !fill())
+        {
+            return -1;
+        }
+
+        return buffer[pos++];
+    }
+
+    /**
+     * Look at the next character without reading it
+     * @return The character or -1 at the end of input
+     */
+    private int peek() throws JsonParseException
+    {
+        if (pos == limit && !fill())
+        {
+            return -1;
+        }
+
+        return buffer[pos];
+    }
+
+    /**
+     * Read some more input into the buffer. Everything in the buffer has been
+     * used by the time this is called, so we can start again at the beginning.
+     * @return false if there is no more input
+     */
+    private boolean fill() throws JsonParseException
+    {
+        if (in == null)
+        {
+            throw new IllegalStateException("JsonTokenizer has no input. Use reset(Reader) before next()");
+        }
+
+        try
+        {
+            int count;
+            do
+            {
+                count = in.read(buffer, 0, buffer.length);
+            }
+            while (count == 0);
+
+            if (count == -1)
+            {
+                return false;
+            }
+
+            consumed += limit;
+            pos = 0;
+            limit = count;
+            return true;
+        }
+        catch (IOException ex)
+        {
+            throw new JsonParseException("Failed to read JSON input", ex);
+        }
+    }
+
+    /**
+     * Add a character to the text buffer
+     */
+    private void appendText(char c)
+    {
+        if (textLength == text.length)
+        {
+            growText(1);
+        }
+
+        text[textLength++] = c;
+    }
+
+    /**
+     * Add a run of characters to the text buffer
+     */
+    private void appendText(char[] source, int start, int length)
+    {
+        if (textLength + length > text.length)
+        {
+            growText(length);
+        }
+
+        System.arraycopy(source, start, text, textLength, length);
+        textLength += length;
+    }
+
+    /**
+     * Make room in the text buffer for at least extra more characters
+     */
+    private void growText(int extra)
+    {
+        char[] grown = new char[Math.max(text.length * 2, textLength + extra)];
+        System.arraycopy(text, 0, grown, 0, textLength);
+        text = grown;
+    }
+
+    /**
+     * Enter a new object or array
+     */
+    private void push(int scope) throws JsonParseException
+    {
+        // The document itself takes the first scope
+        if (depth > maxDepth)
+        {
+            throw error("JSON is nested more than " + maxDepth + " levels deep");
+        }
+
+        if (depth == scopes.length)
+        {
+            int[] grown = new int[scopes.length * 2];
+            System.arraycopy(scopes, 0, grown, 0, depth);
+            scopes = grown;
+        }
+
+        scopes[depth++] = scope;
+    }
+
+    /**
+     * Create an exception that says where in the input we are
+     */
+    private JsonParseException error(String message)
+    {
+        return new JsonParseException(message + " at character " + (consumed + pos));
+    }
+
+    /**
+     * How deeply may objects and arrays be nested?
+     * Deeply nested input costs us memory and might send a recursive consumer
+     * into a StackOverflowError, so we give up before that.
+     * @param maxDepth The maximum nesting depth
+     */
+    public void setMaxDepth(int maxDepth)
+    {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @see #setMaxDepth(int)
+     */
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+
+    /**
+     * The source of the characters we are tokenizing
+     */
+    private Reader in;
+
+    /**
+     * The characters read from the input that we are working through
+     */
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    /**
+     * The position of the next character to use in {@link #buffer}
+     */
+    private int pos;
+
+    /**
+     * The number of valid characters in {@link #buffer}
+     */
+    private int limit;
+
+    /**
+     * The number of characters read before the start of {@link #buffer}, so
+     * we can say where errors are
+     */
+    private long consumed;
+
+    /**
+     * The unescaped text of the current name, string or number
+     */
+    private char[] text = new char[INITIAL_TEXT_SIZE];
+
+    /**
+     * The number of valid characters in {@link #text}
+     */
+    private int textLength;
+
+    /**
+     * What we are in the middle of reading. The innermost scope is at the end
+     */
+    private int[] scopes = new int[32];
+
+    /**
+     * The number of valid entries in {@link #scopes}
+     */
+    private int depth;
+
+    /**
+     * Before the root object or array
+     */
+    private static final int SCOPE_DOCUMENT_START = 0;
+
+    /**
+     * After the root object or array
+     */
+    private static final int SCOPE_DOCUMENT_END = 1;
+
+    /**
+     * After the '[' of an array
+     */
+    private static final int SCOPE_ARRAY_START = 2;
+
+    /**
+     * After a member of an array
+     */
+    private static final int SCOPE_ARRAY = 3;
+
+    /**
+     * After the '{' of an object
+     */
+    private static final int SCOPE_OBJECT_START = 4;
+
+    /**
+     * After a property name, before the ':'
+     */
+    private static final int SCOPE_OBJECT_NAME = 5;
+
+    /**
+     * After a property value
+     */
+    private static final int SCOPE_OBJECT = 6;
+
+    /**
+     * The default for {@link #setMaxDepth(int)}
+     */
+    private static final int DEFAULT_MAX_DEPTH = 1024;
+
+    /**
+     * The number of characters we read from the input at a time
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The size of the text buffer to start with
+     */
+    private static final int INITIAL_TEXT_SIZE = 256;
+
+    /**
+     * Text buffers bigger than this are not kept between documents
+     */
+    private static final int MAX_RETAINED_TEXT = 64 * 1024;
+
+    /**
+     * Tokenizers that have been released, one for each thread
+     */
+    private static final ThreadLocal<JsonTokenizer> spare = new ThreadLocal<JsonTokenizer>();
+}
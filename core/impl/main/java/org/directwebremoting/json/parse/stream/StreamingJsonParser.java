@@ -0,0 +1,142 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.json.parse.stream;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.directwebremoting.json.parse.JsonDecoder;
+import org.directwebremoting.json.parse.JsonParseException;
+import org.directwebremoting.json.parse.JsonParser;
+import org.directwebremoting.json.parse.stream.JsonTokenizer.Token;
+
+/**
+ * A {@link JsonParser} that uses a {@link JsonTokenizer} rather than a
+ * generated parser. It makes the same calls on the {@link JsonDecoder} as the
+ * JavaCC parser, but reads its input a buffer at a time.
+ * <p>To use it, set the init-param
+ * <code>org.directwebremoting.json.parse.JsonParserFactory$JsonParserBuilder</code>
+ * to {@link StreamingJsonParserBuilder}.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class StreamingJsonParser implements JsonParser
+{
+    /* (non-Javadoc)
+     * @see org.directwebremoting.json.parse.JsonParser#parse(java.io.Reader, org.directwebremoting.json.parse.JsonDecoder)
+     */
+    public Object parse(Reader input, JsonDecoder decoder) throws JsonParseException
+    {
+        JsonTokenizer tokenizer = JsonTokenizer.borrow(input);
+        try
+        {
+            // The decoder expects the end of an object or array to have the
+            // same property name as the beginning
+            List<String> names = new ArrayList<String>();
+            String name = null;
+
+            while (true)
+            {
+                Token token = tokenizer.next();
+                switch (token)
+                {
+                case NAME:
+                    name = tokenizer.getText();
+                    continue;
+
+                case BEGIN_OBJECT:
+                    decoder.beginObject(name);
+                    names.add(name);
+                    break;
+
+                case END_OBJECT:
+                    decoder.endObject(names.remove(names.size() - 1));
+                    break;
+
+                case BEGIN_ARRAY:
+                    decoder.beginArray(name);
+                    names.add(name);
+                    break;
+
+                case END_ARRAY:
+                    decoder.endArray(names.remove(names.size() - 1));
+                    break;
+
+                case STRING:
+                    decoder.addString(name, tokenizer.getText());
+                    break;
+
+                case NUMBER:
+                    addNumber(decoder, name, tokenizer.getText());
+                    break;
+
+                case TRUE:
+                    decoder.addBoolean(name, true);
+                    break;
+
+                case FALSE:
+                    decoder.addBoolean(name, false);
+                    break;
+
+                case NULL:
+                    decoder.addNull(name);
+                    break;
+
+                case END_DOCUMENT:
+                default:
+                    return decoder.getRoot();
+                }
+
+                name = null;
+            }
+        }
+        finally
+        {
+            tokenizer.release();
+        }
+    }
+
+    /**
+     * The decoder wants numbers split up in the same way as the JavaCC parser
+     * does it: "-12", ".5" and "e+3"
+     */
+    private static void addNumber(JsonDecoder decoder, String name, String number) throws JsonParseException
+    {
+        int length = number.length();
+        int dot = -1;
+        int exp = length;
+        for (int i = 0; i < length; i++)
+        {
+            char c = number.charAt(i);
+            if (c == '.')
+            {
+                dot = i;
+            }
+            else if (c == 'e' || c == 'E')
+            {
+                exp = i;
+                break;
+            }
+        }
+
+        int intEnd = dot == -1 ? exp : dot;
+        String intPart = number.substring(0, intEnd);
+        String floatPart = dot == -1 ? null : number.substring(dot, exp);
+        String expPart = exp == length ? null : number.substring(exp);
+
+        decoder.addNumber(name, intPart, floatPart, expPart);
+    }
+}
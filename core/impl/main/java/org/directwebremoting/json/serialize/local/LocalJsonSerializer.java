@@ -42,8 +42,7 @@ public class LocalJsonSerializer implements JsonSerializer
             ScriptBuffer buffer = new ScriptBuffer();
             buffer.appendData(data);
 
-            String output = ScriptBufferUtil.createOutput(buffer, converterManager, true);
-            out.write(output);
+            ScriptBufferUtil.writeOutput(buffer, converterManager, true, out);
         }
         catch (ConversionException ex)
         {
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.server.servlet3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+
+import javax.servlet.ServletOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An OutputStream that holds on to data until a Servlet 3.1 output stream
+ * says that it is ready for more, so writers are never blocked by a slow
+ * client.
+ * <p>The amount of data waiting for the client is capped. Once the cap is
+ * exceeded we give up on the client: the waiting data is dropped and all
+ * further writes fail.
+ * <p>The container should call {@link #onWritePossible()} and
+ * {@link #onError(Throwable)} from its WriteListener.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class NonBlockingOutputStream extends OutputStream
+{
+    /**
+     * @param target The servlet output stream to write to
+     * @param maxPending The most bytes we will hold for a slow client
+     */
+    public NonBlockingOutputStream(OutputStream target, int maxPending)
+    {
+        this.target = target;
+        this.maxPending = maxPending;
+        this.isReadyMethod = findIsReady(target);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        synchronized (this)
+        {
+            if (failure != null)
+            {
+                throw failure;
+            }
+
+            if (count + length > maxPending)
+            {
+                fail(new IOException("More than " + maxPending + " bytes waiting to be sent to a slow client"));
+                throw failure;
+            }
+
+            if (count + length > buffer.length)
+            {
+                int size = Math.min(Math.max(buffer.length * 2, count + length), maxPending);
+                byte[] larger = new byte[size];
+                System.arraycopy(buffer, 0, larger, 0, count);
+                buffer = larger;
+            }
+
+            System.arraycopy(data, offset, buffer, count, length);
+            count += length;
+        }
+    }
+
+    /**
+     * Send what we can to the client without blocking. Anything left over is
+     * sent from {@link #onWritePossible()}.
+     * @see java.io.OutputStream#flush()
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        synchronized (this)
+        {
+            if (failure != null)
+            {
+                throw failure;
+            }
+
+            flushRequested = true;
+        }
+
+        drain();
+    }
+
+    /**
+     * We don't close the servlet output stream, the sleeper completes the
+     * request using {@link #whenDrained(Runnable)}
+     * @see java.io.OutputStream#close()
+     */
+    @Override
+    public void close() throws IOException
+    {
+        flush();
+    }
+
+    /**
+     * Called by the container when the client can take more data
+     */
+    public void onWritePossible()
+    {
+        try
+        {
+            drain();
+        }
+        catch (IOException ex)
+        {
+            onError(ex);
+        }
+    }
+
+    /**
+     * Called by the container when writing to the client has failed
+     * @param ex The reason for the failure
+     */
+    public void onError(Throwable ex)
+    {
+        Runnable action;
+        synchronized (this)
+        {
+            if (ex instanceof IOException)
+            {
+                fail((IOException) ex);
+            }
+            else
+            {
+                IOException failed = new IOException("Error writing to client");
+                failed.initCause(ex);
+                fail(failed);
+            }
+
+            action = onDrained;
+            onDrained = null;
+        }
+
+        if (action != null)
+        {
+            action.run();
+        }
+    }
+
+    /**
+     * Run an action once all the waiting data has been passed to the
+     * container, or straight away if there is nothing waiting or we have
+     * failed.
+     * @param action What to do when we are drained
+     */
+    public void whenDrained(Runnable action)
+    {
+        synchronized (this)
+        {
+            if (failure == null && count > 0)
+            {
+                onDrained = action;
+                action = null;
+            }
+        }
+
+        if (action != null)
+        {
+            action.run();
+            return;
+        }
+
+        onWritePossible();
+    }
+
+    /**
+     * @return The number of bytes that are waiting for the client
+     */
+    public synchronized int getPendingCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return true if writing has failed and all further writes will fail
+     */
+    public synchronized boolean isFailed()
+    {
+        return failure != null;
+    }
+
+    /**
+     * Can the container take more data without blocking?
+     * @return The result of ServletOutputStream.isReady(), or true if the
+     * target is not a Servlet 3.1 stream
+     * @throws IOException If the container can't tell us
+     */
+    protected boolean isReady() throws IOException
+    {
+        if (isReadyMethod == null)
+        {
+            return true;
+        }
+
+        try
+        {
+            return ((Boolean) isReadyMethod.invoke(target)).booleanValue();
+        }
+        catch (Exception ex)
+        {
+            IOException failed = new IOException("Failed to call isReady()");
+            failed.initCause(ex);
+            throw failed;
+        }
+    }
+
+    /**
+     * Pass as much waiting data to the container as it can take without
+     * blocking. The container must not be given any more once isReady() has
+     * returned false, until it calls {@link #onWritePossible()}.
+     * @throws IOException If the container fails
+     */
+    private void drain() throws IOException
+    {
+        Runnable action = null;
+        synchronized (this)
+        {
+            if (failure != null)
+            {
+                return;
+            }
+
+            if (count > 0 && isReady())
+            {
+                // A Servlet 3.1 container always accepts the whole write,
+                // and then reports not ready until it has sent it all
+                target.write(buffer, 0, count);
+                count = 0;
+                if (buffer.length > INITIAL_BUFFER_SIZE)
+                {
+                    buffer = new byte[INITIAL_BUFFER_SIZE];
+                }
+            }
+
+            if (count == 0 && flushRequested && isReady())
+            {
+                flushRequested = false;
+                target.flush();
+            }
+
+            if (count == 0 && onDrained != null)
+            {
+                action = onDrained;
+                onDrained = null;
+            }
+        }
+
+        if (action != null)
+        {
+            action.run();
+        }
+    }
+
+    /**
+     * Go into the failed state and drop anything that is waiting
+     * @param ex The reason for failing
+     */
+    private void fail(IOException ex)
+    {
+        if (failure == null)
+        {
+            log.debug("Giving up on client: " + ex);
+            failure = ex;
+        }
+
+        count = 0;
+        buffer = new byte[0];
+    }
+
+    /**
+     * Find the Servlet 3.1 isReady() method on a stream
+     * @param stream The stream to inspect
+     * @return The isReady() method or null if there isn't one
+     */
+    private static Method findIsReady(OutputStream stream)
+    {
+        // Prefer the declaration in the API, the container's implementation
+        // class might not be public
+        Class<?> type = (stream instanceof ServletOutputStream) ? ServletOutputStream.class : stream.getClass();
+        try
+        {
+            return type.getMethod("isReady");
+        }
+        catch (NoSuchMethodException ex)
+        {
+            try
+            {
+                return stream.getClass().getMethod("isReady");
+            }
+            catch (NoSuchMethodException ex2)
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The size of the buffer that we start with and shrink back to
+     */
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * The servlet output stream
+     */
+    private final OutputStream target;
+
+    /**
+     * The most bytes we will hold for a slow client
+     */
+    private final int maxPending;
+
+    /**
+     * ServletOutputStream.isReady() if it exists, accessed by reflection so
+     * we still compile against Servlet 2.4
+     */
+    private final Method isReadyMethod;
+
+    /**
+     * The data waiting to be sent
+     */
+    /* @GuardedBy("this") */private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /**
+     * The number of bytes in {@link #buffer} that are waiting to be sent
+     */
+    /* @GuardedBy("this") */private int count = 0;
+
+    /**
+     * Should we flush the servlet output stream when it is next ready?
+     */
+    /* @GuardedBy("this") */private boolean flushRequested = false;
+
+    /**
+     * What to do when all the waiting data has been passed to the container
+     */
+    /* @GuardedBy("this") */private Runnable onDrained = null;
+
+    /**
+     * The reason that we have given up, or null if all is well
+     */
+    /* @GuardedBy("this") */private IOException failure = null;
+
+    /**
+     * The log stream
+     */
+    private static final Log log = LogFactory.getLog(NonBlockingOutputStream.class);
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.server.servlet3;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.directwebremoting.extend.ContainerAbstraction;
+import org.directwebremoting.extend.ServerLoadMonitor;
+import org.directwebremoting.extend.Sleeper;
+import org.directwebremoting.impl.ThreadDroppingServerLoadMonitor;
+import org.directwebremoting.impl.ThreadWaitSleeper;
+
+/**
+ * An abstraction of a Servlet 3.1 container. Long requests release their
+ * thread using startAsync() and reverse ajax output is written using
+ * non-blocking I/O so a slow client can't hold up the thread that is writing.
+ * <p>The DWR servlet must be declared with async-supported=true, otherwise
+ * we fall back to holding a thread for each long request.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class Servlet31ContainerAbstraction implements ContainerAbstraction
+{
+    /* (non-Javadoc)
+     * @see org.directwebremoting.dwrp.ContainerAbstraction#isNativeEnvironment(javax.servlet.ServletConfig)
+     */
+    public boolean isNativeEnvironment(ServletConfig servletConfig)
+    {
+        ServletContext servletContext = servletConfig.getServletContext();
+        int major = servletContext.getMajorVersion();
+        int minor = servletContext.getMinorVersion();
+        if (major < 3 || (major == 3 && minor < 1))
+        {
+            return false;
+        }
+
+        try
+        {
+            // Check that our Servlet 3.1 reflection works
+            Class.forName(Servlet31Sleeper.class.getName());
+            return true;
+        }
+        catch (Throwable ex)
+        {
+            return false;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.dwrp.ContainerAbstraction#getServerLoadMonitorImplementation()
+     */
+    public Class<? extends ServerLoadMonitor> getServerLoadMonitorImplementation()
+    {
+        return ThreadDroppingServerLoadMonitor.class;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.ContainerAbstraction#isResponseCompleted(javax.servlet.http.HttpServletRequest)
+     */
+    public boolean isResponseCompleted(HttpServletRequest request)
+    {
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.dwrp.ContainerAbstraction#createSleeper(javax.servlet.http.HttpServletRequest)
+     */
+    public Sleeper createSleeper(HttpServletRequest request)
+    {
+        if (!Servlet31Sleeper.isAsyncSupported(request))
+        {
+            return new ThreadWaitSleeper();
+        }
+
+        return new Servlet31Sleeper(request, maxPendingOutput);
+    }
+
+    /**
+     * How many bytes of reverse ajax output do we hold for a slow client
+     * before giving up on it?
+     * @param maxPendingOutput The new limit in bytes
+     */
+    public void setMaxPendingOutput(int maxPendingOutput)
+    {
+        this.maxPendingOutput = maxPendingOutput;
+    }
+
+    /**
+     * How many bytes of reverse ajax output do we hold for a slow client?
+     */
+    private int maxPendingOutput = 256 * 1024;
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.server.servlet3;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.directwebremoting.extend.NonBlockingSleeper;
+
+/**
+ * A Sleeper that uses the final Servlet 3.0 async API to release the request
+ * thread, and Servlet 3.1 non-blocking output so that threads writing to
+ * the response are never held up by a slow client.
+ * <p>Everything is done by reflection so we still compile against Servlet
+ * 2.4.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class Servlet31Sleeper implements NonBlockingSleeper
+{
+    /**
+     * @param request The request that we will make asynchronous
+     * @param maxPendingOutput The most bytes to hold for a slow client
+     */
+    public Servlet31Sleeper(HttpServletRequest request, int maxPendingOutput)
+    {
+        this.request = request;
+        this.maxPendingOutput = maxPendingOutput;
+    }
+
+    /**
+     * Can this request be made asynchronous? The servlet (and any filters)
+     * must have been declared with async-supported=true.
+     * @param request The request to check
+     * @return true if startAsync() is allowed
+     */
+    public static boolean isAsyncSupported(HttpServletRequest request)
+    {
+        try
+        {
+            return ((Boolean) isAsyncSupportedMethod.invoke(request)).booleanValue();
+        }
+        catch (Exception ex)
+        {
+            log.debug("Failed to call isAsyncSupported(): " + ex);
+            return false;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.NonBlockingSleeper#getNonBlockingWriter(javax.servlet.http.HttpServletResponse)
+     */
+    public PrintWriter getNonBlockingWriter(HttpServletResponse response) throws IOException
+    {
+        startAsync();
+
+        ServletOutputStream servletOut = response.getOutputStream();
+        final NonBlockingOutputStream nonBlockingOut = new NonBlockingOutputStream(servletOut, maxPendingOutput);
+        stream = nonBlockingOut;
+
+        InvocationHandler handler = new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if ("onWritePossible".equals(name))
+                {
+                    nonBlockingOut.onWritePossible();
+                    return null;
+                }
+                else if ("onError".equals(name))
+                {
+                    nonBlockingOut.onError((Throwable) args[0]);
+                    wakeUp();
+                    return null;
+                }
+                else if ("equals".equals(name))
+                {
+                    return Boolean.valueOf(proxy == args[0]);
+                }
+                else if ("hashCode".equals(name))
+                {
+                    return Integer.valueOf(System.identityHashCode(proxy));
+                }
+                else
+                {
+                    return "WriteListener for " + Servlet31Sleeper.this;
+                }
+            }
+        };
+
+        Object listener = Proxy.newProxyInstance(writeListenerClass.getClassLoader(), new Class<?>[] { writeListenerClass }, handler);
+        invoke(setWriteListenerMethod, servletOut, listener);
+
+        return new PrintWriter(new OutputStreamWriter(nonBlockingOut, response.getCharacterEncoding()));
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.Sleeper#goToSleep(java.lang.Runnable)
+     */
+    public void goToSleep(Runnable awakening)
+    {
+        if (awakening == null)
+        {
+            throw new NullPointerException("Null value for awakening");
+        }
+
+        onAwakening = awakening;
+
+        try
+        {
+            startAsync();
+            // Our alarms decide when we time out, not the container
+            invoke(setTimeoutMethod, asyncContext, Long.valueOf(0));
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Failed to start async request: " + ex);
+        }
+
+        if (state.compareAndSet(State.INITIAL, State.SLEEPING))
+        {
+            // The request thread returns to the container, we wait for wakeUp()
+        }
+        else if (state.compareAndSet(State.PRE_AWAKENED, State.FINAL))
+        {
+            awaken();
+        }
+        else
+        {
+            throw new IllegalStateException("Attempt to goToSleep in state " + state.get());
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.Sleeper#wakeUp()
+     */
+    public void wakeUp()
+    {
+        if (state.compareAndSet(State.INITIAL, State.PRE_AWAKENED))
+        {
+            // goToSleep will run onAwakening
+            return;
+        }
+
+        if (state.compareAndSet(State.SLEEPING, State.FINAL))
+        {
+            awaken();
+        }
+
+        // Otherwise we have been woken up already
+    }
+
+    /**
+     * Run the onAwakening action and then complete the request once the
+     * client has been sent everything
+     */
+    private void awaken()
+    {
+        try
+        {
+            onAwakening.run();
+        }
+        finally
+        {
+            Runnable complete = new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        invoke(completeMethod, asyncContext);
+                    }
+                    catch (IOException ex)
+                    {
+                        log.warn("Error completing comet request", ex);
+                    }
+                }
+            };
+
+            NonBlockingOutputStream nonBlockingOut = stream;
+            if (nonBlockingOut != null)
+            {
+                nonBlockingOut.whenDrained(complete);
+            }
+            else
+            {
+                complete.run();
+            }
+        }
+    }
+
+    /**
+     * Put the request into asynchronous mode if we've not done so already
+     * @throws IOException If the container won't let us
+     */
+    private synchronized void startAsync() throws IOException
+    {
+        if (asyncContext == null)
+        {
+            asyncContext = invoke(startAsyncMethod, request);
+        }
+    }
+
+    /**
+     * Call a Servlet 3.x method
+     * @param method The method to call
+     * @param target The object to call it on
+     * @param args The parameters to the call
+     * @return The result of the call
+     * @throws IOException If the call fails for any reason
+     */
+    private static Object invoke(Method method, Object target, Object... args) throws IOException
+    {
+        try
+        {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+
+            IOException failed = new IOException("Error calling " + method.getName() + "(): " + cause);
+            failed.initCause(cause);
+            throw failed;
+        }
+        catch (Exception ex)
+        {
+            IOException failed = new IOException("Error calling " + method.getName() + "(): " + ex);
+            failed.initCause(ex);
+            throw failed;
+        }
+    }
+
+    /**
+     * We want this to compile on Servlet 2.4
+     */
+    static
+    {
+        try
+        {
+            isAsyncSupportedMethod = HttpServletRequest.class.getMethod("isAsyncSupported");
+            startAsyncMethod = HttpServletRequest.class.getMethod("startAsync");
+            Class<?> asyncContextClass = HttpServletRequest.class.getMethod("startAsync").getReturnType();
+            setTimeoutMethod = asyncContextClass.getMethod("setTimeout", Long.TYPE);
+            completeMethod = asyncContextClass.getMethod("complete");
+
+            Class<?> listenerClass = Class.forName("javax.servlet.WriteListener", true, ServletOutputStream.class.getClassLoader());
+            writeListenerClass = listenerClass;
+            setWriteListenerMethod = ServletOutputStream.class.getMethod("setWriteListener", listenerClass);
+        }
+        catch (Exception ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * When the server supports servlet 3.1 ...
+     */
+    private static final Method isAsyncSupportedMethod;
+    private static final Method startAsyncMethod;
+    private static final Method setTimeoutMethod;
+    private static final Method completeMethod;
+    private static final Class<?> writeListenerClass;
+    private static final Method setWriteListenerMethod;
+
+    enum State
+    {
+        INITIAL, // the state at construction time
+        PRE_AWAKENED, // wakeUp called before goToSleep
+        SLEEPING, // the request thread has gone back to the container
+        FINAL, // onAwakening has been run or is running
+    }
+
+    /**
+     * Atomic enum to manage state.
+     */
+    private final AtomicReference<State> state = new AtomicReference<State>(State.INITIAL);
+
+    /**
+     * The request that we make asynchronous
+     */
+    private final transient HttpServletRequest request;
+
+    /**
+     * The most bytes to hold for a slow client
+     */
+    private final int maxPendingOutput;
+
+    /**
+     * The javax.servlet.AsyncContext, once we have started async mode
+     */
+    private transient volatile Object asyncContext = null;
+
+    /**
+     * The buffer for non-blocking output if we have been asked for a writer
+     */
+    private transient volatile NonBlockingOutputStream stream = null;
+
+    /**
+     * What we do when we are woken up
+     */
+    private transient volatile Runnable onAwakening;
+
+    /**
+     * The log stream
+     */
+    private static final Log log = LogFactory.getLog(Servlet31Sleeper.class);
+}
@@ -15,10 +15,22 @@
  */
 package org.directwebremoting.servlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.HashMap;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -31,6 +43,10 @@ import org.directwebremoting.util.LocalUtil;
 /**
  * A handler that deals with ETags and other nonsense to do with keeping a
  * browsers cache in-sync with a web server.
+ * <p>Generated content is cached as UTF-8 bytes along with gzip and deflate
+ * compressed versions, so a cache hit is just a copy. Each URL is generated
+ * by only one thread at a time, and threads generating different URLs don't
+ * wait for each other.
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
 public abstract class CachingHandler implements Handler
@@ -42,54 +58,252 @@ public abstract class CachingHandler implements Handler
     {
         long lastModified = getLastModifiedTime();
 
-        // Is the browser in sync with our latest?
-        if (isUpToDate(request, lastModified))
+        // Without an ETag we can tell if the browser is in sync with our
+        // latest before we even look at the content
+        boolean hasEtag = request.getHeader(HttpConstants.HEADER_IF_NONE) != null;
+        if (!hasEtag && isUpToDate(request, lastModified, null))
         {
             response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
             return;
         }
 
         // Is our cache up to date WRT the real resource?
-        CachedResource resource;
-        synchronized (scriptCache)
+        CachedResource resource = getCachedResource(request, lastModified);
+
+        if (hasEtag && isUpToDate(request, lastModified, resource))
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (resource.contents == null)
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        byte[] body = resource.contents;
+        String etag = resource.etag;
+        String acceptEncoding = request.getHeader(HttpConstants.HEADER_ACCEPT_ENCODING);
+        if (resource.gzipped != null && isEncodingAccepted(acceptEncoding, ENCODING_GZIP))
+        {
+            body = resource.gzipped;
+            etag = resource.getEncodedEtag(ENCODING_GZIP);
+            response.setHeader(HttpConstants.HEADER_CONTENT_ENCODING, ENCODING_GZIP);
+        }
+        else if (resource.deflated != null && isEncodingAccepted(acceptEncoding, ENCODING_DEFLATE))
+        {
+            body = resource.deflated;
+            etag = resource.getEncodedEtag(ENCODING_DEFLATE);
+            response.setHeader(HttpConstants.HEADER_CONTENT_ENCODING, ENCODING_DEFLATE);
+        }
+
+        response.setContentType(mimeType);
+        response.setCharacterEncoding(CONTENT_ENCODING);
+        response.setDateHeader(HttpConstants.HEADER_LAST_MODIFIED, lastModified);
+        response.setHeader(HttpConstants.HEADER_ETAG, etag);
+        if (resource.gzipped != null || resource.deflated != null)
         {
-            String url = getCachingKey(request);
-            resource = scriptCache.get(url);
+            response.setHeader(HttpConstants.HEADER_VARY, HttpConstants.HEADER_ACCEPT_ENCODING);
+        }
+        response.setContentLength(body.length);
+
+        OutputStream out = response.getOutputStream();
+        out.write(body);
+    }
 
-            if (resource == null || lastModified > resource.lastModifiedTime)
+    /**
+     * Find the cached content for a request, generating it if it is missing
+     * or older than the last modified time. If another thread is already
+     * generating the content we wait for it rather than doing the work twice.
+     * @param request The request to find content for
+     * @param lastModified The time after which we are sure the content has not changed
+     * @return The cached content
+     * @throws IOException If generating the content fails
+     */
+    private CachedResource getCachedResource(final HttpServletRequest request, final long lastModified) throws IOException
+    {
+        final String url = getCachingKey(request);
+
+        while (true)
+        {
+            Future<CachedResource> cached = scriptCache.get(url);
+            if (cached != null)
             {
-                if (log.isDebugEnabled())
+                CachedResource resource = await(cached);
+                if (lastModified <= resource.lastModifiedTime)
                 {
-                    if (resource == null)
+                    resource.lastAccessTime = System.nanoTime();
+                    return resource;
+                }
+            }
+
+            FutureTask<CachedResource> task = new FutureTask<CachedResource>(new Callable<CachedResource>()
+            {
+                public CachedResource call() throws IOException
+                {
+                    if (log.isDebugEnabled())
                     {
-                        log.debug("Generating contents for " + url + ". It is not currently cached." );
+                        log.debug("Generating contents for " + url + ". Resource modtime=" + lastModified);
                     }
-                    else
+
+                    String contents = generateCachableContent(request.getContextPath(), request.getServletPath(), request.getPathInfo());
+                    return new CachedResource(contents, lastModified, compressionEnabled);
+                }
+            });
+
+            boolean ours = (cached == null) ? scriptCache.putIfAbsent(url, task) == null : scriptCache.replace(url, cached, task);
+            if (ours)
+            {
+                task.run();
+                try
+                {
+                    CachedResource resource = await(task);
+                    evictIfNeeded();
+                    return resource;
+                }
+                catch (IOException ex)
+                {
+                    // Don't cache failures, the next request can try again
+                    scriptCache.remove(url, task);
+                    throw ex;
+                }
+                catch (RuntimeException ex)
+                {
+                    scriptCache.remove(url, task);
+                    throw ex;
+                }
+            }
+
+            // Someone else got in first, so we use what they created
+        }
+    }
+
+    /**
+     * Wait for some content to be generated
+     * @param future The generation task
+     * @return The generated content
+     * @throws IOException If generating the content failed
+     */
+    private static CachedResource await(Future<CachedResource> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for content to be generated");
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            IOException failed = new IOException("Failed to generate content");
+            failed.initCause(cause);
+            throw failed;
+        }
+    }
+
+    /**
+     * If the cache has grown too big, drop the resource that was used least
+     * recently. This only scans the cache when something new is added, and
+     * generally the cache only holds a few hundred URLs.
+     */
+    private void evictIfNeeded()
+    {
+        while (scriptCache.size() > maxCachedResources)
+        {
+            String oldestUrl = null;
+            Future<CachedResource> oldest = null;
+            long oldestTime = Long.MAX_VALUE;
+
+            for (Map.Entry<String, Future<CachedResource>> entry : scriptCache.entrySet())
+            {
+                Future<CachedResource> future = entry.getValue();
+                if (!future.isDone())
+                {
+                    continue;
+                }
+
+                try
+                {
+                    CachedResource resource = future.get();
+                    if (resource.lastAccessTime < oldestTime)
                     {
-                        log.debug("Generating contents for " + url + ". Resource modtime=" + lastModified + ". Cached modtime");
+                        oldestTime = resource.lastAccessTime;
+                        oldestUrl = entry.getKey();
+                        oldest = future;
                     }
                 }
+                catch (Exception ex)
+                {
+                    // Failed generation tasks are removed by their owners
+                }
+            }
 
-                resource = new CachedResource();
-                resource.contents = generateCachableContent(request.getContextPath(), request.getServletPath(), request.getPathInfo());
-                resource.lastModifiedTime = lastModified;
-                scriptCache.put(url, resource);
+            if (oldest == null)
+            {
+                return;
             }
-        }
 
-        response.setContentType(mimeType);
-        response.setDateHeader(HttpConstants.HEADER_LAST_MODIFIED, lastModified);
-        response.setHeader(HttpConstants.HEADER_ETAG, "\"" + lastModified + '\"');
+            scriptCache.remove(oldestUrl, oldest);
+        }
+    }
 
-        if (resource.contents != null)
+    /**
+     * Does the Accept-Encoding header allow a given content coding?
+     * @param acceptEncoding The value of the Accept-Encoding header, or null
+     * @param encoding The content coding that we would like to use
+     * @return true if the encoding is listed without q=0
+     */
+    protected static boolean isEncodingAccepted(String acceptEncoding, String encoding)
+    {
+        if (acceptEncoding == null)
         {
-            PrintWriter out = response.getWriter();
-            out.println(resource.contents);
+            return false;
         }
-        else
+
+        for (String part : acceptEncoding.split(","))
         {
-            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            String[] params = part.split(";");
+            if (!params[0].trim().equalsIgnoreCase(encoding))
+            {
+                continue;
+            }
+
+            for (int i = 1; i < params.length; i++)
+            {
+                String param = params[i].trim();
+                if (param.startsWith("q="))
+                {
+                    try
+                    {
+                        return Float.parseFloat(param.substring(2)) > 0;
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        return false;
+                    }
+                }
+            }
+
+            return true;
         }
+
+        return false;
     }
 
     /**
@@ -113,17 +327,31 @@ public abstract class CachingHandler implements Handler
     /**
      * Do we need to send the content for this file
      * @param req The HTTP request
+     * @param lastModified The time after which we are sure the content has not changed
+     * @param resource The cached content, which may be null if the request has no ETag
      * @return true iff the ETags and If-Modified-Since headers say we have not changed
      */
-    protected boolean isUpToDate(HttpServletRequest req, long lastModified)
+    protected boolean isUpToDate(HttpServletRequest req, long lastModified, CachedResource resource)
     {
-        String etag = "\"" + lastModified + '\"';
-
         if (ignoreLastModified)
         {
             return false;
         }
 
+        String cachedPath = getCachingKey(req);
+
+        // If-None-Match takes precedence over If-Modified-Since
+        String givenEtag = req.getHeader(HttpConstants.HEADER_IF_NONE);
+        if (givenEtag != null)
+        {
+            boolean matched = resource != null && resource.isEtagMatch(givenEtag);
+            if (log.isDebugEnabled())
+            {
+                log.debug("Sending " + (matched ? "304" : "content") + " for " + cachedPath + ", Old ETag=" + givenEtag + ", New ETag=" + (resource == null ? null : resource.etag));
+            }
+            return matched;
+        }
+
         long modifiedSince = -1;
         try
         {
@@ -144,59 +372,24 @@ public abstract class CachingHandler implements Handler
             // And: http://www-1.ibm.com/support/docview.wss?uid=swg1PK20062
         }
 
-        if (modifiedSince != -1)
-        {
-            // Browsers are only accurate to the second
-            modifiedSince -= modifiedSince % 1000;
-        }
-        String givenEtag = req.getHeader(HttpConstants.HEADER_IF_NONE);
-        String cachedPath = getCachingKey(req);
-
-        // Deal with missing etags
-        if (givenEtag == null)
-        {
-            // There is no ETag, just go with If-Modified-Since
-            if (modifiedSince >= lastModified)
-            {
-                if (log.isDebugEnabled())
-                {
-                    log.debug("Sending 304 for " + cachedPath + " If-Modified-Since=" + modifiedSince + ", Last-Modified=" + lastModified);
-                }
-                return true;
-            }
-
-            // There are no modified settings, carry on
-            return false;
-        }
-
-        // Deal with missing If-Modified-Since
         if (modifiedSince == -1)
         {
-            if (!etag.equals(givenEtag))
-            {
-                // There is an ETag, but no If-Modified-Since
-                if (log.isDebugEnabled())
-                {
-                    log.debug("Sending 304 for " + cachedPath + ", If-Modified-Since=-1, Old ETag=" + givenEtag + ", New ETag=" + etag);
-                }
-                return true;
-            }
-
             // There are no modified settings, carry on
             return false;
         }
 
-        // Do both values indicate that we are in-date?
-        if (etag.equals(givenEtag) && modifiedSince >= lastModified)
+        // Browsers are only accurate to the second
+        modifiedSince -= modifiedSince % 1000;
+
+        if (modifiedSince >= lastModified)
         {
             if (log.isDebugEnabled())
             {
-                log.debug("Sending 304 for " + cachedPath + ", If-Modified-Since=" + modifiedSince + ", Last Modified=" + lastModified + ", Old ETag=" + givenEtag + ", New ETag=" + etag);
+                log.debug("Sending 304 for " + cachedPath + " If-Modified-Since=" + modifiedSince + ", Last-Modified=" + lastModified);
             }
             return true;
         }
 
-        log.debug("Sending content for " + cachedPath + ", If-Modified-Since=" + modifiedSince + ", Last Modified=" + lastModified + ", Old ETag=" + givenEtag + ", New ETag=" + etag);
         return false;
     }
 
@@ -240,30 +433,249 @@ public abstract class CachingHandler implements Handler
         return mimeType;
     }
 
+    /**
+     * Do we send gzip or deflate compressed content to browsers that accept
+     * it? Turn this off if something else is compressing responses.
+     * @param compressionEnabled false to always send uncompressed content
+     */
+    public void setCompressionEnabled(boolean compressionEnabled)
+    {
+        this.compressionEnabled = compressionEnabled;
+        scriptCache.clear();
+    }
+
+    /**
+     * How many URLs do we keep the content for?
+     * @param maxCachedResources The new maximum cache size
+     */
+    public void setMaxCachedResources(int maxCachedResources)
+    {
+        this.maxCachedResources = maxCachedResources;
+    }
+
     /**
      * The mime type to send the output under
      */
     private String mimeType;
 
     /**
-     * We cache the script output for speed
+     * We cache the script output for speed. The values are Futures so that
+     * everyone that wants a URL that is being generated can wait for it.
      */
-    private final Map<String, CachedResource> scriptCache = new HashMap<String, CachedResource>();
+    private final ConcurrentMap<String, Future<CachedResource>> scriptCache = new ConcurrentHashMap<String, Future<CachedResource>>();
 
     /**
-     * I wish Java had tuples
+     * Some generated content, ready to send in various encodings
      */
-    class CachedResource
+    protected static class CachedResource
     {
-        protected String contents;
-        protected long lastModifiedTime;
+        /**
+         * Encode and compress some content
+         * @param text The generated content or null if there is no such resource
+         * @param lastModifiedTime The time that we generated the content for
+         * @param compress Do we create compressed versions?
+         * @throws IOException If compression fails
+         */
+        CachedResource(String text, long lastModifiedTime, boolean compress) throws IOException
+        {
+            this.lastModifiedTime = lastModifiedTime;
+            this.lastAccessTime = System.nanoTime();
+
+            if (text == null)
+            {
+                contents = null;
+                gzipped = null;
+                deflated = null;
+                etag = null;
+                return;
+            }
+
+            // We used to println() the content, so we keep the line ending
+            contents = (text + LINE_SEPARATOR).getBytes(CONTENT_ENCODING);
+            etag = "\"" + digest(contents) + "\"";
+
+            if (compress)
+            {
+                gzipped = smallerOrNull(gzip(contents));
+                deflated = smallerOrNull(deflate(contents));
+            }
+            else
+            {
+                gzipped = null;
+                deflated = null;
+            }
+        }
+
+        /**
+         * The ETag for a compressed version of the content. Strong ETags must
+         * differ between encodings of the same content.
+         * @param encoding The content coding
+         * @return An ETag for the encoded content
+         */
+        String getEncodedEtag(String encoding)
+        {
+            return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+        }
+
+        /**
+         * Does an If-None-Match header match any of the versions of this
+         * content that we might have sent?
+         * @param ifNoneMatch The If-None-Match header
+         * @return true if the browser has a current version
+         */
+        boolean isEtagMatch(String ifNoneMatch)
+        {
+            if (etag == null)
+            {
+                return false;
+            }
+
+            for (String given : ifNoneMatch.split(","))
+            {
+                given = given.trim();
+                if (given.startsWith("W/"))
+                {
+                    // If-None-Match uses the weak comparison function
+                    given = given.substring(2);
+                }
+
+                if (given.equals("*") || given.equals(etag) || given.equals(getEncodedEtag(ENCODING_GZIP)) || given.equals(getEncodedEtag(ENCODING_DEFLATE)))
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Compress some data using gzip
+         */
+        private static byte[] gzip(byte[] data) throws IOException
+        {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2);
+            OutputStream out = new GZIPOutputStream(buffer);
+            out.write(data);
+            out.close();
+            return buffer.toByteArray();
+        }
+
+        /**
+         * Compress some data using deflate (RFC 1950 zlib format)
+         */
+        private static byte[] deflate(byte[] data) throws IOException
+        {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2);
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try
+            {
+                OutputStream out = new DeflaterOutputStream(buffer, deflater);
+                out.write(data);
+                out.close();
+            }
+            finally
+            {
+                deflater.end();
+            }
+            return buffer.toByteArray();
+        }
+
+        /**
+         * There is no point in sending compressed data if it is not smaller
+         */
+        private byte[] smallerOrNull(byte[] compressed)
+        {
+            return compressed.length < contents.length ? compressed : null;
+        }
+
+        /**
+         * Create a hex digest of some content for use in an ETag
+         */
+        private static String digest(byte[] data)
+        {
+            try
+            {
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                StringBuilder hex = new StringBuilder();
+                for (byte b : md.digest(data))
+                {
+                    hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    hex.append(Character.forDigit(b & 0xF, 16));
+                }
+                return hex.toString();
+            }
+            catch (NoSuchAlgorithmException ex)
+            {
+                throw new IllegalStateException("MD5 is missing");
+            }
+        }
+
+        /**
+         * The content encoded in UTF-8, or null if there is no such resource
+         */
+        protected final byte[] contents;
+
+        /**
+         * The content compressed using gzip, or null if that is no smaller
+         */
+        protected final byte[] gzipped;
+
+        /**
+         * The content compressed using deflate, or null if that is no smaller
+         */
+        protected final byte[] deflated;
+
+        /**
+         * A strong ETag made from a hash of the content
+         */
+        protected final String etag;
+
+        /**
+         * The time that we generated the content for
+         */
+        protected final long lastModifiedTime;
+
+        /**
+         * When the content was last sent, so we know what to evict
+         */
+        protected volatile long lastAccessTime;
     }
 
+    /**
+     * Do we send compressed content to browsers that accept it?
+     */
+    private boolean compressionEnabled = true;
+
+    /**
+     * How many URLs do we keep the content for?
+     */
+    private int maxCachedResources = 1000;
+
     /**
      * Do we ignore all the Last-Modified/ETags blathering?
      */
     private boolean ignoreLastModified = false;
 
+    /**
+     * We always send content as UTF-8
+     */
+    private static final String CONTENT_ENCODING = "UTF-8";
+
+    /**
+     * The gzip content coding
+     */
+    protected static final String ENCODING_GZIP = "gzip";
+
+    /**
+     * The deflate content coding
+     */
+    protected static final String ENCODING_DEFLATE = "deflate";
+
+    /**
+     * What println() used to add to the end of the content
+     */
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
     /**
      * The log stream
      */
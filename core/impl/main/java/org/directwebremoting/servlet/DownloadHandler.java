@@ -15,11 +15,19 @@
  */
 package org.directwebremoting.servlet;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.directwebremoting.extend.DiskFileTransfer;
 import org.directwebremoting.extend.DownloadManager;
 import org.directwebremoting.extend.Handler;
 import org.directwebremoting.io.FileTransfer;
@@ -29,6 +37,8 @@ import org.directwebremoting.util.LocalUtil;
 /**
  * A DownloadHandler is basically a FileServingServlet that integrates with
  * a DownloadManager to purge files from the system that have been downloaded.
+ * Downloads that are stored on disk are copied straight from the file, and
+ * support HTTP Range requests so large downloads can be resumed.
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
 public class DownloadHandler implements Handler
@@ -40,9 +50,10 @@ public class DownloadHandler implements Handler
     {
         String id = request.getPathInfo();
 
-        if (!id.startsWith(downloadHandlerUrl))
+        if (id == null || !id.startsWith(downloadHandlerUrl))
         {
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
         id = id.substring(downloadHandlerUrl.length());
 
@@ -50,32 +61,211 @@ public class DownloadHandler implements Handler
         if (transfer == null)
         {
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
-        else
+
+        String filename = transfer.getFilename();
+        if (filename != null)
+        {
+            response.setHeader("Content-disposition", "attachment; filename=" + filename);
+        }
+
+        response.setContentType(transfer.getMimeType());
+
+        if (transfer instanceof DiskFileTransfer)
+        {
+            writeFile(request, response, ((DiskFileTransfer) transfer).getFile());
+            return;
+        }
+
+        if (transfer.getSize() > 0)
+        {
+            setContentLength(response, transfer.getSize());
+        }
+
+        OutputStreamLoader loader = null;
+        try
+        {
+            loader = transfer.getOutputStreamLoader();
+            loader.load(response.getOutputStream());
+        }
+        finally
+        {
+            LocalUtil.close(loader);
+        }
+    }
+
+    /**
+     * Send a file, or the part of it asked for by a Range header
+     * @param request The request that may contain a Range header
+     * @param response Where to write the file
+     * @param file The file to send
+     * @throws IOException If the file can not be read or written
+     */
+    protected void writeFile(HttpServletRequest request, HttpServletResponse response, File file) throws IOException
+    {
+        FileInputStream in;
+        try
+        {
+            in = new FileInputStream(file);
+        }
+        catch (FileNotFoundException ex)
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        try
         {
-            if (transfer.getSize() > 0)
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            long lastModified = file.lastModified();
+
+            response.setHeader(HttpConstants.HEADER_ACCEPT_RANGES, "bytes");
+            response.setDateHeader(HttpConstants.HEADER_LAST_MODIFIED, lastModified);
+
+            long[] range = getRange(request, length, lastModified);
+            if (range == UNSATISFIABLE)
+            {
+                response.setHeader(HttpConstants.HEADER_CONTENT_RANGE, "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+
+            long start = 0;
+            long end = length - 1;
+            if (range != null)
             {
-                response.setContentLength((int) transfer.getSize());
+                start = range[0];
+                end = range[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpConstants.HEADER_CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
             }
 
-            String filename = transfer.getFilename();
-            if (filename != null)
+            setContentLength(response, end - start + 1);
+
+            // Let the channel do the copy rather than passing every byte
+            // through a buffer of our own
+            OutputStream out = response.getOutputStream();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = start;
+            while (position <= end)
             {
-                response.setHeader("Content-disposition", "attachment; filename=" + filename);
+                long sent = channel.transferTo(position, end - position + 1, target);
+                if (sent <= 0)
+                {
+                    // The file has been truncated under us
+                    break;
+                }
+                position += sent;
             }
+            out.flush();
+        }
+        finally
+        {
+            LocalUtil.close(in);
+        }
+    }
 
-            response.setContentType(transfer.getMimeType());
+    /**
+     * Work out which part of a file a request is asking for.
+     * We only support single ranges. Requests for several ranges, or with
+     * Range headers that we do not understand get the whole file, which is
+     * allowed by RFC 2616.
+     * @param request The request that may contain a Range header
+     * @param length The length of the file
+     * @param lastModified When the file was last changed, for If-Range
+     * @return null to send the whole file, {@link #UNSATISFIABLE} if the range
+     * is outside the file, or the first and last bytes to send
+     */
+    protected static long[] getRange(HttpServletRequest request, long length, long lastModified)
+    {
+        String header = request.getHeader(HttpConstants.HEADER_RANGE);
+        if (header == null)
+        {
+            return null;
+        }
 
-            OutputStreamLoader loader = null;
+        // If the file has changed since the client got the first part, they
+        // need the whole thing again
+        if (request.getHeader(HttpConstants.HEADER_IF_RANGE) != null)
+        {
             try
             {
-                loader = transfer.getOutputStreamLoader();
-                loader.load(response.getOutputStream());
+                long since = request.getDateHeader(HttpConstants.HEADER_IF_RANGE);
+                if (since / 1000 < lastModified / 1000)
+                {
+                    return null;
+                }
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // An ETag, and we don't give out ETags
+                return null;
+            }
+        }
+
+        header = header.trim();
+        if (!header.regionMatches(true, 0, RANGE_UNIT, 0, RANGE_UNIT.length()) || header.indexOf(',') != -1)
+        {
+            return null;
+        }
+
+        String spec = header.substring(RANGE_UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1)
+        {
+            return null;
+        }
+
+        try
+        {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+
+            if (first.length() == 0)
+            {
+                // A suffix range: the last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0)
+                {
+                    return UNSATISFIABLE;
+                }
+                return new long[] { Math.max(0, length - suffix), length - 1 };
+            }
+
+            long start = Long.parseLong(first);
+            long end = last.length() == 0 ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start)
+            {
+                return null;
             }
-            finally
+
+            if (start >= length)
             {
-                LocalUtil.close(loader);
+                return UNSATISFIABLE;
             }
+
+            return new long[] { start, Math.min(end, length - 1) };
+        }
+        catch (NumberFormatException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Servlet 2.4 only lets us set an int Content-Length
+     */
+    private static void setContentLength(HttpServletResponse response, long length)
+    {
+        if (length <= Integer.MAX_VALUE)
+        {
+            response.setContentLength((int) length);
+        }
+        else
+        {
+            response.setHeader("Content-Length", String.valueOf(length));
         }
     }
 
@@ -96,6 +286,17 @@ public class DownloadHandler implements Handler
         this.downloadHandlerUrl = downloadHandlerUrl;
     }
 
+    /**
+     * The only unit for Range requests that we understand
+     */
+    private static final String RANGE_UNIT = "bytes=";
+
+    /**
+     * What {@link #getRange(HttpServletRequest, long, long)} returns when the
+     * requested range is outside the file
+     */
+    protected static final long[] UNSATISFIABLE = new long[0];
+
     /**
      * The place we store files for later download
      */
@@ -30,4 +30,40 @@ public interface HttpConstants
      * The name of the user agent HTTP header
      */
     public static final String HEADER_USER_AGENT = "User-Agent";
+
+    /**
+     * HTTP header listing the content codings that the browser understands
+     */
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    /**
+     * HTTP header saying which content coding we used
+     */
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    /**
+     * HTTP header listing the request headers that affect a response
+     */
+    public static final String HEADER_VARY = "Vary";
+
+    /**
+     * HTTP header asking for part of a resource
+     */
+    public static final String HEADER_RANGE = "Range";
+
+    /**
+     * HTTP header that makes a Range request conditional on the resource not
+     * having changed
+     */
+    public static final String HEADER_IF_RANGE = "If-Range";
+
+    /**
+     * HTTP header saying which part of a resource we are sending
+     */
+    public static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    /**
+     * HTTP header saying that we understand Range requests
+     */
+    public static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
 }
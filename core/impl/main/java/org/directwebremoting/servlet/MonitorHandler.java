@@ -34,7 +34,10 @@ import org.apache.commons.logging.LogFactory;
 import org.directwebremoting.Container;
 import org.directwebremoting.WebContext;
 import org.directwebremoting.WebContextFactory;
+import org.directwebremoting.extend.CallMetrics;
 import org.directwebremoting.extend.Handler;
+import org.directwebremoting.util.HitMonitor;
+import org.directwebremoting.util.LatencyHistogram;
 import org.directwebremoting.util.LocalUtil;
 import org.directwebremoting.util.MimeConstants;
 
@@ -49,6 +52,13 @@ public class MonitorHandler implements Handler
      */
     public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
     {
+        String pathInfo = request.getPathInfo();
+        if (pathInfo != null && pathInfo.endsWith(METRICS_PATH))
+        {
+            handleMetrics(response);
+            return;
+        }
+
         if (!debug)
         {
             log.warn("Failed attempt to access test pages outside of debug mode. Set the debug init-parameter to true to enable.");
@@ -134,6 +144,26 @@ public class MonitorHandler implements Handler
         out.print("</body></html>");
     }
 
+    /**
+     * Send the {@link CallMetrics} as JSON. Outside of debug mode this needs
+     * the callMetricsJson init-param as well as metrics being enabled, since
+     * collecting metrics is not the same as publishing them to anyone.
+     * @param response Where to write the metrics
+     */
+    protected void handleMetrics(HttpServletResponse response) throws IOException
+    {
+        if (callMetrics == null || !(debug || (callMetricsJson && callMetrics.isEnabled())))
+        {
+            log.warn("Failed attempt to access call metrics. Set the callMetricsEnabled and callMetricsJson init-parameters to true to enable.");
+            throw new SecurityException("Access to call metrics is denied.");
+        }
+
+        response.setContentType(MimeConstants.MIME_JSON);
+        PrintWriter out = response.getWriter();
+        callMetrics.writeJson(out);
+        out.flush();
+    }
+
     /**
      * @param out
      * @param ids
@@ -146,6 +176,11 @@ public class MonitorHandler implements Handler
         {
             digSimple(out, name, object);
         }
+        else if (object instanceof HitMonitor || object instanceof LatencyHistogram)
+        {
+            // Metrics summarize themselves better than their fields can
+            digSimple(out, name, object);
+        }
         else if (object instanceof Collection<?>)
         {
             Collection<?> collection = (Collection<?>) object;
@@ -362,6 +397,39 @@ public class MonitorHandler implements Handler
      */
     protected boolean debug = false;
 
+    /**
+     * Where we get call metrics from
+     * @param callMetrics The new CallMetrics
+     */
+    public void setCallMetrics(CallMetrics callMetrics)
+    {
+        this.callMetrics = callMetrics;
+    }
+
+    /**
+     * Where we get call metrics from
+     */
+    protected CallMetrics callMetrics = null;
+
+    /**
+     * Do we publish call metrics as JSON outside of debug mode?
+     * @param callMetricsJson true to publish metrics at {@link #METRICS_PATH}
+     */
+    public void setCallMetricsJson(boolean callMetricsJson)
+    {
+        this.callMetricsJson = callMetricsJson;
+    }
+
+    /**
+     * Do we publish call metrics as JSON outside of debug mode?
+     */
+    protected boolean callMetricsJson = false;
+
+    /**
+     * The path under the monitor URL at which we publish call metrics
+     */
+    protected static final String METRICS_PATH = "/metrics.json";
+
     /**
      * The log stream
      */
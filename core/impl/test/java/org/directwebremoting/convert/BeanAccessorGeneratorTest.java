@@ -0,0 +1,162 @@
+package org.directwebremoting.convert;
+
+import java.util.Map;
+
+import org.directwebremoting.extend.Property;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BeanAccessorGeneratorTest
+{
+    @Test
+    public void testGeneratedAccessorsReadAndWrite() throws Exception
+    {
+        BeanConverter converter = new BeanConverter();
+        converter.setGenerateAccessors(true);
+
+        Map<String, Property> properties = converter.getPropertyMapFromClass(Sample.class, false, false);
+        for (Property property : properties.values())
+        {
+            assertTrue(property.toString(), property instanceof GeneratedAccessorProperty);
+        }
+
+        Sample sample = new Sample();
+        properties.get("count").setValue(sample, 42);
+        properties.get("total").setValue(sample, 7L);
+        properties.get("active").setValue(sample, Boolean.TRUE);
+        properties.get("name").setValue(sample, "fred");
+        properties.get("tags").setValue(sample, new String[] { "a" });
+
+        assertEquals(42, properties.get("count").getValue(sample));
+        assertEquals(7L, properties.get("total").getValue(sample));
+        assertEquals(Boolean.TRUE, properties.get("active").getValue(sample));
+        assertEquals("fred", properties.get("name").getValue(sample));
+        assertEquals("a", ((String[]) properties.get("tags").getValue(sample))[0]);
+    }
+
+    @Test
+    public void testNonPublicClassesUseReflection() throws Exception
+    {
+        BeanConverter converter = new BeanConverter();
+        converter.setGenerateAccessors(true);
+
+        Map<String, Property> properties = converter.getPropertyMapFromClass(Hidden.class, true, false);
+        assertFalse(properties.get("name") instanceof GeneratedAccessorProperty);
+    }
+
+    @Test(expected = org.directwebremoting.ConversionException.class)
+    public void testExceptionsAreWrapped() throws Exception
+    {
+        BeanConverter converter = new BeanConverter();
+        converter.setGenerateAccessors(true);
+
+        Property property = converter.getPropertyMapFromClass(Sample.class, false, true).get("count");
+        property.setValue(new Sample(), "not a number");
+    }
+
+    @Test
+    public void testReadOnlyInterface() throws Exception
+    {
+        BeanConverter converter = new BeanConverter();
+        converter.setGenerateAccessors(true);
+
+        Map<String, Property> properties = converter.getPropertyMapFromClass(Measured.class, true, false);
+        Property property = properties.get("size");
+        assertTrue(property instanceof GeneratedAccessorProperty);
+
+        Measured measured = new Measured()
+        {
+            public double getSize()
+            {
+                return 2.5;
+            }
+        };
+        assertEquals(2.5, property.getValue(measured));
+    }
+
+    /**
+     * A bean with a mix of property types, including a setter that returns
+     * a long
+     */
+    public static class Sample
+    {
+        public int getCount()
+        {
+            return count;
+        }
+
+        public void setCount(int count)
+        {
+            this.count = count;
+        }
+
+        public long getTotal()
+        {
+            return total;
+        }
+
+        public long setTotal(long total)
+        {
+            long old = this.total;
+            this.total = total;
+            return old;
+        }
+
+        public boolean isActive()
+        {
+            return active;
+        }
+
+        public void setActive(boolean active)
+        {
+            this.active = active;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public void setName(String name)
+        {
+            this.name = name;
+        }
+
+        public String[] getTags()
+        {
+            return tags;
+        }
+
+        public void setTags(String[] tags)
+        {
+            this.tags = tags;
+        }
+
+        private int count;
+        private long total;
+        private boolean active;
+        private String name;
+        private String[] tags;
+    }
+
+    /**
+     * A read-only interface, so the accessor has nothing to switch on in
+     * setValue()
+     */
+    public interface Measured
+    {
+        double getSize();
+    }
+
+    /**
+     * A bean that generated code can't see
+     */
+    static class Hidden
+    {
+        public String getName()
+        {
+            return "hidden";
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.convert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.directwebremoting.extend.Property;
+
+/**
+ * Compares reflection with generated accessors when reading and writing
+ * every property of object graphs with 10, 100 and 1000 properties. Each
+ * graph is a chain of beans with 10 properties each, which is what the
+ * converters see when marshalling a list of DTOs.
+ * <p>Not a unit test, run it from the command line.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class BeanAccessorHarness
+{
+    public static void main(String[] args) throws Exception
+    {
+        BeanConverter reflecting = new BeanConverter();
+        BeanConverter generating = new BeanConverter();
+        generating.setGenerateAccessors(true);
+
+        Collection<Property> reflected = reflecting.getPropertyMapFromClass(Node.class, true, true).values();
+        Collection<Property> generated = generating.getPropertyMapFromClass(Node.class, true, true).values();
+
+        // Warm up both paths before measuring anything
+        List<Node> warmup = createGraph(100);
+        run(reflected, warmup, 2000);
+        run(generated, warmup, 2000);
+
+        for (int properties : new int[] { 10, 100, 1000 })
+        {
+            List<Node> graph = createGraph(properties);
+            int repeats = 2000000 / properties;
+            long reflection = run(reflected, graph, repeats);
+            long generation = run(generated, graph, repeats);
+            System.out.println(properties + " properties: reflection=" + reflection + "ns/graph, generated=" + generation + "ns/graph");
+        }
+    }
+
+    /**
+     * Read then write every property of every bean in the graph
+     * @return The mean time in nanoseconds to process the graph once
+     */
+    private static long run(Collection<Property> properties, List<Node> graph, int repeats) throws Exception
+    {
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++)
+        {
+            for (Node node : graph)
+            {
+                for (Property property : properties)
+                {
+                    Object value = property.getValue(node);
+                    property.setValue(node, value);
+                }
+            }
+        }
+        return (System.nanoTime() - start) / repeats;
+    }
+
+    /**
+     * Create a chain of beans with the given total number of properties
+     */
+    private static List<Node> createGraph(int properties)
+    {
+        List<Node> graph = new ArrayList<Node>();
+        Node previous = null;
+        for (int i = 0; i < properties / Node.PROPERTIES; i++)
+        {
+            Node node = new Node();
+            node.setId(i);
+            node.setName("node" + i);
+            node.setNext(previous);
+            graph.add(node);
+            previous = node;
+        }
+        return graph;
+    }
+
+    /**
+     * A bean with 10 properties of assorted types
+     */
+    public static class Node
+    {
+        public int getId()
+        {
+            return id;
+        }
+
+        public void setId(int id)
+        {
+            this.id = id;
+        }
+
+        public long getVersion()
+        {
+            return version;
+        }
+
+        public void setVersion(long version)
+        {
+            this.version = version;
+        }
+
+        public double getPrice()
+        {
+            return price;
+        }
+
+        public void setPrice(double price)
+        {
+            this.price = price;
+        }
+
+        public boolean isActive()
+        {
+            return active;
+        }
+
+        public void setActive(boolean active)
+        {
+            this.active = active;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public void setName(String name)
+        {
+            this.name = name;
+        }
+
+        public String getDescription()
+        {
+            return description;
+        }
+
+        public void setDescription(String description)
+        {
+            this.description = description;
+        }
+
+        public String getCategory()
+        {
+            return category;
+        }
+
+        public void setCategory(String category)
+        {
+            this.category = category;
+        }
+
+        public Integer getQuantity()
+        {
+            return quantity;
+        }
+
+        public void setQuantity(Integer quantity)
+        {
+            this.quantity = quantity;
+        }
+
+        public short getRank()
+        {
+            return rank;
+        }
+
+        public void setRank(short rank)
+        {
+            this.rank = rank;
+        }
+
+        public Node getNext()
+        {
+            return next;
+        }
+
+        public void setNext(Node next)
+        {
+            this.next = next;
+        }
+
+        static final int PROPERTIES = 10;
+
+        private int id;
+        private long version;
+        private double price;
+        private boolean active;
+        private String name;
+        private String description = "description";
+        private String category = "category";
+        private Integer quantity = 1;
+        private short rank;
+        private Node next;
+    }
+}
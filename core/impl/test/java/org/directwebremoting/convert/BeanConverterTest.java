@@ -15,6 +15,8 @@
  */
 package org.directwebremoting.convert;
 
+import java.util.Map;
+
 import org.directwebremoting.convert.test.MyBeanImpl;
 import org.directwebremoting.extend.ConverterManager;
 import org.directwebremoting.extend.InboundVariable;
@@ -241,6 +243,37 @@ public class BeanConverterTest
         EasyMock.verify(manager);
     }
 
+    @Test
+    public void propertyMapsAreCached() throws Exception
+    {
+        Map<String, Property> readable = converter.getPropertyMapFromClass(MyBeanImpl.class, true, false);
+        assertSame(readable, converter.getPropertyMapFromClass(MyBeanImpl.class, true, false));
+        assertTrue(readable.containsKey("property"));
+        assertFalse(readable.containsKey("nonReadableProperty"));
+
+        Map<String, Property> writable = converter.getPropertyMapFromClass(MyBeanImpl.class, false, true);
+        assertNotSame(readable, writable);
+        assertTrue(writable.containsKey("nonReadableProperty"));
+    }
+
+    @Test
+    public void propertyMapsFollowIncludeRules() throws Exception
+    {
+        Map<String, Property> before = converter.getPropertyMapFromClass(MyBeanImpl.class, false, true);
+        assertTrue(before.containsKey("nonReadableProperty"));
+
+        converter.setInclude("property");
+        Map<String, Property> after = converter.getPropertyMapFromClass(MyBeanImpl.class, false, true);
+        assertEquals(1, after.size());
+        assertTrue(after.containsKey("property"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cachedPropertyMapsAreReadOnly() throws Exception
+    {
+        converter.getPropertyMapFromClass(MyBeanImpl.class, true, false).clear();
+    }
+
     @Test(expected = Exception.class)
     public void convertOutboundNullPointerException() throws Exception
     {
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.extend;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.directwebremoting.impl.TestEnvironment;
+
+/**
+ * Measures the allocation and time taken to set up and convert the inbound
+ * variables for batches of 1, 10 and 100 calls. Each call has a referenced
+ * bean, a string and a number as parameters. Variables are created either
+ * with the type already split off (eager) or from the whole declaration
+ * (deferred) as CallBatch now does.
+ * <p>Allocation is only reported on VMs that can count the bytes allocated
+ * by a thread.
+ * <p>Not a unit test, run it from the command line.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class InboundContextHarness
+{
+    public static void main(String[] args) throws Exception
+    {
+        TestEnvironment.engageThread();
+        ConverterManager converterManager = TestEnvironment.getConverterManager();
+
+        // Warm up both paths before measuring anything
+        run(converterManager, 10, false, 2000);
+        run(converterManager, 10, true, 2000);
+
+        for (int calls : new int[] { 1, 10, 100 })
+        {
+            int repeats = 100000 / calls;
+            long eagerStart = allocatedBytes();
+            long eager = run(converterManager, calls, false, repeats);
+            long eagerBytes = (allocatedBytes() - eagerStart) / repeats;
+
+            long deferredStart = allocatedBytes();
+            long deferred = run(converterManager, calls, true, repeats);
+            long deferredBytes = (allocatedBytes() - deferredStart) / repeats;
+
+            System.out.println(calls + " calls: eager=" + eager + "ns/" + eagerBytes + "bytes per batch, deferred=" + deferred + "ns/" + deferredBytes + "bytes per batch");
+        }
+    }
+
+    /**
+     * Create, dereference and convert a batch of calls
+     * @return The mean time in nanoseconds to process the batch once
+     */
+    private static long run(ConverterManager converterManager, int calls, boolean deferred, int repeats) throws Exception
+    {
+        // Build the names and declarations up front so we only measure the
+        // work done by the context
+        String[][] keys = new String[calls][];
+        String[][] declarations = new String[calls][];
+        for (int callNum = 0; callNum < calls; callNum++)
+        {
+            String prefix = "c" + callNum + "-";
+            keys[callNum] = new String[] { prefix + "param0", prefix + "param1", prefix + "param2", prefix + "e1", prefix + "e2" };
+            declarations[callNum] = new String[] { "reference:" + prefix + "e1", "string:hello%20world", "number:42", "Object_Object:{name:reference:" + prefix + "e2}", "string:joe" };
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++)
+        {
+            for (int callNum = 0; callNum < calls; callNum++)
+            {
+                InboundContext context = new InboundContext();
+                for (int j = 0; j < keys[callNum].length; j++)
+                {
+                    create(context, callNum, keys[callNum][j], declarations[callNum][j], deferred);
+                }
+                context.dereference();
+
+                for (int param = 0; param < context.getParameterCount(callNum); param++)
+                {
+                    context.getParameter(callNum, param).getType();
+                }
+                converterManager.convertInbound(String.class, context.getParameter(callNum, 1), null);
+                converterManager.convertInbound(Integer.class, context.getParameter(callNum, 2), null);
+                context.getConverted(context.getParameter(callNum, 0), Object.class);
+            }
+        }
+        return (System.nanoTime() - start) / repeats;
+    }
+
+    /**
+     * Create a variable in the way that the old or new parsers do
+     */
+    private static void create(InboundContext context, int callNum, String key, String declaration, boolean deferred)
+    {
+        if (deferred)
+        {
+            context.createInboundVariable(callNum, key, new FormField(declaration));
+        }
+        else
+        {
+            String[] split = ConvertUtil.splitInbound(declaration);
+            context.createInboundVariable(callNum, key, split[ConvertUtil.INBOUND_INDEX_TYPE], split[ConvertUtil.INBOUND_INDEX_VALUE]);
+        }
+    }
+
+    /**
+     * @return The bytes allocated by this thread so far, or 0 if the VM can't
+     * tell us
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try
+        {
+            Class<?> sunThreads = Class.forName("com.sun.management.ThreadMXBean");
+            Method method = sunThreads.getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threads, Thread.currentThread().getId());
+        }
+        catch (Exception ex)
+        {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.directwebremoting.extend;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.directwebremoting.ConversionException;
+import org.directwebremoting.impl.TestEnvironment;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InboundContextTest
+{
+    @BeforeClass
+    public static void setUp()
+    {
+        TestEnvironment.engageThread();
+    }
+
+    @Test
+    public void testIndexedStorage() throws Exception
+    {
+        InboundContext context = new InboundContext();
+        context.createInboundVariable(0, "c0-param2", "string", "two");
+        context.createInboundVariable(0, "c0-param0", new FormField("reference:c0-e1"));
+        context.createInboundVariable(0, "c0-e1", "number", "1");
+        context.createInboundVariable(0, "c0-param10x", "string", "odd");
+        context.createInboundVariable(0, "c1-param0", "string", "other call");
+
+        assertEquals(3, context.getParameterCount());
+        assertEquals(2, context.getParameterCount(0));
+        assertEquals(1, context.getParameterCount(1));
+        assertEquals(0, context.getParameterCount(7));
+
+        assertEquals("two", context.getParameter(0, 2).getValue());
+        assertTrue(context.getParameter(0, 1).isNull());
+        assertTrue(context.getParameter(3, 0).isNull());
+        assertEquals("odd", context.getInboundVariable("c0-param10x").getValue());
+        assertEquals("other call", context.getInboundVariable("c1-param0").getValue());
+        assertNull(context.getInboundVariable("c0-e2"));
+
+        context.dereference();
+        assertEquals("number", context.getParameter(0, 0).getType());
+        assertEquals("1", context.getParameter(0, 0).getValue());
+
+        List<String> names = new ArrayList<String>();
+        for (Iterator<String> it = context.getInboundVariableNames(); it.hasNext();)
+        {
+            names.add(it.next());
+        }
+        assertEquals(5, names.size());
+        assertTrue(names.contains("c0-param10x"));
+    }
+
+    @Test
+    public void testLargeIndexesAreNotStoredInLists() throws Exception
+    {
+        InboundContext context = new InboundContext();
+        context.createInboundVariable(0, "c0-param999999999", "string", "far");
+        context.createInboundVariable(0, "c0-param0", new FormField("reference:c0-e999999999"));
+        context.createInboundVariable(0, "c0-e999999999", "string", "far element");
+        context.createInboundVariable(999999999, "c999999999-param0", "string", "far call");
+
+        assertEquals(1, context.getParameterCount());
+        assertEquals(1, context.getParameterCount(0));
+        assertTrue(context.getParameter(0, 999999999).isNull());
+        assertEquals("far", context.getInboundVariable("c0-param999999999").getValue());
+        assertEquals("far call", context.getInboundVariable("c999999999-param0").getValue());
+
+        context.dereference();
+        assertEquals("far element", context.getParameter(0, 0).getValue());
+    }
+
+    @Test
+    public void testDeferredTypes() throws Exception
+    {
+        InboundContext context = new InboundContext();
+        context.createInboundVariable(0, "c0-param0", new FormField("Object_Object?Person:{name:reference:c0-e1}"));
+        context.createInboundVariable(0, "c0-param1", new FormField("no type"));
+        context.createInboundVariable(0, "c0-e1", new FormField("reference:c0-e2"));
+        context.createInboundVariable(0, "c0-e2", new FormField("string:joe:smith"));
+
+        InboundVariable param = context.getParameter(0, 0);
+        assertEquals("Object_Object:Person", param.getType());
+        assertEquals("{name:reference:c0-e1}", param.getValue());
+
+        assertEquals("string", context.getParameter(0, 1).getType());
+        assertEquals("no type", context.getParameter(0, 1).getValue());
+
+        // References are followed through chains of declarations
+        InboundVariable nested = new InboundVariable(context, null, ProtocolConstants.TYPE_REFERENCE, "c0-e1");
+        nested.dereference();
+        assertEquals("string", nested.getType());
+        assertEquals("joe:smith", nested.getValue());
+
+        InboundVariable missing = new InboundVariable(context, null, ProtocolConstants.TYPE_REFERENCE, "c0-e9");
+        try
+        {
+            missing.dereference();
+            fail();
+        }
+        catch (ConversionException ex)
+        {
+        }
+    }
+
+    @Test
+    public void testSharedReferencesAreConvertedOnce() throws Exception
+    {
+        InboundContext context = new InboundContext();
+        context.createInboundVariable(0, "c0-param0", new FormField("reference:c0-e1"));
+        context.createInboundVariable(0, "c0-param1", new FormField("reference:c0-e1"));
+        context.createInboundVariable(0, "c0-e1", new FormField("Array:[reference:c0-e2,reference:c0-e2]"));
+        context.createInboundVariable(0, "c0-e2", new FormField("string:x"));
+        context.dereference();
+
+        ConverterManager converterManager = TestEnvironment.getConverterManager();
+        String[] first = converterManager.convertInbound(String[].class, context.getParameter(0, 0), null);
+        String[] second = converterManager.convertInbound(String[].class, context.getParameter(0, 1), null);
+        assertSame(first, second);
+        assertEquals(2, first.length);
+        assertEquals("x", first[0]);
+
+        // Different types and cleared contexts get new conversions
+        assertSame(first, context.getConverted(context.getParameter(0, 1), String[].class));
+        assertNull(context.getConverted(context.getParameter(0, 1), Object[].class));
+        context.clearConverted();
+        assertNull(context.getConverted(context.getParameter(0, 0), String[].class));
+
+        // Inline data is never remembered
+        InboundVariable inline = new InboundVariable(context, null, "string", "x");
+        inline.dereference();
+        context.addConverted(inline, String.class, "x");
+        assertNull(context.getConverted(inline, String.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConvertedNeedsDereference() throws Exception
+    {
+        InboundContext context = new InboundContext();
+        context.createInboundVariable(0, "c0-param0", new FormField("reference:c0-e1"));
+        context.getConverted(context.getParameter(0, 0), String.class);
+    }
+}
@@ -0,0 +1,73 @@
+package org.directwebremoting.extend;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MethodDispatchTableTest
+{
+    @Test
+    public void testMethodsAreGroupedByName() throws Exception
+    {
+        MethodDispatchTable table = new MethodDispatchTable(declare(Target.class));
+
+        assertEquals(3, table.getMethodCount("call"));
+        assertEquals(1, table.getMethodCount("other"));
+        assertEquals(0, table.getMethodCount("missing"));
+        assertEquals(0, table.getMethods("missing").length);
+        assertEquals(0, table.getCandidates("missing", 1).length);
+    }
+
+    @Test
+    public void testCandidatesByParamCount() throws Exception
+    {
+        MethodDispatchTable table = new MethodDispatchTable(declare(Target.class));
+
+        // Methods that declare more parameters than are passed get nulls
+        assertEquals(3, table.getCandidates("call", 0).length);
+        assertEquals(3, table.getCandidates("call", 1).length);
+        assertEquals(2, table.getCandidates("call", 2).length);
+
+        // Only varargs can take more than the longest declaration
+        MethodDeclaration[] methods = table.getMethods("call");
+        for (int paramCount = 3; paramCount < 10; paramCount++)
+        {
+            int[] candidates = table.getCandidates("call", paramCount);
+            assertEquals(1, candidates.length);
+            assertTrue(methods[candidates[0]].isVarArgs());
+        }
+    }
+
+    private static MethodDeclaration[] declare(Class<?> type)
+    {
+        List<MethodDeclaration> declarations = new ArrayList<MethodDeclaration>();
+        for (Method method : type.getDeclaredMethods())
+        {
+            declarations.add(new MethodDeclaration(method));
+        }
+        return declarations.toArray(new MethodDeclaration[declarations.size()]);
+    }
+
+    public static class Target
+    {
+        public void call(String a)
+        {
+        }
+
+        public void call(String a, int b)
+        {
+        }
+
+        public void call(String... a)
+        {
+        }
+
+        public void other()
+        {
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.directwebremoting.extend;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.directwebremoting.ScriptBuffer;
+import org.directwebremoting.impl.TestEnvironment;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScriptBufferUtilTest
+{
+    @BeforeClass
+    public static void setUp()
+    {
+        TestEnvironment.engageThread();
+    }
+
+    @Test
+    public void testStreamedOutputMatchesString() throws Exception
+    {
+        Map<String, Object> shared = new HashMap<String, Object>();
+        shared.put("name", "shared");
+        List<Object> list = new ArrayList<Object>();
+        list.add(shared);
+        list.add(shared);
+        list.add("text");
+
+        ScriptBuffer script = new ScriptBuffer();
+        script.appendScript("f(").appendData(list).appendScript(");");
+
+        String created = ScriptBufferUtil.createOutput(script, TestEnvironment.getConverterManager(), false);
+        assertEquals("var s0={};s0.name=\"shared\";\r\nf([s0,s0,\"text\"]);", created);
+
+        StringWriter streamed = new StringWriter();
+        ScriptBufferUtil.writeOutput(script, TestEnvironment.getConverterManager(), false, streamed);
+        assertEquals(created, streamed.toString());
+    }
+
+    @Test
+    public void testJsonWrapping() throws Exception
+    {
+        assertEquals("{ \"reply\":\"text\"}", json("text"));
+        assertEquals("[1,2]", json(new int[] { 1, 2 }));
+        assertEquals("{ \"reply\":null}", json(null));
+    }
+
+    @Test
+    public void testLargeRepliesAreNotBuiltInMemory() throws Exception
+    {
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++)
+        {
+            list.add("item" + i);
+        }
+
+        ScriptBuffer script = new ScriptBuffer();
+        script.appendData(list);
+
+        LargestWriteWriter out = new LargestWriteWriter();
+        ScriptBufferUtil.writeOutput(script, TestEnvironment.getConverterManager(), false, out);
+        assertTrue(out.total > 100000);
+        assertTrue(out.largest < 100);
+    }
+
+    @Test
+    public void testSharedScriptsAreConvertedOnce() throws Exception
+    {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("name", "before");
+
+        ScriptBuffer script = new ScriptBuffer();
+        script.appendScript("f(").appendData(data).appendScript(");");
+        String expected = ScriptBufferUtil.createOutput(script, TestEnvironment.getConverterManager(), false);
+
+        SharedScriptBuffer shared = SharedScriptBuffer.share(script);
+        assertSame(shared, SharedScriptBuffer.share(shared));
+
+        String first = ScriptBufferUtil.createOutput(shared, TestEnvironment.getConverterManager(), false);
+        assertEquals(expected, first);
+
+        // Later sessions get the output of the first conversion
+        data.put("name", "after");
+        script.appendScript("g();");
+        assertSame(first, ScriptBufferUtil.createOutput(shared, TestEnvironment.getConverterManager(), false));
+
+        StringWriter streamed = new StringWriter();
+        ScriptBufferUtil.writeOutput(shared, TestEnvironment.getConverterManager(), false, streamed);
+        assertEquals(first, streamed.toString());
+
+        // JSON is converted separately
+        assertEquals("{ \"reply\":\"x\"}", ScriptBufferUtil.createOutput(SharedScriptBuffer.share(new ScriptBuffer().appendData("x")), TestEnvironment.getConverterManager(), true));
+    }
+
+    private static String json(Object data) throws Exception
+    {
+        ScriptBuffer script = new ScriptBuffer();
+        script.appendData(data);
+
+        StringWriter out = new StringWriter();
+        ScriptBufferUtil.writeOutput(script, TestEnvironment.getConverterManager(), true, out);
+        assertEquals(ScriptBufferUtil.createOutput(script, TestEnvironment.getConverterManager(), true), out.toString());
+        return out.toString();
+    }
+
+    /**
+     * A Writer that remembers the size of the largest write
+     */
+    private static class LargestWriteWriter extends Writer
+    {
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
+        {
+            largest = Math.max(largest, len);
+            total += len;
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        int largest = 0;
+        long total = 0;
+    }
+}
@@ -0,0 +1,166 @@
+package org.directwebremoting.impl;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.directwebremoting.extend.AdaptiveLoadMonitor.ClientClass;
+import org.directwebremoting.extend.WaitController;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveServerLoadMonitorTest
+{
+    @Test
+    public void testSlowCallsShedStreamingFirst()
+    {
+        AdaptiveServerLoadMonitor monitor = new AdaptiveServerLoadMonitor();
+        monitor.setTargetLatency(100);
+        monitor.setMaxHeapUsage(2.0);
+
+        // Fast calls leave everything alone
+        record(monitor, 20, 50);
+        monitor.adjust();
+        assertTrue(monitor.getLatencyP99() <= 64);
+        assertEquals(60000, monitor.getConnectedTime(ClientClass.STREAMING));
+        assertEquals(0, monitor.getDisconnectedTime(ClientClass.POLL));
+        assertTrue(monitor.supportsStreaming(ClientClass.STREAMING));
+
+        // Slow calls cut capacity, streaming hardest
+        record(monitor, 20, 300);
+        monitor.adjust();
+        assertTrue(monitor.getPressure() > 1.0);
+        assertFalse(monitor.supportsStreaming(ClientClass.STREAMING));
+        assertTrue(monitor.supportsStreaming(ClientClass.LONG_POLL));
+        assertTrue(monitor.getCapacity(ClientClass.STREAMING) < monitor.getCapacity(ClientClass.LONG_POLL));
+        assertTrue(monitor.getCapacity(ClientClass.LONG_POLL) < monitor.getCapacity(ClientClass.POLL));
+        assertTrue(monitor.getConnectedTime(ClientClass.STREAMING) < 60000);
+        assertTrue(monitor.getDisconnectedTime(ClientClass.POLL) > 0);
+
+        for (int i = 0; i < 5; i++)
+        {
+            record(monitor, 20, 300);
+            monitor.adjust();
+        }
+        assertFalse(monitor.supportsStreaming(ClientClass.LONG_POLL));
+        assertTrue(monitor.supportsStreaming(ClientClass.POLL));
+
+        // Recovery is gradual
+        long before = monitor.getConnectedTime(ClientClass.LONG_POLL);
+        monitor.adjust();
+        assertEquals(-1, monitor.getLatencyP99());
+        long after = monitor.getConnectedTime(ClientClass.LONG_POLL);
+        assertTrue(after > before);
+        assertTrue(after < 60000);
+
+        for (int i = 0; i < 40; i++)
+        {
+            monitor.adjust();
+        }
+        assertEquals(60000, monitor.getConnectedTime(ClientClass.STREAMING));
+        assertTrue(monitor.supportsStreaming(ClientClass.STREAMING));
+    }
+
+    @Test
+    public void testWithdrawingLongPollTightensTiming()
+    {
+        AdaptiveServerLoadMonitor monitor = new AdaptiveServerLoadMonitor();
+        monitor.setTargetLatency(100);
+        monitor.setMaxHeapUsage(2.0);
+
+        // A long poll client is timed as LONG_POLL until long polling goes,
+        // then the poll handler times it as POLL
+        long connected = monitor.getConnectedTime(ClientClass.LONG_POLL);
+        int disconnected = monitor.getDisconnectedTime(ClientClass.LONG_POLL);
+        while (monitor.supportsStreaming(ClientClass.LONG_POLL))
+        {
+            connected = monitor.getConnectedTime(ClientClass.LONG_POLL);
+            disconnected = monitor.getDisconnectedTime(ClientClass.LONG_POLL);
+            record(monitor, 20, 300);
+            monitor.adjust();
+        }
+
+        assertTrue(monitor.getCapacity(ClientClass.POLL) > monitor.getCapacity(ClientClass.LONG_POLL));
+        assertTrue(monitor.getConnectedTime(ClientClass.POLL) < connected);
+        assertTrue(monitor.getDisconnectedTime(ClientClass.POLL) > disconnected);
+        assertEquals(monitor.getConnectedTime(ClientClass.LONG_POLL), monitor.getConnectedTime(ClientClass.POLL));
+
+        // Once nothing is withdrawn, polling clients get their own timing
+        while (!monitor.supportsStreaming(ClientClass.STREAMING))
+        {
+            monitor.adjust();
+        }
+        assertTrue(monitor.getConnectedTime(ClientClass.POLL) > monitor.getConnectedTime(ClientClass.LONG_POLL));
+    }
+
+    @Test
+    public void testWaitingThreadsCountAsLoad()
+    {
+        AdaptiveServerLoadMonitor monitor = new AdaptiveServerLoadMonitor();
+        monitor.setMaxWaitingThreads(2);
+        monitor.setMaxHeapUsage(2.0);
+
+        WaitController[] controllers = new WaitController[3];
+        for (int i = 0; i < controllers.length; i++)
+        {
+            controllers[i] = new NullWaitController();
+            monitor.threadWaitStarting(controllers[i]);
+        }
+
+        monitor.adjust();
+        assertEquals(3, monitor.getWaitingThreads());
+        assertTrue(monitor.getConnectedTime() < 60000);
+
+        monitor.threadWaitEnding(controllers[0]);
+        monitor.adjust();
+        assertEquals(2, monitor.getWaitingThreads());
+        assertEquals(1.0, monitor.getPressure(), 0.001);
+    }
+
+    @Test
+    public void testControlPeriodSetAfterExecutor()
+    {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try
+        {
+            AdaptiveServerLoadMonitor monitor = new AdaptiveServerLoadMonitor();
+            monitor.setScheduledThreadPoolExecutor(executor);
+            monitor.setControlPeriod(60000);
+
+            // Cancelled tasks stay queued until purged
+            executor.purge();
+            assertEquals(1, executor.getQueue().size());
+            ScheduledFuture<?> scheduled = (ScheduledFuture<?>) executor.getQueue().peek();
+            assertTrue(scheduled.getDelay(TimeUnit.MILLISECONDS) > 30000);
+
+            monitor.contextDestroyed();
+            executor.purge();
+            assertEquals(0, executor.getQueue().size());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void record(AdaptiveServerLoadMonitor monitor, int calls, long millis)
+    {
+        for (int i = 0; i < calls; i++)
+        {
+            monitor.callCompleted(millis * 1000000);
+        }
+    }
+
+    private static class NullWaitController implements WaitController
+    {
+        public void shutdown()
+        {
+        }
+
+        public boolean isShutdown()
+        {
+            return false;
+        }
+    }
+}
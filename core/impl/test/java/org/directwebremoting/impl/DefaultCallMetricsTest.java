@@ -0,0 +1,106 @@
+package org.directwebremoting.impl;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.directwebremoting.extend.CallMetrics.Stage;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DefaultCallMetricsTest
+{
+    @Test
+    public void testRecording() throws Exception
+    {
+        DefaultCallMetrics metrics = new DefaultCallMetrics();
+        assertFalse(metrics.isEnabled());
+
+        metrics.setCallMetricsEnabled(true);
+        metrics.requestRead(100);
+        metrics.requestRead(-1);
+        metrics.stageCompleted(Stage.PARSE, 2000000);
+        metrics.methodCompleted("Demo", "sayHello", 5000000, false);
+        metrics.methodCompleted("Demo", "sayHello", 7000000, true);
+        metrics.methodCompleted("Demo", "other", 1000000, false);
+        metrics.replyWritten("Demo", "sayHello", 40);
+
+        assertEquals(2, metrics.getRequests());
+        assertEquals(100, metrics.getBytesRead());
+        assertEquals(40, metrics.getCharsWritten());
+        assertEquals(3, metrics.getCalls());
+        assertEquals(1, metrics.getErrors());
+        assertEquals(3, metrics.getCallsInLastMinute());
+        assertEquals(1, metrics.getErrorsInLastMinute());
+        assertEquals(1, metrics.getStageLatency(Stage.PARSE).getCount());
+        assertEquals(0, metrics.getStageLatency(Stage.EXECUTE).getCount());
+
+        MethodMetrics sayHello = metrics.getMethodMetrics("Demo", "sayHello");
+        assertEquals(2, sayHello.getCalls());
+        assertEquals(0.5, sayHello.getErrorRate(), 0.001);
+        assertEquals(7000, sayHello.getMaxMicros());
+        assertEquals(40, sayHello.getCharsWritten());
+        assertEquals(2, metrics.getMethodMetrics().size());
+
+        metrics.reset();
+        assertEquals(0, metrics.getCalls());
+        assertEquals(0, metrics.getMethodMetrics().size());
+        assertEquals(0, metrics.getStageLatency(Stage.PARSE).getCount());
+    }
+
+    @Test
+    public void testJson() throws Exception
+    {
+        DefaultCallMetrics metrics = new DefaultCallMetrics();
+        metrics.setEnabled(true);
+        metrics.stageCompleted(Stage.FIND_METHOD, 3000);
+        metrics.methodCompleted("Odd\"Name", "run", 1000, false);
+
+        StringWriter out = new StringWriter();
+        metrics.writeJson(out);
+        String json = out.toString();
+
+        assertTrue(json.startsWith("{\"enabled\":true,"));
+        assertTrue(json.endsWith("}}"));
+        assertTrue(json.contains("\"FIND_METHOD\":{\"count\":1,"));
+        assertTrue(json.contains("\"MARSHALL_OUTBOUND\":{\"count\":0,"));
+        assertTrue(json.contains("\"Odd\\\"Name.run\":{\"calls\":1,\"errors\":0,"));
+    }
+
+    @Test
+    public void testJmx() throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.directwebremoting.test:type=CallMetrics,servlet=\"dwr-invoker\"");
+        ObjectName method = new ObjectName("org.directwebremoting.test:type=MethodMetrics,servlet=\"dwr-invoker\",script=\"Demo\",method=\"sayHello\"");
+
+        DefaultCallMetrics metrics = new DefaultCallMetrics();
+        metrics.setCallMetricsJmxDomain("org.directwebremoting.test");
+        metrics.setCallMetricsEnabled(true);
+        metrics.afterContainerSetup(null);
+        try
+        {
+            assertTrue(server.isRegistered(name));
+            assertFalse(server.isRegistered(method));
+
+            metrics.methodCompleted("Demo", "sayHello", 5000, true);
+            assertTrue(server.isRegistered(method));
+            assertEquals(1L, server.getAttribute(method, "Errors"));
+            assertEquals(1L, server.getAttribute(name, "Calls"));
+
+            // Metrics can be turned off from JMX
+            server.setAttribute(name, new javax.management.Attribute("Enabled", false));
+            assertFalse(metrics.isEnabled());
+        }
+        finally
+        {
+            metrics.contextDestroyed();
+        }
+
+        assertFalse(server.isRegistered(name));
+        assertFalse(server.isRegistered(method));
+    }
+}
@@ -0,0 +1,100 @@
+package org.directwebremoting.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.directwebremoting.event.MessageEvent;
+import org.directwebremoting.event.MessageListener;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DefaultHubTest
+{
+    private final DefaultHub hub = new DefaultHub();
+
+    @Test
+    public void testExactTopic()
+    {
+        RecordingListener listener = new RecordingListener();
+        hub.subscribe("stocks.ibm", listener);
+
+        hub.publish("stocks.ibm", "a");
+        hub.publish("stocks.aapl", "b");
+        assertEquals(1, listener.events.size());
+        assertEquals("a", listener.events.get(0).getData(String.class));
+
+        assertTrue(hub.unsubscribe("stocks.ibm", listener));
+        assertFalse(hub.unsubscribe("stocks.ibm", listener));
+        hub.publish("stocks.ibm", "c");
+        assertEquals(1, listener.events.size());
+    }
+
+    @Test
+    public void testSingleSegmentWildcard()
+    {
+        RecordingListener listener = new RecordingListener();
+        hub.subscribe("stocks.*", listener);
+
+        hub.publish("stocks.ibm", "a");
+        hub.publish("stocks.ibm.bid", "b");
+        hub.publish("bonds.ibm", "c");
+        assertEquals(1, listener.events.size());
+
+        assertTrue(hub.unsubscribe("stocks.*", listener));
+        hub.publish("stocks.ibm", "d");
+        assertEquals(1, listener.events.size());
+    }
+
+    @Test
+    public void testMultiSegmentWildcard()
+    {
+        RecordingListener listener = new RecordingListener();
+        hub.subscribe("stocks.**", listener);
+
+        hub.publish("stocks", "a");
+        hub.publish("stocks.ibm", "b");
+        hub.publish("stocks.ibm.bid", "c");
+        assertEquals(2, listener.events.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMultiSegmentWildcardMustBeLast()
+    {
+        hub.subscribe("stocks.**.bid", new RecordingListener());
+    }
+
+    @Test
+    public void testOneEventPerPublishAndNoDuplicates()
+    {
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        hub.subscribe("stocks.ibm", first);
+        hub.subscribe("stocks.*", first);
+        hub.subscribe("stocks.*", second);
+
+        hub.publish("stocks.ibm", "a");
+        assertEquals(1, first.events.size());
+        assertEquals(1, second.events.size());
+        assertSame(first.events.get(0), second.events.get(0));
+
+        // Cached matches must be forgotten when subscriptions change
+        hub.unsubscribe("stocks.*", second);
+        hub.publish("stocks.ibm", "b");
+        assertEquals(2, first.events.size());
+        assertEquals(1, second.events.size());
+    }
+
+    /**
+     * A listener that remembers what it was told
+     */
+    private static class RecordingListener implements MessageListener
+    {
+        public void onMessage(MessageEvent message)
+        {
+            events.add(message);
+        }
+
+        final List<MessageEvent> events = new ArrayList<MessageEvent>();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.directwebremoting.ScriptBuffer;
+import org.directwebremoting.extend.ScriptConduit;
+
+/**
+ * Compares the throughput of {@link DefaultScriptSession#addScript} with the
+ * synchronized list design that it replaced, at 1, 8 and 64 producer threads
+ * while a single poll thread repeatedly attaches and detaches a conduit.
+ * <p>Not a unit test, run it from the command line.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class DefaultScriptSessionContentionHarness
+{
+    public static void main(String[] args) throws Exception
+    {
+        DefaultScriptSessionContentionHarness harness = new DefaultScriptSessionContentionHarness();
+
+        // Warm up both paths before measuring anything
+        harness.run(new QueueTarget(), 8, 500);
+        harness.run(new LockingTarget(), 8, 500);
+
+        for (int producers : new int[] { 1, 8, 64 })
+        {
+            long queued = harness.run(new QueueTarget(), producers, 2000);
+            long locking = harness.run(new LockingTarget(), producers, 2000);
+            System.out.println(producers + " producers: queue=" + queued + " scripts/s, synchronized=" + locking + " scripts/s");
+        }
+    }
+
+    /**
+     * Push scripts from the given number of threads for a fixed time
+     * @return The number of scripts pushed per second
+     */
+    public long run(final Target target, int producers, long millis) throws InterruptedException
+    {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong pushed = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(producers + 1);
+
+        for (int i = 0; i < producers; i++)
+        {
+            new Thread("Producer:" + i)
+            {
+                @Override
+                public void run()
+                {
+                    ScriptBuffer script = new ScriptBuffer("x");
+                    long count = 0;
+                    while (running.get())
+                    {
+                        target.addScript(script);
+                        count++;
+                    }
+                    pushed.addAndGet(count);
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        new Thread("Poller")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (running.get())
+                    {
+                        ScriptConduit conduit = new CountingScriptConduit();
+                        target.addScriptConduit(conduit);
+                        Thread.sleep(1);
+                        target.removeScriptConduit(conduit);
+                    }
+                }
+                catch (Exception ex)
+                {
+                    ex.printStackTrace();
+                }
+                finally
+                {
+                    done.countDown();
+                }
+            }
+        }.start();
+
+        Thread.sleep(millis);
+        running.set(false);
+        done.await();
+
+        return pushed.get() * 1000 / millis;
+    }
+
+    /**
+     * The operations we measure
+     */
+    interface Target
+    {
+        void addScript(ScriptBuffer script);
+        void addScriptConduit(ScriptConduit conduit) throws Exception;
+        void removeScriptConduit(ScriptConduit conduit);
+    }
+
+    /**
+     * The current design
+     */
+    static class QueueTarget implements Target
+    {
+        public void addScript(ScriptBuffer script)
+        {
+            session.addScript(script);
+        }
+
+        public void addScriptConduit(ScriptConduit conduit) throws Exception
+        {
+            session.addScriptConduit(conduit);
+        }
+
+        public void removeScriptConduit(ScriptConduit conduit)
+        {
+            session.removeScriptConduit(conduit);
+        }
+
+        private final DefaultScriptSession session = new DefaultScriptSession("harness", new DefaultScriptSessionManager(), "/harness");
+    }
+
+    /**
+     * The previous design: a synchronized list of scripts, with the set of
+     * conduits copied on every push.
+     */
+    static class LockingTarget implements Target
+    {
+        public void addScript(ScriptBuffer script)
+        {
+            synchronized (scripts)
+            {
+                List<ScriptConduit> conduitsList;
+                synchronized (conduits)
+                {
+                    conduitsList = new ArrayList<ScriptConduit>(conduits);
+                }
+
+                boolean written = false;
+                for (ScriptConduit conduit : conduitsList)
+                {
+                    try
+                    {
+                        written = conduit.addScript(script);
+                    }
+                    catch (Exception ex)
+                    {
+                        conduits.remove(conduit);
+                    }
+
+                    if (written)
+                    {
+                        break;
+                    }
+                }
+
+                if (!written)
+                {
+                    scripts.add(script);
+                }
+            }
+        }
+
+        public void addScriptConduit(ScriptConduit conduit) throws Exception
+        {
+            synchronized (scripts)
+            {
+                for (Iterator<ScriptBuffer> it = scripts.iterator(); it.hasNext();)
+                {
+                    if (!conduit.addScript(it.next()))
+                    {
+                        break;
+                    }
+                    it.remove();
+                }
+                conduits.add(conduit);
+            }
+        }
+
+        public void removeScriptConduit(ScriptConduit conduit)
+        {
+            synchronized (scripts)
+            {
+                conduits.remove(conduit);
+            }
+        }
+
+        private final SortedSet<ScriptConduit> conduits = Collections.synchronizedSortedSet(new TreeSet<ScriptConduit>());
+
+        private final List<ScriptBuffer> scripts = Collections.synchronizedList(new ArrayList<ScriptBuffer>());
+    }
+
+    /**
+     * A conduit that accepts everything
+     */
+    static class CountingScriptConduit extends ScriptConduit
+    {
+        CountingScriptConduit()
+        {
+            super(RANK_FAST, true);
+        }
+
+        @Override
+        public boolean addScript(ScriptBuffer script)
+        {
+            written.incrementAndGet();
+            return true;
+        }
+
+        private final AtomicLong written = new AtomicLong();
+    }
+}
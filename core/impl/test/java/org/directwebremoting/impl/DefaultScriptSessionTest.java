@@ -1,12 +1,21 @@
 package org.directwebremoting.impl;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.directwebremoting.ScriptBuffer;
 import org.directwebremoting.ScriptSession;
 import org.directwebremoting.ScriptSessionFilter;
 import org.directwebremoting.event.ScriptSessionBindingEvent;
 import org.directwebremoting.event.ScriptSessionBindingListener;
+import org.directwebremoting.extend.ScriptConduit;
 import org.junit.Test;
 
-import static org.junit.Assert.fail;
+import static org.junit.Assert.*;
 
 public class DefaultScriptSessionTest
 {
@@ -30,6 +39,193 @@ public class DefaultScriptSessionTest
         }
     }
 
+    @Test
+    public void testScriptsQueueUntilConduitAdded() throws Exception
+    {
+        scriptSession = new DefaultScriptSession("1234", new DefaultScriptSessionManager(), "/page");
+        scriptSession.addScript(new ScriptBuffer("a"));
+        scriptSession.addScript(new ScriptBuffer("b"));
+        assertTrue(scriptSession.hasWaitingScripts());
+
+        RecordingScriptConduit conduit = new RecordingScriptConduit();
+        scriptSession.addScriptConduit(conduit);
+        assertFalse(scriptSession.hasWaitingScripts());
+
+        scriptSession.addScript(new ScriptBuffer("c"));
+        assertEquals("[a, b, c]", conduit.written.toString());
+
+        scriptSession.removeScriptConduit(conduit);
+        scriptSession.addScript(new ScriptBuffer("d"));
+        assertTrue(scriptSession.hasWaitingScripts());
+        assertEquals(3, conduit.written.size());
+    }
+
+    @Test
+    public void testConcurrentAddScriptDeliversEverythingInOrder() throws Exception
+    {
+        scriptSession = new DefaultScriptSession("1234", new DefaultScriptSessionManager(), "/page");
+        final int threads = 8;
+        final int perThread = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++)
+        {
+            final int producer = i;
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int j = 0; j < perThread; j++)
+                        {
+                            scriptSession.addScript(new ScriptBuffer(producer + ":" + j));
+                        }
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        // Long-poll style: conduits come and go while the producers push
+        RecordingScriptConduit conduit = new RecordingScriptConduit();
+        start.countDown();
+        while (done.getCount() > 0)
+        {
+            scriptSession.addScriptConduit(conduit);
+            scriptSession.removeScriptConduit(conduit);
+        }
+        scriptSession.writeScripts(conduit);
+
+        assertFalse(scriptSession.hasWaitingScripts());
+        assertEquals(threads * perThread, conduit.written.size());
+
+        int[] next = new int[threads];
+        for (String script : conduit.written)
+        {
+            int colon = script.indexOf(':');
+            int producer = Integer.parseInt(script.substring(0, colon));
+            assertEquals(next[producer]++, Integer.parseInt(script.substring(colon + 1)));
+        }
+    }
+
+    @Test
+    public void testAddScriptDuringDrainIsNotStranded() throws Exception
+    {
+        scriptSession = new DefaultScriptSession("1234", new DefaultScriptSessionManager(), "/page");
+        final RecordingScriptConduit conduit = new RecordingScriptConduit();
+        scriptSession.addScriptConduit(conduit);
+
+        // Replay the race: another thread empties the queue just before we
+        // take the lock, and a third adds a script just before we let it go
+        final RacingLock lock = new RacingLock()
+        {
+            @Override
+            void beforeLock()
+            {
+                conduit.addScript(scriptSession.scripts.poll());
+            }
+
+            @Override
+            void beforeUnlock() throws InterruptedException
+            {
+                Thread other = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        scriptSession.addScript(new ScriptBuffer("b"));
+                    }
+                };
+                other.start();
+                other.join();
+            }
+        };
+        Field field = DefaultScriptSession.class.getDeclaredField("drainLock");
+        field.setAccessible(true);
+        field.set(scriptSession, lock);
+
+        lock.armed = true;
+        scriptSession.addScript(new ScriptBuffer("a"));
+
+        assertFalse(scriptSession.hasWaitingScripts());
+        assertEquals("[a, b]", conduit.written.toString());
+    }
+
+    /**
+     * A lock that lets a test run code at the worst moments, once
+     */
+    private abstract static class RacingLock extends ReentrantLock
+    {
+        abstract void beforeLock();
+
+        abstract void beforeUnlock() throws InterruptedException;
+
+        @Override
+        public boolean tryLock()
+        {
+            if (armed && !isHeldByCurrentThread() && !isLocked())
+            {
+                beforeLock();
+                locked = super.tryLock();
+                return locked;
+            }
+            return super.tryLock();
+        }
+
+        @Override
+        public void unlock()
+        {
+            if (armed && locked)
+            {
+                armed = false;
+                try
+                {
+                    beforeUnlock();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.unlock();
+        }
+
+        volatile boolean armed = false;
+
+        private volatile boolean locked = false;
+    }
+
+    /**
+     * A conduit that accepts everything and remembers what it was given
+     */
+    private static class RecordingScriptConduit extends ScriptConduit
+    {
+        RecordingScriptConduit()
+        {
+            super(RANK_FAST, true);
+        }
+
+        @Override
+        public boolean addScript(ScriptBuffer script)
+        {
+            written.add(script.getParts().get(0).toString());
+            return true;
+        }
+
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+    }
+
     private void givenBindingListenerInScriptSession()
     {
         MycoScriptSessionManager customManager = new MycoScriptSessionManager();
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.impl;
+
+import java.security.SecureRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.directwebremoting.extend.IdGenerator;
+
+/**
+ * Compares the throughput of {@link DefaultSecureIdGenerator} with the single
+ * synchronized SecureRandom design that it replaced, at 1, 4, 16 and 64
+ * threads.
+ * <p>Not a unit test, run it from the command line.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class DefaultSecureIdGeneratorHarness
+{
+    public static void main(String[] args) throws Exception
+    {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        DefaultSecureIdGenerator striped = new DefaultSecureIdGenerator();
+        striped.setScheduledThreadPoolExecutor(executor);
+        IdGenerator locking = new LockingIdGenerator();
+
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors");
+
+        // Warm up both paths before measuring anything
+        run(striped, 4, 500);
+        run(locking, 4, 500);
+
+        for (int threads : new int[] { 1, 4, 16, 64 })
+        {
+            long stripedRate = run(striped, threads, 2000);
+            long lockingRate = run(locking, threads, 2000);
+            System.out.println(threads + " threads: striped=" + stripedRate + " ids/s, synchronized=" + lockingRate + " ids/s");
+        }
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * Generate ids from the given number of threads for a fixed time
+     * @return The number of ids generated per second
+     */
+    private static long run(final IdGenerator generator, int threads, long millis) throws InterruptedException
+    {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong generated = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++)
+        {
+            new Thread("Generator:" + i)
+            {
+                @Override
+                public void run()
+                {
+                    long count = 0;
+                    while (running.get())
+                    {
+                        generator.generate();
+                        count++;
+                    }
+                    generated.addAndGet(count);
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        Thread.sleep(millis);
+        running.set(false);
+        done.await();
+
+        return generated.get() * 1000 / millis;
+    }
+
+    /**
+     * The previous design: one SecureRandom behind a synchronized method
+     */
+    static class LockingIdGenerator implements IdGenerator
+    {
+        public synchronized String generate()
+        {
+            if (++countSinceSeed > 1000)
+            {
+                random.setSeed(System.nanoTime());
+                countSinceSeed = 0;
+            }
+
+            byte[] bytes = new byte[20];
+            random.nextBytes(bytes);
+
+            StringBuilder idbuf = new StringBuilder();
+            for (byte b : bytes)
+            {
+                idbuf.append(CHARMAP[b & 0x3F]);
+            }
+
+            long time = System.currentTimeMillis();
+            long remainder = time;
+            while (remainder > 0)
+            {
+                idbuf.append(CHARMAP[(int) remainder & 0x3F]);
+                remainder = remainder >>> 6;
+            }
+
+            if (time == lastGenTime)
+            {
+                idbuf.append('-');
+                remainder = countSinceTimeChange;
+                while (remainder > 0)
+                {
+                    idbuf.append(CHARMAP[(int) remainder & 0x3F]);
+                    remainder = remainder >>> 6;
+                }
+            }
+            else
+            {
+                countSinceTimeChange = 0;
+            }
+
+            countSinceTimeChange++;
+            lastGenTime = time;
+            return idbuf.toString();
+        }
+
+        private final SecureRandom random = new DefaultSecureIdGenerator().createRandom();
+        private int countSinceSeed = 0;
+        private int countSinceTimeChange = 0;
+        private long lastGenTime = 0;
+    }
+
+    private static final char[] CHARMAP = "1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ*$".toCharArray();
+}
@@ -16,6 +16,10 @@
 package org.directwebremoting.impl;
 
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -116,4 +120,61 @@ public class DefaultSecureIdGeneratorTest
         }
         assertTrue("Maximum one token without dash", countWithoutDash <= 1);
     }
+
+    /**
+     * Generate ids from many threads, with pools refilled in the background
+     * @throws Exception
+     */
+    @Test
+    public void testManyThreads() throws Exception
+    {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try
+        {
+            DefaultSecureIdGenerator generator = new DefaultSecureIdGenerator();
+            generator.setScheduledThreadPoolExecutor(executor);
+            assertUniqueAcrossThreads(generator);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertUniqueAcrossThreads(new DefaultSecureIdGenerator());
+    }
+
+    private static void assertUniqueAcrossThreads(final DefaultSecureIdGenerator generator) throws InterruptedException
+    {
+        final ConcurrentMap<String, Boolean> tokenset = new ConcurrentHashMap<String, Boolean>();
+        final AtomicInteger duplicates = new AtomicInteger();
+
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 5000; j++)
+                    {
+                        String token = generator.generate();
+                        if (tokenset.putIfAbsent(token, Boolean.TRUE) != null || token.length() < 20)
+                        {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(0, duplicates.get());
+        assertEquals(16 * 5000, tokenset.size());
+    }
 }
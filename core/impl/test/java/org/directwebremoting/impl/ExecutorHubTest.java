@@ -0,0 +1,181 @@
+package org.directwebremoting.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.directwebremoting.event.MessageEvent;
+import org.directwebremoting.event.MessageListener;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExecutorHubTest
+{
+    private final ExecutorHub hub = new ExecutorHub();
+
+    @After
+    public void tearDown()
+    {
+        hub.servletDestroyed();
+    }
+
+    @Test
+    public void testPerTopicOrdering() throws Exception
+    {
+        final int count = 1000;
+        final CountDownLatch done = new CountDownLatch(2 * count);
+        final List<Integer> first = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> second = Collections.synchronizedList(new ArrayList<Integer>());
+
+        hub.subscribe("first", new RecordingListener(first, done));
+        hub.subscribe("second", new RecordingListener(second, done));
+
+        for (int i = 0; i < count; i++)
+        {
+            hub.publish("first", i);
+            hub.publish("second", i);
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++)
+        {
+            assertEquals(i, first.get(i).intValue());
+            assertEquals(i, second.get(i).intValue());
+        }
+
+        // The count is updated after the listeners have been called
+        long deadline = System.currentTimeMillis() + 10000;
+        while (hub.getDispatchedCount() < 2 * count && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(1);
+        }
+        assertEquals(2 * count, hub.getDispatchedCount());
+    }
+
+    @Test
+    public void testPublisherIsNotBlockedBySlowListener() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        hub.subscribe("slow", new MessageListener()
+        {
+            public void onMessage(MessageEvent message)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        hub.publish("slow", "a");
+        hub.publish("slow", "b");
+        assertTrue(hub.getQueueDepth() >= 1);
+        release.countDown();
+    }
+
+    @Test
+    public void testDropNewest() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        hub.setHubQueueCapacity(2);
+        hub.setHubOverflowPolicy("drop_newest");
+        hub.subscribe("topic", new MessageListener()
+        {
+            public void onMessage(MessageEvent message)
+            {
+                started.countDown();
+                received.add(message.getData(Integer.class));
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        // The first is taken off the queue by the listener thread, then two
+        // fill the queue, and the last is dropped
+        hub.publish("topic", 0);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        hub.publish("topic", 1);
+        hub.publish("topic", 2);
+        hub.publish("topic", 3);
+
+        assertEquals(1, hub.getDroppedCount());
+        assertEquals(2, hub.getQueueDepth());
+        release.countDown();
+    }
+
+    @Test
+    public void testDropOldest() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        hub.setHubQueueCapacity(2);
+        hub.setHubOverflowPolicy("DROP_OLDEST");
+        hub.subscribe("topic", new MessageListener()
+        {
+            public void onMessage(MessageEvent message)
+            {
+                started.countDown();
+                received.add(message.getData(Integer.class));
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        });
+
+        hub.publish("topic", 0);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        hub.publish("topic", 1);
+        hub.publish("topic", 2);
+        hub.publish("topic", 3);
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, hub.getDroppedCount());
+        assertEquals("[0, 2, 3]", received.toString());
+    }
+
+    /**
+     * A listener that remembers the integers it was sent
+     */
+    private static class RecordingListener implements MessageListener
+    {
+        RecordingListener(List<Integer> received, CountDownLatch done)
+        {
+            this.received = received;
+            this.done = done;
+        }
+
+        public void onMessage(MessageEvent message)
+        {
+            received.add(message.getData(Integer.class));
+            done.countDown();
+        }
+
+        private final List<Integer> received;
+        private final CountDownLatch done;
+    }
+}
@@ -0,0 +1,128 @@
+package org.directwebremoting.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.directwebremoting.extend.DiskFileTransfer;
+import org.directwebremoting.io.FileTransfer;
+import org.directwebremoting.util.CopyUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FileStoreDownloadManagerTest
+{
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = File.createTempFile("dwr-download-test", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown()
+    {
+        delete(dir);
+    }
+
+    @Test
+    public void testStoreAndFind() throws IOException
+    {
+        FileStoreDownloadManager manager = createManager();
+
+        String id = "a1-b2*c3$";
+        manager.putFileTransfer(id, new FileTransfer("report 1-2.csv", "text/csv", "x,y\n1,2\n".getBytes("UTF-8")));
+        manager.putFileTransfer("other", new FileTransfer("other.txt", "text/plain", "other".getBytes("UTF-8")));
+
+        FileTransfer found = manager.getFileTransfer(id);
+        assertTrue(found instanceof DiskFileTransfer);
+        assertEquals("report 1-2.csv", found.getFilename());
+        assertEquals("text/csv", found.getMimeType());
+        assertEquals(8, found.getSize());
+        assertEquals("x,y\n1,2\n", read(found));
+
+        // Downloads can be fetched more than once
+        assertEquals("x,y\n1,2\n", read(manager.getFileTransfer(id)));
+        assertNull(manager.getFileTransfer("missing"));
+
+        // Nothing lands in the top level directory
+        for (File file : dir.listFiles())
+        {
+            assertTrue(file.isDirectory());
+        }
+    }
+
+    @Test
+    public void testIndexIsRebuilt() throws IOException
+    {
+        FileStoreDownloadManager manager = createManager();
+        manager.putFileTransfer("id-1", new FileTransfer("\u00e9t\u00e9.txt", "text/plain", "summer".getBytes("UTF-8")));
+
+        // A file written before downloads were spread across directories
+        File legacy = new File(dir, "dwr-legacy-text.plain-old.txt");
+        OutputStream out = new FileOutputStream(legacy);
+        CopyUtils.copy("old", out);
+        out.close();
+
+        FileStoreDownloadManager restarted = createManager();
+        FileTransfer found = restarted.getFileTransfer("id-1");
+        assertEquals("\u00e9t\u00e9.txt", found.getFilename());
+        assertEquals("summer", read(found));
+
+        found = restarted.getFileTransfer("legacy");
+        assertEquals("old.txt", found.getFilename());
+        assertEquals("text/plain", found.getMimeType());
+    }
+
+    @Test
+    public void testPurge() throws IOException
+    {
+        FileStoreDownloadManager manager = createManager();
+        manager.putFileTransfer("id", new FileTransfer("a.txt", "text/plain", "a".getBytes("UTF-8")));
+        File file = ((DiskFileTransfer) manager.getFileTransfer("id")).getFile();
+
+        manager.purge();
+        assertNotNull(manager.getFileTransfer("id"));
+
+        manager.setPurgeDownloadsAfter(-1);
+        manager.purge();
+        assertNull(manager.getFileTransfer("id"));
+        assertFalse(file.exists());
+    }
+
+    private FileStoreDownloadManager createManager()
+    {
+        FileStoreDownloadManager manager = new FileStoreDownloadManager();
+        manager.setDownloadFileCacheDir(dir.getPath());
+        manager.afterContainerSetup(null);
+        return manager;
+    }
+
+    private static String read(FileTransfer transfer) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transfer.getOutputStreamLoader().load(out);
+        return out.toString("UTF-8");
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File dir;
+}
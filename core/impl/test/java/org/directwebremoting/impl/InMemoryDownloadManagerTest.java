@@ -0,0 +1,125 @@
+package org.directwebremoting.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.directwebremoting.extend.DiskFileTransfer;
+import org.directwebremoting.io.FileTransfer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InMemoryDownloadManagerTest
+{
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = File.createTempFile("dwr-memory-download-test", "");
+        dir.delete();
+        dir.mkdirs();
+
+        manager = new InMemoryDownloadManager();
+        manager.setSpillDirectory(dir.getPath());
+        manager.setMaxMemorySize(100000);
+        manager.setMaxMemoryFileSize(60000);
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (File file : dir.listFiles())
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testSmallDownloadsStayInMemory() throws IOException
+    {
+        byte[] data = data(10000, 'a');
+        manager.putFileTransfer("a", new FileTransfer("a.bin", "application/octet-stream", data));
+        assertEquals(10000, manager.getBytesInMemory());
+        assertEquals(0, manager.getBytesOnDisk());
+        assertEquals(1, manager.getDownloadCount());
+
+        FileTransfer found = manager.getFileTransfer("a");
+        assertFalse(found instanceof DiskFileTransfer);
+        assertEquals(10000, found.getSize());
+        assertTrue(Arrays.equals(data, read(found)));
+
+        // Downloaded once, so it has gone, but the transfer we have still works
+        assertNull(manager.getFileTransfer("a"));
+        assertEquals(0, manager.getBytesInMemory());
+        assertTrue(Arrays.equals(data, read(found)));
+    }
+
+    @Test
+    public void testLargeDownloadsGoToDisk() throws IOException
+    {
+        byte[] data = data(70000, 'b');
+        manager.putFileTransfer("b", new FileTransfer("b.bin", "application/octet-stream", data));
+        assertEquals(0, manager.getBytesInMemory());
+        assertEquals(70000, manager.getBytesOnDisk());
+
+        FileTransfer found = manager.getFileTransfer("b");
+        assertTrue(found instanceof DiskFileTransfer);
+        assertTrue(Arrays.equals(data, read(found)));
+        assertEquals(0, manager.getBytesOnDisk());
+
+        // The file is deleted by the next purge
+        manager.purge();
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedMovedToDisk() throws IOException
+    {
+        manager.setDownloadRequestsBeforeRemove(10);
+        manager.putFileTransfer("1", new FileTransfer("1.bin", "application/octet-stream", data(40000, '1')));
+        manager.putFileTransfer("2", new FileTransfer("2.bin", "application/octet-stream", data(40000, '2')));
+
+        // Touch the first so that the second is the least recently used
+        manager.getFileTransfer("1");
+        manager.putFileTransfer("3", new FileTransfer("3.bin", "application/octet-stream", data(40000, '3')));
+
+        assertEquals(80000, manager.getBytesInMemory());
+        assertEquals(40000, manager.getBytesOnDisk());
+        assertFalse(manager.getFileTransfer("1") instanceof DiskFileTransfer);
+        assertTrue(manager.getFileTransfer("2") instanceof DiskFileTransfer);
+        assertFalse(manager.getFileTransfer("3") instanceof DiskFileTransfer);
+
+        assertTrue(Arrays.equals(data(40000, '2'), read(manager.getFileTransfer("2"))));
+
+        // Expiry removes everything, in memory or not
+        manager.setPurgeDownloadsAfter(-1);
+        manager.purge();
+        assertEquals(0, manager.getDownloadCount());
+        assertEquals(0, manager.getBytesInMemory());
+        assertEquals(0, manager.getBytesOnDisk());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    private static byte[] data(int length, char fill)
+    {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) fill);
+        data[length - 1] = '!';
+        return data;
+    }
+
+    private static byte[] read(FileTransfer transfer) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transfer.getOutputStreamLoader().load(out);
+        return out.toByteArray();
+    }
+
+    private InMemoryDownloadManager manager;
+
+    private File dir;
+}
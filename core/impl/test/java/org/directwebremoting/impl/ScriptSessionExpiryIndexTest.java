@@ -0,0 +1,86 @@
+package org.directwebremoting.impl;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScriptSessionExpiryIndexTest
+{
+    @Test
+    public void testOnlyOldBucketsAreCandidates()
+    {
+        ScriptSessionExpiryIndex index = new ScriptSessionExpiryIndex(1000);
+        TimedScriptSession old = new TimedScriptSession("old", 1500);
+        TimedScriptSession recent = new TimedScriptSession("recent", 9500);
+        index.add(old);
+        index.add(recent);
+        assertEquals(2, index.size());
+
+        List<DefaultScriptSession> candidates = index.removeCandidates(5000);
+        assertEquals(1, candidates.size());
+        assertSame(old, candidates.get(0));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testUpdateMovesSessionOutOfExpiredBucket()
+    {
+        ScriptSessionExpiryIndex index = new ScriptSessionExpiryIndex(1000);
+        TimedScriptSession session = new TimedScriptSession("moved", 1500);
+        index.add(session);
+
+        session.time = 8500;
+        index.update(session, 1500);
+
+        assertTrue(index.removeCandidates(5000).isEmpty());
+        assertEquals(1, index.removeCandidates(9000).size());
+    }
+
+    @Test
+    public void testSessionsAddedBackAreNotLost()
+    {
+        ScriptSessionExpiryIndex index = new ScriptSessionExpiryIndex(1000);
+        TimedScriptSession session = new TimedScriptSession("late", 1500);
+        index.add(session);
+        assertEquals(1, index.removeCandidates(5000).size());
+
+        // Re-filing something older than the last check must still be seen
+        // by the next check
+        index.add(session);
+        assertEquals(1, index.removeCandidates(5000).size());
+    }
+
+    @Test
+    public void testRemove()
+    {
+        ScriptSessionExpiryIndex index = new ScriptSessionExpiryIndex(1000);
+        TimedScriptSession session = new TimedScriptSession("gone", 1500);
+        index.add(session);
+        index.remove(session);
+
+        assertEquals(0, index.size());
+        assertTrue(index.removeCandidates(5000).isEmpty());
+    }
+
+    /**
+     * A script session with a last accessed time that we control
+     */
+    private static class TimedScriptSession extends DefaultScriptSession
+    {
+        TimedScriptSession(String id, long time)
+        {
+            super(id, new DefaultScriptSessionManager(), "/page");
+            this.time = time;
+        }
+
+        @Override
+        public long getLastAccessedTime()
+        {
+            return time;
+        }
+
+        long time;
+    }
+}
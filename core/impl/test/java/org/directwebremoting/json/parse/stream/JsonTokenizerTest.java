@@ -0,0 +1,200 @@
+package org.directwebremoting.json.parse.stream;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+
+import org.directwebremoting.json.parse.JsonParseException;
+import org.directwebremoting.json.parse.impl.SimpleJsonDecoder;
+import org.directwebremoting.json.parse.javacc.JavaccJsonParser;
+import org.directwebremoting.json.parse.stream.JsonTokenizer.Token;
+import org.directwebremoting.util.TestUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import static org.directwebremoting.json.parse.stream.JsonTokenizer.Token.*;
+
+public class JsonTokenizerTest
+{
+    @Test
+    public void testTokens() throws JsonParseException
+    {
+        JsonTokenizer tokenizer = new JsonTokenizer(new StringReader(" { \"a\" : [ 1, -2.5e+3, true, false, null ], \"b\":{}, \"c\":\"x\" } "));
+        assertTokens(tokenizer, BEGIN_OBJECT, NAME, BEGIN_ARRAY, NUMBER, NUMBER, TRUE, FALSE, NULL, END_ARRAY, NAME, BEGIN_OBJECT, END_OBJECT, NAME, STRING, END_OBJECT, END_DOCUMENT);
+
+        tokenizer.reset(new StringReader("[\"a\\\"b\\\\c\\/d\\n\\u00e9\", 0, 0.5, 10E2]"));
+        assertEquals(BEGIN_ARRAY, tokenizer.next());
+        assertEquals(STRING, tokenizer.next());
+        assertEquals("a\"b\\c/d\n\u00e9", tokenizer.getText());
+        assertEquals(NUMBER, tokenizer.next());
+        assertEquals("0", tokenizer.getText());
+        assertEquals(NUMBER, tokenizer.next());
+        assertEquals("0.5", tokenizer.getText());
+        assertEquals(NUMBER, tokenizer.next());
+        assertEquals("10E2", tokenizer.getText());
+        assertEquals(END_ARRAY, tokenizer.next());
+        assertEquals(END_DOCUMENT, tokenizer.next());
+    }
+
+    @Test
+    public void testSlowReader() throws JsonParseException
+    {
+        // Strings that are longer than the buffer and arrive a char at a time
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+        {
+            buffer.append(i % 10 == 0 ? "\\t" : "x");
+        }
+
+        JsonTokenizer tokenizer = new JsonTokenizer(new SlowReader("[\"" + buffer + "\", 12345]"));
+        assertEquals(BEGIN_ARRAY, tokenizer.next());
+        assertEquals(STRING, tokenizer.next());
+        assertEquals(buffer.toString().replace("\\t", "\t"), tokenizer.getText());
+        assertEquals(NUMBER, tokenizer.next());
+        assertEquals("12345", tokenizer.getText());
+        assertEquals(END_ARRAY, tokenizer.next());
+        assertEquals(END_DOCUMENT, tokenizer.next());
+    }
+
+    @Test
+    public void testSkip() throws JsonParseException
+    {
+        JsonTokenizer tokenizer = new JsonTokenizer(new StringReader("{ \"a\":{ \"b\":[1, [2], {}] }, \"c\":3, \"d\":[4] }"));
+        assertEquals(BEGIN_OBJECT, tokenizer.next());
+        assertEquals(NAME, tokenizer.next());
+        tokenizer.skipValue();
+        assertEquals(NAME, tokenizer.next());
+        assertEquals("c", tokenizer.getText());
+        tokenizer.skipValue();
+        assertEquals(NAME, tokenizer.next());
+        assertEquals(BEGIN_ARRAY, tokenizer.next());
+        tokenizer.skipToEnd();
+        assertEquals(END_OBJECT, tokenizer.next());
+        assertEquals(END_DOCUMENT, tokenizer.next());
+    }
+
+    @Test
+    public void testErrors()
+    {
+        String[] invalid = new String[]
+        {
+            "", "1", "\"a\"", "[1,]", "[1 2]", "{\"a\" 1}", "{a:1}", "[01]", "[-]", "[1.]", "[1e]",
+            "[tru]", "[\"a]", "[\"\\x\"]", "[\"\\u12g4\"]", "{\"a\":1", "[] []", "[1}",
+        };
+
+        for (String test : invalid)
+        {
+            try
+            {
+                JsonTokenizer tokenizer = new JsonTokenizer(new StringReader(test));
+                while (tokenizer.next() != END_DOCUMENT)
+                {
+                }
+                fail("Expecting error for: " + test);
+            }
+            catch (JsonParseException ex)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testMaxDepth() throws JsonParseException
+    {
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 10; i++)
+        {
+            deep.append('[');
+        }
+        for (int i = 0; i < 10; i++)
+        {
+            deep.append(']');
+        }
+
+        JsonTokenizer tokenizer = new JsonTokenizer(new StringReader(deep.toString()));
+        tokenizer.setMaxDepth(10);
+        while (tokenizer.next() != END_DOCUMENT)
+        {
+        }
+
+        tokenizer.reset(new StringReader("[" + deep + "]"));
+        try
+        {
+            while (tokenizer.next() != END_DOCUMENT)
+            {
+            }
+            fail("Expecting nesting error");
+        }
+        catch (JsonParseException ex)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSameAsJavacc() throws IOException, JsonParseException
+    {
+        List<String> validTests = TestUtil.parseTestInput(JsonTokenizerTest.class, "/org/directwebremoting/json/validJson.txt");
+        for (String test : validTests)
+        {
+            Object expected = new JavaccJsonParser().parse(new StringReader(test), new SimpleJsonDecoder());
+            Object actual = new StreamingJsonParser().parse(new StringReader(test), new SimpleJsonDecoder());
+            assertEquals(test, expected, actual);
+        }
+
+        List<String> invalidTests = TestUtil.parseTestInput(JsonTokenizerTest.class, "/org/directwebremoting/json/invalidJson.txt");
+        for (String test : invalidTests)
+        {
+            try
+            {
+                new StreamingJsonParser().parse(new StringReader(test), new SimpleJsonDecoder());
+                fail("Expecting error for: " + test);
+            }
+            catch (JsonParseException ex)
+            {
+                // expected
+            }
+        }
+    }
+
+    private static void assertTokens(JsonTokenizer tokenizer, Token... expected) throws JsonParseException
+    {
+        for (Token token : expected)
+        {
+            assertEquals(token, tokenizer.next());
+        }
+    }
+
+    /**
+     * A Reader that only gives out one character at a time
+     */
+    private static class SlowReader extends Reader
+    {
+        SlowReader(String data)
+        {
+            this.data = data;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len)
+        {
+            if (pos == data.length())
+            {
+                return -1;
+            }
+            cbuf[off] = data.charAt(pos++);
+            return 1;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        private final String data;
+        private int pos = 0;
+    }
+}
@@ -0,0 +1,103 @@
+package org.directwebremoting.server.servlet3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NonBlockingOutputStreamTest
+{
+    @Test
+    public void testOutputWaitsUntilReady() throws Exception
+    {
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        TestStream stream = new TestStream(client, 100);
+
+        stream.ready = false;
+        stream.write("hello".getBytes("UTF-8"));
+        stream.flush();
+        assertEquals(0, client.size());
+        assertEquals(5, stream.getPendingCount());
+
+        stream.ready = true;
+        stream.onWritePossible();
+        assertEquals("hello", client.toString("UTF-8"));
+        assertEquals(0, stream.getPendingCount());
+    }
+
+    @Test
+    public void testSlowClientIsDropped() throws Exception
+    {
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        TestStream stream = new TestStream(client, 10);
+
+        stream.ready = false;
+        stream.write(new byte[8]);
+        try
+        {
+            stream.write(new byte[8]);
+            fail("Expected the buffer to overflow");
+        }
+        catch (IOException ex)
+        {
+            // Expected
+        }
+
+        assertTrue(stream.isFailed());
+        assertEquals(0, stream.getPendingCount());
+
+        final AtomicBoolean completed = new AtomicBoolean(false);
+        stream.whenDrained(new Runnable()
+        {
+            public void run()
+            {
+                completed.set(true);
+            }
+        });
+        assertTrue(completed.get());
+    }
+
+    @Test
+    public void testCompleteAfterDrain() throws Exception
+    {
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        TestStream stream = new TestStream(client, 100);
+
+        stream.ready = false;
+        stream.write("bye".getBytes("UTF-8"));
+
+        final AtomicBoolean completed = new AtomicBoolean(false);
+        stream.whenDrained(new Runnable()
+        {
+            public void run()
+            {
+                completed.set(true);
+            }
+        });
+        assertFalse(completed.get());
+
+        stream.ready = true;
+        stream.onWritePossible();
+        assertTrue(completed.get());
+        assertEquals("bye", client.toString("UTF-8"));
+    }
+
+    private static class TestStream extends NonBlockingOutputStream
+    {
+        TestStream(ByteArrayOutputStream target, int maxPending)
+        {
+            super(target, maxPending);
+        }
+
+        @Override
+        protected boolean isReady()
+        {
+            return ready;
+        }
+
+        volatile boolean ready = true;
+    }
+}
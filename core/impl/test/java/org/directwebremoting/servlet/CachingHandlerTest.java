@@ -0,0 +1,196 @@
+package org.directwebremoting.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.directwebremoting.util.FakeHttpServletRequest;
+import org.directwebremoting.util.FakeHttpServletResponse;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CachingHandlerTest
+{
+    @Test
+    public void testCompressedContent() throws Exception
+    {
+        CountingHandler handler = new CountingHandler(largeContent());
+
+        FakeHttpServletResponse plain = new FakeHttpServletResponse();
+        handler.handle(new HeaderRequest(), plain);
+        assertNull(header(plain, HttpConstants.HEADER_CONTENT_ENCODING));
+        assertEquals(largeContent() + System.getProperty("line.separator"), plain.getContentAsString());
+
+        FakeHttpServletResponse gzipped = new FakeHttpServletResponse();
+        handler.handle(new HeaderRequest(HttpConstants.HEADER_ACCEPT_ENCODING, "deflate, gzip;q=0.5"), gzipped);
+        assertEquals("gzip", header(gzipped, HttpConstants.HEADER_CONTENT_ENCODING));
+        assertTrue(gzipped.getContentAsByteArray().length < plain.getContentAsByteArray().length);
+        assertArrayEquals(plain.getContentAsByteArray(), gunzip(gzipped.getContentAsByteArray()));
+        assertFalse(header(plain, HttpConstants.HEADER_ETAG).equals(header(gzipped, HttpConstants.HEADER_ETAG)));
+
+        FakeHttpServletResponse deflated = new FakeHttpServletResponse();
+        handler.handle(new HeaderRequest(HttpConstants.HEADER_ACCEPT_ENCODING, "gzip;q=0, deflate"), deflated);
+        assertEquals("deflate", header(deflated, HttpConstants.HEADER_CONTENT_ENCODING));
+
+        assertEquals(1, handler.generated.get());
+    }
+
+    @Test
+    public void testContentHashEtags() throws Exception
+    {
+        CountingHandler handler = new CountingHandler("var x = 1;");
+
+        FakeHttpServletResponse first = new FakeHttpServletResponse();
+        handler.handle(new HeaderRequest(), first);
+        String etag = (String) header(first, HttpConstants.HEADER_ETAG);
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+
+        FakeHttpServletResponse second = new FakeHttpServletResponse();
+        handler.handle(new HeaderRequest(HttpConstants.HEADER_IF_NONE, etag), second);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, second.getStatus());
+
+        FakeHttpServletResponse third = new FakeHttpServletResponse();
+        handler.handle(new HeaderRequest(HttpConstants.HEADER_IF_NONE, "\"stale\""), third);
+        assertEquals(HttpServletResponse.SC_OK, third.getStatus());
+        assertEquals(etag, header(third, HttpConstants.HEADER_ETAG));
+    }
+
+    @Test
+    public void testConcurrentMissesGenerateOnce() throws Exception
+    {
+        final CountingHandler handler = new CountingHandler("var y = 2;");
+        handler.delay = new CountDownLatch(1);
+
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[10];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        FakeHttpServletResponse response = new FakeHttpServletResponse();
+                        handler.handle(new HeaderRequest(), response);
+                        if (!response.getContentAsString().startsWith("var y = 2;"))
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    catch (Exception ex)
+                    {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        Thread.sleep(100);
+        handler.delay.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(1, handler.generated.get());
+    }
+
+    private static Object header(FakeHttpServletResponse response, String name)
+    {
+        List<Object> values = response.getHeaders(name);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    private static String largeContent()
+    {
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+        {
+            buffer.append("dwr.engine._remoteHandleCallback('1','").append(i).append("',null);\n");
+        }
+        return buffer.toString();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException
+    {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class CountingHandler extends CachingHandler
+    {
+        CountingHandler(String content)
+        {
+            this.content = content;
+            setMimeType("text/javascript; charset=utf-8");
+        }
+
+        @Override
+        protected long getLastModifiedTime()
+        {
+            return 1000000L;
+        }
+
+        @Override
+        public String generateCachableContent(String contextPath, String servletPath, String pathInfo) throws IOException
+        {
+            generated.incrementAndGet();
+            if (delay != null)
+            {
+                try
+                {
+                    delay.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    throw new IOException(ex.toString());
+                }
+            }
+            return content;
+        }
+
+        private final String content;
+        final AtomicInteger generated = new AtomicInteger();
+        volatile CountDownLatch delay;
+    }
+
+    private static class HeaderRequest extends FakeHttpServletRequest
+    {
+        HeaderRequest(String... namesAndValues)
+        {
+            for (int i = 0; i < namesAndValues.length; i += 2)
+            {
+                headers.put(namesAndValues[i], namesAndValues[i + 1]);
+            }
+        }
+
+        @Override
+        public String getHeader(String name)
+        {
+            return headers.get(name);
+        }
+
+        private final Map<String, String> headers = new HashMap<String, String>();
+    }
+}
@@ -0,0 +1,151 @@
+package org.directwebremoting.servlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.directwebremoting.extend.DiskFileTransfer;
+import org.directwebremoting.extend.DownloadManager;
+import org.directwebremoting.io.FileTransfer;
+import org.directwebremoting.util.FakeHttpServletRequest;
+import org.directwebremoting.util.FakeHttpServletResponse;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DownloadHandlerTest
+{
+    @BeforeClass
+    public static void setUp() throws IOException
+    {
+        file = File.createTempFile("dwr-download-handler", ".txt");
+        OutputStream out = new FileOutputStream(file);
+        out.write(CONTENT.getBytes("US-ASCII"));
+        out.close();
+    }
+
+    @AfterClass
+    public static void tearDown()
+    {
+        file.delete();
+    }
+
+    @Test
+    public void testWholeFile() throws IOException
+    {
+        FakeHttpServletResponse response = download(null);
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertEquals(CONTENT, response.getContentAsString());
+        assertEquals(CONTENT.length(), response.getContentLength());
+        assertEquals("bytes", header(response, HttpConstants.HEADER_ACCEPT_RANGES));
+        assertEquals("text/plain", response.getContentType());
+    }
+
+    @Test
+    public void testRanges() throws IOException
+    {
+        FakeHttpServletResponse response = download("bytes=10-19");
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        assertEquals(CONTENT.substring(10, 20), response.getContentAsString());
+        assertEquals(10, response.getContentLength());
+        assertEquals("bytes 10-19/" + CONTENT.length(), header(response, HttpConstants.HEADER_CONTENT_RANGE));
+
+        // Open ended and suffix ranges
+        assertEquals(CONTENT.substring(30), download("bytes=30-").getContentAsString());
+        assertEquals(CONTENT.substring(CONTENT.length() - 5), download("bytes=-5").getContentAsString());
+        assertEquals(CONTENT.substring(30), download("bytes=30-100000").getContentAsString());
+
+        // Ranges we don't support get the whole file
+        response = download("bytes=0-1,5-6");
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertEquals(CONTENT, response.getContentAsString());
+        assertEquals(CONTENT, download("bytes=9-3").getContentAsString());
+        assertEquals(CONTENT, download("lines=1-2").getContentAsString());
+
+        // Ranges outside the file
+        response = download("bytes=100000-");
+        assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+        assertEquals("bytes */" + CONTENT.length(), header(response, HttpConstants.HEADER_CONTENT_RANGE));
+    }
+
+    @Test
+    public void testMissingDownload() throws IOException
+    {
+        DownloadHandler handler = createHandler();
+        FakeHttpServletRequest request = new HeaderRequest(null);
+        request.setPathInfo("/download/missing");
+        FakeHttpServletResponse response = new FakeHttpServletResponse();
+        handler.handle(request, response);
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+
+        request.setPathInfo("/elsewhere/id");
+        response = new FakeHttpServletResponse();
+        handler.handle(request, response);
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+    }
+
+    private static FakeHttpServletResponse download(String range) throws IOException
+    {
+        FakeHttpServletRequest request = new HeaderRequest(range);
+        request.setPathInfo("/download/id");
+        FakeHttpServletResponse response = new FakeHttpServletResponse();
+        createHandler().handle(request, response);
+        return response;
+    }
+
+    private static DownloadHandler createHandler()
+    {
+        DownloadHandler handler = new DownloadHandler();
+        handler.setDownloadHandlerUrl("/download/");
+        handler.setDownloadManager(new DownloadManager()
+        {
+            public String addFileTransfer(FileTransfer transfer)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            public FileTransfer getFileTransfer(String id)
+            {
+                return id.equals("id") ? new DiskFileTransfer("file.txt", "text/plain", file) : null;
+            }
+        });
+        return handler;
+    }
+
+    private static Object header(FakeHttpServletResponse response, String name)
+    {
+        List<Object> values = response.getHeaders(name);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    private static class HeaderRequest extends FakeHttpServletRequest
+    {
+        HeaderRequest(String range)
+        {
+            if (range != null)
+            {
+                headers.put(HttpConstants.HEADER_RANGE, range);
+            }
+        }
+
+        @Override
+        public String getHeader(String name)
+        {
+            return headers.get(name);
+        }
+
+        private final Map<String, String> headers = new HashMap<String, String>();
+    }
+
+    private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    private static File file;
+}
@@ -0,0 +1,53 @@
+package org.directwebremoting.servlet;
+
+import org.directwebremoting.impl.DefaultCallMetrics;
+import org.directwebremoting.util.FakeHttpServletResponse;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MonitorHandlerTest
+{
+    @Test
+    public void testMetricsJsonNeedsOptIn() throws Exception
+    {
+        DefaultCallMetrics callMetrics = new DefaultCallMetrics();
+        callMetrics.setCallMetricsEnabled(true);
+
+        MonitorHandler handler = new MonitorHandler();
+        handler.setCallMetrics(callMetrics);
+
+        // Collecting metrics does not publish them
+        try
+        {
+            handler.handleMetrics(new FakeHttpServletResponse());
+            fail("Metrics published without callMetricsJson");
+        }
+        catch (SecurityException ex)
+        {
+            // expected
+        }
+
+        handler.setCallMetricsJson(true);
+        FakeHttpServletResponse response = new FakeHttpServletResponse();
+        handler.handleMetrics(response);
+        assertTrue(response.getContentAsString().startsWith("{"));
+
+        // Nor does opting in publish metrics that are not collected
+        callMetrics.setCallMetricsEnabled(false);
+        try
+        {
+            handler.handleMetrics(new FakeHttpServletResponse());
+            fail("Metrics published while disabled");
+        }
+        catch (SecurityException ex)
+        {
+            // expected
+        }
+
+        // Debug mode shows them anyway
+        handler.setCallMetricsJson(false);
+        handler.setDebug(true);
+        handler.handleMetrics(new FakeHttpServletResponse());
+    }
+}
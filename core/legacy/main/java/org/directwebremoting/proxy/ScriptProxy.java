@@ -21,6 +21,7 @@ import java.util.List;
 
 import org.directwebremoting.ScriptBuffer;
 import org.directwebremoting.ScriptSession;
+import org.directwebremoting.extend.SharedScriptBuffer;
 
 /**
  * Class to help people send scripts to collections of browsers.
@@ -260,6 +261,12 @@ public class ScriptProxy
      */
     public void addScript(ScriptBuffer script)
     {
+        // Convert the data once rather than once for each session
+        if (scriptSessions.size() > 1)
+        {
+            script = SharedScriptBuffer.share(script);
+        }
+
         for (ScriptSession scriptSession : scriptSessions)
         {
             scriptSession.addScript(script);
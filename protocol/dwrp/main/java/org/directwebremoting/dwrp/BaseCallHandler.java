@@ -17,6 +17,7 @@ package org.directwebremoting.dwrp;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
@@ -27,7 +28,9 @@ import org.apache.commons.logging.LogFactory;
 import org.directwebremoting.ConversionException;
 import org.directwebremoting.ScriptBuffer;
 import org.directwebremoting.WebContextFactory;
+import org.directwebremoting.extend.AdaptiveLoadMonitor;
 import org.directwebremoting.extend.Call;
+import org.directwebremoting.extend.CallMetrics;
 import org.directwebremoting.extend.Calls;
 import org.directwebremoting.extend.ConverterManager;
 import org.directwebremoting.extend.EnginePrivate;
@@ -47,6 +50,7 @@ import org.directwebremoting.extend.Replies;
 import org.directwebremoting.extend.Reply;
 import org.directwebremoting.extend.ScriptBufferUtil;
 import org.directwebremoting.extend.ScriptConduit;
+import org.directwebremoting.extend.ServerLoadMonitor;
 import org.directwebremoting.extend.SimpleInputStreamFactory;
 import org.directwebremoting.impl.AccessLogLevel;
 import org.directwebremoting.impl.ExportUtil;
@@ -69,9 +73,16 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
      */
     public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException
     {
+        long start = System.nanoTime();
+        CallMetrics metrics = getEnabledCallMetrics();
         try
         {
             CallBatch batch = new CallBatch(request);
+            if (metrics != null)
+            {
+                metrics.requestRead(request.getContentLength());
+                metrics.stageCompleted(CallMetrics.Stage.PARSE, System.nanoTime() - start);
+            }
 
             // Security checks first, once we've parsed the input
             checkGetAllowed(batch);
@@ -99,15 +110,33 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
             // Various bits of the CallBatch need to be stashed away places
             storeParsedRequest(request, webContext, batch);
 
+            long stageStart = metrics == null ? 0 : System.nanoTime();
             Calls calls = marshallInbound(batch);
+            if (metrics != null)
+            {
+                metrics.stageCompleted(CallMetrics.Stage.MARSHALL_INBOUND, System.nanoTime() - stageStart);
+            }
 
             Replies replies = remoter.execute(calls);
+
+            stageStart = metrics == null ? 0 : System.nanoTime();
             marshallOutbound(replies, response);
+            if (metrics != null)
+            {
+                metrics.stageCompleted(CallMetrics.Stage.MARSHALL_OUTBOUND, System.nanoTime() - stageStart);
+            }
         }
         catch (Exception ex)
         {
             marshallException(request, response, ex);
         }
+        finally
+        {
+            if (serverLoadMonitor instanceof AdaptiveLoadMonitor)
+            {
+                ((AdaptiveLoadMonitor) serverLoadMonitor).callCompleted(System.nanoTime() - start);
+            }
+        }
     }
 
     /**
@@ -119,6 +148,7 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
     public Calls marshallInbound(CallBatch batch)
     {
         Calls calls = batch.getCalls();
+        CallMetrics metrics = getEnabledCallMetrics();
 
         // Debug the environment
         /*
@@ -163,7 +193,12 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
                 // that method.
 
                 // Which method are we using?
+                long start = metrics == null ? 0 : System.nanoTime();
                 call.findMethod(moduleManager, converterManager, inctx, callNum);
+                if (metrics != null)
+                {
+                    metrics.stageCompleted(CallMetrics.Stage.FIND_METHOD, System.nanoTime() - start);
+                }
                 MethodDeclaration method = call.getMethodDeclaration();
                 if (method == null)
                 {
@@ -288,7 +323,16 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
 
         // Basic setup
         response.setContentType(getOutboundMimeType());
-        PrintWriter out;
+        PrintWriter out = response.getWriter();
+
+        // If we are collecting metrics then we count what we write
+        CallMetrics metrics = getEnabledCallMetrics();
+        CountingWriter counter = null;
+        if (metrics != null)
+        {
+            counter = new CountingWriter(out);
+            out = new PrintWriter(counter);
+        }
 
         // AccessLogLevel.getValue is null safe, it will always return an AccessLogLevel.
         if (debugScriptOutput || AccessLogLevel.getValue(this.accessLogLevel, debug).hierarchy() == 0)
@@ -296,11 +340,7 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
             // This might be considered evil - altering the program flow
             // depending on the log status, however DebuggingPrintWriter is
             // very thin and only about logging
-            out = new DebuggingPrintWriter("", response.getWriter());
-        }
-        else
-        {
-            out = response.getWriter();
+            out = new DebuggingPrintWriter("", out);
         }
 
         // The conduit to pass on reverse ajax scripts
@@ -325,6 +365,7 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
         {
             Reply reply = replies.getReply(i);
             String callId = reply.getCallId();
+            long written = counter == null ? 0 : counter.count;
 
             try
             {
@@ -367,6 +408,12 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
                 addScriptHandleExceptions(conduit, script);
                 log.error("--ConversionException: batchId=" + batchId + " message=" + ex.toString());
             }
+
+            Call call = replies.getCalls().getCall(i);
+            if (counter != null && call.getMethodDeclaration() != null)
+            {
+                metrics.replyWritten(call.getScriptName(), call.getMethodName(), counter.count - written);
+            }
         }
         sendOutboundScriptSuffix(out, replies.getCalls().getInstanceId(), replies.getCalls().getBatchId());
     }
@@ -422,6 +469,21 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
      */
     protected abstract void sendScript(PrintWriter out, String script) throws IOException;
 
+    /**
+     * Convert a script and send it to the browser. By default we create the
+     * output as a String and pass it to {@link #sendScript(PrintWriter, String)}
+     * but subclasses that don't need to alter the output can write it
+     * directly to the stream.
+     * @param out The stream to write to
+     * @param script The script to send
+     * @throws IOException If the write fails
+     * @throws ConversionException If the data in the script can't be converted
+     */
+    protected void writeScript(PrintWriter out, ScriptBuffer script) throws IOException, ConversionException
+    {
+        sendScript(out, ScriptBufferUtil.createOutput(script, converterManager, jsonOutput));
+    }
+
     /**
      * What mime type should we send to the browser for this data?
      * @return A mime-type
@@ -452,6 +514,86 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
         return converterManager.isConvertable(paramType);
     }
 
+    /**
+     * @return The CallMetrics to report to, or null if metrics are disabled
+     */
+    protected CallMetrics getEnabledCallMetrics()
+    {
+        return callMetrics != null && callMetrics.isEnabled() ? callMetrics : null;
+    }
+
+    /**
+     * A Writer that counts the chars that pass through it
+     */
+    private static class CountingWriter extends Writer
+    {
+        /**
+         * @param out The Writer to pass chars on to
+         */
+        CountingWriter(Writer out)
+        {
+            this.out = out;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.Writer#write(char[], int, int)
+         */
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
+        {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.Writer#write(java.lang.String, int, int)
+         */
+        @Override
+        public void write(String str, int off, int len) throws IOException
+        {
+            out.write(str, off, len);
+            count += len;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.Writer#write(int)
+         */
+        @Override
+        public void write(int c) throws IOException
+        {
+            out.write(c);
+            count++;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.Writer#flush()
+         */
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.Writer#close()
+         */
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+
+        /**
+         * Where the chars go
+         */
+        private final Writer out;
+
+        /**
+         * The number of chars written so far
+         */
+        long count = 0;
+    }
+
     /**
      * A ScriptConduit that works with the parent Marshaller.
      * In some ways this is nasty because it has access to essentially private parts
@@ -482,7 +624,7 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
         @Override
         public boolean addScript(ScriptBuffer script) throws IOException, ConversionException
         {
-            sendScript(out, ScriptBufferUtil.createOutput(script, converterManager, jsonOutput));
+            writeScript(out, script);
             return true;
         }
 
@@ -620,6 +762,34 @@ public abstract class BaseCallHandler extends BaseDwrpHandler
      */
     protected ModuleManager moduleManager = null;
 
+    /**
+     * Accessor for the ServerLoadMonitor that we tell how long calls take
+     * @param serverLoadMonitor
+     */
+    public void setServerLoadMonitor(ServerLoadMonitor serverLoadMonitor)
+    {
+        this.serverLoadMonitor = serverLoadMonitor;
+    }
+
+    /**
+     * Who measures call latency, if it is an {@link AdaptiveLoadMonitor}
+     */
+    protected ServerLoadMonitor serverLoadMonitor = null;
+
+    /**
+     * Accessor for where we report the time taken by each stage of a call
+     * @param callMetrics The new CallMetrics
+     */
+    public void setCallMetrics(CallMetrics callMetrics)
+    {
+        this.callMetrics = callMetrics;
+    }
+
+    /**
+     * Where we report the time taken by each stage of a call
+     */
+    protected CallMetrics callMetrics = null;
+
     /**
      * How we stash away the results of the request parse
      */
@@ -28,6 +28,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.directwebremoting.WebContextFactory;
+import org.directwebremoting.extend.AdaptiveLoadMonitor;
 import org.directwebremoting.extend.Alarm;
 import org.directwebremoting.extend.ContainerAbstraction;
 import org.directwebremoting.extend.ConverterManager;
@@ -149,6 +150,14 @@ public class BasePollHandler extends BaseDwrpHandler
         boolean clientSupportsStreamingUpdates = (batch.getPartialResponse() != PartialResponse.NO);
         boolean configurationSaysFullStreaming = streamingEnabled || (maxWaitAfterWrite == -1);
         boolean canWeHaveFullStreaming = clientSupportsLongRequests && clientSupportsStreamingUpdates && configurationSaysFullStreaming;
+
+        // An adaptive load monitor can take streaming away when busy
+        AdaptiveLoadMonitor adaptive = (serverLoadMonitor instanceof AdaptiveLoadMonitor) ? (AdaptiveLoadMonitor) serverLoadMonitor : null;
+        if (canWeHaveFullStreaming && adaptive != null && !adaptive.supportsStreaming(AdaptiveLoadMonitor.ClientClass.STREAMING))
+        {
+            canWeHaveFullStreaming = false;
+        }
+
         // For early closing mode add an output listener to the script session that calls the
         // "wake me" method on whatever is putting us to sleep - if the client
         // does not support streaming or streaming has not been configured.
@@ -186,8 +195,32 @@ public class BasePollHandler extends BaseDwrpHandler
         }
         // Set the system up to resume anyway after maxConnectedTime
         ServerLoadMonitor slm = serverLoadMonitor;
-        long connectedTime = slm.getConnectedTime();
-        final int disconnectedTime = slm.getDisconnectedTime();
+        long connectedTime;
+        final int disconnectedTime;
+        if (adaptive != null)
+        {
+            AdaptiveLoadMonitor.ClientClass clientClass;
+            if (canWeHaveFullStreaming)
+            {
+                clientClass = AdaptiveLoadMonitor.ClientClass.STREAMING;
+            }
+            else if (clientSupportsLongRequests && adaptive.supportsStreaming(AdaptiveLoadMonitor.ClientClass.LONG_POLL))
+            {
+                clientClass = AdaptiveLoadMonitor.ClientClass.LONG_POLL;
+            }
+            else
+            {
+                clientClass = AdaptiveLoadMonitor.ClientClass.POLL;
+            }
+
+            connectedTime = adaptive.getConnectedTime(clientClass);
+            disconnectedTime = adaptive.getDisconnectedTime(clientClass);
+        }
+        else
+        {
+            connectedTime = slm.getConnectedTime();
+            disconnectedTime = slm.getDisconnectedTime();
+        }
 
         alarms.add(new TimedAlarm(sleeper, connectedTime, executor));
 
@@ -27,6 +27,7 @@ import org.directwebremoting.ScriptBuffer;
 import org.directwebremoting.extend.Alarm;
 import org.directwebremoting.extend.ConverterManager;
 import org.directwebremoting.extend.EnginePrivate;
+import org.directwebremoting.extend.NonBlockingSleeper;
 import org.directwebremoting.extend.ScriptConduit;
 import org.directwebremoting.extend.Sleeper;
 import org.directwebremoting.util.DebuggingPrintWriter;
@@ -59,7 +60,19 @@ public abstract class BaseScriptConduit extends ScriptConduit implements Alarm
         this.sleeper = sleeper;
 
         response.setContentType(getOutboundMimeType());
-        out = response.getWriter();
+
+        // If the container can write without blocking we don't want a slow
+        // client to hold up whoever is publishing to us
+        if (sleeper instanceof NonBlockingSleeper)
+        {
+            out = ((NonBlockingSleeper) sleeper).getNonBlockingWriter(response);
+        }
+
+        nonBlocking = (out != null);
+        if (!nonBlocking)
+        {
+            out = response.getWriter();
+        }
 
         if (debugScriptOutput)
         {
@@ -150,6 +163,12 @@ public abstract class BaseScriptConduit extends ScriptConduit implements Alarm
             return false;
         }
 
+        // A non-blocking writer has already passed on all it can
+        if (nonBlocking)
+        {
+            return true;
+        }
+
         try
         {
             response.flushBuffer();
@@ -235,6 +254,11 @@ public abstract class BaseScriptConduit extends ScriptConduit implements Alarm
      */
     protected PrintWriter out;
 
+    /**
+     * Is {@link #out} buffered so that writing to it never blocks?
+     */
+    protected final boolean nonBlocking;
+
     /**
      * What is the ID of the DWR instance that we are responding to?
      */
@@ -15,9 +15,9 @@
  */
 package org.directwebremoting.dwrp;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -176,7 +176,10 @@ public class Batch
     }
 
     /**
-     * The default parse case for a normal form submit
+     * The default parse case for a normal form submit.
+     * The body is read into a single buffer and parsed in one pass. Values are
+     * left as {@link CharArrayFormField} views onto the buffer so we only
+     * create Strings for the values that are used.
      * @param req The http request
      * @return a map of parsed parameters
      * @throws ServerException
@@ -184,65 +187,91 @@ public class Batch
     @SuppressWarnings("unchecked")
     private Map<String, FormField> parseBasicPost(HttpServletRequest req) throws ServerException
     {
-        Map<String, FormField> paramMap;
-        paramMap = new HashMap<String, FormField>();
+        Map<String, FormField> paramMap = new HashMap<String, FormField>();
 
-        BufferedReader in = null;
+        Reader in = null;
         try
         {
             String charEncoding = req.getCharacterEncoding();
             if (charEncoding != null)
             {
-                in = new BufferedReader(new InputStreamReader(req.getInputStream(), charEncoding));
+                in = new InputStreamReader(req.getInputStream(), charEncoding);
             }
             else
             {
-                in = new BufferedReader(new InputStreamReader(req.getInputStream()));
+                in = new InputStreamReader(req.getInputStream());
             }
 
-            while (true)
+            // In most charsets there are no more chars than bytes. We don't
+            // trust the Content-Length enough to allocate it all up front
+            int contentLength = req.getContentLength();
+            if (contentLength > MAX_POST_BODY_SIZE)
             {
-                String line = in.readLine();
+                throw new ServerException("POST body is larger than the configured limit (maxPostBodySize=" + MAX_POST_BODY_SIZE + ").");
+            }
 
-                if (line == null)
+            char[] buffer = new char[contentLength > 0 ? Math.min(contentLength, MAX_INITIAL_BODY_BUFFER_SIZE) : DEFAULT_BODY_BUFFER_SIZE];
+            int length = 0;
+            while (true)
+            {
+                if (length == buffer.length)
                 {
-                    if (paramMap.isEmpty())
+                    if (length >= MAX_POST_BODY_SIZE)
                     {
-                        // Normally speaking we should just bail out, but if
-                        // we are using DWR with Acegi without ActiveX on IE,
-                        // then Acegi 'fixes' the parameters for us.
-                        Enumeration<String> en = req.getParameterNames();
-                        while (en.hasMoreElements())
+                        if (in.read() == -1)
                         {
-                            String name = en.nextElement();
-                            paramMap.put(name, new FormField(req.getParameter(name)));
+                            break;
                         }
+                        throw new ServerException("POST body is larger than the configured limit (maxPostBodySize=" + MAX_POST_BODY_SIZE + ").");
                     }
 
+                    char[] larger = new char[Math.min(buffer.length * 2, MAX_POST_BODY_SIZE)];
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    buffer = larger;
+                }
+
+                int read = in.read(buffer, length, buffer.length - length);
+                if (read == -1)
+                {
                     break;
                 }
+                length += read;
+            }
 
-                if (line.indexOf('&') != -1)
+            // Split into lines as BufferedReader.readLine() would
+            int lineStart = 0;
+            for (int i = 0; i < length; i++)
+            {
+                char c = buffer[i];
+                if (c == '\n' || c == '\r')
                 {
-                    // If there are any &'s then this must be iframe post and all the
-                    // parameters have got dumped on one line, split with &
-                    log.debug("Using iframe POST mode");
-                    StringTokenizer st = new StringTokenizer(line, "&");
-                    while (st.hasMoreTokens())
+                    parseBodyLine(buffer, lineStart, i, paramMap);
+                    if (c == '\r' && i + 1 < length && buffer[i + 1] == '\n')
                     {
-                        String part = st.nextToken();
-                        part = LocalUtil.urlDecode(part);
-
-                        parsePostLine(part, paramMap);
+                        i++;
                     }
+                    lineStart = i + 1;
                 }
-                else
+            }
+            parseBodyLine(buffer, lineStart, length, paramMap);
+
+            if (paramMap.isEmpty())
+            {
+                // Normally speaking we should just bail out, but if
+                // we are using DWR with Acegi without ActiveX on IE,
+                // then Acegi 'fixes' the parameters for us.
+                Enumeration<String> en = req.getParameterNames();
+                while (en.hasMoreElements())
                 {
-                    // Hooray, this is a normal one!
-                    parsePostLine(line, paramMap);
+                    String name = en.nextElement();
+                    paramMap.put(name, new FormField(req.getParameter(name)));
                 }
             }
         }
+        catch (ServerException ex)
+        {
+            throw ex;
+        }
         catch (Exception ex)
         {
             throw new ServerException("Failed to read input", ex);
@@ -264,6 +293,59 @@ public class Batch
         return paramMap;
     }
 
+    /**
+     * Sort out a single line of a POST body that is held in a buffer
+     * @param buffer The buffer containing the body
+     * @param start The position of the start of the line
+     * @param end The position after the end of the line
+     * @param paramMap The map to add parsed parameters to
+     */
+    private static void parseBodyLine(char[] buffer, int start, int end, Map<String, FormField> paramMap)
+    {
+        int sep = -1;
+        for (int i = start; i < end; i++)
+        {
+            char c = buffer[i];
+            if (c == '&')
+            {
+                // If there are any &'s then this must be iframe post and all the
+                // parameters have got dumped on one line, split with &. This is
+                // rare, so we do it the simple way.
+                log.debug("Using iframe POST mode");
+                StringTokenizer st = new StringTokenizer(new String(buffer, start, end - start), "&");
+                while (st.hasMoreTokens())
+                {
+                    String part = st.nextToken();
+                    part = LocalUtil.urlDecode(part);
+
+                    parsePostLine(part, paramMap);
+                }
+                return;
+            }
+
+            if (c == DECL_SEPARATOR && sep == -1)
+            {
+                sep = i;
+            }
+        }
+
+        // Hooray, this is a normal one!
+        if (start == end)
+        {
+            return;
+        }
+
+        if (sep == -1)
+        {
+            paramMap.put(new String(buffer, start, end - start), null);
+        }
+        else
+        {
+            String key = new String(buffer, start, sep - start);
+            paramMap.put(key, new CharArrayFormField(buffer, sep + 1, end - sep - 1));
+        }
+    }
+
     /**
      * All the parameters have got dumped on one line split with \n
      * See: http://bugzilla.opendarwin.org/show_bug.cgi?id=3565
@@ -439,6 +521,32 @@ public class Batch
      */
     private final Map<String, FormField> extraParameters;
 
+    /**
+     * The separator between a name and value in a POST body
+     */
+    private static final char DECL_SEPARATOR = ProtocolConstants.INBOUND_DECL_SEPARATOR.charAt(0);
+
+    /**
+     * The size of buffer to read a POST body into when we don't know its length
+     */
+    private static final int DEFAULT_BODY_BUFFER_SIZE = 4096;
+
+    /**
+     * The largest buffer we allocate before we have seen the data to fill it
+     */
+    private static final int MAX_INITIAL_BODY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The default for {@link #MAX_POST_BODY_SIZE}
+     */
+    private static final int DEFAULT_MAX_POST_BODY_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * The largest POST body (in chars) that we will read, set using the
+     * maxPostBodySize init-param. Multipart requests have their own limits.
+     */
+    private static final int MAX_POST_BODY_SIZE;
+
     /**
      * A special marker for the default value for extractParameter
      */
@@ -450,12 +558,15 @@ public class Batch
     private static final FileUpload UPLOADER;
 
     /**
-     * Retrieve the File Upload implem
+     * Retrieve the File Upload implementation and the POST body size limit
      */
     static
     {
         Container container = WebContextFactory.get().getContainer();
         UPLOADER = container.getBean(FileUpload.class);
+
+        Object maxPostBodySize = container.getBean("maxPostBodySize");
+        MAX_POST_BODY_SIZE = maxPostBodySize != null ? Integer.parseInt(maxPostBodySize.toString().trim()) : DEFAULT_MAX_POST_BODY_SIZE;
     }
 
     /**
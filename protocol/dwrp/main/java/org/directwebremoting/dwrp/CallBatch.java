@@ -24,7 +24,6 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.directwebremoting.extend.Call;
 import org.directwebremoting.extend.Calls;
-import org.directwebremoting.extend.ConvertUtil;
 import org.directwebremoting.extend.FormField;
 import org.directwebremoting.extend.InboundContext;
 import org.directwebremoting.extend.ProtocolConstants;
@@ -140,11 +139,8 @@ public class CallBatch extends Batch
                     }
                     else
                     {
-                        String[] split = ConvertUtil.splitInbound(formField.getString());
-
-                        String value = split[ConvertUtil.INBOUND_INDEX_VALUE];
-                        String type = split[ConvertUtil.INBOUND_INDEX_TYPE].replace('?', ':');
-                        inboundContext.createInboundVariable(callNum, key, type, value);
+                        // The type is split off when the variable is used
+                        inboundContext.createInboundVariable(callNum, key, formField);
                     }
                     it.remove();
                 }
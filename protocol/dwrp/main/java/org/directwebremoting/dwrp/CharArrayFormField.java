@@ -0,0 +1,117 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.dwrp;
+
+import org.directwebremoting.extend.FormField;
+
+/**
+ * A {@link FormField} that is a view onto part of the buffer that a request
+ * body was read into. The String value is only created if someone asks for
+ * it, so the many parameters of a large batch that are only looked at in part
+ * (or not at all) don't each cost a copy.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class CharArrayFormField extends FormField
+{
+    /**
+     * @param buffer The buffer holding the request body
+     * @param offset The start of the value in buffer
+     * @param length The number of chars in the value
+     */
+    public CharArrayFormField(char[] buffer, int offset, int length)
+    {
+        super(null);
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.FormField#getString()
+     */
+    @Override
+    public String getString()
+    {
+        if (string == null)
+        {
+            string = new String(buffer, offset, length);
+        }
+        return string;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.FormField#getFileSize()
+     */
+    @Override
+    public long getFileSize()
+    {
+        return length;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.FormField#indexOf(char)
+     */
+    @Override
+    public int indexOf(char ch)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            if (buffer[offset + i] == ch)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.FormField#substring(int)
+     */
+    @Override
+    public String substring(int end)
+    {
+        return new String(buffer, offset, end);
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.FormField#subField(int)
+     */
+    @Override
+    public CharArrayFormField subField(int start)
+    {
+        return new CharArrayFormField(buffer, offset + start, length - start);
+    }
+
+    /**
+     * The buffer holding the request body
+     */
+    private final char[] buffer;
+
+    /**
+     * The start of the value in buffer
+     */
+    private final int offset;
+
+    /**
+     * The number of chars in the value
+     */
+    private final int length;
+
+    /**
+     * The value, once someone has asked for it
+     */
+    private String string;
+}
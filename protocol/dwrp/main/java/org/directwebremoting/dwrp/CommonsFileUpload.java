@@ -15,8 +15,10 @@
  */
 package org.directwebremoting.dwrp;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,12 +27,17 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
 import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadBase.FileSizeLimitExceededException;
 import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.ParameterParser;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 import org.directwebremoting.event.SessionProgressListener;
 import org.directwebremoting.extend.FormField;
+import org.directwebremoting.extend.ProtocolConstants;
 import org.directwebremoting.extend.ServerException;
 import org.directwebremoting.extend.SimpleInputStreamFactory;
 import org.directwebremoting.io.InputStreamFactory;
@@ -40,6 +47,10 @@ import org.directwebremoting.io.InputStreamFactory;
  * An implementation of {@link FileUpload} that uses Apache Commons FileUpload.
  * This class with fail to classload if commons-fileupload.jar is not present
  * on the classpath.
+ * <p>By default every part of the request is read, and files are stored in
+ * memory or on disk, before the call is made. With streaming uploads turned on
+ * (see {@link #setStreamingUploads(boolean)}) the file parts, which DWR sends
+ * last, are read from the request as the remoted method reads them.
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
 public class CommonsFileUpload implements FileUpload
@@ -74,6 +85,11 @@ public class CommonsFileUpload implements FileUpload
 
         try
         {
+            if (streamingUploads)
+            {
+                return parseStreamingRequest(req, fileUploader, itemFactory);
+            }
+
             Map<String, FormField> map = new HashMap<String, FormField>();
             List<FileItem> fileItems = fileUploader.parseRequest(req);
             for (final FileItem fileItem : fileItems)
@@ -81,6 +97,7 @@ public class CommonsFileUpload implements FileUpload
                 FormField formField;
                 if (fileItem.isFormField())
                 {
+                    checkFormFieldSize(fileItem.getFieldName(), fileItem.getSize());
                     formField = new FormField(fileItem.getString());
                 }
                 else
@@ -90,6 +107,8 @@ public class CommonsFileUpload implements FileUpload
                 }
                 map.put(fileItem.getFieldName(), formField);
             }
+
+            map.remove(ProtocolConstants.INBOUND_KEY_FILE_PARTS);
             return map;
         }
         catch (FileSizeLimitExceededException fsle)
@@ -106,6 +125,102 @@ public class CommonsFileUpload implements FileUpload
         }
     }
 
+    /**
+     * Read the normal fields of the request, and leave the file parts to be
+     * read when they are needed.
+     * If the browser did not tell us the names of the file parts before it
+     * sent them, then we have to read them all now.
+     * @param req The request to parse
+     * @param fileUploader The configured parser
+     * @param itemFactory Where to store file parts that we have to read early
+     * @return A map of the fields in the input request
+     */
+    protected Map<String, FormField> parseStreamingRequest(HttpServletRequest req, ServletFileUpload fileUploader, DiskFileItemFactory itemFactory) throws ServerException, IOException, FileUploadException
+    {
+        Map<String, FormField> map = new HashMap<String, FormField>();
+        FileItemIterator items = fileUploader.getItemIterator(req);
+        while (items.hasNext())
+        {
+            FileItemStream item = items.next();
+            if (item.isFormField())
+            {
+                map.put(item.getFieldName(), new FormField(readFormField(item)));
+                continue;
+            }
+
+            FormField declared = map.remove(ProtocolConstants.INBOUND_KEY_FILE_PARTS);
+            if (declared != null)
+            {
+                StreamedFileParts parts = new StreamedFileParts(items, item, itemFactory);
+                for (String fieldName : declared.getString().split(","))
+                {
+                    if (fieldName.length() > 0)
+                    {
+                        map.put(fieldName, parts.createFormField(fieldName));
+                    }
+                }
+                return map;
+            }
+
+            // An older client, so we need to store the file part to get to
+            // whatever comes next
+            FileItem fileItem = itemFactory.createItem(item.getFieldName(), item.getContentType(), false, item.getName());
+            Streams.copy(item.openStream(), fileItem.getOutputStream(), true);
+            InputStreamFactory inFactory = new SimpleInputStreamFactory(fileItem.getInputStream());
+            map.put(item.getFieldName(), new FormField(fileItem.getName(), fileItem.getContentType(), fileItem.getSize(), inFactory));
+        }
+
+        map.remove(ProtocolConstants.INBOUND_KEY_FILE_PARTS);
+        return map;
+    }
+
+    /**
+     * Read a normal (non-file) field, enforcing the form field size limit
+     * @param item The part to read
+     * @return The value of the field
+     */
+    private String readFormField(FileItemStream item) throws ServerException, IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = item.openStream();
+        try
+        {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+                checkFormFieldSize(item.getFieldName(), out.size());
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        // Use the same charset rules as FileItem.getString()
+        String charset = null;
+        if (item.getContentType() != null)
+        {
+            ParameterParser parser = new ParameterParser();
+            parser.setLowerCaseNames(true);
+            charset = (String) parser.parse(item.getContentType(), ';').get("charset");
+        }
+
+        return out.toString(charset != null ? charset : DEFAULT_CHARSET);
+    }
+
+    /**
+     * Check a form field against {@link #setFormFieldMaxBytes(long)}
+     */
+    private void checkFormFieldSize(String fieldName, long size) throws ServerException
+    {
+        if (formFieldMaxBytes > 0 && size > formFieldMaxBytes)
+        {
+            throw new ServerException("Form field " + fieldName + " is larger than the configured limit (" + formFieldMaxBytes + " bytes).");
+        }
+    }
+
     /**
      * Retrieves the maximum allowed size of a single uploaded file, in bytes.
      *
@@ -126,6 +241,38 @@ public class CommonsFileUpload implements FileUpload
         this.fileUploadMaxBytes = fileUploadMaxBytes;
     }
 
+    /**
+     * Should file parts be read as the remoted method reads them rather than
+     * before the call is made? The remoted method must read the files before
+     * it returns, and if there are several files they are best read in the
+     * order they were sent.
+     * @param streamingUploads true to stream file parts
+     */
+    public void setStreamingUploads(boolean streamingUploads)
+    {
+        this.streamingUploads = streamingUploads;
+    }
+
+    /**
+     * Sets the maximum allowed size of a single form field that is not a
+     * file. 0 (the default) means no limit.
+     * @param formFieldMaxBytes The largest allowed field
+     */
+    public void setFormFieldMaxBytes(long formFieldMaxBytes)
+    {
+        this.formFieldMaxBytes = formFieldMaxBytes;
+    }
+
+    /**
+     * @see #setStreamingUploads(boolean)
+     */
+    private boolean streamingUploads = false;
+
+    /**
+     * @see #setFormFieldMaxBytes(long)
+     */
+    private long formFieldMaxBytes = 0;
+
     /**
      * The maximum allowed size of a single uploaded file in bytes.
      */
@@ -140,4 +287,9 @@ public class CommonsFileUpload implements FileUpload
      * The threshold, in bytes, below which items will be retained in memory and above which they will be stored as a file
      */
     private static final int DEFAULT_SIZE_THRESHOLD = 256 * 1024;
+
+    /**
+     * The charset for form fields that don't declare one, as FileItem uses
+     */
+    private static final String DEFAULT_CHARSET = "ISO-8859-1";
 }
@@ -18,7 +18,10 @@ package org.directwebremoting.dwrp;
 import java.io.IOException;
 import java.io.PrintWriter;
 
+import org.directwebremoting.ConversionException;
+import org.directwebremoting.ScriptBuffer;
 import org.directwebremoting.extend.EnginePrivate;
+import org.directwebremoting.extend.ScriptBufferUtil;
 import org.directwebremoting.util.MimeConstants;
 
 /**
@@ -73,6 +76,42 @@ public class PlainCallHandler extends BaseCallHandler
         }
     }
 
+    /* (non-Javadoc)
+     * @see org.directwebremoting.dwrp.BaseCallHandler#writeScript(java.io.PrintWriter, org.directwebremoting.ScriptBuffer)
+     */
+    @Override
+    protected void writeScript(PrintWriter out, ScriptBuffer script) throws IOException, ConversionException
+    {
+        if (!streamingOutput)
+        {
+            super.writeScript(out, script);
+            return;
+        }
+
+        // Large replies go straight to the response rather than being built
+        // as a String first
+        synchronized (out)
+        {
+            ScriptBufferUtil.writeOutput(script, converterManager, jsonOutput, out);
+            out.println();
+        }
+    }
+
+    /**
+     * Do we write replies directly to the response rather than creating them
+     * as Strings first? The output is the same either way.
+     * @param streamingOutput false to build replies as Strings
+     */
+    public void setStreamingOutput(boolean streamingOutput)
+    {
+        this.streamingOutput = streamingOutput;
+    }
+
+    /**
+     * Do we write replies directly to the response?
+     */
+    private boolean streamingOutput = true;
+
     /**
      * Do we allow ScriptTag remoting?
      * @param allowScriptTagRemoting The new value to set
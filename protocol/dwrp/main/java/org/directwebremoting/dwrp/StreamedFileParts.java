@@ -0,0 +1,300 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.dwrp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemFactory;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.util.Streams;
+import org.directwebremoting.extend.FormField;
+import org.directwebremoting.io.InputStreamFactory;
+
+/**
+ * The file parts at the end of a multipart request, read from the request
+ * as they are needed rather than all at once before the call is made.
+ * <p>A part that is asked for when it is the current part of the request is
+ * read straight from the request. If a later part is asked for first, then
+ * the parts before it that have not been opened are copied to a
+ * {@link FileItem} on the way past so they can still be read. A part that
+ * was opened and then passed over can not be read any further.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class StreamedFileParts
+{
+    /**
+     * @param items The iterator over the rest of the request
+     * @param first The first file part, which the iterator has just returned
+     * @param spool Where to copy parts that we have to pass over
+     */
+    public StreamedFileParts(FileItemIterator items, FileItemStream first, FileItemFactory spool)
+    {
+        this.items = items;
+        this.spool = spool;
+        setCurrent(first);
+    }
+
+    /**
+     * Create a {@link FormField} that reads the named part when it is first
+     * asked for its contents
+     * @param fieldName The name of the file part
+     * @return A FormField for the part
+     */
+    public FormField createFormField(String fieldName)
+    {
+        return new PartFormField(fieldName);
+    }
+
+    /**
+     * Find a part, moving through the request if needed
+     * @param fieldName The name of the part to find
+     * @return The found part
+     * @throws IOException If the request can not be read or the part is not in it
+     */
+    protected synchronized Part getPart(String fieldName) throws IOException
+    {
+        Part part = parts.get(fieldName);
+        while (part == null)
+        {
+            if (!moveNext())
+            {
+                throw new IOException("Upload does not contain a part called: " + fieldName);
+            }
+            part = parts.get(fieldName);
+        }
+        return part;
+    }
+
+    /**
+     * Move on to the next part in the request
+     * @return false if there are no more parts
+     */
+    private boolean moveNext() throws IOException
+    {
+        if (current == null)
+        {
+            return false;
+        }
+
+        Part passing = parts.get(current.getFieldName());
+        if (passing.in == null)
+        {
+            FileItem item = spool.createItem(current.getFieldName(), current.getContentType(), current.isFormField(), current.getName());
+            Streams.copy(current.openStream(), item.getOutputStream(), true);
+            passing.spooled = item;
+        }
+        else
+        {
+            passing.passed = true;
+        }
+
+        try
+        {
+            if (!items.hasNext())
+            {
+                current = null;
+                return false;
+            }
+
+            setCurrent(items.next());
+            return true;
+        }
+        catch (FileUploadException ex)
+        {
+            throw new IOException("Upload failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Make a part of the request the one we are currently reading
+     */
+    private void setCurrent(FileItemStream item)
+    {
+        current = item;
+
+        // If a browser sends 2 parts with the same name, the first wins
+        if (!parts.containsKey(item.getFieldName()))
+        {
+            parts.put(item.getFieldName(), new Part(item));
+        }
+    }
+
+    /**
+     * What we know about one part of the request
+     */
+    protected class Part
+    {
+        Part(FileItemStream item)
+        {
+            this.item = item;
+            this.fieldName = item.getFieldName();
+            this.fileName = item.getName();
+            this.contentType = item.getContentType();
+        }
+
+        /**
+         * Open the part. Repeated calls return the same stream.
+         */
+        InputStream getInputStream() throws IOException
+        {
+            synchronized (StreamedFileParts.this)
+            {
+                if (in == null)
+                {
+                    if (spooled != null)
+                    {
+                        in = spooled.getInputStream();
+                    }
+                    else
+                    {
+                        in = item.openStream();
+                    }
+                }
+                else if (passed)
+                {
+                    throw new IOException("Upload part " + fieldName + " was passed over to read a later part before it had been read");
+                }
+
+                return in;
+            }
+        }
+
+        /**
+         * @return The size of the part, or -1 if it has not been read yet
+         */
+        long getSize()
+        {
+            synchronized (StreamedFileParts.this)
+            {
+                return spooled == null ? -1 : spooled.getSize();
+            }
+        }
+
+        final FileItemStream item;
+        final String fieldName;
+        final String fileName;
+        final String contentType;
+        InputStream in;
+        FileItem spooled;
+        boolean passed = false;
+    }
+
+    /**
+     * A {@link FormField} that finds its part when it is first asked about it
+     */
+    private class PartFormField extends FormField
+    {
+        PartFormField(final String fieldName)
+        {
+            super(null, null, -1, new InputStreamFactory()
+            {
+                public InputStream getInputStream() throws IOException
+                {
+                    return getPart(fieldName).getInputStream();
+                }
+
+                public void close() throws IOException
+                {
+                    getPart(fieldName).getInputStream().close();
+                }
+            });
+            this.fieldName = fieldName;
+        }
+
+        /* (non-Javadoc)
+         * @see org.directwebremoting.extend.FormField#getName()
+         */
+        @Override
+        public String getName()
+        {
+            return findPart().fileName;
+        }
+
+        /* (non-Javadoc)
+         * @see org.directwebremoting.extend.FormField#getMimeType()
+         */
+        @Override
+        public String getMimeType()
+        {
+            return findPart().contentType;
+        }
+
+        /* (non-Javadoc)
+         * @see org.directwebremoting.extend.FormField#getFileSize()
+         */
+        @Override
+        public long getFileSize()
+        {
+            return findPart().getSize();
+        }
+
+        /* (non-Javadoc)
+         * @see org.directwebremoting.extend.FormField#toString()
+         */
+        @Override
+        public String toString()
+        {
+            return "FormField:StreamedFile:" + fieldName;
+        }
+
+        /**
+         * Find the part for this field, from methods that can't throw
+         * {@link IOException}
+         */
+        private Part findPart()
+        {
+            try
+            {
+                return getPart(fieldName);
+            }
+            catch (IOException ex)
+            {
+                throw new IllegalStateException(ex.getMessage());
+            }
+        }
+
+        /**
+         * The name of the part in the request
+         */
+        private final String fieldName;
+    }
+
+    /**
+     * The rest of the request
+     */
+    private final FileItemIterator items;
+
+    /**
+     * Where we copy parts that we have to pass over
+     */
+    private final FileItemFactory spool;
+
+    /**
+     * The part of the request that we are currently reading
+     */
+    private FileItemStream current;
+
+    /**
+     * The parts that we have reached so far, by field name
+     */
+    private final Map<String, Part> parts = new HashMap<String, Part>();
+}
@@ -0,0 +1,126 @@
+package org.directwebremoting.dwrp;
+
+import org.directwebremoting.extend.Call;
+import org.directwebremoting.extend.FormField;
+import org.directwebremoting.extend.InboundContext;
+import org.directwebremoting.extend.InboundVariable;
+import org.directwebremoting.extend.ServerException;
+import org.directwebremoting.impl.TestEnvironment;
+import org.directwebremoting.util.FakeHttpServletRequest;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CallBatchTest
+{
+    @BeforeClass
+    public static void setUp()
+    {
+        TestEnvironment.engageThread();
+    }
+
+    @Test
+    public void testPlainPost() throws Exception
+    {
+        CallBatch batch = new CallBatch(post("callCount=1\n"
+            + "windowName=\r\n"
+            + "c0-scriptName=Test\r"
+            + "c0-methodName=go\n"
+            + "c0-id=0\n"
+            + "c0-param0=string:a=b%20c\n"
+            + "c0-param1=number:42\n"
+            + "c0-param2=Object_Object?Person:{name:reference:c0-e1}\n"
+            + "c0-e1=string:joe\n"
+            + "c0-param3=novalue\n"
+            + "\n"
+            + "batchId=7\n"
+            + "instanceId=0\n"
+            + "page=%2Ftest.html\n"
+            + "a-extra=attribute\n"
+            + "scriptSessionId=abc/def\n"));
+
+        assertEquals("7", batch.getCalls().getBatchId());
+        assertEquals("abc", batch.getDwrSessionId());
+        assertEquals("/test.html", batch.getPage());
+        assertEquals("", batch.getWindowName());
+
+        Call call = batch.getCalls().getCall(0);
+        assertEquals("Test", call.getScriptName());
+        assertEquals("go", call.getMethodName());
+
+        InboundContext context = batch.getInboundContexts().get(0);
+        context.dereference();
+        assertEquals(4, context.getParameterCount(0));
+
+        InboundVariable param = context.getParameter(0, 0);
+        assertEquals("string", param.getType());
+        assertEquals("a=b%20c", param.getValue());
+        assertEquals(new FormField("a=b%20c"), param.getFormField());
+        assertEquals(param.getFormField(), new FormField("a=b%20c"));
+        assertEquals(new FormField("a=b%20c").hashCode(), param.getFormField().hashCode());
+
+        assertEquals("number", context.getParameter(0, 1).getType());
+        assertEquals("42", context.getParameter(0, 1).getValue());
+        assertEquals("Object_Object:Person", context.getParameter(0, 2).getType());
+        assertEquals("{name:reference:c0-e1}", context.getParameter(0, 2).getValue());
+        assertEquals("string", context.getParameter(0, 3).getType());
+        assertEquals("novalue", context.getParameter(0, 3).getValue());
+
+        assertEquals("attribute", batch.getExtraParameters().get("a-extra").getString());
+    }
+
+    @Test
+    public void testIframePost() throws Exception
+    {
+        CallBatch batch = new CallBatch(post("callCount=1&windowName=&c0-scriptName=Test&c0-methodName=go&c0-id=0"
+            + "&c0-param0=string%3Ahello%2520world&batchId=1&instanceId=0&page=%252F&scriptSessionId=abc\n"));
+
+        InboundContext context = batch.getInboundContexts().get(0);
+        context.dereference();
+        assertEquals("string", context.getParameter(0, 0).getType());
+        assertEquals("hello%20world", context.getParameter(0, 0).getValue());
+        assertEquals("/", batch.getPage());
+    }
+
+    @Test
+    public void testBodyLargerThanInitialBuffer() throws Exception
+    {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+        {
+            value.append('x');
+        }
+
+        CallBatch batch = new CallBatch(post("callCount=1\nc0-scriptName=Test\nc0-methodName=go\nc0-id=0\n"
+            + "c0-param0=string:" + value + "\nbatchId=1\ninstanceId=0\npage=%2F\nwindowName=\nscriptSessionId=abc\n"));
+
+        InboundContext context = batch.getInboundContexts().get(0);
+        context.dereference();
+        assertEquals(value.toString(), context.getParameter(0, 0).getValue());
+    }
+
+    @Test(expected = ServerException.class)
+    public void testOversizedContentLengthIsRejected() throws Exception
+    {
+        FakeHttpServletRequest request = new FakeHttpServletRequest()
+        {
+            @Override
+            public int getContentLength()
+            {
+                return Integer.MAX_VALUE;
+            }
+        };
+        request.setMethod("POST");
+        request.setContent("callCount=1\n");
+        new CallBatch(request);
+    }
+
+    private static FakeHttpServletRequest post(String body)
+    {
+        FakeHttpServletRequest request = new FakeHttpServletRequest();
+        request.setMethod("POST");
+        request.setContent(body);
+        return request;
+    }
+}
@@ -0,0 +1,226 @@
+package org.directwebremoting.dwrp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import javax.servlet.ServletInputStream;
+
+import org.directwebremoting.extend.FormField;
+import org.directwebremoting.extend.ServerException;
+import org.directwebremoting.util.FakeHttpServletRequest;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CommonsFileUploadTest
+{
+    @Test
+    public void testFilesAreReadAsNeeded() throws Exception
+    {
+        String big = repeat('x', 100000);
+        CountingRequest request = new CountingRequest(new Part("callCount", "1"), new Part("fileParts", "c0-param0,c0-param1"), new Part("c0-param0", "a.txt", "text/plain", big), new Part("c0-param1", "b.txt", "text/csv", "b"));
+
+        CommonsFileUpload upload = new CommonsFileUpload();
+        upload.setStreamingUploads(true);
+        Map<String, FormField> fields = upload.parseRequest(request);
+
+        assertEquals("1", fields.get("callCount").getString());
+        assertFalse(fields.containsKey("fileParts"));
+        assertTrue(request.read < 10000);
+
+        FormField first = fields.get("c0-param0");
+        assertTrue(first.isFile());
+        assertEquals("a.txt", first.getName());
+        assertEquals("text/plain", first.getMimeType());
+        assertEquals(big, read(first.getInputStream()));
+
+        FormField second = fields.get("c0-param1");
+        assertEquals("b.txt", second.getName());
+        assertEquals("text/csv", second.getMimeType());
+        assertEquals("b", read(second.getInputStream()));
+    }
+
+    @Test
+    public void testLaterFileReadFirst() throws Exception
+    {
+        CountingRequest request = new CountingRequest(new Part("callCount", "1"), new Part("fileParts", "c0-param0,c0-param1"), new Part("c0-param0", "a.txt", "text/plain", "aaa"), new Part("c0-param1", "b.txt", "text/plain", "bbb"));
+
+        CommonsFileUpload upload = new CommonsFileUpload();
+        upload.setStreamingUploads(true);
+        Map<String, FormField> fields = upload.parseRequest(request);
+
+        // Reading the second part first means the first is stored on the way
+        assertEquals("bbb", read(fields.get("c0-param1").getInputStream()));
+        assertEquals(3, fields.get("c0-param0").getFileSize());
+        assertEquals("aaa", read(fields.get("c0-param0").getInputStream()));
+
+        // Parts that were never sent
+        request = new CountingRequest(new Part("fileParts", "c0-param0,c0-param9"), new Part("c0-param0", "a.txt", "text/plain", "aaa"));
+        fields = upload.parseRequest(request);
+        try
+        {
+            fields.get("c0-param9").getInputStream();
+            fail();
+        }
+        catch (IOException ex)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUndeclaredFilesAreBuffered() throws Exception
+    {
+        String big = repeat('y', 100000);
+        CountingRequest request = new CountingRequest(new Part("c0-param0", "a.txt", "text/plain", big), new Part("callCount", "1"));
+
+        CommonsFileUpload upload = new CommonsFileUpload();
+        upload.setStreamingUploads(true);
+        Map<String, FormField> fields = upload.parseRequest(request);
+
+        assertEquals("1", fields.get("callCount").getString());
+        assertEquals(100000, fields.get("c0-param0").getFileSize());
+        assertEquals(big, read(fields.get("c0-param0").getInputStream()));
+    }
+
+    @Test
+    public void testFormFieldLimit() throws Exception
+    {
+        CommonsFileUpload upload = new CommonsFileUpload();
+        upload.setFormFieldMaxBytes(10);
+
+        upload.setStreamingUploads(true);
+        assertEquals("1234567890", upload.parseRequest(new CountingRequest(new Part("a", "1234567890"))).get("a").getString());
+        try
+        {
+            upload.parseRequest(new CountingRequest(new Part("a", "12345678901")));
+            fail();
+        }
+        catch (ServerException ex)
+        {
+            // expected
+        }
+
+        upload.setStreamingUploads(false);
+        try
+        {
+            upload.parseRequest(new CountingRequest(new Part("a", "12345678901")));
+            fail();
+        }
+        catch (ServerException ex)
+        {
+            // expected
+        }
+    }
+
+    private static String read(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("ISO-8859-1");
+    }
+
+    private static String repeat(char c, int count)
+    {
+        StringBuilder buffer = new StringBuilder(count);
+        for (int i = 0; i < count; i++)
+        {
+            buffer.append(c);
+        }
+        return buffer.toString();
+    }
+
+    private static class Part
+    {
+        Part(String name, String value)
+        {
+            this(name, null, null, value);
+        }
+
+        Part(String name, String filename, String contentType, String value)
+        {
+            this.name = name;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.value = value;
+        }
+
+        final String name;
+        final String filename;
+        final String contentType;
+        final String value;
+    }
+
+    /**
+     * A multipart request that counts how much of its body has been read
+     */
+    private static class CountingRequest extends FakeHttpServletRequest
+    {
+        CountingRequest(Part... parts)
+        {
+            setMethod("POST");
+            setContentType("multipart/form-data; boundary=" + BOUNDARY);
+
+            StringBuilder body = new StringBuilder();
+            for (Part part : parts)
+            {
+                body.append("--").append(BOUNDARY).append("\r\n");
+                body.append("Content-Disposition: form-data; name=\"").append(part.name).append('"');
+                if (part.filename != null)
+                {
+                    body.append("; filename=\"").append(part.filename).append('"');
+                }
+                body.append("\r\n");
+                if (part.contentType != null)
+                {
+                    body.append("Content-Type: ").append(part.contentType).append("\r\n");
+                }
+                body.append("\r\n").append(part.value).append("\r\n");
+            }
+            body.append("--").append(BOUNDARY).append("--\r\n");
+            setContent(body.toString());
+        }
+
+        @Override
+        public ServletInputStream getInputStream()
+        {
+            final ByteArrayInputStream in = new ByteArrayInputStream(content);
+            return new ServletInputStream()
+            {
+                @Override
+                public int read()
+                {
+                    int b = in.read();
+                    if (b != -1)
+                    {
+                        CountingRequest.this.read++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len)
+                {
+                    int count = in.read(b, off, Math.min(len, 1024));
+                    if (count > 0)
+                    {
+                        CountingRequest.this.read += count;
+                    }
+                    return count;
+                }
+            };
+        }
+
+        int read = 0;
+
+        private static final String BOUNDARY = "----dwrtestboundary";
+    }
+}
@@ -16,28 +16,47 @@
 package org.directwebremoting.jsonrpc;
 
 import java.io.IOException;
-import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.directwebremoting.ConversionException;
+import org.directwebremoting.Container;
+import org.directwebremoting.WebContextFactory.WebContextBuilder;
 import org.directwebremoting.extend.AccessControl;
 import org.directwebremoting.extend.Call;
 import org.directwebremoting.extend.ConverterManager;
 import org.directwebremoting.extend.Handler;
+import org.directwebremoting.extend.InboundContext;
+import org.directwebremoting.extend.MethodDeclaration;
 import org.directwebremoting.extend.ModuleManager;
+import org.directwebremoting.extend.ParameterProperty;
 import org.directwebremoting.extend.Remoter;
 import org.directwebremoting.extend.Replies;
 import org.directwebremoting.extend.Reply;
+import org.directwebremoting.extend.UninitializingBean;
+import org.directwebremoting.impl.DaemonThreadFactory;
 import org.directwebremoting.json.JsonUtil;
 import org.directwebremoting.json.parse.JsonParseException;
-import org.directwebremoting.json.parse.JsonParser;
-import org.directwebremoting.json.parse.JsonParserFactory;
 import org.directwebremoting.jsonrpc.io.JsonRpcCallException;
 import org.directwebremoting.jsonrpc.io.JsonRpcCalls;
-import org.directwebremoting.jsonrpc.io.JsonRpcCallsJsonDecoder;
+import org.directwebremoting.jsonrpc.io.JsonRpcCallsReader;
 import org.directwebremoting.jsonrpc.io.JsonRpcError;
 import org.directwebremoting.jsonrpc.io.JsonRpcResponse;
 import org.directwebremoting.util.MimeConstants;
@@ -48,9 +67,22 @@ import static org.directwebremoting.jsonrpc.JsonRpcConstants.*;
 
 /**
  * A Handler for JSON-RPC calls.
+ * <p>The request is read as it arrives by a {@link JsonRpcCallsReader}, and
+ * the parameters are converted using the configured converters. A JSON-RPC
+ * 2.0 batch (an array of requests) gets an array of responses. The requests
+ * in a batch are handed to a pool of threads, and when all the pool threads
+ * are busy the HTTP request thread executes the remaining requests itself,
+ * once the pool threads have finished.
+ * <p>Servlet requests and responses are not thread safe, so the pool threads
+ * get a WebContext around wrappers: the parameters and the session are
+ * resolved before the batch starts, and access to request attributes,
+ * sessions, cookies and headers is serialized. Remoted methods that are
+ * called in parallel must still not read the request body or write to the
+ * response body. Set jsonRpcParallelBatch to false to execute batches one
+ * request at a time on the HTTP request thread.
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
-public class JsonRpcCallHandler implements Handler
+public class JsonRpcCallHandler implements Handler, UninitializingBean
 {
     /* (non-Javadoc)
      * @see org.directwebremoting.extend.Handler#handle(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
@@ -63,7 +95,8 @@ public class JsonRpcCallHandler implements Handler
             throw new SecurityException("JSON interface disabled");
         }
 
-        JsonRpcCalls calls = null;
+        List<JsonRpcCalls> batch;
+        JsonRpcCallsReader reader = new JsonRpcCallsReader(maxCallCount);
 
         try
         {
@@ -72,32 +105,156 @@ public class JsonRpcCallHandler implements Handler
             // explicit @idempotent marker is probably against the HTTP spec
             // Plus there are additional security issues with GET requests
             // So I'm not rushing to fix this error
-            Reader in = request.getReader();
-            JsonParser parser = JsonParserFactory.get();
-            calls = (JsonRpcCalls) parser.parse(in, new JsonRpcCallsJsonDecoder(converterManager, moduleManager));
+            batch = reader.read(request.getReader());
+        }
+        catch (JsonRpcCallException ex)
+        {
+            writeResponse(new JsonRpcError(ex), response, ex.getHttpStatusCode());
+            return;
+        }
+        catch (JsonParseException ex)
+        {
+            JsonRpcError error = new JsonRpcError("2.0", null, ex.getMessage(), ERROR_CODE_PARSE, null);
+            writeResponse(error, response, SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
 
-            if (calls.getCallCount() != 1)
+        if (!reader.isBatch())
+        {
+            JsonRpcCalls calls = batch.get(0);
+            Answer answer = execute(calls);
+            if (calls.isNotification())
             {
-                JsonRpcError error = new JsonRpcError(calls, "Non unique call", ERROR_CODE_INTERNAL, null);
-                writeResponse(error, response, SC_INTERNAL_SERVER_ERROR);
+                response.setStatus(SC_NO_CONTENT);
                 return;
             }
 
-            if (!calls.isParseErrorClean())
+            writeResponse(answer.data, response, answer.httpStatus);
+            return;
+        }
+
+        if (batch.isEmpty())
+        {
+            JsonRpcError error = new JsonRpcError("2.0", null, "Empty batch", ERROR_CODE_INVALID, null);
+            writeResponse(error, response, SC_BAD_REQUEST);
+            return;
+        }
+
+        List<Object> answers = executeBatch(batch, request, response);
+        if (answers.isEmpty())
+        {
+            response.setStatus(SC_NO_CONTENT);
+            return;
+        }
+
+        writeResponse(answers, response, SC_OK);
+    }
+
+    /**
+     * Execute the requests in a batch, in parallel where we can
+     * @return The responses, leaving out those for notifications
+     */
+    protected List<Object> executeBatch(List<JsonRpcCalls> batch, HttpServletRequest request, HttpServletResponse response)
+    {
+        WebContextBuilder webContextBuilder = null;
+        if (jsonRpcParallelBatch && container != null)
+        {
+            webContextBuilder = container.getBean(WebContextBuilder.class);
+        }
+
+        // A null future means the request is executed by this thread, which
+        // waits until the pool threads have finished so it isn't using the
+        // request at the same time as them
+        List<Future<Answer>> futures = new ArrayList<Future<Answer>>(batch.size());
+        if (webContextBuilder != null)
+        {
+            BatchRequest batchRequest = new BatchRequest(request);
+            BatchResponse batchResponse = new BatchResponse(response, batchRequest.lock);
+            for (JsonRpcCalls calls : batch)
             {
-                JsonRpcError error = new JsonRpcError(calls, calls.getParseErrors(), ERROR_CODE_PARSE, null);
-                writeResponse(error, response, SC_INTERNAL_SERVER_ERROR);
-                return;
+                Future<Answer> future = null;
+                try
+                {
+                    future = executor.submit(new BatchCall(calls, webContextBuilder, batchRequest, batchResponse));
+                }
+                catch (RejectedExecutionException ex)
+                {
+                    // All the threads are busy
+                }
+                futures.add(future);
             }
+        }
+        else
+        {
+            for (int i = 0; i < batch.size(); i++)
+            {
+                futures.add(null);
+            }
+        }
 
-            // Check the methods are accessible
-            for (Call c : calls)
+        Answer[] answers = new Answer[batch.size()];
+        for (int i = 0; i < batch.size(); i++)
+        {
+            Future<Answer> future = futures.get(i);
+            if (future != null)
             {
-                accessControl.assertGeneralExecutionIsPossible(c.getScriptName(), c.getMethodDeclaration());
+                answers[i] = getAnswer(batch.get(i), future);
             }
+        }
 
-            Replies replies = remoter.execute(calls);
+        List<Object> replies = new ArrayList<Object>(batch.size());
+        for (int i = 0; i < batch.size(); i++)
+        {
+            JsonRpcCalls calls = batch.get(i);
+            Answer answer = answers[i] != null ? answers[i] : execute(calls);
+            if (!calls.isNotification())
+            {
+                replies.add(answer.data);
+            }
+        }
+
+        return replies;
+    }
+
+    /**
+     * Wait for a request that is being executed by another thread
+     */
+    private Answer getAnswer(JsonRpcCalls calls, Future<Answer> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            return new Answer(new JsonRpcError(calls, "Interrupted", ERROR_CODE_SERVER, null), SC_INTERNAL_SERVER_ERROR);
+        }
+        catch (ExecutionException ex)
+        {
+            log.warn("Unexpected error:", ex.getCause());
+            return new Answer(new JsonRpcError(calls, ex.getCause().getMessage(), ERROR_CODE_SERVER, null), SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Convert the parameters of a single request, execute it, and work out
+     * what to reply.
+     */
+    protected Answer execute(JsonRpcCalls calls)
+    {
+        try
+        {
+            if (!calls.isParseErrorClean())
+            {
+                JsonRpcError error = new JsonRpcError(calls, calls.getParseErrors(), ERROR_CODE_PARSE, null);
+                return new Answer(error, SC_INTERNAL_SERVER_ERROR);
+            }
+
+            convertParameters(calls);
 
+            Replies replies = remoter.execute(calls);
             Reply reply = replies.getReply(0);
 
             // The existence of a throwable indicates that something went wrong
@@ -105,38 +262,70 @@ public class JsonRpcCallHandler implements Handler
             {
                 Throwable ex = reply.getThrowable();
                 JsonRpcError error = new JsonRpcError(calls, ex.getMessage(), ERROR_CODE_SERVER, null);
-                writeResponse(error, response, SC_INTERNAL_SERVER_ERROR);
-                return;
+                return new Answer(error, SC_INTERNAL_SERVER_ERROR);
             }
 
             JsonRpcResponse answer = new JsonRpcResponse(calls.getVersion(), calls.getId(), reply.getReply());
-            writeResponse(answer, response, HttpServletResponse.SC_OK);
+            return new Answer(answer, SC_OK);
         }
         catch (JsonRpcCallException ex)
         {
-            writeResponse(new JsonRpcError(ex), response, ex.getHttpStatusCode());
-            return;
-        }
-        catch (JsonParseException ex)
-        {
-            JsonRpcError error = new JsonRpcError("2.0", null, ex.getMessage(), ERROR_CODE_PARSE, null);
-            writeResponse(error, response, SC_INTERNAL_SERVER_ERROR);
-            return;
+            return new Answer(new JsonRpcError(ex), ex.getHttpStatusCode());
         }
         catch (SecurityException ex)
         {
             JsonRpcError error = new JsonRpcError(calls, ex.getMessage(), ERROR_CODE_NO_METHOD, null);
-            writeResponse(error, response, SC_NOT_FOUND);
-        }
-        catch (IOException ex)
-        {
-            throw ex;
+            return new Answer(error, SC_NOT_FOUND);
         }
         catch (Exception ex)
         {
             log.warn("Unexpected error:", ex);
             JsonRpcError error = new JsonRpcError(calls, ex.getMessage(), ERROR_CODE_SERVER, null);
-            writeResponse(error, response, SC_INTERNAL_SERVER_ERROR);
+            return new Answer(error, SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Find the method to call, check it is accessible and convert the
+     * parameters read by the {@link JsonRpcCallsReader} to the types it
+     * needs.
+     */
+    protected void convertParameters(JsonRpcCalls calls)
+    {
+        Call call = calls.getCall(0);
+        InboundContext inboundContext = calls.getInboundContext();
+
+        try
+        {
+            call.findMethod(moduleManager, converterManager, inboundContext, 0);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            log.warn("Method not found: " + call.getScriptName() + "." + call.getMethodName() + ": " + ex.getMessage());
+            throw new JsonRpcCallException(calls, "Method not found", ERROR_CODE_INVALID, SC_BAD_REQUEST);
+        }
+
+        // Check the method is accessible
+        MethodDeclaration method = call.getMethodDeclaration();
+        accessControl.assertGeneralExecutionIsPossible(call.getScriptName(), method);
+
+        try
+        {
+            inboundContext.dereference();
+
+            Class<?>[] paramTypes = method.getParameterTypes();
+            Object[] params = new Object[paramTypes.length];
+            for (int j = 0; j < paramTypes.length; j++)
+            {
+                params[j] = converterManager.convertInbound(paramTypes[j], inboundContext.getParameter(0, j), new ParameterProperty(method, j));
+            }
+
+            call.setParameters(params);
+        }
+        catch (ConversionException ex)
+        {
+            log.warn("Marshalling exception for " + call.getScriptName() + "." + call.getMethodName(), ex);
+            throw new JsonRpcCallException(calls, "Invalid params", ERROR_CODE_BAD_PARAMS, SC_BAD_REQUEST);
         }
     }
 
@@ -151,6 +340,377 @@ public class JsonRpcCallHandler implements Handler
         JsonUtil.toJson(data, response.getWriter());
     }
 
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.UninitializingBean#contextDestroyed()
+     */
+    public void contextDestroyed()
+    {
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.extend.UninitializingBean#servletDestroyed()
+     */
+    public void servletDestroyed()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * What we reply to a single request
+     */
+    protected static class Answer
+    {
+        /**
+         * @param data The {@link JsonRpcResponse} or {@link JsonRpcError}
+         * @param httpStatus The HTTP status if this is the only reply
+         */
+        protected Answer(Object data, int httpStatus)
+        {
+            this.data = data;
+            this.httpStatus = httpStatus;
+        }
+
+        /**
+         * The {@link JsonRpcResponse} or {@link JsonRpcError}
+         */
+        protected final Object data;
+
+        /**
+         * The HTTP status if this is the only reply
+         */
+        protected final int httpStatus;
+    }
+
+    /**
+     * Executes one request from a batch on a pool thread
+     */
+    private class BatchCall implements Callable<Answer>
+    {
+        /**
+         * The request and response are needed so the pool thread can have
+         * a WebContext like the one of the thread that read the batch
+         */
+        BatchCall(JsonRpcCalls calls, WebContextBuilder webContextBuilder, HttpServletRequest request, HttpServletResponse response)
+        {
+            this.calls = calls;
+            this.webContextBuilder = webContextBuilder;
+            this.request = request;
+            this.response = response;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.concurrent.Callable#call()
+         */
+        public Answer call()
+        {
+            webContextBuilder.engageThread(container, request, response);
+            try
+            {
+                return execute(calls);
+            }
+            finally
+            {
+                webContextBuilder.disengageThread();
+            }
+        }
+
+        private final JsonRpcCalls calls;
+
+        private final WebContextBuilder webContextBuilder;
+
+        private final HttpServletRequest request;
+
+        private final HttpServletResponse response;
+    }
+
+    /**
+     * The request that pool threads see. The parameters and the session are
+     * resolved by the HTTP request thread, and anything that could change the
+     * request is serialized.
+     */
+    private static class BatchRequest extends HttpServletRequestWrapper
+    {
+        BatchRequest(HttpServletRequest request)
+        {
+            super(request);
+            this.lock = request;
+
+            // Some containers parse parameters the first time they are asked
+            request.getParameterMap();
+            session = request.getSession(false);
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.http.HttpServletRequestWrapper#getSession()
+         */
+        @Override
+        public HttpSession getSession()
+        {
+            return getSession(true);
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.http.HttpServletRequestWrapper#getSession(boolean)
+         */
+        @Override
+        public HttpSession getSession(boolean create)
+        {
+            HttpSession found = session;
+            if (found != null || !create)
+            {
+                return found;
+            }
+
+            synchronized (lock)
+            {
+                if (session == null)
+                {
+                    session = super.getSession(true);
+                }
+                return session;
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.ServletRequestWrapper#getAttribute(java.lang.String)
+         */
+        @Override
+        public Object getAttribute(String name)
+        {
+            synchronized (lock)
+            {
+                return super.getAttribute(name);
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.ServletRequestWrapper#getAttributeNames()
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        public Enumeration<String> getAttributeNames()
+        {
+            synchronized (lock)
+            {
+                return super.getAttributeNames();
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.ServletRequestWrapper#setAttribute(java.lang.String, java.lang.Object)
+         */
+        @Override
+        public void setAttribute(String name, Object value)
+        {
+            synchronized (lock)
+            {
+                super.setAttribute(name, value);
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.ServletRequestWrapper#removeAttribute(java.lang.String)
+         */
+        @Override
+        public void removeAttribute(String name)
+        {
+            synchronized (lock)
+            {
+                super.removeAttribute(name);
+            }
+        }
+
+        /**
+         * What we synchronize on, shared with the {@link BatchResponse}
+         */
+        final Object lock;
+
+        /**
+         * The session, if there is one yet
+         */
+        private volatile HttpSession session;
+    }
+
+    /**
+     * The response that pool threads see, which serializes changes to the
+     * cookies and headers
+     */
+    private static class BatchResponse extends HttpServletResponseWrapper
+    {
+        BatchResponse(HttpServletResponse response, Object lock)
+        {
+            super(response);
+            this.lock = lock;
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.http.HttpServletResponseWrapper#addCookie(javax.servlet.http.Cookie)
+         */
+        @Override
+        public void addCookie(Cookie cookie)
+        {
+            synchronized (lock)
+            {
+                super.addCookie(cookie);
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.http.HttpServletResponseWrapper#setHeader(java.lang.String, java.lang.String)
+         */
+        @Override
+        public void setHeader(String name, String value)
+        {
+            synchronized (lock)
+            {
+                super.setHeader(name, value);
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.http.HttpServletResponseWrapper#addHeader(java.lang.String, java.lang.String)
+         */
+        @Override
+        public void addHeader(String name, String value)
+        {
+            synchronized (lock)
+            {
+                super.addHeader(name, value);
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.http.HttpServletResponseWrapper#setDateHeader(java.lang.String, long)
+         */
+        @Override
+        public void setDateHeader(String name, long date)
+        {
+            synchronized (lock)
+            {
+                super.setDateHeader(name, date);
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.http.HttpServletResponseWrapper#addDateHeader(java.lang.String, long)
+         */
+        @Override
+        public void addDateHeader(String name, long date)
+        {
+            synchronized (lock)
+            {
+                super.addDateHeader(name, date);
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.http.HttpServletResponseWrapper#setIntHeader(java.lang.String, int)
+         */
+        @Override
+        public void setIntHeader(String name, int value)
+        {
+            synchronized (lock)
+            {
+                super.setIntHeader(name, value);
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see javax.servlet.http.HttpServletResponseWrapper#addIntHeader(java.lang.String, int)
+         */
+        @Override
+        public void addIntHeader(String name, int value)
+        {
+            synchronized (lock)
+            {
+                super.addIntHeader(name, value);
+            }
+        }
+
+        /**
+         * What we synchronize on, shared with the {@link BatchRequest}
+         */
+        private final Object lock;
+    }
+
+    /**
+     * The most requests that we will accept in a batch
+     * @param maxCallCount the maxCallCount to set
+     */
+    public void setMaxCallCount(int maxCallCount)
+    {
+        this.maxCallCount = maxCallCount;
+    }
+
+    /**
+     * @see #setMaxCallCount(int)
+     */
+    protected int maxCallCount = 20;
+
+    /**
+     * Should the requests in a JSON-RPC batch be executed in parallel? See
+     * the notes on this class for what remoted methods can do when they are.
+     * @param jsonRpcParallelBatch false to execute them one at a time
+     */
+    public void setJsonRpcParallelBatch(boolean jsonRpcParallelBatch)
+    {
+        this.jsonRpcParallelBatch = jsonRpcParallelBatch;
+    }
+
+    /**
+     * @see #setJsonRpcParallelBatch(boolean)
+     */
+    protected boolean jsonRpcParallelBatch = true;
+
+    /**
+     * How many threads execute the requests in JSON-RPC batches
+     * @param jsonRpcBatchThreads The number of threads
+     */
+    public void setJsonRpcBatchThreads(int jsonRpcBatchThreads)
+    {
+        if (jsonRpcBatchThreads < 1)
+        {
+            throw new IllegalArgumentException("jsonRpcBatchThreads must be at least 1");
+        }
+
+        if (jsonRpcBatchThreads > executor.getMaximumPoolSize())
+        {
+            executor.setMaximumPoolSize(jsonRpcBatchThreads);
+            executor.setCorePoolSize(jsonRpcBatchThreads);
+        }
+        else
+        {
+            executor.setCorePoolSize(jsonRpcBatchThreads);
+            executor.setMaximumPoolSize(jsonRpcBatchThreads);
+        }
+    }
+
+    /**
+     * The threads that execute the requests in JSON-RPC batches. There is no
+     * queue because the HTTP request thread can do the work itself if all the
+     * threads are busy.
+     */
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_BATCH_THREADS, DEFAULT_BATCH_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory());
+
+    /**
+     * The default for {@link #setJsonRpcBatchThreads(int)}
+     */
+    private static final int DEFAULT_BATCH_THREADS = 8;
+
+    /**
+     * The container, so batch threads can be given a WebContext
+     * @param container The container that configured us
+     */
+    public void setContainer(Container container)
+    {
+        this.container = container;
+    }
+
+    /**
+     * @see #setContainer(Container)
+     */
+    protected Container container = null;
+
     /**
      * Accessor for the ConverterManager that we configure
      * @param converterManager
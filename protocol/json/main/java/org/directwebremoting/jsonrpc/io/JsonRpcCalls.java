@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.directwebremoting.extend.Calls;
+import org.directwebremoting.extend.InboundContext;
 import org.directwebremoting.io.StringWrapper;
 
 /**
@@ -54,6 +55,38 @@ public class JsonRpcCalls extends Calls
         this.version = version;
     }
 
+    /**
+     * Is this a JSON-RPC 2.0 request without an id, to which we must not reply?
+     */
+    public boolean isNotification()
+    {
+        return notification;
+    }
+
+    /**
+     * @see #isNotification()
+     */
+    public void setNotification(boolean notification)
+    {
+        this.notification = notification;
+    }
+
+    /**
+     * @return The parameters of the call, before they are converted
+     */
+    public InboundContext getInboundContext()
+    {
+        return inboundContext;
+    }
+
+    /**
+     * @see #getInboundContext()
+     */
+    public void setInboundContext(InboundContext inboundContext)
+    {
+        this.inboundContext = inboundContext;
+    }
+
     /**
      * If parsing has failed and we should not continue, then we might want to
      * carry on with the parse to get information like the id that is needed
@@ -97,6 +130,16 @@ public class JsonRpcCalls extends Calls
      */
     private String version = "2.0";
 
+    /**
+     * @see #isNotification()
+     */
+    private boolean notification = false;
+
+    /**
+     * @see #getInboundContext()
+     */
+    private InboundContext inboundContext = null;
+
     /**
      * @see #addParseError(String)
      * @see #isParseErrorClean()
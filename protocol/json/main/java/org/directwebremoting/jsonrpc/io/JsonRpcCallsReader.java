@@ -0,0 +1,396 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.jsonrpc.io;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.directwebremoting.extend.Call;
+import org.directwebremoting.extend.InboundContext;
+import org.directwebremoting.extend.ProtocolConstants;
+import org.directwebremoting.json.parse.JsonParseException;
+import org.directwebremoting.json.parse.stream.JsonTokenizer;
+import org.directwebremoting.json.parse.stream.JsonTokenizer.Token;
+import org.directwebremoting.util.JavascriptUtil;
+import org.directwebremoting.util.LocalUtil;
+
+import static javax.servlet.http.HttpServletResponse.*;
+
+import static org.directwebremoting.jsonrpc.JsonRpcConstants.*;
+
+/**
+ * Reads a JSON-RPC request, which is either a single request object or a
+ * JSON-RPC 2.0 batch array of them, into a list of {@link JsonRpcCalls}.
+ * <p>Unlike {@link JsonRpcCallsJsonDecoder} we don't build a tree of objects
+ * for the parameters. They are written straight into an
+ * {@link InboundContext} in the same form that DWR's own protocol uses, so
+ * they can be converted to the types the method wants using the configured
+ * converters. Each request gets its own InboundContext (with call number 0)
+ * so the requests in a batch can be prepared and executed independently.
+ * <p>Problems with a single request in a batch are recorded with
+ * {@link JsonRpcCalls#addParseError(String)} so the other requests can carry
+ * on. Input that is not valid JSON fails the whole batch.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class JsonRpcCallsReader
+{
+    /**
+     * @param maxCallCount The most requests that we will accept in a batch
+     */
+    public JsonRpcCallsReader(int maxCallCount)
+    {
+        this.maxCallCount = maxCallCount;
+    }
+
+    /**
+     * Read all the requests from some input
+     * @param in The source of the JSON data
+     * @return The requests, in the order that they were sent
+     * @throws JsonParseException If the input is not valid JSON
+     * @throws JsonRpcCallException If there are too many requests in a batch
+     */
+    public List<JsonRpcCalls> read(Reader in) throws JsonParseException
+    {
+        JsonTokenizer tokenizer = JsonTokenizer.borrow(in);
+        try
+        {
+            List<JsonRpcCalls> reply = new ArrayList<JsonRpcCalls>();
+
+            Token token = tokenizer.next();
+            if (token == Token.BEGIN_ARRAY)
+            {
+                batch = true;
+                while ((token = tokenizer.next()) != Token.END_ARRAY)
+                {
+                    if (reply.size() == maxCallCount)
+                    {
+                        log.error("Call count for batch exceeds maxCallCount. Add an init-param of maxCallCount to increase this limit");
+                        throw new JsonRpcCallException(null, "2.0", "Call count for batch is too high", ERROR_CODE_INVALID, SC_BAD_REQUEST);
+                    }
+
+                    reply.add(readCalls(tokenizer, token));
+                }
+            }
+            else
+            {
+                reply.add(readCalls(tokenizer, token));
+            }
+
+            // Check there is nothing after the end
+            tokenizer.next();
+            return reply;
+        }
+        finally
+        {
+            tokenizer.release();
+        }
+    }
+
+    /**
+     * Was the last input that we read a batch array rather than a single
+     * request object?
+     */
+    public boolean isBatch()
+    {
+        return batch;
+    }
+
+    /**
+     * Read a single request
+     * @param token The token that begins the request
+     */
+    private JsonRpcCalls readCalls(JsonTokenizer tokenizer, Token token) throws JsonParseException
+    {
+        JsonRpcCalls calls = new JsonRpcCalls();
+        InboundContext inboundContext = new InboundContext();
+        calls.setInboundContext(inboundContext);
+        elementCount = 0;
+
+        if (token != Token.BEGIN_OBJECT)
+        {
+            skip(tokenizer, token);
+            calls.addParseError("json-rpc request must be an object");
+            return calls;
+        }
+
+        boolean hasId = false;
+        boolean hasMethod = false;
+        while (tokenizer.next() != Token.END_OBJECT)
+        {
+            String propertyName = tokenizer.getText();
+            token = tokenizer.next();
+
+            if ("jsonrpc".equals(propertyName))
+            {
+                String version = readString(tokenizer, token, calls);
+                if (version != null)
+                {
+                    calls.setVersion(version);
+                }
+            }
+            else if ("method".equals(propertyName))
+            {
+                String method = readString(tokenizer, token, calls);
+                if (method != null)
+                {
+                    String[] parts = method.split("\\.");
+                    if (parts.length != 2)
+                    {
+                        log.warn("Got method='" + method + "', but this does not split into 2 parts.");
+                        calls.addParseError("method parameter did not split into 2 parts");
+                    }
+                    else
+                    {
+                        calls.addCall(new Call(null, parts[0], parts[1]));
+                        hasMethod = true;
+                    }
+                }
+            }
+            else if ("id".equals(propertyName))
+            {
+                hasId = true;
+                switch (token)
+                {
+                case STRING:
+                    calls.setBatchId(JavascriptUtil.escapeJavaScript(tokenizer.getText()));
+                    break;
+
+                case NUMBER:
+                    calls.setBatchId(tokenizer.getText());
+                    break;
+
+                case TRUE:
+                case FALSE:
+                    calls.setBatchId(String.valueOf(token == Token.TRUE));
+                    break;
+
+                case NULL:
+                    calls.setBatchId(null);
+                    break;
+
+                default:
+                    skip(tokenizer, token);
+                    calls.addParseError("id must be a string, number, boolean or null");
+                    break;
+                }
+            }
+            else if ("params".equals(propertyName))
+            {
+                if (token == Token.BEGIN_ARRAY)
+                {
+                    readParams(tokenizer, inboundContext);
+                }
+                else
+                {
+                    skip(tokenizer, token);
+                    calls.addParseError("Expected property 'params' to be a list");
+                }
+            }
+            else
+            {
+                skip(tokenizer, token);
+            }
+        }
+
+        if (!hasMethod && calls.isParseErrorClean())
+        {
+            calls.addParseError("json-rpc request must have a method");
+        }
+
+        calls.setNotification(!hasId && "2.0".equals(calls.getVersion()));
+        return calls;
+    }
+
+    /**
+     * Read the members of the params array into parameter variables
+     */
+    private void readParams(JsonTokenizer tokenizer, InboundContext inboundContext) throws JsonParseException
+    {
+        int index = 0;
+        Token token;
+        while ((token = tokenizer.next()) != Token.END_ARRAY)
+        {
+            String key = ProtocolConstants.INBOUND_CALLNUM_PREFIX + 0 +
+                         ProtocolConstants.INBOUND_CALLNUM_SUFFIX +
+                         ProtocolConstants.INBOUND_KEY_PARAM + index;
+            readValue(tokenizer, token, inboundContext, key);
+            index++;
+        }
+    }
+
+    /**
+     * Read a value into a variable, creating element variables for the
+     * members of objects and arrays.
+     * @param token The token that begins the value
+     * @param key The name of the variable to create
+     */
+    private void readValue(JsonTokenizer tokenizer, Token token, InboundContext inboundContext, String key) throws JsonParseException
+    {
+        switch (token)
+        {
+        case STRING:
+            inboundContext.createInboundVariable(0, key, "string", encodeString(tokenizer.getText()));
+            break;
+
+        case NUMBER:
+            inboundContext.createInboundVariable(0, key, "number", tokenizer.getText());
+            break;
+
+        case TRUE:
+        case FALSE:
+            inboundContext.createInboundVariable(0, key, "boolean", String.valueOf(token == Token.TRUE));
+            break;
+
+        case NULL:
+            inboundContext.createInboundVariable(0, key, "null", ProtocolConstants.INBOUND_NULL);
+            break;
+
+        case BEGIN_ARRAY:
+            StringBuilder array = new StringBuilder(ProtocolConstants.INBOUND_ARRAY_START);
+            while ((token = tokenizer.next()) != Token.END_ARRAY)
+            {
+                String member = nextElementKey();
+                readValue(tokenizer, token, inboundContext, member);
+
+                if (array.length() > 1)
+                {
+                    array.append(ProtocolConstants.INBOUND_ARRAY_SEPARATOR);
+                }
+                array.append("reference").append(ProtocolConstants.INBOUND_TYPE_SEPARATOR).append(member);
+            }
+            array.append(ProtocolConstants.INBOUND_ARRAY_END);
+            inboundContext.createInboundVariable(0, key, "array", array.toString());
+            break;
+
+        case BEGIN_OBJECT:
+            StringBuilder object = new StringBuilder(ProtocolConstants.INBOUND_MAP_START);
+            while (tokenizer.next() != Token.END_OBJECT)
+            {
+                String propertyName = encodeName(tokenizer.getText());
+                String member = nextElementKey();
+                readValue(tokenizer, tokenizer.next(), inboundContext, member);
+
+                if (object.length() > 1)
+                {
+                    object.append(ProtocolConstants.INBOUND_MAP_SEPARATOR);
+                }
+                object.append(propertyName).append(ProtocolConstants.INBOUND_MAP_ENTRY);
+                object.append("reference").append(ProtocolConstants.INBOUND_TYPE_SEPARATOR).append(member);
+            }
+            object.append(ProtocolConstants.INBOUND_MAP_END);
+            inboundContext.createInboundVariable(0, key, "Object_Object", object.toString());
+            break;
+
+        default:
+            throw new JsonParseException("Expected a value but found " + token);
+        }
+    }
+
+    /**
+     * The StringConverter URL decodes strings, which only changes strings that
+     * contain '%' or '+', so we only pay for encoding when it matters.
+     */
+    private static String encodeString(String value)
+    {
+        if (value.indexOf('%') == -1 && value.indexOf('+') == -1)
+        {
+            return value;
+        }
+
+        return LocalUtil.urlEncode(value);
+    }
+
+    /**
+     * Property names are separated by ',' and ':' in object declarations, so
+     * anything other than a plain ASCII name is URL encoded.
+     */
+    private static String encodeName(String name)
+    {
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            if (c > 127 || !(Character.isLetterOrDigit(c) || c == '_'))
+            {
+                return LocalUtil.urlEncode(name);
+            }
+        }
+
+        return name;
+    }
+
+    /**
+     * Read a string value, or record a parse error if the value is not a
+     * string.
+     * @return The string or null if the value was something else
+     */
+    private static String readString(JsonTokenizer tokenizer, Token token, JsonRpcCalls calls) throws JsonParseException
+    {
+        if (token == Token.STRING)
+        {
+            return tokenizer.getText();
+        }
+
+        skip(tokenizer, token);
+        calls.addParseError("Expected string type");
+        return null;
+    }
+
+    /**
+     * Read past a value that we have read the first token of
+     */
+    private static void skip(JsonTokenizer tokenizer, Token token) throws JsonParseException
+    {
+        if (token == Token.BEGIN_OBJECT || token == Token.BEGIN_ARRAY)
+        {
+            tokenizer.skipToEnd();
+        }
+    }
+
+    /**
+     * The name of a new variable for a member of an object or array
+     */
+    private String nextElementKey()
+    {
+        return ProtocolConstants.INBOUND_CALLNUM_PREFIX + 0 +
+               ProtocolConstants.INBOUND_CALLNUM_SUFFIX +
+               ProtocolConstants.INBOUND_KEY_ENV + elementCount++;
+    }
+
+    /**
+     * @see #JsonRpcCallsReader(int)
+     */
+    private final int maxCallCount;
+
+    /**
+     * @see #isBatch()
+     */
+    private boolean batch = false;
+
+    /**
+     * The number of element variables that we have created for the current
+     * request. Every request has its own InboundContext so we start again at
+     * 0 for each one.
+     */
+    private int elementCount = 0;
+
+    /**
+     * The log stream
+     */
+    private static final Log log = LogFactory.getLog(JsonRpcCallsReader.class);
+}
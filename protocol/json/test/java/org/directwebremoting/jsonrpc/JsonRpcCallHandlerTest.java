@@ -15,19 +15,29 @@
  */
 package org.directwebremoting.jsonrpc;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.directwebremoting.Container;
+import org.directwebremoting.WebContextFactory;
 import org.directwebremoting.create.NewCreator;
+import org.directwebremoting.extend.AccessControl;
 import org.directwebremoting.extend.CreatorManager;
+import org.directwebremoting.impl.DefaultAccessControl;
 import org.directwebremoting.impl.TestEnvironment;
+import org.directwebremoting.json.JsonUtil;
 import org.directwebremoting.util.FakeHttpServletRequest;
 import org.directwebremoting.util.FakeHttpServletResponse;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 /**
  * @author Joe Walker [joe at getahead dot ltd dot uk]
  */
@@ -68,6 +78,172 @@ public class JsonRpcCallHandlerTest
         }
     }
 
+    @Test
+    public void testBatch() throws Exception
+    {
+        Container container = TestEnvironment.getContainer();
+        JsonRpcCallHandler handler = (JsonRpcCallHandler) container.getBean("url:/jsonrpc");
+        handler.setJsonRpcEnabled(true);
+        addCalculator(container);
+
+        Calculator.rendezvous = new CountDownLatch(2);
+
+        FakeHttpServletRequest request = new FakeHttpServletRequest();
+        request.setContent("[" +
+            "{\"jsonrpc\":\"2.0\", \"id\":1, \"method\":\"Calculator.add\", \"params\":[2, 3]}," +
+            "{\"jsonrpc\":\"2.0\", \"method\":\"Calculator.add\", \"params\":[1, 1]}," +
+            "{\"jsonrpc\":\"2.0\", \"id\":2, \"method\":\"Calculator.sum\", \"params\":[[1, 2, 3.5]]}," +
+            "{\"jsonrpc\":\"2.0\", \"id\":3, \"method\":\"Calculator.describe\", \"params\":[{\"a b\":\"x&y\", \"c\":\"%\"}]}," +
+            "{\"jsonrpc\":\"2.0\", \"id\":4, \"method\":\"Calculator.missing\", \"params\":[]}," +
+            "{\"jsonrpc\":\"2.0\", \"id\":5, \"method\":\"Calculator.meet\", \"params\":[]}," +
+            "{\"jsonrpc\":\"2.0\", \"id\":6, \"method\":\"Calculator.meet\", \"params\":[]}," +
+            "42" +
+        "]");
+        FakeHttpServletResponse response = new FakeHttpServletResponse();
+        handler.handle(request, response);
+
+        String output = response.getContentAsString();
+        log.info(output);
+        assertEquals(200, response.getStatus());
+
+        Map<String, Map<String, Object>> replies = new HashMap<String, Map<String, Object>>();
+        List<Object> array = JsonUtil.toSimpleArray(output);
+        for (Object member : array)
+        {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> reply = (Map<String, Object>) member;
+            replies.put(String.valueOf(reply.get("id")), reply);
+        }
+
+        // One reply for each request that is not a notification
+        assertEquals(7, array.size());
+        assertEquals(5, replies.get("1").get("result"));
+        assertEquals(6.5, replies.get("2").get("result"));
+        assertEquals("a b=x&y,c=%", replies.get("3").get("result"));
+        assertNotNull(replies.get("4").get("code"));
+        assertNull(replies.get("4").get("result"));
+
+        // The 2 meetings only happen if they are executed in parallel
+        assertEquals(Boolean.TRUE, replies.get("5").get("result"));
+        assertEquals(Boolean.TRUE, replies.get("6").get("result"));
+    }
+
+    @Test
+    public void testSerialBatch() throws Exception
+    {
+        Container container = TestEnvironment.getContainer();
+        JsonRpcCallHandler handler = (JsonRpcCallHandler) container.getBean("url:/jsonrpc");
+        handler.setJsonRpcEnabled(true);
+        handler.setJsonRpcParallelBatch(false);
+        addCalculator(container);
+
+        // Nobody else turns up for the meeting
+        Calculator.rendezvous = new CountDownLatch(1);
+
+        try
+        {
+            FakeHttpServletRequest request = new FakeHttpServletRequest();
+            request.setContent("[" +
+                "{\"jsonrpc\":\"2.0\", \"id\":1, \"method\":\"Calculator.add\", \"params\":[2, 3]}," +
+                "{\"jsonrpc\":\"2.0\", \"id\":2, \"method\":\"Calculator.meet\", \"params\":[]}" +
+            "]");
+            FakeHttpServletResponse response = new FakeHttpServletResponse();
+            handler.handle(request, response);
+
+            List<Object> array = JsonUtil.toSimpleArray(response.getContentAsString());
+            assertEquals(2, array.size());
+            assertEquals(5, ((Map<?, ?>) array.get(0)).get("result"));
+            assertEquals(Boolean.TRUE, ((Map<?, ?>) array.get(1)).get("result"));
+        }
+        finally
+        {
+            handler.setJsonRpcParallelBatch(true);
+        }
+    }
+
+    @Test
+    public void testNotification() throws Exception
+    {
+        Container container = TestEnvironment.getContainer();
+        JsonRpcCallHandler handler = (JsonRpcCallHandler) container.getBean("url:/jsonrpc");
+        handler.setJsonRpcEnabled(true);
+
+        FakeHttpServletRequest request = new FakeHttpServletRequest();
+        request.setContent("[{\"jsonrpc\":\"2.0\", \"method\":\"Calculator.add\", \"params\":[1, 1]}]");
+        FakeHttpServletResponse response = new FakeHttpServletResponse();
+        handler.handle(request, response);
+
+        assertEquals(204, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    private static synchronized void addCalculator(Container container)
+    {
+        if (calculatorAdded)
+        {
+            return;
+        }
+        calculatorAdded = true;
+
+        CreatorManager creatorManager = container.getBean(CreatorManager.class);
+
+        // Calculator is in a DWR package so it would not normally be allowed
+        DefaultAccessControl accessControl = (DefaultAccessControl) container.getBean(AccessControl.class);
+        accessControl.setExposeInternals(true);
+
+        NewCreator creator = new NewCreator();
+        creator.setClassName(Calculator.class.getName());
+        creator.setJavascript("Calculator");
+        creatorManager.addCreator(creator);
+    }
+
+    public static class Calculator
+    {
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+
+        public double sum(double[] values)
+        {
+            double total = 0;
+            for (double value : values)
+            {
+                total += value;
+            }
+            return total;
+        }
+
+        public String describe(Map<String, String> data)
+        {
+            StringBuilder buffer = new StringBuilder();
+            for (String key : new java.util.TreeSet<String>(data.keySet()))
+            {
+                if (buffer.length() != 0)
+                {
+                    buffer.append(',');
+                }
+                buffer.append(key).append('=').append(data.get(key));
+            }
+            return buffer.toString();
+        }
+
+        public boolean meet() throws InterruptedException
+        {
+            if (WebContextFactory.get() == null)
+            {
+                return false;
+            }
+
+            rendezvous.countDown();
+            return rendezvous.await(10, TimeUnit.SECONDS);
+        }
+
+        static volatile CountDownLatch rendezvous;
+    }
+
+    private static boolean calculatorAdded = false;
+
     /**
      * The log stream
      */
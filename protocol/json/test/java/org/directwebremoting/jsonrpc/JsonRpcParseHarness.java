@@ -0,0 +1,164 @@
+/*
+ * Copyright 2005 Joe Walker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.directwebremoting.jsonrpc;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.directwebremoting.json.parse.JsonParser;
+import org.directwebremoting.json.parse.impl.IgnoreJsonDecoder;
+import org.directwebremoting.json.parse.impl.SimpleJsonDecoder;
+import org.directwebremoting.json.parse.javacc.JavaccJsonParser;
+import org.directwebremoting.json.parse.stream.StreamingJsonParser;
+import org.directwebremoting.jsonrpc.io.JsonRpcCallsReader;
+
+/**
+ * Compares the JavaCC parser with the streaming parser on a small JSON-RPC
+ * request, a request with a multi-megabyte parameter, and a batch of 20
+ * requests. Each parser is measured just checking the input (ignore), and
+ * building simple objects (simple). The {@link JsonRpcCallsReader}, which
+ * reads straight into InboundVariables, is measured on the same input.
+ * <p>The JavaCC grammar can't parse fractions that start with 0 (like 1.05),
+ * so the test data avoids them.
+ * <p>Allocation is only reported on VMs that can count the bytes allocated
+ * by a thread.
+ * <p>Not a unit test, run it from the command line.
+ * @author Joe Walker [joe at getahead dot ltd dot uk]
+ */
+public class JsonRpcParseHarness
+{
+    public static void main(String[] args) throws Exception
+    {
+        String small = "{\"jsonrpc\":\"2.0\", \"id\":1, \"method\":\"Demo.sayHello\", \"params\":[\"Fred\"]}";
+        String large = createRequest(1, 40000);
+
+        StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < 20; i++)
+        {
+            if (i != 0)
+            {
+                batch.append(',');
+            }
+            batch.append(createRequest(i, 2000));
+        }
+        batch.append(']');
+
+        // Warm up everything before measuring anything
+        for (String input : new String[] { small, large, batch.toString() })
+        {
+            measure(input, 5, false);
+        }
+
+        measure(small, 100000, true);
+        measure(large, 20, true);
+        measure(batch.toString(), 20, true);
+    }
+
+    /**
+     * Create a request with a parameter that is an array of people
+     */
+    private static String createRequest(int id, int people)
+    {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("{\"jsonrpc\":\"2.0\", \"id\":").append(id).append(", \"method\":\"People.setPeople\", \"params\":[[");
+        for (int i = 0; i < people; i++)
+        {
+            if (i != 0)
+            {
+                buffer.append(',');
+            }
+            buffer.append("{\"name\":\"Person \\\"").append(i).append("\\\"\", \"address\":\"").append(i).append(" High Street, Somewhere\", ");
+            buffer.append("\"salary\":").append(i).append(".25, \"tags\":[\"a\", \"b\", true, null]}");
+        }
+        buffer.append("]]}");
+        return buffer.toString();
+    }
+
+    /**
+     * Run all the parsers over the input
+     */
+    private static void measure(String input, int repeats, boolean print) throws Exception
+    {
+        long[] javaccIgnore = run(new JavaccJsonParser(), input, repeats, false);
+        long[] streamIgnore = run(new StreamingJsonParser(), input, repeats, false);
+        long[] javaccSimple = run(new JavaccJsonParser(), input, repeats, true);
+        long[] streamSimple = run(new StreamingJsonParser(), input, repeats, true);
+        long[] reader = read(input, repeats);
+
+        if (print)
+        {
+            System.out.println(input.length() + " chars:");
+            System.out.println("  javacc/ignore:    " + javaccIgnore[0] + "ns, " + javaccIgnore[1] + " bytes");
+            System.out.println("  streaming/ignore: " + streamIgnore[0] + "ns, " + streamIgnore[1] + " bytes");
+            System.out.println("  javacc/simple:    " + javaccSimple[0] + "ns, " + javaccSimple[1] + " bytes");
+            System.out.println("  streaming/simple: " + streamSimple[0] + "ns, " + streamSimple[1] + " bytes");
+            System.out.println("  json-rpc reader:  " + reader[0] + "ns, " + reader[1] + " bytes");
+        }
+    }
+
+    /**
+     * Parse the input repeatedly with a JsonParser
+     * @return The mean time in nanoseconds and bytes allocated per parse
+     */
+    private static long[] run(JsonParser parser, String input, int repeats, boolean simple) throws Exception
+    {
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++)
+        {
+            parser.parse(new StringReader(input), simple ? new SimpleJsonDecoder() : new IgnoreJsonDecoder());
+        }
+        long time = (System.nanoTime() - start) / repeats;
+        return new long[] { time, (allocatedBytes() - startBytes) / repeats };
+    }
+
+    /**
+     * Read the input repeatedly into InboundVariables
+     * @return The mean time in nanoseconds and bytes allocated per read
+     */
+    private static long[] read(String input, int repeats) throws Exception
+    {
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++)
+        {
+            new JsonRpcCallsReader(100).read(new StringReader(input));
+        }
+        long time = (System.nanoTime() - start) / repeats;
+        return new long[] { time, (allocatedBytes() - startBytes) / repeats };
+    }
+
+    /**
+     * @return The bytes allocated by this thread so far, or 0 if the VM can't
+     * tell us
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try
+        {
+            Class<?> sunThreads = Class.forName("com.sun.management.ThreadMXBean");
+            Method method = sunThreads.getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threads, Thread.currentThread().getId());
+        }
+        catch (Exception ex)
+        {
+            return 0;
+        }
+    }
+}
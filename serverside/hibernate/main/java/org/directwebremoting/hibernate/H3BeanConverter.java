@@ -15,15 +15,13 @@
  */
 package org.directwebremoting.hibernate;
 
-import java.beans.BeanInfo;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,6 +29,7 @@ import org.directwebremoting.ConversionException;
 import org.directwebremoting.convert.BeanConverter;
 import org.directwebremoting.extend.PlainProperty;
 import org.directwebremoting.extend.Property;
+import org.directwebremoting.util.ClassMetadataCache;
 import org.hibernate.Hibernate;
 import org.hibernate.engine.SessionImplementor;
 import org.hibernate.proxy.HibernateProxy;
@@ -49,75 +48,41 @@ public class H3BeanConverter extends BeanConverter
     public Map<String, Property> getPropertyMapFromObject(Object example, boolean readRequired, boolean writeRequired) throws ConversionException
     {
         Class<?> clazz = getClass(example);
+        Map<String, Property> cached = getPropertyMapFromClass(clazz, readRequired, writeRequired);
+        if (assumeSession)
+        {
+            return cached;
+        }
 
         try
         {
-            BeanInfo info = Introspector.getBeanInfo(clazz);
-            PropertyDescriptor[] descriptors = info.getPropertyDescriptors();
-
-            Map<String, Property> properties = new HashMap<String, Property>();
-            for (PropertyDescriptor descriptor : descriptors)
+            // We don't marshall un-initialized properties for Hibernate3, and
+            // that depends on the instance, so we can't cache it
+            Map<String, Property> properties = new HashMap<String, Property>(cached);
+            for (String name : cached.keySet())
             {
-                String name = descriptor.getName();
-
-                // We don't marshall getClass()
-                if ("class".equals(name))
-                {
-                    continue;
-                }
-
-                // And this is something added by hibernate
-                if ("hibernateLazyInitializer".equals(name))
-                {
-                    continue;
-                }
+                Method method = findGetter(example, name);
 
-                // Access rules mean we might not want to do this one
-                if (!isAllowedByIncludeExcludeRules(name))
+                if (method == null)
                 {
-                    continue;
-                }
+                    log.warn("Failed to find property: " + name);
 
-                if (readRequired && descriptor.getReadMethod() == null)
-                {
+                    properties.put(name, new PlainProperty(name, null));
                     continue;
                 }
 
-                if (writeRequired && descriptor.getWriteMethod() == null)
+                if (!Hibernate.isPropertyInitialized(example, name))
                 {
+                    properties.put(name, new PlainProperty(name, null));
                     continue;
                 }
 
-                if (!assumeSession)
+                // This might be a lazy-collection so we need to double check
+                Object retval = method.invoke(example);
+                if (!Hibernate.isInitialized(retval))
                 {
-                    // We don't marshall un-initialized properties for
-                    // Hibernate3
-                    Method method = findGetter(example, name);
-
-                    if (method == null)
-                    {
-                        log.warn("Failed to find property: " + name);
-
-                        properties.put(name, new PlainProperty(name, null));
-                        continue;
-                    }
-
-                    if (!Hibernate.isPropertyInitialized(example, name))
-                    {
-                        properties.put(name, new PlainProperty(name, null));
-                        continue;
-                    }
-
-                    // This might be a lazy-collection so we need to double check
-                    Object retval = method.invoke(example);
-                    if (!Hibernate.isInitialized(retval))
-                    {
-                        properties.put(name, new PlainProperty(name, null));
-                        continue;
-                    }
+                    properties.put(name, new PlainProperty(name, null));
                 }
-
-                properties.put(name, new H3PropertyDescriptorProperty(descriptor));
             }
 
             return properties;
@@ -128,6 +93,29 @@ public class H3BeanConverter extends BeanConverter
         }
     }
 
+    /* (non-Javadoc)
+     * @see org.directwebremoting.convert.BeanConverter#createPropertyMap(java.lang.Class, boolean, boolean)
+     */
+    @Override
+    protected Map<String, Property> createPropertyMap(Class<?> type, boolean readRequired, boolean writeRequired) throws ConversionException
+    {
+        Map<String, Property> properties = super.createPropertyMap(type, readRequired, writeRequired);
+
+        // This is something added by hibernate
+        properties.remove("hibernateLazyInitializer");
+
+        return properties;
+    }
+
+    /* (non-Javadoc)
+     * @see org.directwebremoting.convert.BeanConverter#createProperty(java.lang.Class, java.beans.PropertyDescriptor)
+     */
+    @Override
+    protected Property createProperty(Class<?> type, PropertyDescriptor descriptor)
+    {
+        return new H3PropertyDescriptorProperty(descriptor);
+    }
+
     /**
      * Hibernate makes {@link Class#getClass()} difficult ...
      * @param example The class that we want to call {@link Class#getClass()} on
@@ -168,8 +156,8 @@ public class H3BeanConverter extends BeanConverter
     }
 
     /**
-     * Cache the method if possible, using the classname and property name to
-     * allow for similar named methods.
+     * Cache the getters for each class, keyed by property name to allow for
+     * similar named methods.
      * @param data The bean to introspect
      * @param property The property to get the accessor for
      * @return The getter method
@@ -178,26 +166,29 @@ public class H3BeanConverter extends BeanConverter
     protected Method findGetter(Object data, String property) throws IntrospectionException
     {
         Class<?> clazz = getClass(data);
-        String key = clazz.getName() + ":" + property;
-        Method method = methods.get(key);
-        if (method == null)
+        Map<String, Method> getters = getterCache.get(clazz);
+        if (getters == null)
         {
-            Method newMethod = null;
-        	PropertyDescriptor[] props = Introspector.getBeanInfo(clazz).getPropertyDescriptors();
-            for (PropertyDescriptor prop : props)
+            getters = new HashMap<String, Method>();
+            for (PropertyDescriptor prop : Introspector.getBeanInfo(clazz).getPropertyDescriptors())
             {
-                if (prop.getName().equalsIgnoreCase(property))
+                Method getter = prop.getReadMethod();
+                if (getter != null)
                 {
-                    newMethod = prop.getReadMethod();
+                    getters.put(prop.getName().toLowerCase(), getter);
                 }
-            }            
-            method = methods.putIfAbsent(key, newMethod);
-            if (method == null) {
-                // put succeeded, use new value
-                method = newMethod;
             }
+
+            if (!ClassMetadataCache.isCacheSafe(clazz))
+            {
+                Introspector.flushFromCaches(clazz);
+            }
+
+            getters = Collections.unmodifiableMap(getters);
+            getterCache.put(clazz, getters);
         }
-        return method;
+
+        return getters.get(property.toLowerCase());
     }
 
     /**
@@ -214,9 +205,10 @@ public class H3BeanConverter extends BeanConverter
     protected boolean assumeSession = false;
 
     /**
-     * The cache of method lookups that we've already done
+     * The getters of the classes that we've already looked at, keyed by the
+     * lower case property name
      */
-    private final ConcurrentMap<String, Method> methods = new ConcurrentHashMap<String, Method>();
+    private final ClassMetadataCache<Map<String, Method>> getterCache = new ClassMetadataCache<Map<String, Method>>();
 
     /**
      * The log stream
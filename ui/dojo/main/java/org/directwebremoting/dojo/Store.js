@@ -496,6 +496,27 @@ dojo.declare("dwr.data.Store", null, {
         }
     },
 
+    regionChanged: function(/*StoreProvider*/ source, /*RegionChange*/ change) {
+        // Summary: See `dwr.data.StoreChangeListener.regionChanged`
+        var store = this;
+        dojo.forEach(change.deleted, function(itemId) {
+            store.itemRemoved(source, itemId);
+        });
+        dojo.forEach(change.added, function(item) {
+            store.itemAdded(source, item);
+        });
+        dojo.forEach(change.changed, function(item) {
+            var attributes = change.changedAttributes[item.itemId];
+            if (!attributes) {
+                attributes = [];
+                for (var attribute in item.data) {
+                    attributes.push(attribute);
+                }
+            }
+            store.itemChanged(source, item, attributes);
+        });
+    },
+
     onSet: function(/*item*/ item, /*string*/ attribute, /*object|array*/ oldValue, /*object|array*/ newValue) {
         // Summary: See `dojo.data.api.Notification.onSet`
         if (console && console.log) console.log("Original onSet function called");